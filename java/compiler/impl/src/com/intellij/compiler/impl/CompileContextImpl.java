@@ -279,6 +279,13 @@ public class CompileContextImpl extends UserDataHolderBase implements CompileCon
     }
   }
 
+  /**
+   * @see CompilerTask#pauseUntilMessagesShown(Runnable)
+   */
+  public boolean pauseUntilMessagesShown(@NotNull Runnable resume) {
+    return myTask.pauseUntilMessagesShown(resume);
+  }
+
   public int getMessageCount(CompilerMessageCategory category) {
     if (category != null) {
       Collection<CompilerMessage> collection = myMessages.get(category);
@@ -545,6 +545,11 @@ public class CompileDriver {
         compileContext.putUserData(COMPILE_SERVER_BUILD_STATUS, ExitStatus.ERRORS);
       }
 
+      @Override
+      protected boolean pauseUntilMessagesShown(Runnable resume) {
+        return compileContext.pauseUntilMessagesShown(resume);
+      }
+
       @Override
       protected void handleCompileMessage(UUID sessionId, CmdlineRemoteProto.Message.BuilderMessage.CompileMessage message) {
         final CmdlineRemoteProto.Message.BuilderMessage.CompileMessage.Kind kind = message.getKind();
@@ -22,6 +22,7 @@
 package com.intellij.compiler.progress;
 
 import com.intellij.compiler.CompilerManagerImpl;
+import com.intellij.concurrency.JobScheduler;
 import com.intellij.compiler.CompilerMessageImpl;
 import com.intellij.compiler.impl.CompilerErrorTreeView;
 import com.intellij.ide.errorTreeView.NewErrorTreeViewPanel;
@@ -64,6 +65,7 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -71,6 +73,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CompilerTask extends Task.Backgroundable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.progress.CompilerProgressIndicator");
+  private static final int MAX_PENDING_MESSAGES = 1000;
+  private static final long PENDING_MESSAGES_WAIT_TIMEOUT = 500;
   private static final Key<Key<?>> CONTENT_ID_KEY = Key.create("CONTENT_ID");
   private static final String APP_ICON_ID = "compiler";
   private Key<Key<?>> myContentIdKey = CONTENT_ID_KEY;
@@ -84,6 +88,11 @@ public class CompilerTask extends Task.Backgroundable {
   private int myErrorCount = 0;
   private int myWarningCount = 0;
   private boolean myMessagesAutoActivated = false;
+  // messages reported from background threads are shown in batches, a single EDT event for all messages received meanwhile
+  private final List<CompilerMessage> myPendingMessages = new ArrayList<CompilerMessage>();
+  private boolean myPendingMessagesScheduled = false;
+  private final List<Runnable> myPausedReaders = new ArrayList<Runnable>();
+  private boolean myPauseReaders = true;
 
   private volatile ProgressIndicator myIndicator = new EmptyProgressIndicator();
   private Runnable myCompileWork;
@@ -286,16 +295,80 @@ public class CompilerTask extends Task.Backgroundable {
       doAddMessage(message);
     }
     else {
-      final Window window = getWindow();
-      final ModalityState modalityState = window != null ? ModalityState.stateForComponent(window) : ModalityState.NON_MODAL;
-      ApplicationManager.getApplication().invokeLater(new Runnable() {
-        public void run() {
-          if (!myProject.isDisposed()) {
-            openMessageView();
-            doAddMessage(message);
+      final boolean schedule;
+      synchronized (myPendingMessages) {
+        myPendingMessages.add(message);
+        schedule = !myPendingMessagesScheduled;
+        myPendingMessagesScheduled = true;
+      }
+      if (schedule) {
+        final Window window = getWindow();
+        final ModalityState modalityState = window != null ? ModalityState.stateForComponent(window) : ModalityState.NON_MODAL;
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+          public void run() {
+            addPendingMessages();
+          }
+        }, modalityState);
+      }
+    }
+  }
+
+  private void addPendingMessages() {
+    final List<CompilerMessage> messages;
+    synchronized (myPendingMessages) {
+      messages = new ArrayList<CompilerMessage>(myPendingMessages);
+      myPendingMessages.clear();
+      myPendingMessagesScheduled = false;
+      myPauseReaders = true;
+    }
+    resumePausedReaders();
+    if (!myProject.isDisposed()) {
+      openMessageView();
+      for (CompilerMessage message : messages) {
+        doAddMessage(message);
+      }
+    }
+  }
+
+  /**
+   * Lets the reader of the messages (e.g. the connection to the build process) stop reading while too many messages wait for the EDT,
+   * so that the messages are not accumulated in memory. The reader must not block, it is resumed by the given callback once
+   * the pending messages are shown or, if the EDT stays busy (e.g. a modal dialog is shown), after a timeout.
+   *
+   * @return true if the reader should pause until the callback is called
+   */
+  public boolean pauseUntilMessagesShown(@NotNull Runnable resume) {
+    synchronized (myPendingMessages) {
+      if (myPendingMessages.size() < MAX_PENDING_MESSAGES || !myPauseReaders) {
+        return false;
+      }
+      myPausedReaders.add(resume);
+    }
+    JobScheduler.getScheduler().schedule(new Runnable() {
+      public void run() {
+        synchronized (myPendingMessages) {
+          if (myPendingMessages.size() >= MAX_PENDING_MESSAGES) {
+            // the EDT is busy for a long time, do not slow down the compilation any more
+            myPauseReaders = false;
           }
         }
-      }, modalityState);
+        resumePausedReaders();
+      }
+    }, PENDING_MESSAGES_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  private void resumePausedReaders() {
+    final List<Runnable> readers;
+    synchronized (myPendingMessages) {
+      if (myPausedReaders.isEmpty()) {
+        return;
+      }
+      readers = new ArrayList<Runnable>(myPausedReaders);
+      myPausedReaders.clear();
+    }
+    for (Runnable reader : readers) {
+      reader.run();
     }
   }
 
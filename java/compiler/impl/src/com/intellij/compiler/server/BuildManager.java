@@ -73,6 +73,7 @@ import com.intellij.openapi.vfs.newvfs.impl.FileNameCache;
 import com.intellij.util.Alarm;
 import com.intellij.util.Function;
 import com.intellij.util.SmartList;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.concurrency.Semaphore;
 import com.intellij.util.concurrency.SequentialTaskExecutor;
 import com.intellij.util.containers.IntArrayList;
@@ -131,6 +132,8 @@ public class BuildManager implements ApplicationComponent{
   private static final String IWS_EXTENSION = ".iws";
   private static final String IPR_EXTENSION = ".ipr";
   private static final String IDEA_PROJECT_DIR_PATTERN = "/.idea/";
+  private static final String IML_EXTENSION = ".iml";
+  private static final String WORKSPACE_FILE_NAME = "/workspace.xml";
   private static final Function<String, Boolean> PATH_FILTER =
     SystemInfo.isFileSystemCaseSensitive?
     new Function<String, Boolean>() {
@@ -155,6 +158,8 @@ public class BuildManager implements ApplicationComponent{
   private final Executor myPooledThreadExecutor = new PooledThreadExecutor();
   private final SequentialTaskExecutor myRequestsProcessor = new SequentialTaskExecutor(myPooledThreadExecutor);
   private final Map<String, ProjectData> myProjectDataMap = Collections.synchronizedMap(new HashMap<String, ProjectData>());
+  // build processes started in advance for the next build of the project
+  private final Map<String, PreloadedProcess> myPreloadedBuilds = Collections.synchronizedMap(new HashMap<String, PreloadedProcess>());
 
   private final BuildManagerPeriodicTask myAutoMakeTask = new BuildManagerPeriodicTask() {
     @Override
@@ -233,11 +238,27 @@ public class BuildManager implements ApplicationComponent{
     conn.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener.Adapter() {
       @Override
       public void after(@NotNull List<? extends VFileEvent> events) {
+        if (!myPreloadedBuilds.isEmpty() && containsConfigurationChanges(events)) {
+          // the preloaded processes have loaded the project model before the change
+          cancelPreloadedBuilds(null);
+        }
         if (shouldTriggerMake(events)) {
           scheduleAutoMake();
         }
       }
 
+      private boolean containsConfigurationChanges(List<? extends VFileEvent> events) {
+        final String optionsPath = FileUtil.toSystemIndependentName(PathManager.getOptionsPath()) + "/";
+        for (VFileEvent event : events) {
+          final String path = event.getPath();
+          if (path.startsWith(optionsPath) || path.endsWith(IPR_EXTENSION) || path.endsWith(IML_EXTENSION) ||
+              path.contains(IDEA_PROJECT_DIR_PATTERN) && !path.endsWith(WORKSPACE_FILE_NAME)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
       private boolean shouldTriggerMake(List<? extends VFileEvent> events) {
         if (PowerSaveMode.isEnabled()) {
           return false;
@@ -369,6 +390,7 @@ public class BuildManager implements ApplicationComponent{
 
   public void clearState(Project project) {
     final String projectPath = getProjectPath(project);
+    cancelPreloadedBuilds(projectPath);
     synchronized (myProjectDataMap) {
       final ProjectData data = myProjectDataMap.get(projectPath);
       if (data != null) {
@@ -502,7 +524,14 @@ public class BuildManager implements ApplicationComponent{
     final Map<String, String> userData, final DefaultMessageHandler messageHandler) {
 
     final String projectPath = getProjectPath(project);
-    final UUID sessionId = UUID.randomUUID();
+    // the process started in advance for the project is used for the build if it has been started with the current settings
+    final PreloadedProcess preloaded = projectPath != null ? myPreloadedBuilds.remove(projectPath) : null;
+    final boolean usePreloaded = preloaded != null && canUsePreloadedProcess(preloaded, project, projectPath);
+    if (preloaded != null && !usePreloaded) {
+      cancelPreloadedProcess(preloaded);
+    }
+    // the cancelled process may still connect with its session id, so the process launched instead of it gets a new one
+    final UUID sessionId = usePreloaded ? preloaded.sessionId : UUID.randomUUID();
     final boolean isAutomake = messageHandler instanceof AutoMakeMessageHandler;
     final BuilderMessageHandler handler = new MessageHandlerWrapper(messageHandler) {
       @Override
@@ -560,6 +589,9 @@ public class BuildManager implements ApplicationComponent{
         @Override
         public void run() {
           if (future.isCancelled() || project.isDisposed()) {
+            if (usePreloaded) {
+              cancelPreloadedProcess(preloaded);
+            }
             handler.sessionTerminated(sessionId);
             future.setDone();
             return;
@@ -604,7 +636,15 @@ public class BuildManager implements ApplicationComponent{
                                                          userData, globals, currentFSChanges);
           }
 
+          final long requestTime = System.currentTimeMillis();
           myMessageDispatcher.registerBuildMessageHandler(sessionId, new MessageHandlerWrapper(handler) {
+            @Override
+            public void buildStarted(UUID sessionId) {
+              LOG.info("Build parameters sent to the " + (usePreloaded ? "preloaded " : "") + "build process for " + projectPath + " in " +
+                       (System.currentTimeMillis() - requestTime) + " ms");
+              super.buildStarted(sessionId);
+            }
+
             @Override
             public void sessionTerminated(UUID sessionId) {
               try {
@@ -626,22 +666,27 @@ public class BuildManager implements ApplicationComponent{
                     return;
                   }
                   myBuildsInProgress.put(projectPath, future);
-                  final OSProcessHandler processHandler = launchBuildProcess(project, myListenPort, sessionId);
-                  final StringBuilder stdErrOutput = new StringBuilder();
-                  processHandler.addProcessListener(new ProcessAdapter() {
-                    @Override
-                    public void onTextAvailable(ProcessEvent event, Key outputType) {
-                      // re-translate builder's output to idea.log
-                      final String text = event.getText();
-                      if (!StringUtil.isEmptyOrSpaces(text)) {
-                        LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
-                        if (stdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
-                          stdErrOutput.append(text);
-                        }
-                      }
+                  final OSProcessHandler processHandler;
+                  final StringBuilder stdErrOutput;
+                  if (usePreloaded) {
+                    processHandler = preloaded.processHandler;
+                    stdErrOutput = preloaded.stdErrOutput;
+                  }
+                  else {
+                    // the process preloaded after the build was requested is not used, it must release the project data first
+                    final PreloadedProcess obsolete = myPreloadedBuilds.remove(projectPath);
+                    if (obsolete != null) {
+                      cancelPreloadedProcess(obsolete);
+                      obsolete.processHandler.waitFor();
+                    }
+                    if (preloaded != null) {
+                      preloaded.processHandler.waitFor();
                     }
-                  });
-                  processHandler.startNotify();
+                    processHandler = launchBuildProcess(createBuildProcessCommandLine(project, myListenPort, sessionId, null));
+                    stdErrOutput = new StringBuilder();
+                    processHandler.addProcessListener(new BuildProcessOutputListener(stdErrOutput));
+                    processHandler.startNotify();
+                  }
                   final boolean terminated = processHandler.waitFor();
                   if (terminated) {
                     final int exitValue = processHandler.getProcess().exitValue();
@@ -677,6 +722,7 @@ public class BuildManager implements ApplicationComponent{
                       unregistered.sessionTerminated(sessionId);
                     }
                   }
+                  preloadBuildProcess(project, projectPath);
                 }
               }
             });
@@ -694,6 +740,9 @@ public class BuildManager implements ApplicationComponent{
       return future;
     }
     catch (Throwable e) {
+      if (usePreloaded) {
+        cancelPreloadedProcess(preloaded);
+      }
       handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(e.getMessage(), e));
       handler.sessionTerminated(sessionId);
     }
@@ -701,12 +750,89 @@ public class BuildManager implements ApplicationComponent{
     return null;
   }
 
+  private boolean canUsePreloadedProcess(PreloadedProcess preloaded, Project project, String projectPath) {
+    if (preloaded.processHandler.isProcessTerminated()) {
+      return false;
+    }
+    try {
+      final GeneralCommandLine cmdLine = createBuildProcessCommandLine(project, myListenPort, preloaded.sessionId, projectPath);
+      return preloaded.commandLine.equals(cmdLine.getCommandLineString());
+    }
+    catch (ExecutionException e) {
+      LOG.info(e);
+      return false;
+    }
+  }
+
+  /**
+   * Starts the build process for the next build of the project. The process loads the project model and opens the build data storages
+   * while waiting for the build parameters, so the next build starts without the process startup and the project loading delay.
+   */
+  private void preloadBuildProcess(Project project, final String projectPath) {
+    if (IS_UNIT_TEST_MODE || !Registry.is("compiler.process.preload") || project.isDisposed() || myListenPort < 0) {
+      return;
+    }
+    final UUID sessionId = UUID.randomUUID();
+    try {
+      final GeneralCommandLine cmdLine = createBuildProcessCommandLine(project, myListenPort, sessionId, projectPath);
+      myMessageDispatcher.registerPreloadedSession(sessionId);
+      final OSProcessHandler processHandler = launchBuildProcess(cmdLine);
+      final PreloadedProcess preloaded = new PreloadedProcess(sessionId, processHandler, cmdLine.getCommandLineString());
+      processHandler.addProcessListener(new BuildProcessOutputListener(preloaded.stdErrOutput));
+      processHandler.addProcessListener(new ProcessAdapter() {
+        @Override
+        public void processTerminated(ProcessEvent event) {
+          synchronized (myPreloadedBuilds) {
+            if (myPreloadedBuilds.get(projectPath) == preloaded) {
+              myPreloadedBuilds.remove(projectPath);
+              myMessageDispatcher.unregisterBuildMessageHandler(sessionId);
+            }
+          }
+        }
+      });
+      processHandler.startNotify();
+      final PreloadedProcess previous = myPreloadedBuilds.put(projectPath, preloaded);
+      if (previous != null) {
+        cancelPreloadedProcess(previous);
+      }
+    }
+    catch (Throwable e) {
+      LOG.info(e);
+      myMessageDispatcher.unregisterBuildMessageHandler(sessionId);
+    }
+  }
+
+  /**
+   * @param projectPath the project which preloaded process is to be cancelled, null to cancel the processes of all projects
+   */
+  private void cancelPreloadedBuilds(@Nullable String projectPath) {
+    final List<PreloadedProcess> cancelled = new SmartList<PreloadedProcess>();
+    synchronized (myPreloadedBuilds) {
+      if (projectPath != null) {
+        ContainerUtil.addIfNotNull(myPreloadedBuilds.remove(projectPath), cancelled);
+      }
+      else {
+        cancelled.addAll(myPreloadedBuilds.values());
+        myPreloadedBuilds.clear();
+      }
+    }
+    for (PreloadedProcess preloaded : cancelled) {
+      cancelPreloadedProcess(preloaded);
+    }
+  }
+
+  private void cancelPreloadedProcess(PreloadedProcess preloaded) {
+    myMessageDispatcher.unregisterBuildMessageHandler(preloaded.sessionId);
+    preloaded.processHandler.destroyProcess();
+  }
+
   @Override
   public void initComponent() {
   }
 
   @Override
   public void disposeComponent() {
+    cancelPreloadedBuilds(null);
     stopListening();
   }
 
@@ -716,7 +842,8 @@ public class BuildManager implements ApplicationComponent{
     return "com.intellij.compiler.server.BuildManager";
   }
 
-  private OSProcessHandler launchBuildProcess(Project project, final int port, final UUID sessionId) throws ExecutionException {
+  private GeneralCommandLine createBuildProcessCommandLine(Project project, final int port, final UUID sessionId,
+                                                          @Nullable String preloadProjectPath) throws ExecutionException {
     final String compilerPath;
     final String vmExecutablePath;
     JavaSdkVersion sdkVersion = null;
@@ -872,6 +999,10 @@ public class BuildManager implements ApplicationComponent{
     }
 
     cmdLine.addParameter("-D" + GlobalOptions.LOG_DIR_OPTION + "=" + FileUtil.toSystemIndependentName(getBuildLogDirectory().getAbsolutePath()));
+    if (preloadProjectPath != null) {
+      cmdLine.addParameter("-D" + GlobalOptions.PRELOAD_PROJECT_PATH_OPTION + "=" + FileUtil.toSystemIndependentName(preloadProjectPath));
+      cmdLine.addParameter("-D" + GlobalOptions.PRELOAD_CONFIG_PATH_OPTION + "=" + FileUtil.toSystemIndependentName(PathManager.getOptionsPath()));
+    }
 
     final File workDirectory = getBuildSystemDirectory();
     workDirectory.mkdirs();
@@ -901,7 +1032,10 @@ public class BuildManager implements ApplicationComponent{
     cmdLine.addParameter(FileUtil.toSystemIndependentName(workDirectory.getPath()));
 
     cmdLine.setWorkDirectory(workDirectory);
+    return cmdLine;
+  }
 
+  private OSProcessHandler launchBuildProcess(GeneralCommandLine cmdLine) throws ExecutionException {
     final Process process = cmdLine.createProcess();
 
     return new OSProcessHandler(process, null, mySystemCharset) {
@@ -998,6 +1132,12 @@ public class BuildManager implements ApplicationComponent{
     myProjectDataMap.remove(getProjectPath(project));
   }
 
+  @TestOnly
+  void addPreloadedProcess(Project project, UUID sessionId, OSProcessHandler processHandler, String commandLine) {
+    myMessageDispatcher.registerPreloadedSession(sessionId);
+    myPreloadedBuilds.put(getProjectPath(project), new PreloadedProcess(sessionId, processHandler, commandLine));
+  }
+
   private static String classpathToString(List<String> cp) {
     StringBuilder builder = new StringBuilder();
     for (String file : cp) {
@@ -1108,6 +1248,7 @@ public class BuildManager implements ApplicationComponent{
     @Override
     public void projectClosed(Project project) {
       myProjectDataMap.remove(getProjectPath(project));
+      cancelPreloadedBuilds(getProjectPath(project));
       final MessageBusConnection conn = myConnections.remove(project);
       if (conn != null) {
         conn.disconnect();
@@ -1115,6 +1256,39 @@ public class BuildManager implements ApplicationComponent{
     }
   }
 
+  private static class BuildProcessOutputListener extends ProcessAdapter {
+    private final StringBuilder myStdErrOutput;
+
+    private BuildProcessOutputListener(StringBuilder stdErrOutput) {
+      myStdErrOutput = stdErrOutput;
+    }
+
+    @Override
+    public void onTextAvailable(ProcessEvent event, Key outputType) {
+      // re-translate builder's output to idea.log
+      final String text = event.getText();
+      if (!StringUtil.isEmptyOrSpaces(text)) {
+        LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
+        if (myStdErrOutput.length() < 1024 && ProcessOutputTypes.STDERR.equals(outputType)) {
+          myStdErrOutput.append(text);
+        }
+      }
+    }
+  }
+
+  private static class PreloadedProcess {
+    final UUID sessionId;
+    final OSProcessHandler processHandler;
+    final String commandLine;
+    final StringBuilder stdErrOutput = new StringBuilder();
+
+    private PreloadedProcess(UUID sessionId, OSProcessHandler processHandler, String commandLine) {
+      this.sessionId = sessionId;
+      this.processHandler = processHandler;
+      this.commandLine = commandLine;
+    }
+  }
+
   private static class ProjectData {
     final SequentialTaskExecutor taskQueue;
     private final Set<InternedPath> myChanged = new THashSet<InternedPath>();
@@ -23,10 +23,10 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.CmdlineProtoUtil;
 import org.jetbrains.jps.api.CmdlineRemoteProto;
 
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
 * @author Eugene Zhuravlev
@@ -34,15 +34,46 @@ import java.util.concurrent.ConcurrentHashMap;
 */
 class BuildMessageDispatcher extends SimpleChannelHandler {
   private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.server.BuildMessageDispatcher");
-  private final Map<UUID, SessionData> myMessageHandlers = new ConcurrentHashMap<UUID, SessionData>();
+  private final ConcurrentMap<UUID, SessionData> myMessageHandlers = new ConcurrentHashMap<UUID, SessionData>();
   private final Set<UUID> myCanceledSessions = new ConcurrentHashSet<UUID>();
 
   public void registerBuildMessageHandler(UUID sessionId,
                                           BuilderMessageHandler handler,
                                           CmdlineRemoteProto.Message.ControllerMessage params) {
+    final SessionData preloaded = myMessageHandlers.get(sessionId);
+    if (preloaded != null) {
+      final Channel channel;
+      synchronized (preloaded) {
+        if (preloaded.handler == null && myMessageHandlers.get(sessionId) == preloaded) {
+          preloaded.handler = handler;
+          if (!preloaded.paramsRequested) {
+            preloaded.params = params;
+            return;
+          }
+          channel = preloaded.channel;
+        }
+        else {
+          channel = null;
+        }
+      }
+      if (channel != null) {
+        // the process started in advance has already requested the parameters
+        handler.buildStarted(sessionId);
+        Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, params));
+        return;
+      }
+    }
     myMessageHandlers.put(sessionId, new SessionData(sessionId, handler, params));
   }
 
+  /**
+   * Registers the session of the build process started in advance, the process waits for the build parameters
+   * until the handler of the session is registered.
+   */
+  public void registerPreloadedSession(UUID sessionId) {
+    myMessageHandlers.put(sessionId, new SessionData(sessionId, null, null));
+  }
+
   @Nullable
   public BuilderMessageHandler unregisterBuildMessageHandler(UUID sessionId) {
     myCanceledSessions.remove(sessionId);
@@ -97,6 +128,16 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
       sessionId = sessionData.sessionId;
     }
 
+    if (sessionData != null && isParamRequest(message)) {
+      synchronized (sessionData) {
+        if (sessionData.handler == null) {
+          // the process started in advance, the parameters are sent when the build is requested
+          sessionData.paramsRequested = true;
+          return;
+        }
+      }
+    }
+
     final BuilderMessageHandler handler = sessionData != null? sessionData.handler : null;
     if (handler == null) {
       // todo
@@ -135,6 +176,11 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     }
   }
 
+  private static boolean isParamRequest(CmdlineRemoteProto.Message message) {
+    return message.getType() == CmdlineRemoteProto.Message.Type.BUILDER_MESSAGE &&
+           message.getBuilderMessage().getType() == CmdlineRemoteProto.Message.BuilderMessage.Type.PARAM_REQUEST;
+  }
+
   @Override
   public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
     try {
@@ -142,8 +188,10 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     }
     finally {
       final SessionData sessionData = (SessionData)ctx.getAttachment();
-      if (sessionData != null) {
-        final BuilderMessageHandler handler = unregisterBuildMessageHandler(sessionData.sessionId);
+      // the session may have been registered again for another process if the process started in advance was not used
+      if (sessionData != null && myMessageHandlers.remove(sessionData.sessionId, sessionData)) {
+        myCanceledSessions.remove(sessionData.sessionId);
+        final BuilderMessageHandler handler = sessionData.handler;
         if (handler != null) {
           // notify the handler only if it has not been notified yet
           handler.sessionTerminated(sessionData.sessionId);
@@ -182,11 +230,12 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
 
   private static final class SessionData {
     final UUID sessionId;
-    final BuilderMessageHandler handler;
+    volatile BuilderMessageHandler handler;
     volatile CmdlineRemoteProto.Message.ControllerMessage params;
     volatile Channel channel;
+    boolean paramsRequested; // guarded by this
 
-    private SessionData(UUID sessionId, BuilderMessageHandler handler, CmdlineRemoteProto.Message.ControllerMessage params) {
+    private SessionData(UUID sessionId, @Nullable BuilderMessageHandler handler, @Nullable CmdlineRemoteProto.Message.ControllerMessage params) {
       this.sessionId = sessionId;
       this.handler = handler;
       this.params = params;
@@ -50,6 +50,8 @@ public abstract class DefaultMessageHandler implements BuilderMessageHandler {
   private final Project myProject;
   private int myConstantSearchesCount = 0;
   private final CachingSearcher mySearcher;
+  private final Object myReadingLock = new Object();
+  private boolean myReadingPaused = false; // guarded by myReadingLock
   private final SequentialTaskExecutor myTaskExecutor = new SequentialTaskExecutor(new Executor() {
     @Override
     public void execute(Runnable command) {
@@ -74,6 +76,9 @@ public abstract class DefaultMessageHandler implements BuilderMessageHandler {
         break;
       case COMPILE_MESSAGE:
         handleCompileMessage(sessionId, msg.getCompileMessage());
+        if (channel != null) {
+          pauseReadingIfBehind(channel);
+        }
         break;
       case CONSTANT_SEARCH_TASK:
         final CmdlineRemoteProto.Message.BuilderMessage.ConstantSearchTask task = msg.getConstantSearchTask();
@@ -87,6 +92,40 @@ public abstract class DefaultMessageHandler implements BuilderMessageHandler {
     }
   }
 
+  /**
+   * The handler is called from the I/O thread shared by all build sessions, so it must not block it when the messages
+   * can't be shown as fast as they arrive. Instead, reading from the build process is suspended, and the build process waits
+   * for its writes to complete.
+   */
+  private void pauseReadingIfBehind(final Channel channel) {
+    synchronized (myReadingLock) {
+      if (myReadingPaused) {
+        return;
+      }
+      myReadingPaused = pauseUntilMessagesShown(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (myReadingLock) {
+            if (myReadingPaused) {
+              myReadingPaused = false;
+              channel.setReadable(true);
+            }
+          }
+        }
+      });
+      if (myReadingPaused) {
+        channel.setReadable(false);
+      }
+    }
+  }
+
+  /**
+   * @return true if the handler can't keep up with the messages; no more messages are read until the given callback is called
+   */
+  protected boolean pauseUntilMessagesShown(Runnable resume) {
+    return false;
+  }
+
   protected abstract void handleCompileMessage(UUID sessionId, CmdlineRemoteProto.Message.BuilderMessage.CompileMessage message);
 
   protected abstract void handleBuildEvent(UUID sessionId, CmdlineRemoteProto.Message.BuilderMessage.BuildEvent event);
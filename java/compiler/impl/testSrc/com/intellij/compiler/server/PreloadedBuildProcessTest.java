@@ -0,0 +1,105 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.compiler.server;
+
+import com.intellij.compiler.BaseCompilerTestCase;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.OSProcessHandler;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.projectRoots.JavaSdkType;
+import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.io.TestFileSystemBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class PreloadedBuildProcessTest extends BaseCompilerTestCase {
+  private final List<UUID> myStartedSessions = new ArrayList<UUID>();
+
+  @Override
+  protected boolean useExternalCompiler() {
+    return true;
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationManager.getApplication().getMessageBus().connect(myTestRootDisposable).subscribe(BuildManagerListener.TOPIC, new BuildManagerListener() {
+      @Override
+      public void buildStarted(Project project, UUID sessionId, boolean isAutomake) {
+        synchronized (myStartedSessions) {
+          myStartedSessions.add(sessionId);
+        }
+      }
+
+      @Override
+      public void buildFinished(Project project, UUID sessionId, boolean isAutomake) {
+      }
+    });
+  }
+
+  public void testTerminatedPreloadedProcessNotUsed() throws Exception {
+    final Module module = addModuleWithSource();
+    final OSProcessHandler processHandler = startProcess();
+    processHandler.waitFor();
+    final UUID preloadedSessionId = preload(processHandler, processHandler.getCommandLine());
+
+    make(module);
+    assertOutput(module, TestFileSystemBuilder.fs().file("A.class"));
+    assertFreshSessionStarted(preloadedSessionId);
+  }
+
+  public void testPreloadedProcessWithOutdatedSettingsNotUsed() throws Exception {
+    final Module module = addModuleWithSource();
+    final OSProcessHandler processHandler = startProcess();
+    final UUID preloadedSessionId = preload(processHandler, "outdated command line");
+
+    make(module);
+    assertOutput(module, TestFileSystemBuilder.fs().file("A.class"));
+    assertTrue(processHandler.isProcessTerminated());
+    assertFreshSessionStarted(preloadedSessionId);
+  }
+
+  private Module addModuleWithSource() {
+    final VirtualFile file = createFile("src/A.java", "class A{}");
+    return addModule("a", file.getParent());
+  }
+
+  private UUID preload(OSProcessHandler processHandler, String commandLine) {
+    final UUID sessionId = UUID.randomUUID();
+    BuildManager.getInstance().addPreloadedProcess(myProject, sessionId, processHandler, commandLine);
+    return sessionId;
+  }
+
+  private OSProcessHandler startProcess() throws Exception {
+    final Sdk jdk = getTestProjectJdk();
+    final GeneralCommandLine cmdLine = new GeneralCommandLine(((JavaSdkType)jdk.getSdkType()).getVMExecutablePath(jdk), "-version");
+    final OSProcessHandler processHandler = new OSProcessHandler(cmdLine.createProcess(), cmdLine.getCommandLineString());
+    processHandler.startNotify();
+    return processHandler;
+  }
+
+  private void assertFreshSessionStarted(UUID preloadedSessionId) {
+    synchronized (myStartedSessions) {
+      assertEquals(1, myStartedSessions.size());
+      assertFalse(preloadedSessionId.equals(myStartedSessions.get(0)));
+    }
+  }
+}
@@ -1,6 +1,23 @@
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.cache.CacheManager;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.UsageSearchContext;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+import com.intellij.util.ThrowableRunnable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Dmitry Avdeev
@@ -15,4 +32,139 @@ public class FileBasedIndexTest extends LightCodeInsightFixtureTestCase {
     myFixture.configureByText("Bar.java", "class Bar { String bar; }");
     myFixture.testHighlighting();
   }
+
+  public void testContentIndicesUpdatedByWriterQueues() throws Exception {
+    FileBasedIndexImpl fileBasedIndex = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+    fileBasedIndex.setContentIndexWriters(3);
+    try {
+      final VirtualFile[] files = new VirtualFile[50];
+      for (int i = 0; i < files.length; i++) {
+        files[i] = myFixture.addFileToProject("writers/Writer" + i + ".java", "class Writer" + i + " { int before" + i + "; }")
+          .getVirtualFile();
+      }
+
+      GlobalSearchScope scope = GlobalSearchScope.allScope(getProject());
+      for (int i = 0; i < files.length; i++) {
+        assertNotNull(JavaPsiFacade.getInstance(getProject()).findClass("Writer" + i, scope));
+        assertFilesWithWord("before" + i, files[i]);
+      }
+
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < files.length; i++) {
+              VfsUtil.saveText(files[i], "class Renamed" + i + " { int after" + i + "; }");
+            }
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+
+      for (int i = 0; i < files.length; i++) {
+        assertNull(JavaPsiFacade.getInstance(getProject()).findClass("Writer" + i, scope));
+        assertNotNull(JavaPsiFacade.getInstance(getProject()).findClass("Renamed" + i, scope));
+        assertFilesWithWord("before" + i);
+        assertFilesWithWord("after" + i, files[i]);
+      }
+    }
+    finally {
+      fileBasedIndex.setContentIndexWriters(0);
+    }
+  }
+
+  public void testWriterQueueFlushedWithoutQuery() throws Exception {
+    final CountDownLatch updated = new CountDownLatch(1);
+    final CountDownLatch stamped = new CountDownLatch(1);
+    TaskQueue queue = new TaskQueue(1000, 100);
+    queue.submit(new Computable<Boolean>() {
+      @Override
+      public Boolean compute() {
+        updated.countDown();
+        return Boolean.TRUE;
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        stamped.countDown();
+      }
+    });
+    // no files update is running and nobody calls ensureUpToDate()
+    assertTrue(updated.await(10, TimeUnit.SECONDS));
+    assertTrue(stamped.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testIndexingPerformance() throws Exception {
+    VirtualFile[] corpus = new VirtualFile[300];
+    for (int i = 0; i < corpus.length; i++) {
+      corpus[i] = myFixture.addFileToProject("corpus/Corpus" + i + ".java", getCorpusText(i, 0)).getVirtualFile();
+    }
+    doTestIndexingPerformance(corpus, 0);
+    doTestIndexingPerformance(corpus, 3);
+  }
+
+  private void doTestIndexingPerformance(final VirtualFile[] corpus, int writers) {
+    FileBasedIndexImpl fileBasedIndex = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+    fileBasedIndex.setContentIndexWriters(writers);
+    try {
+      final int[] round = {0};
+      PlatformTestUtil.startPerformanceTest("indexing " + corpus.length + " files with " + writers + " writers", 3000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Throwable {
+          // the queries index the changed files
+          GlobalSearchScope scope = GlobalSearchScope.allScope(getProject());
+          for (int i = 0; i < corpus.length; i++) {
+            assertNotNull(JavaPsiFacade.getInstance(getProject()).findClass("Corpus" + i + "_" + round[0], scope));
+          }
+          assertFilesWithWord("round" + round[0], corpus);
+        }
+      }).setup(new ThrowableRunnable() {
+        @Override
+        public void run() throws Throwable {
+          round[0]++;
+          ApplicationManager.getApplication().runWriteAction(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                for (int i = 0; i < corpus.length; i++) {
+                  VfsUtil.saveText(corpus[i], getCorpusText(i, round[0]));
+                }
+              }
+              catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          });
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      fileBasedIndex.setContentIndexWriters(0);
+    }
+  }
+
+  private static String getCorpusText(int i, int round) {
+    StringBuilder text = new StringBuilder();
+    text.append("class Corpus").append(i).append('_').append(round).append(" {\n");
+    text.append("  int round").append(round).append(";\n");
+    for (int m = 0; m < 20; m++) {
+      text.append("  // TODO method").append(m).append(" of file").append(i).append("\n");
+      text.append("  String method").append(m).append("(int arg").append(m).append(") {\n");
+      text.append("    return \"text").append(i).append('_').append(m).append("\" + arg").append(m).append(";\n");
+      text.append("  }\n");
+    }
+    return text.append("}\n").toString();
+  }
+
+  private void assertFilesWithWord(String word, VirtualFile... expected) {
+    PsiFile[] files = CacheManager.SERVICE.getInstance(getProject())
+      .getFilesWithWord(word, UsageSearchContext.ANY, GlobalSearchScope.allScope(getProject()), true);
+    List<VirtualFile> actual = new ArrayList<VirtualFile>();
+    for (PsiFile file : files) {
+      actual.add(file.getVirtualFile());
+    }
+    assertSameElements(actual, expected);
+  }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.extensions.Extensions;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.psi.impl.cache.impl.id.IdIndex;
+import com.intellij.psi.stubs.StubUpdatingIndex;
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class IndexBundlesTest extends LightCodeInsightFixtureTestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("bundles", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testExportedDataAreImported() throws IOException {
+    File jar = new File(myDir, "lib.jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      addEntry(out, "pkg/Foo.java", "package pkg; public class Foo { int fooField; void fooMethod() {} }".getBytes("UTF-8"));
+      addEntry(out, "pkg/readme.txt", "some words in a text file".getBytes("UTF-8"));
+      addEntry(out, "junit/framework/TestCase.class", loadClass(TestCase.class));
+      addEntry(out, "junit/framework/Assert.class", loadClass(Assert.class));
+    }
+    finally {
+      out.close();
+    }
+
+    VirtualFile localJar = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(jar);
+    assertNotNull(localJar);
+    VirtualFile jarRoot = JarFileSystem.getInstance().getJarRootForLocalFile(localJar);
+    assertNotNull(jarRoot);
+
+    File bundleFile = new File(myDir, "lib" + IndexBundles.BUNDLE_EXTENSION);
+    IndexBundles.exportBundle(getProject(), jarRoot, bundleFile);
+    IndexBundles bundles = IndexBundles.loadBundles(new File[]{bundleFile});
+    assertNotNull(bundles);
+    try {
+      Set<ID<?, ?>> compared = new HashSet<ID<?, ?>>();
+      for (String path : new String[]{"pkg/Foo.java", "pkg/readme.txt", "junit/framework/TestCase.class", "junit/framework/Assert.class"}) {
+        VirtualFile file = jarRoot.findFileByRelativePath(path);
+        assertNotNull(path, file);
+        byte[] content = file.contentsToByteArray();
+        byte[] hash = FSRecords.calculateHash(content, 0, content.length);
+        for (ID<?, ?> indexId : new ID<?, ?>[]{IdIndex.NAME, StubUpdatingIndex.INDEX_ID}) {
+          if (assertSameData(indexId, file, content, bundles.getData(indexId, hash))) {
+            compared.add(indexId);
+          }
+        }
+      }
+      assertEquals(2, compared.size());
+
+      byte[] unknown = "not in the jar".getBytes("UTF-8");
+      assertNull(bundles.getData(IdIndex.NAME, FSRecords.calculateHash(unknown, 0, unknown.length)));
+    }
+    finally {
+      bundles.dispose();
+    }
+  }
+
+  public void testBundleOfOtherVersionIsNotAttached() throws IOException {
+    File bundleFile = new File(myDir, "broken" + IndexBundles.BUNDLE_EXTENSION);
+    FileUtil.writeToFile(bundleFile, new byte[]{0, 0, 0, 42});
+    assertNull(IndexBundles.loadBundles(new File[]{bundleFile}));
+  }
+
+  /**
+   * @return false if the file isn't accepted by the index, so there must be no bundled data
+   */
+  private <K, V> boolean assertSameData(ID<K, V> indexId, final VirtualFile file, final byte[] content, Map<K, V> bundled) {
+    final FileBasedIndexExtension<K, V> extension = findExtension(indexId);
+    if (!extension.getInputFilter().acceptInput(file)) {
+      assertNull(file.getPath(), bundled);
+      return false;
+    }
+    assertNotNull(file.getPath(), bundled);
+    Map<K, V> expected = ApplicationManager.getApplication().runReadAction(new Computable<Map<K, V>>() {
+      @Override
+      public Map<K, V> compute() {
+        FileContentImpl fileContent = new FileContentImpl(file, content);
+        fileContent.putUserData(IndexingDataKeys.PROJECT, getProject());
+        return extension.getIndexer().map(fileContent);
+      }
+    });
+    assertEquals(file.getPath(), expected, bundled);
+    return !expected.isEmpty();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> FileBasedIndexExtension<K, V> findExtension(ID<K, V> indexId) {
+    for (FileBasedIndexExtension<?, ?> extension : Extensions.getExtensions(FileBasedIndexExtension.EXTENSION_POINT_NAME)) {
+      if (indexId.equals(extension.getName())) return (FileBasedIndexExtension<K, V>)extension;
+    }
+    throw new AssertionError("No extension for " + indexId);
+  }
+
+  private static byte[] loadClass(Class<?> aClass) throws IOException {
+    InputStream stream = aClass.getResourceAsStream(aClass.getSimpleName() + ".class");
+    assertNotNull(aClass.getName(), stream);
+    try {
+      return FileUtil.loadBytes(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, byte[] content) throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content);
+    out.closeEntry();
+  }
+}
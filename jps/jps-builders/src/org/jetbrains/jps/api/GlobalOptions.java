@@ -25,6 +25,16 @@ public interface GlobalOptions {
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  String COMPILE_PARALLEL_TIMELINE_OPTION = "compile.parallel.timeline";
+  String COMPILE_PARALLEL_CLASS_ANALYSIS_OPTION = "compile.parallel.class.analysis";
+  String CLASS_ANALYSIS_CACHE_OPTION = "class.analysis.cache";
+  String JAVAC_SHARED_CLASSPATH_CACHE_OPTION = "javac.shared.classpath.cache";
+  String USE_CONTENT_HASHES_OPTION = "use.content.hashes";
+  String INCREMENTAL_JARS_OPTION = "artifacts.incremental.jars";
+  String PARALLEL_JAR_COMPRESSION_OPTION = "artifacts.parallel.compression";
+  String BUILD_OUTPUT_CACHE_DIR_OPTION = "build.output.cache.dir";
   String REBUILD_ON_DEPENDENCY_CHANGE_OPTION = "rebuild.on.dependency.change";
   String LOG_DIR_OPTION = "log.dir";
+  String PRELOAD_PROJECT_PATH_OPTION = "preload.project.path";
+  String PRELOAD_CONFIG_PATH_OPTION = "preload.config.path";
 }
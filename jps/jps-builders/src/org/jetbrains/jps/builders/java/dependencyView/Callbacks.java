@@ -32,6 +32,14 @@ public class Callbacks {
     void registerImports(String className, Collection<String> imports, Collection<String> staticImports);
   }
 
+  /**
+   * Receives errors of classes which are analyzed after {@link Backend#associate} has returned,
+   * as it happens when the classes are analyzed in parallel.
+   */
+  public interface AnalysisErrorHandler {
+    void analysisFailed(String classFileName, String sourceFileName, Throwable error);
+  }
+
   public static class ConstantAffection {
     public static final ConstantAffection EMPTY = new ConstantAffection();
     private final boolean myKnown;
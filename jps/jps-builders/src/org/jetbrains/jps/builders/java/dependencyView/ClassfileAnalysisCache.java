@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.asm4.ClassReader;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Results of {@link ClassfileAnalyzer} keyed by the hash of the class file path and content, so that classes which are
+ * compiled again to the same bytes (e.g. when a chunk is forced to recompile) are not analyzed again.
+ * The cache shares the name table with the mappings it belongs to and is cleaned together with them.
+ */
+class ClassfileAnalysisCache {
+  private static final int HASH_LENGTH = 20;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final KeyDescriptor<byte[]> HASH_DESCRIPTOR = new KeyDescriptor<byte[]>() {
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] hash = new byte[HASH_LENGTH];
+      in.readFully(hash);
+      return hash;
+    }
+
+    @Override
+    public int getHashCode(byte[] value) {
+      return Arrays.hashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+  };
+
+  private final PersistentHashMap<byte[], Pair<ClassRepr, Set<UsageRepr.Usage>>> myResults;
+
+  ClassfileAnalysisCache(final File file, final DependencyContext context) throws IOException {
+    myResults = new PersistentHashMap<byte[], Pair<ClassRepr, Set<UsageRepr.Usage>>>(file, HASH_DESCRIPTOR, new ResultExternalizer(context));
+  }
+
+  @Nullable
+  Pair<ClassRepr, Set<UsageRepr.Usage>> get(final byte[] hash) {
+    try {
+      return myResults.get(hash);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void put(final byte[] hash, final Pair<ClassRepr, Set<UsageRepr.Usage>> result) {
+    try {
+      myResults.put(hash, result);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void flush(final boolean memoryCachesOnly) {
+    if (memoryCachesOnly) {
+      if (myResults.isDirty()) {
+        myResults.dropMemoryCaches();
+      }
+    }
+    else {
+      myResults.force();
+    }
+  }
+
+  void close() {
+    try {
+      myResults.close();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static byte[] hash(final String classFileName, final ClassReader cr) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA1");
+      digest.update(classFileName.getBytes(UTF8));
+      // the reader does not know where the class ends in its buffer, equal buffers and offsets mean equal content
+      final int header = cr.header;
+      digest.update(new byte[]{(byte)(header >>> 24), (byte)(header >>> 16), (byte)(header >>> 8), (byte)header});
+      digest.update(cr.b);
+      return digest.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class ResultExternalizer implements DataExternalizer<Pair<ClassRepr, Set<UsageRepr.Usage>>> {
+    private final DependencyContext myContext;
+
+    private ResultExternalizer(DependencyContext context) {
+      myContext = context;
+    }
+
+    @Override
+    public void save(DataOutput out, Pair<ClassRepr, Set<UsageRepr.Usage>> value) throws IOException {
+      // the usages are only registered for classes, which share the usage set with the analyzer result
+      final ClassRepr repr = value.first;
+      out.writeBoolean(repr != null);
+      if (repr != null) {
+        repr.save(out);
+      }
+    }
+
+    @Override
+    public Pair<ClassRepr, Set<UsageRepr.Usage>> read(DataInput in) throws IOException {
+      if (!in.readBoolean()) {
+        return Pair.<ClassRepr, Set<UsageRepr.Usage>>create(null, Collections.<UsageRepr.Usage>emptySet());
+      }
+      final ClassRepr repr = new ClassRepr(myContext, in);
+      return Pair.<ClassRepr, Set<UsageRepr.Usage>>create(repr, repr.getUsages());
+    }
+  }
+}
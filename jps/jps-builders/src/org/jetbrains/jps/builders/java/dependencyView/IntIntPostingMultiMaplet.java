@@ -0,0 +1,436 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import gnu.trove.TIntProcedure;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Int-to-int-set relation stored as sorted, delta-encoded posting lists.
+ * <p/>
+ * Modifications are collected in an in-memory delta layer and written to the posting storage in batches: each posting is
+ * rewritten once per batch instead of being appended to and re-read on every modification. A batch is merged in background
+ * on {@link #flush(boolean) flush(true)} or when the delta layer grows over {@link #MERGE_THRESHOLD} keys, and synchronously
+ * on {@link #flush(boolean) flush(false)} and {@link #close()}.
+ * <p/>
+ * Like other maplets the class is not thread-safe, callers are expected to serialize access; the only concurrent party is
+ * the merge task, which reads the batch being merged and writes to the posting storage. If the merge task fails, the error is
+ * rethrown by the next flush and the batch is kept in the delta layer to be written again.
+ */
+class IntIntPostingMultiMaplet extends IntIntMultiMaplet {
+  static final int MERGE_THRESHOLD = 16 * 1024;
+  private static final ExecutorService ourMergeExecutor = ConcurrencyUtil.newSingleThreadExecutor("Dependency Postings Merger");
+
+  private final PersistentHashMap<Integer, int[]> myPostings;
+
+  private TIntObjectHashMap<PostingDelta> myDelta = new TIntObjectHashMap<PostingDelta>();
+  // batch being written by the merge task, postings may already contain its changes (applying the batch twice yields the same result)
+  private volatile TIntObjectHashMap<PostingDelta> myMergingDelta;
+  private Future<?> myMergeFuture;
+
+  public IntIntPostingMultiMaplet(final File file, final KeyDescriptor<Integer> keyExternalizer) throws IOException {
+    myPostings = new PersistentHashMap<Integer, int[]>(file, keyExternalizer, new PostingExternalizer());
+  }
+
+  @Override
+  public boolean containsKey(final int key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public TIntHashSet get(final int key) {
+    final TIntObjectHashMap<PostingDelta> merging = myMergingDelta; // must be read before the postings
+    final PostingDelta delta = myDelta.get(key);
+    final TIntHashSet result = new TIntHashSet();
+
+    if (delta == null || !delta.myReplacesPostings) {
+      final PostingDelta mergingDelta = merging != null ? merging.get(key) : null;
+      if (mergingDelta == null || !mergingDelta.myReplacesPostings) {
+        final int[] posting = readPosting(key);
+        if (posting != null) {
+          result.addAll(posting);
+        }
+      }
+      if (mergingDelta != null) {
+        mergingDelta.applyTo(result);
+      }
+    }
+    if (delta != null) {
+      delta.applyTo(result);
+    }
+
+    return result.isEmpty() ? null : result;
+  }
+
+  @Override
+  public void put(final int key, final int value) {
+    getOrCreateDelta(key).add(value);
+  }
+
+  @Override
+  public void put(final int key, final TIntHashSet value) {
+    final PostingDelta delta = getOrCreateDelta(key);
+    value.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        delta.add(value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replace(final int key, final TIntHashSet value) {
+    final PostingDelta delta = new PostingDelta(true);
+    if (value != null) {
+      delta.myAdded.addAll(value.toArray());
+    }
+    myDelta.put(key, delta);
+    mergeIfNeeded();
+  }
+
+  @Override
+  public void putAll(IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        put(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void replaceAll(IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        replace(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void remove(final int key) {
+    replace(key, null);
+  }
+
+  @Override
+  public void removeFrom(final int key, final int value) {
+    getOrCreateDelta(key).remove(value);
+  }
+
+  @Override
+  public void removeAll(final int key, final TIntHashSet values) {
+    final PostingDelta delta = getOrCreateDelta(key);
+    values.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int value) {
+        delta.remove(value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void forEachEntry(final TIntObjectProcedure<TIntHashSet> procedure) {
+    final TIntObjectHashMap<PostingDelta> merging = myMergingDelta;
+    try {
+      final boolean proceed = myPostings.processKeysWithExistingMapping(new Processor<Integer>() {
+        @Override
+        public boolean process(Integer key) {
+          if (myDelta.containsKey(key) || (merging != null && merging.containsKey(key))) {
+            return true; // processed below
+          }
+          final TIntHashSet value = get(key);
+          return value == null || procedure.execute(key, value);
+        }
+      });
+      if (!proceed) {
+        return;
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    final TIntHashSet changedKeys = new TIntHashSet(myDelta.keys());
+    if (merging != null) {
+      changedKeys.addAll(merging.keys());
+    }
+    changedKeys.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int key) {
+        final TIntHashSet value = get(key);
+        return value == null || procedure.execute(key, value);
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    try {
+      mergeNow();
+      myPostings.close();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void flush(boolean memoryCachesOnly) {
+    if (memoryCachesOnly) {
+      mergeInBackground();
+    }
+    else {
+      mergeNow();
+      myPostings.force();
+    }
+  }
+
+  private PostingDelta getOrCreateDelta(final int key) {
+    PostingDelta delta = myDelta.get(key);
+    if (delta == null) {
+      delta = new PostingDelta(false);
+      myDelta.put(key, delta);
+      mergeIfNeeded();
+    }
+    return delta;
+  }
+
+  private void mergeIfNeeded() {
+    if (myDelta.size() >= MERGE_THRESHOLD) {
+      mergeInBackground();
+    }
+  }
+
+  private void mergeInBackground() {
+    if (myDelta.isEmpty()) {
+      return;
+    }
+    waitForMerge();
+    final TIntObjectHashMap<PostingDelta> batch = myDelta;
+    myDelta = new TIntObjectHashMap<PostingDelta>();
+    myMergingDelta = batch;
+    myMergeFuture = ourMergeExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeBatch(batch);
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        myMergingDelta = null;
+      }
+    });
+  }
+
+  private void mergeNow() {
+    waitForMerge();
+    if (!myDelta.isEmpty()) {
+      try {
+        writeBatch(myDelta);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      myDelta = new TIntObjectHashMap<PostingDelta>();
+    }
+  }
+
+  private void waitForMerge() {
+    final Future<?> future = myMergeFuture;
+    if (future == null) {
+      return;
+    }
+    try {
+      future.get();
+    }
+    catch (InterruptedException e) {
+      // the merge may still be running, it is waited for next time
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      // the batch is written again with the next one, applying it twice yields the same result
+      restoreBatch(myMergingDelta);
+      myMergeFuture = null;
+      myMergingDelta = null;
+      final Throwable cause = e.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException)cause : new RuntimeException(cause);
+    }
+    myMergeFuture = null;
+    myMergingDelta = null;
+  }
+
+  /**
+   * Puts the changes of a batch which failed to be written back to the delta layer, before the changes made since
+   */
+  private void restoreBatch(final TIntObjectHashMap<PostingDelta> batch) {
+    final TIntObjectHashMap<PostingDelta> later = myDelta;
+    batch.forEachEntry(new TIntObjectProcedure<PostingDelta>() {
+      @Override
+      public boolean execute(int key, PostingDelta delta) {
+        final PostingDelta laterDelta = later.get(key);
+        if (laterDelta == null) {
+          later.put(key, delta);
+        }
+        else if (!laterDelta.myReplacesPostings) {
+          delta.addAll(laterDelta);
+          later.put(key, delta);
+        }
+        return true;
+      }
+    });
+  }
+
+  void writeBatch(final TIntObjectHashMap<PostingDelta> batch) throws IOException {
+    // keys are written in ascending order to keep the accesses to the key storage local
+    final int[] keys = batch.keys();
+    Arrays.sort(keys);
+    for (final int key : keys) {
+      final PostingDelta delta = batch.get(key);
+      final TIntHashSet value = new TIntHashSet();
+      if (!delta.myReplacesPostings) {
+        final int[] posting = readPosting(key);
+        if (posting != null) {
+          value.addAll(posting);
+        }
+      }
+      delta.applyTo(value);
+
+      if (value.isEmpty()) {
+        if (delta.myReplacesPostings || myPostings.containsMapping(key)) {
+          myPostings.remove(key);
+        }
+      }
+      else {
+        final int[] posting = value.toArray();
+        Arrays.sort(posting);
+        myPostings.put(key, posting);
+      }
+    }
+  }
+
+  private int[] readPosting(final int key) {
+    try {
+      return myPostings.get(key);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Pending changes of a single posting: values added and removed since the last merge, or the complete new posting
+   * when the old one has been replaced or removed. Added and removed values never intersect.
+   */
+  static class PostingDelta {
+    private final boolean myReplacesPostings;
+    private final TIntHashSet myAdded = new TIntHashSet();
+    private final TIntHashSet myRemoved = new TIntHashSet();
+
+    private PostingDelta(boolean replacesPostings) {
+      myReplacesPostings = replacesPostings;
+    }
+
+    private void add(int value) {
+      myAdded.add(value);
+      myRemoved.remove(value);
+    }
+
+    private void remove(int value) {
+      myAdded.remove(value);
+      if (!myReplacesPostings) {
+        myRemoved.add(value);
+      }
+    }
+
+    /**
+     * Applies the changes made after the changes of this delta
+     */
+    private void addAll(PostingDelta later) {
+      later.myRemoved.forEach(new TIntProcedure() {
+        @Override
+        public boolean execute(int value) {
+          remove(value);
+          return true;
+        }
+      });
+      later.myAdded.forEach(new TIntProcedure() {
+        @Override
+        public boolean execute(int value) {
+          add(value);
+          return true;
+        }
+      });
+    }
+
+    private void applyTo(TIntHashSet value) {
+      if (myReplacesPostings) {
+        value.clear();
+      }
+      else if (!myRemoved.isEmpty()) {
+        value.removeAll(myRemoved.toArray());
+      }
+      value.addAll(myAdded.toArray());
+    }
+  }
+
+  private static class PostingExternalizer implements DataExternalizer<int[]> {
+    @Override
+    public void save(final DataOutput out, final int[] value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.length);
+      int prev = 0;
+      for (final int elem : value) {
+        DataInputOutputUtil.writeINT(out, elem - prev);
+        prev = elem;
+      }
+    }
+
+    @Override
+    public int[] read(final DataInput in) throws IOException {
+      final int size = DataInputOutputUtil.readINT(in);
+      if (size == 0) {
+        return ArrayUtil.EMPTY_INT_ARRAY;
+      }
+      final int[] result = new int[size];
+      int prev = 0;
+      for (int i = 0; i < size; i++) {
+        prev += DataInputOutputUtil.readINT(in);
+        result[i] = prev;
+      }
+      return result;
+    }
+  }
+}
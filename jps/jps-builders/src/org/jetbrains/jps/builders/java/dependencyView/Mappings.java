@@ -19,13 +19,16 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.io.IntInlineKeyDescriptor;
 import gnu.trove.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.asm4.Opcodes;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.incremental.storage.FileKeyDescriptor;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -33,6 +36,8 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -47,6 +52,9 @@ public class Mappings {
   private final static String CLASS_TO_CLASS = "classToClass.tab";
   private final static String SOURCE_TO_CLASS = "sourceToClass.tab";
   private final static String CLASS_TO_SOURCE = "classToSource.tab";
+  private final static String CLASS_ANALYSIS = "classAnalysis.tab";
+  private static final boolean PARALLEL_CLASS_ANALYSIS = Boolean.parseBoolean(System.getProperty(GlobalOptions.COMPILE_PARALLEL_CLASS_ANALYSIS_OPTION, "true"));
+  private static final boolean CLASS_ANALYSIS_CACHE_ENABLED = Boolean.parseBoolean(System.getProperty(GlobalOptions.CLASS_ANALYSIS_CACHE_OPTION, "false"));
   private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
@@ -86,6 +94,19 @@ public class Mappings {
   private IntIntTransientMultiMaplet myRemovedSuperClasses;
   private IntIntTransientMultiMaplet myAddedSuperClasses;
 
+  @Nullable
+  private final BoundedTaskExecutor myAnalysisExecutor;
+  @Nullable
+  private ClassfileAnalysisCache myAnalysisCache;
+  /**
+   * classes being analyzed, in the order they were associated; registered in the same order, so that the result does not
+   * depend on which analysis finishes first
+   */
+  private final Queue<PendingAssociation> myPendingAssociations = new LinkedList<PendingAssociation>();
+  @Nullable
+  private Callbacks.AnalysisErrorHandler myAnalysisErrorHandler;
+  private volatile boolean myClosed;
+
   @Nullable
   private Collection<String> myRemovedFiles;
 
@@ -102,10 +123,21 @@ public class Mappings {
     myEmptyName = myContext.get("");
     myObjectClassName = myContext.get("java/lang/Object");
     myDebugS = base.myDebugS;
+    myAnalysisExecutor = base.myAnalysisExecutor;
+    myAnalysisCache = base.myAnalysisCache;
     createImplementation();
   }
 
   public Mappings(final File rootDir, final boolean transientDelta) throws IOException {
+    this(rootDir, transientDelta, PARALLEL_CLASS_ANALYSIS && Runtime.getRuntime().availableProcessors() > 1
+                                  ? new BoundedTaskExecutor(SharedThreadPool.getInstance(), Runtime.getRuntime().availableProcessors())
+                                  : null);
+  }
+
+  /**
+   * @param analysisExecutor the executor analyzing classes passed to the callback, if null the classes are analyzed in place
+   */
+  Mappings(final File rootDir, final boolean transientDelta, @Nullable final BoundedTaskExecutor analysisExecutor) throws IOException {
     myLock = new Object();
     myIsDelta = false;
     myChangedClasses = null;
@@ -113,6 +145,7 @@ public class Mappings {
     myDeletedClasses = null;
     myDeltaIsTransient = transientDelta;
     myRootDir = rootDir;
+    myAnalysisExecutor = analysisExecutor;
     createImplementation();
     myInitName = myContext.get("<init>");
     myEmptyName = myContext.get("");
@@ -123,6 +156,9 @@ public class Mappings {
     if (!myIsDelta) {
       myContext = new DependencyContext(myRootDir);
       myDebugS = myContext.getLogger(LOG);
+      if (CLASS_ANALYSIS_CACHE_ENABLED) {
+        myAnalysisCache = new ClassfileAnalysisCache(DependencyContext.getTableFile(myRootDir, CLASS_ANALYSIS), myContext);
+      }
     }
 
     myRemovedSuperClasses = myIsDelta ? new IntIntTransientMultiMaplet() : null;
@@ -138,8 +174,8 @@ public class Mappings {
       if (myIsDelta) {
         myRootDir.mkdirs();
       }
-      myClassToSubclasses = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUBCLASSES), INT_KEY_DESCRIPTOR);
-      myClassToClassDependency = new IntIntPersistentMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_CLASS), INT_KEY_DESCRIPTOR);
+      myClassToSubclasses = new IntIntPostingMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_SUBCLASSES), INT_KEY_DESCRIPTOR);
+      myClassToClassDependency = new IntIntPostingMultiMaplet(DependencyContext.getTableFile(myRootDir, CLASS_TO_CLASS), INT_KEY_DESCRIPTOR);
       mySourceFileToClasses = new ObjectObjectPersistentMultiMaplet<File, ClassRepr>(
         DependencyContext.getTableFile(myRootDir, SOURCE_TO_CLASS), new FileKeyDescriptor(), ClassRepr.externalizer(myContext),
         ourClassSetConstructor
@@ -1879,6 +1915,7 @@ public class Mappings {
 
     boolean differentiate() {
       synchronized (myLock) {
+        myDelta.completeAssociations(true);
         myDelta.myIsDifferentiated = true;
 
         if (myDelta.myIsRebuild) {
@@ -2000,6 +2037,7 @@ public class Mappings {
 
         final Collection<String> removed = delta.myRemovedFiles;
 
+        delta.completeAssociations(true);
         delta.runPostPasses();
 
         final IntIntMultiMaplet dependenciesTrashBin = new IntIntTransientMultiMaplet();
@@ -2131,6 +2169,10 @@ public class Mappings {
             return true;
           }
         });
+
+        // the whole chunk has been integrated into the in-memory delta layers, write it to the postings in one batch
+        myClassToSubclasses.flush(true);
+        myClassToClassDependency.flush(true);
       }
       finally {
         delta.close();
@@ -2139,32 +2181,36 @@ public class Mappings {
   }
 
   public Callbacks.Backend getCallback() {
+    return getCallback(null);
+  }
+
+  /**
+   * @param errorHandler receives errors of classes analyzed in parallel, which are detected after the class was passed to the callback
+   */
+  public Callbacks.Backend getCallback(@Nullable final Callbacks.AnalysisErrorHandler errorHandler) {
+    synchronized (myLock) {
+      myAnalysisErrorHandler = errorHandler;
+    }
     return new Callbacks.Backend() {
       public void associate(final String classFileName, final String sourceFileName, final ClassReader cr) {
-        synchronized (myLock) {
-          final int classFileNameS = myContext.get(classFileName);
-          final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
-          final ClassRepr repr = result.first;
-          if (repr != null) {
-            final Set<UsageRepr.Usage> localUsages = result.second;
-            final File sourceFile = new File(sourceFileName);
-            final int className = repr.name;
-
-            myClassToSourceFile.put(className, sourceFile);
-            mySourceFileToClasses.put(sourceFile, repr);
-
-            for (final int s : repr.getSupers()) {
-              myClassToSubclasses.put(s, className);
-            }
-
-            for (final UsageRepr.Usage u : localUsages) {
-              final int owner = u.getOwner();
+        final File sourceFile = new File(sourceFileName);
+        final BoundedTaskExecutor executor = myAnalysisExecutor;
+        if (executor == null) {
+          synchronized (myLock) {
+            registerClass(sourceFile, analyze(classFileName, cr));
+          }
+          return;
+        }
 
-              if (owner != className) {
-                myClassToClassDependency.put(owner, className);
-              }
-            }
+        final Future<Pair<ClassRepr, Set<UsageRepr.Usage>>> result = executor.submit(new Callable<Pair<ClassRepr, Set<UsageRepr.Usage>>>() {
+          @Override
+          public Pair<ClassRepr, Set<UsageRepr.Usage>> call() {
+            return myClosed ? null : analyze(classFileName, cr);
           }
+        });
+        synchronized (myLock) {
+          myPendingAssociations.offer(new PendingAssociation(classFileName, sourceFileName, sourceFile, result));
+          completeAssociations(false);
         }
       }
 
@@ -2206,6 +2252,99 @@ public class Mappings {
     };
   }
 
+  private Pair<ClassRepr, Set<UsageRepr.Usage>> analyze(final String classFileName, final ClassReader cr) {
+    final ClassfileAnalysisCache cache = myAnalysisCache;
+    final byte[] hash = cache != null ? ClassfileAnalysisCache.hash(classFileName, cr) : null;
+    if (hash != null) {
+      final Pair<ClassRepr, Set<UsageRepr.Usage>> cached = cache.get(hash);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    final Pair<ClassRepr, Set<UsageRepr.Usage>> result = new ClassfileAnalyzer(myContext).analyze(myContext.get(classFileName), cr);
+    if (hash != null) {
+      cache.put(hash, result);
+    }
+    return result;
+  }
+
+  private void registerClass(final File sourceFile, final Pair<ClassRepr, Set<UsageRepr.Usage>> result) {
+    final ClassRepr repr = result.first;
+    if (repr != null) {
+      final Set<UsageRepr.Usage> localUsages = result.second;
+      final int className = repr.name;
+
+      myClassToSourceFile.put(className, sourceFile);
+      mySourceFileToClasses.put(sourceFile, repr);
+
+      for (final int s : repr.getSupers()) {
+        myClassToSubclasses.put(s, className);
+      }
+
+      for (final UsageRepr.Usage u : localUsages) {
+        final int owner = u.getOwner();
+
+        if (owner != className) {
+          myClassToClassDependency.put(owner, className);
+        }
+      }
+    }
+  }
+
+  /**
+   * Registers the analyzed classes in the order they were associated.
+   * @param waitForAll if false, stops at the first class still being analyzed
+   */
+  private void completeAssociations(final boolean waitForAll) {
+    while (!myPendingAssociations.isEmpty()) {
+      final PendingAssociation association = myPendingAssociations.peek();
+      if (!waitForAll && !association.myResult.isDone()) {
+        return;
+      }
+      myPendingAssociations.poll();
+
+      final Pair<ClassRepr, Set<UsageRepr.Usage>> result;
+      try {
+        result = association.myResult.get();
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException e) {
+        // errors in, for example, ASM must not ruin the compilation
+        final Callbacks.AnalysisErrorHandler handler = myAnalysisErrorHandler;
+        if (handler != null) {
+          handler.analysisFailed(association.myClassFileName, association.mySourceFileName, e.getCause());
+        }
+        else {
+          LOG.info("Class dependency information may be incomplete! Error parsing generated class " + association.myClassFileName, e.getCause());
+        }
+        continue;
+      }
+      if (result != null) {
+        registerClass(association.mySourceFile, result);
+      }
+    }
+  }
+
+  private static class PendingAssociation {
+    private final String myClassFileName;
+    private final String mySourceFileName;
+    private final File mySourceFile;
+    private final Future<Pair<ClassRepr, Set<UsageRepr.Usage>>> myResult;
+
+    private PendingAssociation(String classFileName,
+                               String sourceFileName,
+                               File sourceFile,
+                               Future<Pair<ClassRepr, Set<UsageRepr.Usage>>> result) {
+      myClassFileName = classFileName;
+      mySourceFileName = sourceFileName;
+      mySourceFile = sourceFile;
+      myResult = result;
+    }
+  }
+
   @Nullable
   public Set<ClassRepr> getClasses(final String sourceFileName) {
     synchronized (myLock) {
@@ -2215,12 +2354,30 @@ public class Mappings {
 
   public void close() {
     synchronized (myLock) {
+      // analyses which have not started yet are skipped, running ones must finish before the context is closed
+      myClosed = true;
+      for (PendingAssociation association : myPendingAssociations) {
+        try {
+          association.myResult.get();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        catch (ExecutionException ignored) {
+        }
+      }
+      myPendingAssociations.clear();
+
       myClassToSubclasses.close();
       myClassToClassDependency.close();
       mySourceFileToClasses.close();
       myClassToSourceFile.close();
 
       if (!myIsDelta) {
+        if (myAnalysisCache != null) {
+          myAnalysisCache.close();
+          myAnalysisCache = null;
+        }
         // only close if you own the context
         final DependencyContext context = myContext;
         if (context != null) {
@@ -2244,6 +2401,9 @@ public class Mappings {
       myClassToSourceFile.flush(memoryCachesOnly);
 
       if (!myIsDelta) {
+        if (myAnalysisCache != null) {
+          myAnalysisCache.flush(memoryCachesOnly);
+        }
         // flush if you own the context
         final DependencyContext context = myContext;
         if (context != null) {
@@ -40,6 +40,9 @@ import org.jetbrains.jps.service.SharedThreadPool;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * @author Eugene Zhuravlev
@@ -66,6 +69,21 @@ public class BuildMain {
     final File systemDir = new File(FileUtil.toCanonicalPath(args[3]));
     Utils.setSystemRoot(systemDir);
 
+    // the process started in advance loads the project while waiting for the build parameters
+    final String preloadProjectPath = System.getProperty(GlobalOptions.PRELOAD_PROJECT_PATH_OPTION);
+    final String preloadConfigPath = System.getProperty(GlobalOptions.PRELOAD_CONFIG_PATH_OPTION);
+    FutureTask<PreloadedData> preloadedData = null;
+    if (preloadProjectPath != null && preloadConfigPath != null) {
+      preloadedData = new FutureTask<PreloadedData>(new Callable<PreloadedData>() {
+        @Override
+        public PreloadedData call() throws Exception {
+          return PreloadedData.load(preloadProjectPath, preloadConfigPath);
+        }
+      });
+      SharedThreadPool.getInstance().executeOnPooledThread(preloadedData);
+    }
+    final Future<PreloadedData> preloaded = preloadedData;
+
     ourChannelFactory = new NioClientSocketChannelFactory(SharedThreadPool.getInstance(), SharedThreadPool.getInstance(), 1);
     final ClientBootstrap bootstrap = new ClientBootstrap(ourChannelFactory);
     bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
@@ -75,7 +93,7 @@ public class BuildMain {
           new ProtobufDecoder(CmdlineRemoteProto.Message.getDefaultInstance()),
           new ProtobufVarint32LengthFieldPrepender(),
           new ProtobufEncoder(),
-          new MyMessageHandler(sessionId)
+          new MyMessageHandler(sessionId, preloaded)
         );
       }
     });
@@ -103,10 +121,13 @@ public class BuildMain {
 
   private static class MyMessageHandler extends SimpleChannelHandler {
     private final UUID mySessionId;
+    @Nullable
+    private final Future<PreloadedData> myPreloadedData;
     private volatile BuildSession mySession;
 
-    private MyMessageHandler(UUID sessionId) {
+    private MyMessageHandler(UUID sessionId, @Nullable Future<PreloadedData> preloadedData) {
       mySessionId = sessionId;
+      myPreloadedData = preloadedData;
     }
 
     @Override
@@ -122,7 +143,7 @@ public class BuildMain {
           case BUILD_PARAMETERS: {
             if (mySession == null) {
               final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
-              final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta);
+              final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta, myPreloadedData);
               mySession = session;
               SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
                 public void run() {
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.util.Pair;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.CmdlineProtoUtil;
+import org.jetbrains.jps.api.CmdlineRemoteProto;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sends the messages of a build session to the IDE. Generated files reported by different builders are merged into bigger
+ * FILES_GENERATED events, and progress messages following each other too quickly are replaced by the latest one.
+ * If the IDE doesn't keep up with reading the messages, the sending thread waits until the queued messages are written
+ * instead of accumulating them in memory. The wait happens outside of the batcher's lock, so other threads only block
+ * when they send messages too.
+ */
+class BuildMessageBatcher {
+  private static final int MAX_GENERATED_FILES_IN_EVENT = 2000;
+  private static final long GENERATED_FILES_FLUSH_INTERVAL = 1000;
+  private static final long PROGRESS_INTERVAL = 100;
+  private static final long WRITE_WAIT_TIMEOUT = 1000;
+  private final UUID mySessionId;
+  private final Channel myChannel;
+  private final List<Pair<String, String>> myGeneratedFiles = new ArrayList<Pair<String, String>>();
+  private long myFirstGeneratedFileTime;
+  @Nullable
+  private CmdlineRemoteProto.Message.BuilderMessage myPendingProgress;
+  private long myLastProgressTime;
+  @Nullable
+  private ChannelFuture myLastWrite;
+  private int mySentCount;
+  private int myReceivedCount;
+
+  BuildMessageBatcher(UUID sessionId, Channel channel) {
+    mySessionId = sessionId;
+    myChannel = channel;
+  }
+
+  public void sendFilesGenerated(Collection<Pair<String, String>> paths) {
+    synchronized (this) {
+      myReceivedCount++;
+      if (myGeneratedFiles.isEmpty()) {
+        myFirstGeneratedFileTime = System.currentTimeMillis();
+      }
+      myGeneratedFiles.addAll(paths);
+      if (myGeneratedFiles.size() >= MAX_GENERATED_FILES_IN_EVENT) {
+        flushGeneratedFiles();
+      }
+    }
+    waitForWrites();
+  }
+
+  public void sendProgress(CmdlineRemoteProto.Message.BuilderMessage message) {
+    synchronized (this) {
+      myReceivedCount++;
+      final long now = System.currentTimeMillis();
+      if (now - myLastProgressTime < PROGRESS_INTERVAL) {
+        myPendingProgress = message;
+        return;
+      }
+      myPendingProgress = null;
+      myLastProgressTime = now;
+      write(message);
+      flushGeneratedFilesIfStale(now);
+    }
+    waitForWrites();
+  }
+
+  public void send(CmdlineRemoteProto.Message.BuilderMessage message) {
+    synchronized (this) {
+      myReceivedCount++;
+      write(message);
+      final long now = System.currentTimeMillis();
+      if (myPendingProgress != null && now - myLastProgressTime >= PROGRESS_INTERVAL) {
+        flushProgress();
+      }
+      flushGeneratedFilesIfStale(now);
+    }
+    waitForWrites();
+  }
+
+  /**
+   * Sends all pending messages; must be called before the message completing the session is sent
+   */
+  public void flush() {
+    synchronized (this) {
+      flushProgress();
+      flushGeneratedFiles();
+    }
+    waitForWrites();
+  }
+
+  public synchronized int getSentCount() {
+    return mySentCount;
+  }
+
+  public synchronized int getReceivedCount() {
+    return myReceivedCount;
+  }
+
+  private void flushProgress() {
+    if (myPendingProgress != null) {
+      final CmdlineRemoteProto.Message.BuilderMessage progress = myPendingProgress;
+      myPendingProgress = null;
+      myLastProgressTime = System.currentTimeMillis();
+      write(progress);
+    }
+  }
+
+  private void flushGeneratedFilesIfStale(long now) {
+    if (!myGeneratedFiles.isEmpty() && now - myFirstGeneratedFileTime >= GENERATED_FILES_FLUSH_INTERVAL) {
+      flushGeneratedFiles();
+    }
+  }
+
+  private void flushGeneratedFiles() {
+    if (!myGeneratedFiles.isEmpty()) {
+      final CmdlineRemoteProto.Message.BuilderMessage event = CmdlineProtoUtil.createFileGeneratedEvent(myGeneratedFiles);
+      myGeneratedFiles.clear();
+      write(event);
+    }
+  }
+
+  private void write(CmdlineRemoteProto.Message.BuilderMessage message) {
+    mySentCount++;
+    final ChannelFuture future = doWrite(CmdlineProtoUtil.toMessage(mySessionId, message));
+    if (future != null) {
+      myLastWrite = future;
+    }
+  }
+
+  private void waitForWrites() {
+    final ChannelFuture lastWrite;
+    synchronized (this) {
+      lastWrite = myLastWrite;
+    }
+    if (lastWrite != null && !lastWrite.isDone() && !isWritable()) {
+      // the IDE reads the messages slower than they are produced
+      lastWrite.awaitUninterruptibly(WRITE_WAIT_TIMEOUT);
+    }
+  }
+
+  /**
+   * Called under the batcher's lock, must not block
+   */
+  @Nullable
+  protected ChannelFuture doWrite(CmdlineRemoteProto.Message message) {
+    return Channels.write(myChannel, message);
+  }
+
+  protected boolean isWritable() {
+    return myChannel.isWritable();
+  }
+}
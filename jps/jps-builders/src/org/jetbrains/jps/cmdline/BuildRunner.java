@@ -112,6 +112,10 @@ public class BuildRunner {
     myForceCleanCaches = forceCleanCaches;
   }
 
+  public boolean isForceCleanCaches() {
+    return myForceCleanCaches;
+  }
+
   public void runBuild(ProjectDescriptor pd,
                        CanceledStatus cs,
                        @Nullable Callbacks.ConstantAffectionResolver constantSearch,
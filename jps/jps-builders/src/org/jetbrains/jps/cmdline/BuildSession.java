@@ -61,8 +61,13 @@ final class BuildSession implements Runnable, CanceledStatus {
   private static final String FS_STATE_FILE = "fs_state.dat";
   private final UUID mySessionId;
   private final Channel myChannel;
+  private final BuildMessageBatcher myMessageBatcher;
   private volatile boolean myCanceled = false;
   private final String myProjectPath;
+  private final String myGlobalOptionsPath;
+  private final long myStartTime = System.currentTimeMillis();
+  @Nullable
+  private final Future<PreloadedData> myPreloadedData;
   @Nullable
   private CmdlineRemoteProto.Message.ControllerMessage.FSEvent myInitialFSDelta;
   // state
@@ -79,13 +84,16 @@ final class BuildSession implements Runnable, CanceledStatus {
   BuildSession(UUID sessionId,
                Channel channel,
                CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage params,
-               @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta) {
+               @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta,
+               @Nullable Future<PreloadedData> preloadedData) {
     mySessionId = sessionId;
     myChannel = channel;
+    myMessageBatcher = new BuildMessageBatcher(sessionId, channel);
+    myPreloadedData = preloadedData;
 
     final CmdlineRemoteProto.Message.ControllerMessage.GlobalSettings globals = params.getGlobalSettings();
     myProjectPath = FileUtil.toCanonicalPath(params.getProjectId());
-    String globalOptionsPath = FileUtil.toCanonicalPath(globals.getGlobalOptionsPath());
+    myGlobalOptionsPath = FileUtil.toCanonicalPath(globals.getGlobalOptionsPath());
     myBuildType = convertCompileType(params.getBuildType());
     myScopes = params.getScopeList();
     List<String> filePaths = params.getFilePathList();
@@ -94,7 +102,7 @@ final class BuildSession implements Runnable, CanceledStatus {
       builderParams.put(pair.getKey(), pair.getValue());
     }
     myInitialFSDelta = delta;
-    JpsModelLoaderImpl loader = new JpsModelLoaderImpl(myProjectPath, globalOptionsPath, null);
+    JpsModelLoaderImpl loader = new JpsModelLoaderImpl(myProjectPath, myGlobalOptionsPath, null);
     myForceModelLoading = Boolean.parseBoolean(builderParams.get(BuildParametersKeys.FORCE_MODEL_LOADING));
     myBuildRunner = new BuildRunner(loader, filePaths, builderParams);
   }
@@ -115,7 +123,10 @@ final class BuildSession implements Runnable, CanceledStatus {
           final CmdlineRemoteProto.Message.BuilderMessage response;
           if (buildMessage instanceof FileGeneratedEvent) {
             final Collection<Pair<String, String>> paths = ((FileGeneratedEvent)buildMessage).getPaths();
-            response = !paths.isEmpty() ? CmdlineProtoUtil.createFileGeneratedEvent(paths) : null;
+            if (!paths.isEmpty()) {
+              myMessageBatcher.sendFilesGenerated(paths);
+            }
+            response = null;
           }
           else if (buildMessage instanceof DoneSomethingNotification) {
             doneSomething.set(true);
@@ -145,13 +156,14 @@ final class BuildSession implements Runnable, CanceledStatus {
             if (buildMessage instanceof ProgressMessage) {
               done = ((ProgressMessage)buildMessage).getDone();
             }
-            response = CmdlineProtoUtil.createCompileProgressMessageResponse(buildMessage.getMessageText(), done);
+            myMessageBatcher.sendProgress(CmdlineProtoUtil.createCompileProgressMessageResponse(buildMessage.getMessageText(), done));
+            response = null;
           }
           else {
             response = null;
           }
           if (response != null) {
-            Channels.write(myChannel, CmdlineProtoUtil.toMessage(mySessionId, response));
+            myMessageBatcher.send(response);
           }
         }
       }, this);
@@ -180,23 +192,66 @@ final class BuildSession implements Runnable, CanceledStatus {
       myBuildRunner.setForceCleanCaches(true);
     }
 
-    final DataInputStream fsStateStream = createFSDataStream(dataStorageRoot);
+    final PreloadedData preloaded = takePreloadedData(dataStorageRoot);
+    if (preloaded != null && myInitialFSDelta != null && preloaded.getFSStateOrdinal() + 1L == myInitialFSDelta.getOrdinal() &&
+        canSkipBuild(preloaded.hasWorkToDoWithModules())) {
+      // the same check as for the state saved on disk below, the saved state is consistent with the preloaded one
+      final DataInputStream in = createFSDataStream(dataStorageRoot);
+      if (in != null) {
+        try {
+          in.readBoolean();
+          updateFsStateOnDisk(dataStorageRoot, in, myInitialFSDelta.getOrdinal());
+        }
+        finally {
+          in.close();
+        }
+        preloaded.release();
+        return;
+      }
+    }
+    final DataInputStream fsStateStream = preloaded == null ? createFSDataStream(dataStorageRoot) : null;
 
     if (fsStateStream != null) {
       // optimization: check whether we can skip the build
       final boolean hasWorkToDoWithModules = fsStateStream.readBoolean();
-      if (!myForceModelLoading && (myBuildType == BuildType.BUILD || myBuildType == BuildType.UP_TO_DATE_CHECK) && !hasWorkToDoWithModules
-          && scopeContainsModulesOnlyForIncrementalMake(myScopes) && !containsChanges(myInitialFSDelta)) {
+      if (canSkipBuild(hasWorkToDoWithModules)) {
         updateFsStateOnDisk(dataStorageRoot, fsStateStream, myInitialFSDelta.getOrdinal());
         return;
       }
     }
 
-    final BuildFSState fsState = new BuildFSState(false);
+    final BuildFSState fsState = preloaded != null ? preloaded.getFSState() : new BuildFSState(false);
     try {
-      final ProjectDescriptor pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
-      TimingLog.LOG.debug("Project descriptor loaded");
-      myProjectDescriptor = pd;
+      final ProjectDescriptor pd;
+      if (preloaded != null) {
+        pd = preloaded.getProjectDescriptor();
+        myProjectDescriptor = pd;
+        if (preloaded.isForceCleanCaches()) {
+          myBuildRunner.setForceCleanCaches(true);
+        }
+        for (BuildMessage message : preloaded.getLoadingMessages()) {
+          msgHandler.processMessage(message);
+        }
+        if (myInitialFSDelta != null && preloaded.getFSStateOrdinal() + 1L == myInitialFSDelta.getOrdinal()) {
+          try {
+            applyFSEvent(pd, myInitialFSDelta, false);
+            TimingLog.LOG.debug("FS Delta applied to preloaded state");
+          }
+          catch (Throwable e) {
+            LOG.error(e);
+            fsState.clearAll();
+          }
+        }
+        else {
+          // the saved state is not consistent with the events, this will force FS rescan
+          fsState.clearAll();
+        }
+      }
+      else {
+        pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
+        TimingLog.LOG.debug("Project descriptor loaded");
+        myProjectDescriptor = pd;
+      }
       if (fsStateStream != null) {
         try {
           try {
@@ -220,6 +275,8 @@ final class BuildSession implements Runnable, CanceledStatus {
       // ensure events from controller are processed after FSState initialization
       myEventsProcessor.startProcessing();
 
+      LOG.info("Build started " + (System.currentTimeMillis() - myStartTime) + " ms after the build request" +
+               (preloaded != null ? "; project data preloaded in " + preloaded.getLoadingTime() + " ms" : ""));
       myBuildRunner.runBuild(pd, cs, myConstantSearch, msgHandler, myBuildType, myScopes, false);
       TimingLog.LOG.debug("Build finished");
     }
@@ -228,6 +285,33 @@ final class BuildSession implements Runnable, CanceledStatus {
     }
   }
 
+  /**
+   * @return the data preloaded for the project of this session, or null if the process was not started in advance for the project
+   */
+  @Nullable
+  private PreloadedData takePreloadedData(File dataStorageRoot) {
+    if (myPreloadedData == null) {
+      return null;
+    }
+    PreloadedData data = null;
+    try {
+      data = myPreloadedData.get();
+    }
+    catch (Throwable e) {
+      LOG.info(e);
+    }
+    if (data != null && (!data.isLoadedFor(myProjectPath, myGlobalOptionsPath) || !dataStorageRoot.exists())) {
+      data.release();
+      data = null;
+    }
+    return data;
+  }
+
+  private boolean canSkipBuild(boolean hasWorkToDoWithModules) {
+    return !myForceModelLoading && (myBuildType == BuildType.BUILD || myBuildType == BuildType.UP_TO_DATE_CHECK) && !hasWorkToDoWithModules
+           && scopeContainsModulesOnlyForIncrementalMake(myScopes) && !containsChanges(myInitialFSDelta);
+  }
+
   private static boolean scopeContainsModulesOnlyForIncrementalMake(List<TargetTypeBuildScope> scopes) {
     TargetTypeRegistry typeRegistry = null;
     for (TargetTypeBuildScope scope : scopes) {
@@ -349,8 +433,7 @@ final class BuildSession implements Runnable, CanceledStatus {
             if (fileStamp == -1L) {
               fileStamp = FileSystemUtil.lastModified(file); // lazy init
             }
-            final long stamp = timestamps.getStamp(file, descriptor.getTarget());
-            if (stamp != fileStamp) {
+            if (timestamps.isModified(file, descriptor.getTarget(), fileStamp)) {
               if (!cacheCleared) {
                 pd.getFSCache().clear();
                 cacheCleared = true;
@@ -359,7 +442,7 @@ final class BuildSession implements Runnable, CanceledStatus {
             }
             else {
               if (LOG.isDebugEnabled()) {
-                LOG.debug(descriptor.getTarget() + ": Path considered up-to-date: " + changed + "; timestamp= " + stamp);
+                LOG.debug(descriptor.getTarget() + ": Path considered up-to-date: " + changed + "; timestamp= " + fileStamp);
               }
             }
           }
@@ -465,18 +548,8 @@ final class BuildSession implements Runnable, CanceledStatus {
       return null;
     }
     try {
-      final File file = new File(dataStorageRoot, FS_STATE_FILE);
-      byte[] bytes;
-      final InputStream fs = new FileInputStream(file);
-      try {
-        bytes = FileUtil.loadBytes(fs, (int)file.length());
-      }
-      finally {
-        fs.close();
-      }
-      final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
-      final int version = in.readInt();
-      if (version != FSState.VERSION) {
+      final DataInputStream in = openFSStateStream(dataStorageRoot);
+      if (in == null) {
         return null;
       }
       final long savedOrdinal = in.readLong();
@@ -485,14 +558,41 @@ final class BuildSession implements Runnable, CanceledStatus {
       }
       return in;
     }
-    catch (FileNotFoundException ignored) {
-    }
     catch (Throwable e) {
       LOG.error(e);
     }
     return null;
   }
 
+  /**
+   * @return the stream of the saved fs state positioned at the ordinal of the last applied event,
+   *         or null if there is no state saved in the current format
+   */
+  @Nullable
+  static DataInputStream openFSStateStream(File dataStorageRoot) throws IOException {
+    final File file = new File(dataStorageRoot, FS_STATE_FILE);
+    byte[] bytes;
+    final InputStream fs;
+    try {
+      fs = new FileInputStream(file);
+    }
+    catch (FileNotFoundException ignored) {
+      return null;
+    }
+    try {
+      bytes = FileUtil.loadBytes(fs, (int)file.length());
+    }
+    finally {
+      fs.close();
+    }
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    final int version = in.readInt();
+    if (version != FSState.VERSION) {
+      return null;
+    }
+    return in;
+  }
+
   private static boolean containsChanges(CmdlineRemoteProto.Message.ControllerMessage.FSEvent event) {
     return event.getChangedPathsCount() != 0 || event.getDeletedPathsCount() != 0;
   }
@@ -541,6 +641,10 @@ final class BuildSession implements Runnable, CanceledStatus {
     }
     finally {
       try {
+        myMessageBatcher.flush();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Build messages: " + myMessageBatcher.getReceivedCount() + " produced, " + myMessageBatcher.getSentCount() + " sent");
+        }
         Channels.write(myChannel, lastMessage).await();
       }
       catch (InterruptedException e) {
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.incremental.MessageHandler;
+import org.jetbrains.jps.incremental.Utils;
+import org.jetbrains.jps.incremental.fs.BuildFSState;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Project data loaded by the build process started in advance, while the process waits for the build parameters:
+ * the project model, the opened build data storages and the fs state saved by the previous build.
+ */
+final class PreloadedData {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.PreloadedData");
+  private final String myProjectPath;
+  private final String myGlobalOptionsPath;
+  private final ProjectDescriptor myProjectDescriptor;
+  private final BuildFSState myFSState;
+  private final long myFSStateOrdinal;
+  private final boolean myHasWorkToDoWithModules;
+  private final boolean myForceCleanCaches;
+  private final List<BuildMessage> myLoadingMessages;
+  private final long myLoadingTime;
+
+  private PreloadedData(String projectPath,
+                        String globalOptionsPath,
+                        ProjectDescriptor projectDescriptor,
+                        BuildFSState fsState,
+                        long fsStateOrdinal,
+                        boolean hasWorkToDoWithModules,
+                        boolean forceCleanCaches,
+                        List<BuildMessage> loadingMessages,
+                        long loadingTime) {
+    myProjectPath = projectPath;
+    myGlobalOptionsPath = globalOptionsPath;
+    myProjectDescriptor = projectDescriptor;
+    myFSState = fsState;
+    myFSStateOrdinal = fsStateOrdinal;
+    myHasWorkToDoWithModules = hasWorkToDoWithModules;
+    myForceCleanCaches = forceCleanCaches;
+    myLoadingMessages = loadingMessages;
+    myLoadingTime = loadingTime;
+  }
+
+  /**
+   * @return the loaded data or null if the project has never been built or the data cannot be loaded
+   */
+  @Nullable
+  static PreloadedData load(@NotNull String projectPath, @NotNull String globalOptionsPath) {
+    final long start = System.currentTimeMillis();
+    projectPath = FileUtil.toCanonicalPath(projectPath);
+    globalOptionsPath = FileUtil.toCanonicalPath(globalOptionsPath);
+    final File dataStorageRoot = Utils.getDataStorageRoot(projectPath);
+    if (dataStorageRoot == null || !dataStorageRoot.exists()) {
+      return null;
+    }
+
+    final List<BuildMessage> messages = Collections.synchronizedList(new ArrayList<BuildMessage>());
+    final JpsModelLoaderImpl loader = new JpsModelLoaderImpl(projectPath, globalOptionsPath, null);
+    final BuildRunner runner = new BuildRunner(loader, Collections.<String>emptyList(), Collections.<String, String>emptyMap());
+    final BuildFSState fsState = new BuildFSState(false);
+    ProjectDescriptor pd = null;
+    try {
+      pd = runner.load(new MessageHandler() {
+        @Override
+        public void processMessage(BuildMessage msg) {
+          messages.add(msg);
+        }
+      }, dataStorageRoot, fsState);
+
+      long ordinal = -1L;
+      boolean hasWorkToDoWithModules = true;
+      try {
+        final DataInputStream in = BuildSession.openFSStateStream(dataStorageRoot);
+        if (in != null) {
+          try {
+            ordinal = in.readLong();
+            hasWorkToDoWithModules = in.readBoolean();
+            fsState.load(in, pd.getModel(), pd.getBuildRootIndex());
+          }
+          finally {
+            in.close();
+          }
+        }
+      }
+      catch (Throwable e) {
+        LOG.info(e);
+        ordinal = -1L;
+        hasWorkToDoWithModules = true;
+        fsState.clearAll();
+      }
+
+      final long loadingTime = System.currentTimeMillis() - start;
+      LOG.info("Project " + projectPath + " preloaded in " + loadingTime + " ms");
+      return new PreloadedData(projectPath, globalOptionsPath, pd, fsState, ordinal, hasWorkToDoWithModules, runner.isForceCleanCaches(),
+                               messages, loadingTime);
+    }
+    catch (Throwable e) {
+      LOG.info("Failed to preload project " + projectPath, e);
+      if (pd != null) {
+        pd.release();
+      }
+      return null;
+    }
+  }
+
+  boolean isLoadedFor(String projectPath, String globalOptionsPath) {
+    return myProjectPath.equals(projectPath) && myGlobalOptionsPath.equals(globalOptionsPath);
+  }
+
+  ProjectDescriptor getProjectDescriptor() {
+    return myProjectDescriptor;
+  }
+
+  BuildFSState getFSState() {
+    return myFSState;
+  }
+
+  /**
+   * @return the ordinal of the last fs event applied to the loaded fs state, or -1 if the state was not loaded
+   */
+  long getFSStateOrdinal() {
+    return myFSStateOrdinal;
+  }
+
+  /**
+   * @return the flag saved with the fs state telling whether module targets had work to do after the previous build,
+   *         true if the state was not loaded
+   */
+  boolean hasWorkToDoWithModules() {
+    return myHasWorkToDoWithModules;
+  }
+
+  boolean isForceCleanCaches() {
+    return myForceCleanCaches;
+  }
+
+  List<BuildMessage> getLoadingMessages() {
+    return myLoadingMessages;
+  }
+
+  long getLoadingTime() {
+    return myLoadingTime;
+  }
+
+  void release() {
+    myProjectDescriptor.release();
+  }
+}
@@ -22,7 +22,6 @@ import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.SmartList;
-import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.containers.MultiMapBasedOnSet;
@@ -51,6 +50,7 @@ import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.java.ExternalJavacDescriptor;
 import org.jetbrains.jps.incremental.messages.*;
 import org.jetbrains.jps.incremental.storage.BuildTargetConfiguration;
+import org.jetbrains.jps.incremental.storage.BuildTargetsState;
 import org.jetbrains.jps.incremental.storage.OneToManyPathsMapping;
 import org.jetbrains.jps.indices.ModuleExcludeIndex;
 import org.jetbrains.jps.model.java.JpsJavaExtensionService;
@@ -81,6 +81,8 @@ public class IncProjectBuilder {
   private static final String CLASSPATH_INDEX_FINE_NAME = "classpath.index";
   private static final boolean GENERATE_CLASSPATH_INDEX = Boolean.parseBoolean(System.getProperty(GlobalOptions.GENERATE_CLASSPATH_INDEX_OPTION, "false"));
   private static final GlobalContextKey<Set<BuildTarget<?>>> TARGET_WITH_CLEARED_OUTPUT = GlobalContextKey.create("_targets_with_cleared_output_");
+  private static final boolean BUILD_TIMELINE_ENABLED = Boolean.parseBoolean(System.getProperty(GlobalOptions.COMPILE_PARALLEL_TIMELINE_OPTION, "false"));
+  private static final String BUILD_TIMELINE_FILE_NAME = "build-timeline.txt";
   public static final int MAX_BUILDER_THREADS;
   static {
     int maxThreads = 6;
@@ -111,6 +113,7 @@ public class IncProjectBuilder {
   private final float myTotalTargetsWork;
   private final int myTotalModuleLevelBuilderCount;
   private final List<Future> myAsyncTasks = Collections.synchronizedList(new ArrayList<Future>());
+  @Nullable private final TargetOutputCache myOutputCache = TargetOutputCache.create();
 
   public IncProjectBuilder(ProjectDescriptor pd, BuilderRegistry builderRegistry, Map<String, String> builderParams, CanceledStatus cs,
                            @Nullable Callbacks.ConstantAffectionResolver constantSearch, final boolean isTestMode) {
@@ -354,6 +357,13 @@ public class IncProjectBuilder {
       for (ModuleLevelBuilder builder : myBuilderRegistry.getModuleLevelBuilders()) {
         builder.buildFinished(context);
       }
+      if (myOutputCache != null) {
+        LOG.info(myOutputCache.getStatistics());
+      }
+      final int unchangedContentCount = context.getProjectDescriptor().timestamps.getStorage().getAndResetUnchangedContentCount();
+      if (unchangedContentCount > 0) {
+        LOG.info(unchangedContentCount + " files with changed timestamps and unchanged content were not recompiled");
+      }
       context.processMessage(new ProgressMessage("Finished, saving caches..."));
     }
 
@@ -594,19 +604,32 @@ public class IncProjectBuilder {
     }
   }
 
-  private static class BuildChunkTask {
+  static class BuildChunkTask {
     private final BuildTargetChunk myChunk;
+    private final int myIndex;
     private final Set<BuildChunkTask> myNotBuiltDependencies = new THashSet<BuildChunkTask>();
     private final List<BuildChunkTask> myTasksDependsOnThis = new ArrayList<BuildChunkTask>();
-
-    private BuildChunkTask(BuildTargetChunk chunk) {
+    // estimated time to build the chunk and the chunks which cannot start before it
+    private long myCost;
+    private long myCriticalPathCost;
+    // timeline, in ms since the build start
+    private volatile long myStartTime = -1;
+    private volatile long myFinishTime = -1;
+    private volatile String myThreadName;
+
+    BuildChunkTask(BuildTargetChunk chunk, int index) {
       myChunk = chunk;
+      myIndex = index;
     }
 
     public BuildTargetChunk getChunk() {
       return myChunk;
     }
 
+    public long getCriticalPathCost() {
+      return myCriticalPathCost;
+    }
+
     public boolean isReady() {
       return myNotBuiltDependencies.isEmpty();
     }
@@ -631,15 +654,33 @@ public class IncProjectBuilder {
     }
   }
 
+  // the tasks on the longest path to the end of the build go first, otherwise the tasks go in the order of the sorted chunks
+  static final Comparator<BuildChunkTask> CRITICAL_PATH_FIRST = new Comparator<BuildChunkTask>() {
+    @Override
+    public int compare(BuildChunkTask o1, BuildChunkTask o2) {
+      if (o1.myCriticalPathCost != o2.myCriticalPathCost) {
+        return o1.myCriticalPathCost > o2.myCriticalPathCost ? -1 : 1;
+      }
+      return o1.myIndex - o2.myIndex;
+    }
+  };
+
+  /**
+   * Builds the chunks in parallel as soon as their dependencies are built. When there are more ready chunks than free threads,
+   * the chunks on the critical path are built first: the cost of the chunk is estimated by the time its targets took to build
+   * before, and the chunk with the most expensive path of dependent chunks goes first. So the chunks many others depend on are
+   * not left to the end of the build when the other threads have nothing to do.
+   */
   private class BuildParallelizer {
-    private final BoundedTaskExecutor myParallelBuildExecutor =
-      new BoundedTaskExecutor(SharedThreadPool.getInstance(),
-                              Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors())));
+    private final int myMaxThreads = Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
     private final CompileContext myContext;
     private final AtomicReference<Throwable> myException = new AtomicReference<Throwable>();
     private final Object myQueueLock = new Object();
     private final CountDownLatch myTasksCountDown;
     private final List<BuildChunkTask> myTasks;
+    private final PriorityQueue<BuildChunkTask> myReadyTasks = new PriorityQueue<BuildChunkTask>(11, CRITICAL_PATH_FIRST); // guarded by myQueueLock
+    private int myRunningTasksCount; // guarded by myQueueLock
+    private final long myBuildStart = System.currentTimeMillis();
 
     private BuildParallelizer(CompileContext context) {
       myContext = context;
@@ -650,7 +691,7 @@ public class IncProjectBuilder {
       myTasks = new ArrayList<BuildChunkTask>(chunks.size());
       Map<BuildTarget<?>, BuildChunkTask> targetToTask = new THashMap<BuildTarget<?>, BuildChunkTask>();
       for (BuildTargetChunk chunk : chunks) {
-        BuildChunkTask task = new BuildChunkTask(chunk);
+        BuildChunkTask task = new BuildChunkTask(chunk, myTasks.size());
         myTasks.add(task);
         for (BuildTarget<?> target : chunk.getTargets()) {
           targetToTask.put(target, task);
@@ -668,17 +709,19 @@ public class IncProjectBuilder {
         }
       }
 
+      computeCriticalPaths(myTasks, myProjectDescriptor.getTargetsState(), myContext.getScope());
       myTasksCountDown = new CountDownLatch(myTasks.size());
     }
 
     public void buildInParallel() throws IOException, ProjectBuildException {
-      List<BuildChunkTask> initialTasks = new ArrayList<BuildChunkTask>();
-      for (BuildChunkTask task : myTasks) {
-        if (task.isReady()) {
-          initialTasks.add(task);
+      synchronized (myQueueLock) {
+        for (BuildChunkTask task : myTasks) {
+          if (task.isReady()) {
+            myReadyTasks.add(task);
+          }
         }
       }
-      queueTasks(initialTasks);
+      runReadyTasks();
 
       try {
         myTasksCountDown.await();
@@ -686,6 +729,7 @@ public class IncProjectBuilder {
       catch (InterruptedException e) {
         LOG.info(e);
       }
+      reportTimeline();
 
       final Throwable throwable = myException.get();
       if (throwable instanceof ProjectBuildException) {
@@ -696,34 +740,29 @@ public class IncProjectBuilder {
       }
     }
 
-    private void queueTasks(List<BuildChunkTask> tasks) {
-      List<BuildTargetChunk> chunksToLog = LOG.isDebugEnabled() ? new ArrayList<BuildTargetChunk>() : null;
-      for (BuildChunkTask task : tasks) {
-        if (chunksToLog != null) {
-          chunksToLog.add(task.getChunk());
+    private void runReadyTasks() {
+      final List<BuildChunkTask> tasks = new SmartList<BuildChunkTask>();
+      synchronized (myQueueLock) {
+        while (myRunningTasksCount < myMaxThreads && !myReadyTasks.isEmpty()) {
+          tasks.add(myReadyTasks.poll());
+          myRunningTasksCount++;
         }
-        queueTask(task);
       }
-
-      if (chunksToLog != null && !chunksToLog.isEmpty()) {
-        final StringBuilder logBuilder = new StringBuilder("Queuing " + chunksToLog.size() + " chunks in parallel: ");
-        Collections.sort(chunksToLog, new Comparator<BuildTargetChunk>() {
-          public int compare(final BuildTargetChunk o1, final BuildTargetChunk o2) {
-            return o1.toString().compareTo(o2.toString());
-          }
-        });
-        for (BuildTargetChunk chunk : chunksToLog) {
-          logBuilder.append(chunk.toString()).append("; ");
+      for (BuildChunkTask task : tasks) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Starting " + task.getChunk().toString() + "; critical path cost " + task.myCriticalPathCost);
         }
-        LOG.debug(logBuilder.toString());
+        runTask(task);
       }
     }
 
-    private void queueTask(final BuildChunkTask task) {
+    private void runTask(final BuildChunkTask task) {
       final CompileContext chunkLocalContext = createContextWrapper(myContext);
-      myParallelBuildExecutor.execute(new Runnable() {
+      SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
         @Override
         public void run() {
+          task.myThreadName = Thread.currentThread().getName();
+          task.myStartTime = System.currentTimeMillis() - myBuildStart;
           try {
             try {
               if (myException.get() == null) {
@@ -741,19 +780,100 @@ public class IncProjectBuilder {
             LOG.info(e);
           }
           finally {
+            task.myFinishTime = System.currentTimeMillis() - myBuildStart;
             LOG.debug("Finished compilation of " + task.getChunk().toString());
-            myTasksCountDown.countDown();
-            List<BuildChunkTask> nextTasks;
             synchronized (myQueueLock) {
-              nextTasks = task.markAsFinishedAndGetNextReadyTasks();
-            }
-            if (!nextTasks.isEmpty()) {
-              queueTasks(nextTasks);
+              myRunningTasksCount--;
+              myReadyTasks.addAll(task.markAsFinishedAndGetNextReadyTasks());
             }
+            runReadyTasks();
+            myTasksCountDown.countDown();
           }
         }
       });
     }
+
+    private void reportTimeline() {
+      final long buildTime = System.currentTimeMillis() - myBuildStart;
+      long busyTime = 0;
+      for (BuildChunkTask task : myTasks) {
+        if (task.myStartTime >= 0 && task.myFinishTime >= 0) {
+          busyTime += task.myFinishTime - task.myStartTime;
+        }
+      }
+      final long utilization = buildTime > 0 ? busyTime * 100 / (buildTime * myMaxThreads) : 100;
+      LOG.info("Built " + myTasks.size() + " chunks in " + buildTime + " ms using " + myMaxThreads + " threads, utilization " + utilization + "%");
+      if (!BUILD_TIMELINE_ENABLED) {
+        return;
+      }
+
+      final List<BuildChunkTask> tasks = new ArrayList<BuildChunkTask>(myTasks);
+      Collections.sort(tasks, new Comparator<BuildChunkTask>() {
+        @Override
+        public int compare(BuildChunkTask o1, BuildChunkTask o2) {
+          return o1.myStartTime < o2.myStartTime ? -1 : o1.myStartTime == o2.myStartTime ? 0 : 1;
+        }
+      });
+      final File file = new File(myProjectDescriptor.dataManager.getDataPaths().getDataStorageRoot(), BUILD_TIMELINE_FILE_NAME);
+      try {
+        final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+          writer.write("# build time " + buildTime + " ms, threads " + myMaxThreads + ", utilization " + utilization + "%");
+          writer.newLine();
+          writer.write("# start\tfinish\testimated cost\tcritical path cost\tthread\tchunk");
+          writer.newLine();
+          for (BuildChunkTask task : tasks) {
+            writer.write(task.myStartTime + "\t" + task.myFinishTime + "\t" + task.myCost + "\t" + task.myCriticalPathCost + "\t" +
+                         task.myThreadName + "\t" + task.getChunk().toString());
+            writer.newLine();
+          }
+        }
+        finally {
+          writer.close();
+        }
+      }
+      catch (IOException e) {
+        LOG.info("Cannot write build timeline: " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Estimates the cost of the chunks for {@link #CRITICAL_PATH_FIRST}, the tasks must be sorted so that the tasks depending on a task
+   * go after it
+   */
+  static void computeCriticalPaths(List<BuildChunkTask> tasks, BuildTargetsState targetsState, CompileScope scope) {
+    long knownTimesSum = 0;
+    int knownTimesCount = 0;
+    for (BuildChunkTask task : tasks) {
+      for (BuildTarget<?> target : task.getChunk().getTargets()) {
+        final long time = targetsState.getAverageBuildTime(target);
+        if (time >= 0) {
+          knownTimesSum += time;
+          knownTimesCount++;
+        }
+      }
+    }
+    // targets never built before are expected to take the average time
+    final long unknownTime = knownTimesCount > 0 ? knownTimesSum / knownTimesCount : 0;
+
+    // the chunks depending on the task are sorted after it
+    for (int i = tasks.size() - 1; i >= 0; i--) {
+      final BuildChunkTask task = tasks.get(i);
+      long cost = 1;
+      if (isAffected(scope, task.getChunk())) {
+        for (BuildTarget<?> target : task.getChunk().getTargets()) {
+          final long time = targetsState.getAverageBuildTime(target);
+          cost += time >= 0 ? time : unknownTime;
+        }
+      }
+      long dependentsCost = 0;
+      for (BuildChunkTask dependent : task.myTasksDependsOnThis) {
+        dependentsCost = Math.max(dependentsCost, dependent.myCriticalPathCost);
+      }
+      task.myCost = cost;
+      task.myCriticalPathCost = cost + dependentsCost;
+    }
   }
 
   private void buildChunkIfAffected(CompileContext context, CompileScope scope, BuildTargetChunk chunk) throws ProjectBuildException {
@@ -795,6 +915,9 @@ public class IncProjectBuilder {
 
     final BuildTarget<?> target = targets.iterator().next();
     if (target instanceof ModuleBuildTarget) {
+      if (myOutputCache != null && TargetOutputCache.hasFilesToRecompile(context, (ModuleBuildTarget)target)) {
+        return runModuleLevelBuildersWithOutputCache(context, (ModuleBuildTarget)target);
+      }
       return runModuleLevelBuilders(context, new ModuleChunk(Collections.singleton((ModuleBuildTarget)target)));
     }
 
@@ -814,6 +937,7 @@ public class IncProjectBuilder {
 
   private void buildTargetsChunk(CompileContext context, final BuildTargetChunk chunk) throws ProjectBuildException {
     boolean doneSomething;
+    final long buildStart = System.currentTimeMillis();
     try {
       sendBuildingTargetMessages(chunk.getTargets(), BuildingTargetProgressMessage.Event.STARTED);
       Utils.ERRORS_DETECTED_KEY.set(context, Boolean.FALSE);
@@ -830,6 +954,15 @@ public class IncProjectBuilder {
 
       onChunkBuildComplete(context, chunk);
 
+      if (doneSomething) {
+        // estimates the cost of the chunk for the next parallel builds
+        final Set<? extends BuildTarget<?>> targets = chunk.getTargets();
+        final long time = (System.currentTimeMillis() - buildStart) / targets.size();
+        for (BuildTarget<?> target : targets) {
+          myProjectDescriptor.getTargetsState().updateAverageBuildTime(target, time);
+        }
+      }
+
       //if (doneSomething && GENERATE_CLASSPATH_INDEX) {
       //  myAsyncTasks.add(SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
       //    @Override
@@ -1131,6 +1264,27 @@ public class IncProjectBuilder {
     return doneSomething;
   }
 
+  private boolean runModuleLevelBuildersWithOutputCache(CompileContext context, ModuleBuildTarget target) throws ProjectBuildException, IOException {
+    final ModuleChunk chunk = new ModuleChunk(Collections.singleton(target));
+    final String key = myOutputCache.computeKey(context, target);
+    if (key == null) {
+      return runModuleLevelBuilders(context, chunk);
+    }
+    if (myOutputCache.restore(context, chunk, key)) {
+      // dependency analysis of the restored classes may have marked some sources of the target for recompilation
+      if (TargetOutputCache.hasFilesToRecompile(context, target)) {
+        runModuleLevelBuilders(context, chunk);
+      }
+      else {
+        updateDoneFraction(context, 1.0f);
+      }
+      return true;
+    }
+    final boolean doneSomething = runModuleLevelBuilders(context, chunk);
+    myOutputCache.store(context, target, key);
+    return doneSomething;
+  }
+
   private static void saveInstrumentedClasses(ChunkBuildOutputConsumerImpl outputConsumer) throws IOException {
     for (CompiledClass compiledClass : outputConsumer.getCompiledClasses().values()) {
       if (compiledClass.isDirty()) {
@@ -0,0 +1,673 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.ProjectPaths;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildRootIndex;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.DirtyFilesHolder;
+import org.jetbrains.jps.builders.FileProcessor;
+import org.jetbrains.jps.builders.ModuleBasedTarget;
+import org.jetbrains.jps.builders.impl.DirtyFilesHolderBase;
+import org.jetbrains.jps.builders.java.JavaBuilderUtil;
+import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
+import org.jetbrains.jps.builders.storage.SourceToOutputMapping;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.messages.FileGeneratedEvent;
+import org.jetbrains.jps.incremental.messages.ProgressMessage;
+import org.jetbrains.jps.incremental.storage.Timestamps;
+import org.jetbrains.jps.model.JpsDummyElement;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.java.JpsJavaSdkType;
+import org.jetbrains.jps.model.java.LanguageLevel;
+import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerConfiguration;
+import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerOptions;
+import org.jetbrains.jps.model.library.JpsOrderRootType;
+import org.jetbrains.jps.model.library.sdk.JpsSdk;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Shares the outputs of module targets via a cache directory (see {@link GlobalOptions#BUILD_OUTPUT_CACHE_DIR_OPTION}).
+ * An entry is stored under the key computed from the contents of the target's sources, the keys of the targets it depends on,
+ * the contents of the libraries and the compiler settings. If an entry with the same key already exists, the outputs are unpacked
+ * instead of running the compilers, the source-to-output mapping is restored and the dependency information is collected
+ * from the unpacked class files.
+ */
+class TargetOutputCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.TargetOutputCache");
+  private static final int VERSION = 1;
+  private static final String MAPPING_ENTRY_NAME = "source-to-output.mapping";
+  private static final String OUTPUT_ENTRY_PREFIX = "output/";
+  private static final String NO_KEY = "";
+  // library contents hashes are reused while the length and the timestamp of the file stay the same
+  private static final ConcurrentMap<File, LibraryHash> ourLibraryHashes = new ConcurrentHashMap<File, LibraryHash>();
+
+  private final File myCacheDir;
+  private final ConcurrentMap<BuildTarget<?>, String> myKeys = new ConcurrentHashMap<BuildTarget<?>, String>();
+  // everything the key depends on except the target's own sources; computed once per target in a build session
+  private final ConcurrentMap<BuildTarget<?>, String> myEnvironmentHashes = new ConcurrentHashMap<BuildTarget<?>, String>();
+  private final ConcurrentMap<BuildTarget<?>, String> mySourcesHashes = new ConcurrentHashMap<BuildTarget<?>, String>();
+  private final AtomicInteger myHits = new AtomicInteger();
+  private final AtomicInteger myMisses = new AtomicInteger();
+  private final AtomicInteger myStored = new AtomicInteger();
+
+  private TargetOutputCache(File cacheDir) {
+    myCacheDir = cacheDir;
+  }
+
+  @Nullable
+  public static TargetOutputCache create() {
+    final String path = System.getProperty(GlobalOptions.BUILD_OUTPUT_CACHE_DIR_OPTION);
+    if (StringUtil.isEmptyOrSpaces(path)) {
+      return null;
+    }
+    final File dir = new File(path);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOG.info("Build output cache is disabled: cannot create " + dir.getPath());
+      return null;
+    }
+    return new TargetOutputCache(dir);
+  }
+
+  public static boolean hasFilesToRecompile(CompileContext context, ModuleBuildTarget target) {
+    final Map<?, Set<File>> sources = context.getProjectDescriptor().fsState.getSourcesToRecompile(context, target);
+    synchronized (sources) {
+      for (Set<File> files : sources.values()) {
+        if (!files.isEmpty()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the key of the target's current state or null if the outputs of the target cannot be cached
+   */
+  @Nullable
+  public String computeKey(CompileContext context, ModuleBuildTarget target) throws IOException {
+    final String key = doComputeKey(context, target, new THashSet<BuildTarget<?>>());
+    myKeys.put(target, key != null ? key : NO_KEY);
+    return key;
+  }
+
+  /**
+   * Replaces the outputs of the target with the cached ones
+   * @return true if the cache contained an entry for the key
+   */
+  public boolean restore(final CompileContext context, final ModuleChunk chunk, String key) throws IOException {
+    final ModuleBuildTarget target = chunk.representativeTarget();
+    final File entryFile = getEntryFile(key);
+    if (!entryFile.isFile()) {
+      myMisses.incrementAndGet();
+      return false;
+    }
+    context.processMessage(new ProgressMessage("Restoring cached output... [" + chunk.getName() + "]"));
+
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final List<JavaSourceRootDescriptor> roots = pd.getBuildRootIndex().getTargetRoots(target, context);
+    final File outputDir = target.getOutputDir();
+    final ZipFile zip;
+    final List<SourceOutputs> entries;
+    try {
+      zip = new ZipFile(entryFile);
+    }
+    catch (IOException e) {
+      LOG.info("Cannot open cached output " + entryFile.getPath() + ": " + e.getMessage());
+      myMisses.incrementAndGet();
+      return false;
+    }
+    try {
+      try {
+        entries = readMapping(zip, roots);
+      }
+      catch (IOException e) {
+        LOG.info("Corrupted cached output " + entryFile.getPath() + ": " + e.getMessage());
+        myMisses.incrementAndGet();
+        return false;
+      }
+
+      final SourceToOutputMapping sourceToOutput = pd.dataManager.getSourceToOutputMap(target);
+      for (String source : new ArrayList<String>(sourceToOutput.getSources())) {
+        final Collection<String> outputs = sourceToOutput.getOutputs(source);
+        if (outputs != null) {
+          for (String output : outputs) {
+            FileUtil.delete(new File(output));
+          }
+        }
+        sourceToOutput.remove(source);
+      }
+
+      final Mappings delta = pd.dataManager.getMappings().createDelta();
+      final Callbacks.Backend callback = delta.getCallback();
+      final FileGeneratedEvent generatedEvent = new FileGeneratedEvent();
+      final String outputRootPath = FileUtil.toSystemIndependentName(outputDir.getPath());
+      final Set<String> associatedClasses = new THashSet<String>();
+      final List<File> sources = new ArrayList<File>();
+      try {
+        // classes are registered with the Java sources first, other sources (e.g. forms) may share the same class files
+        for (SourceOutputs entry : entries) {
+          if (StringUtil.endsWithIgnoreCase(entry.mySource.getName(), ".java")) {
+            restoreOutputs(zip, entry, outputDir, outputRootPath, sourceToOutput, callback, associatedClasses, generatedEvent);
+          }
+        }
+        for (SourceOutputs entry : entries) {
+          if (!StringUtil.endsWithIgnoreCase(entry.mySource.getName(), ".java")) {
+            restoreOutputs(zip, entry, outputDir, outputRootPath, sourceToOutput, callback, associatedClasses, generatedEvent);
+          }
+          sources.add(entry.mySource);
+        }
+      }
+      catch (IOException e) {
+        LOG.info("Cannot restore cached output " + entryFile.getPath() + ", the target will be recompiled: " + e.getMessage());
+        // the delta is closed when it's integrated, here it is dropped
+        delta.close();
+        FSOperations.markDirty(context, chunk, null);
+        myMisses.incrementAndGet();
+        return false;
+      }
+
+      final Timestamps timestamps = pd.timestamps.getStorage();
+      for (JavaSourceRootDescriptor rd : roots) {
+        pd.fsState.markAllUpToDate(context, rd, timestamps);
+      }
+
+      final DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> dirtyFilesHolder =
+        new DirtyFilesHolderBase<JavaSourceRootDescriptor, ModuleBuildTarget>(context) {
+          @Override
+          public void processDirtyFiles(@NotNull FileProcessor<JavaSourceRootDescriptor, ModuleBuildTarget> processor) throws IOException {
+            FSOperations.processFilesToRecompile(context, chunk, processor);
+          }
+        };
+      JavaBuilderUtil.updateMappings(context, delta, dirtyFilesHolder, chunk, sources, sources);
+      context.processMessage(generatedEvent);
+      myHits.incrementAndGet();
+      LOG.debug("Restored " + chunk.getName() + " from " + entryFile.getPath());
+      return true;
+    }
+    finally {
+      zip.close();
+    }
+  }
+
+  /**
+   * Stores the outputs of the successfully built target unless its sources were modified during the build
+   */
+  public void store(CompileContext context, ModuleBuildTarget target, String key) throws IOException {
+    if (Utils.errorsDetected(context) || context.getCancelStatus().isCanceled() || !key.equals(myKeys.get(target)) ||
+        areSourcesModified(context, target)) {
+      return;
+    }
+    final File entryFile = getEntryFile(key);
+    if (entryFile.exists()) {
+      return;
+    }
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final List<JavaSourceRootDescriptor> roots = pd.getBuildRootIndex().getTargetRoots(target, context);
+    final String outputRootPath = FileUtil.toSystemIndependentName(target.getOutputDir().getPath());
+    final SourceToOutputMapping sourceToOutput = pd.dataManager.getSourceToOutputMap(target);
+
+    final BufferExposingByteArrayOutputStream mappingBytes = new BufferExposingByteArrayOutputStream();
+    final DataOutputStream mappingOut = new DataOutputStream(mappingBytes);
+    final Map<String, File> outputFiles = new LinkedHashMap<String, File>();
+    final Collection<String> sources = sourceToOutput.getSources();
+    mappingOut.writeInt(VERSION);
+    mappingOut.writeInt(sources.size());
+    for (String source : sources) {
+      final int rootIndex = findRootIndex(roots, source);
+      if (rootIndex < 0) {
+        LOG.debug("Output of " + target.getPresentableName() + " is not cached: " + source + " is not under its source roots");
+        return;
+      }
+      mappingOut.writeInt(rootIndex);
+      mappingOut.writeUTF(getRelativePath(roots.get(rootIndex).getRootFile().getPath(), source));
+      final List<String> relativeOutputs = new ArrayList<String>();
+      final Collection<String> outputs = sourceToOutput.getOutputs(source);
+      if (outputs != null) {
+        for (String output : outputs) {
+          final File outputFile = new File(output);
+          final String relativePath = getRelativePath(outputRootPath, output);
+          if (relativePath == null) {
+            LOG.debug("Output of " + target.getPresentableName() + " is not cached: " + output + " is not under its output directory");
+            return;
+          }
+          if (outputFile.isFile()) {
+            relativeOutputs.add(relativePath);
+            outputFiles.put(relativePath, outputFile);
+          }
+        }
+      }
+      mappingOut.writeInt(relativeOutputs.size());
+      for (String output : relativeOutputs) {
+        mappingOut.writeUTF(output);
+      }
+    }
+    mappingOut.close();
+
+    // the entry is written under a temporary name so that concurrent builds never see a partially written entry
+    final File tempFile = FileUtil.createTempFile(myCacheDir, key, ".tmp", true, false);
+    try {
+      final ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        zip.putNextEntry(new ZipEntry(MAPPING_ENTRY_NAME));
+        zip.write(mappingBytes.getInternalBuffer(), 0, mappingBytes.size());
+        zip.closeEntry();
+        for (Map.Entry<String, File> entry : outputFiles.entrySet()) {
+          zip.putNextEntry(new ZipEntry(OUTPUT_ENTRY_PREFIX + entry.getKey()));
+          final InputStream input = new FileInputStream(entry.getValue());
+          try {
+            FileUtil.copy(input, zip);
+          }
+          finally {
+            input.close();
+          }
+          zip.closeEntry();
+        }
+      }
+      finally {
+        zip.close();
+      }
+      if (tempFile.renameTo(entryFile)) {
+        myStored.incrementAndGet();
+      }
+    }
+    finally {
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  public String getStatistics() {
+    return "Build output cache: " + myHits.get() + " targets restored, " + myMisses.get() + " misses, " + myStored.get() + " targets stored";
+  }
+
+  private File getEntryFile(String key) {
+    return new File(myCacheDir, key + ".zip");
+  }
+
+  @Nullable
+  private String getDependencyKey(CompileContext context, ModuleBuildTarget target, Set<BuildTarget<?>> visited) throws IOException {
+    String key = myKeys.get(target);
+    if (key == null) {
+      key = doComputeKey(context, target, visited);
+      myKeys.put(target, key != null ? key : NO_KEY);
+    }
+    return NO_KEY.equals(key) ? null : key;
+  }
+
+  @Nullable
+  private String doComputeKey(CompileContext context, ModuleBuildTarget target, Set<BuildTarget<?>> visited) throws IOException {
+    // the scope is checked only for the target itself, its dependencies may be out of the scope of the current build
+    final CompileScope scope = visited.isEmpty() ? context.getScope() : null;
+    if (!visited.add(target)) {
+      // targets with circular dependencies are compiled together and never cached
+      return null;
+    }
+    final String environmentHash = getEnvironmentHash(context, target, visited);
+    if (environmentHash == null) {
+      return null;
+    }
+    final String sourcesHash = computeSourcesHash(context, target, scope);
+    if (sourcesHash == null) {
+      return null;
+    }
+    mySourcesHashes.put(target, sourcesHash);
+
+    final MessageDigest digest = createDigest();
+    update(digest, "version " + VERSION);
+    update(digest, "environment " + environmentHash);
+    update(digest, "sources " + sourcesHash);
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Only the sources of the target are hashed again to find out whether they were modified during the build, the rest of the key
+   * can't change within a build session
+   */
+  private boolean areSourcesModified(CompileContext context, ModuleBuildTarget target) throws IOException {
+    final String sourcesHash = computeSourcesHash(context, target, context.getScope());
+    return sourcesHash == null || !sourcesHash.equals(mySourcesHashes.get(target));
+  }
+
+  @Nullable
+  private String getEnvironmentHash(CompileContext context, ModuleBuildTarget target, Set<BuildTarget<?>> visited) throws IOException {
+    String hash = myEnvironmentHashes.get(target);
+    if (hash == null) {
+      hash = computeEnvironmentHash(context, target, visited);
+      myEnvironmentHashes.put(target, hash != null ? hash : NO_KEY);
+    }
+    return NO_KEY.equals(hash) ? null : hash;
+  }
+
+  @Nullable
+  private String computeEnvironmentHash(CompileContext context, ModuleBuildTarget target, Set<BuildTarget<?>> visited) throws IOException {
+    final ProjectDescriptor pd = context.getProjectDescriptor();
+    final JpsModule module = target.getModule();
+    final JpsJavaCompilerConfiguration config = JpsJavaExtensionService.getInstance().getOrCreateCompilerConfiguration(module.getProject());
+    final File outputDir = target.getOutputDir();
+    if (outputDir == null || config.getAnnotationProcessingProfile(module).isEnabled()) {
+      // sources generated by annotation processors aren't registered in the source-to-output mapping
+      return null;
+    }
+
+    final MessageDigest digest = createDigest();
+    update(digest, "target " + target.getTargetType().getTypeId() + " " + module.getName());
+
+    final LanguageLevel level = JpsJavaExtensionService.getInstance().getLanguageLevel(module);
+    update(digest, "language level " + (level != null ? level.name() : null));
+    update(digest, "bytecode target " + config.getByteCodeTargetLevel(module.getName()));
+    update(digest, "encoding " + pd.getEncodingConfiguration().getPreferredModuleEncoding(module));
+    update(digest, "compiler " + config.getJavaCompilerId());
+    final JpsJavaCompilerOptions options = config.getCurrentCompilerOptions();
+    update(digest, "options " + options.DEBUGGING_INFO + " " + options.GENERATE_NO_WARNINGS + " " + options.DEPRECATION + " " +
+                   options.ADDITIONAL_OPTIONS_STRING);
+    update(digest, "not-null assertions " + config.isAddNotNullAssertions());
+    final JpsSdk<JpsDummyElement> sdk = module.getSdk(JpsJavaSdkType.INSTANCE);
+    update(digest, "jdk " + (sdk != null ? sdk.getVersionString() : null));
+
+    final Set<File> dependencyOutputs = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+    dependencyOutputs.add(outputDir);
+    final List<String> dependencyKeys = new ArrayList<String>();
+    for (BuildTarget<?> dependency : pd.getBuildTargetIndex().getDependencies(target, context)) {
+      if (!(dependency instanceof ModuleBuildTarget)) {
+        if (dependency instanceof ModuleBasedTarget && module.equals(((ModuleBasedTarget)dependency).getModule())) {
+          // targets of the same module built before the compilers (e.g. resources) don't affect compilation
+          continue;
+        }
+        return null;
+      }
+      final String dependencyKey = getDependencyKey(context, (ModuleBuildTarget)dependency, visited);
+      if (dependencyKey == null) {
+        return null;
+      }
+      dependencyKeys.add(dependencyKey);
+    }
+    Collections.sort(dependencyKeys);
+    for (String dependencyKey : dependencyKeys) {
+      update(digest, "dependency " + dependencyKey);
+    }
+    // the outputs of the modules the target depends on are represented by the keys of the corresponding targets
+    for (BuildTarget<?> dependency : pd.getBuildTargetIndex().getDependenciesRecursively(target, context)) {
+      if (dependency instanceof ModuleBuildTarget) {
+        final File dependencyOutput = ((ModuleBuildTarget)dependency).getOutputDir();
+        if (dependencyOutput != null) {
+          dependencyOutputs.add(dependencyOutput);
+        }
+      }
+    }
+    if (sdk != null) {
+      dependencyOutputs.addAll(sdk.getParent().getFiles(JpsOrderRootType.COMPILED));
+    }
+    final ModuleChunk chunk = new ModuleChunk(Collections.singleton(target));
+    final Set<File> classpath = new LinkedHashSet<File>(ProjectPaths.getPlatformCompilationClasspath(chunk, false));
+    classpath.addAll(ProjectPaths.getCompilationClasspath(chunk, false));
+    for (File file : classpath) {
+      if (!dependencyOutputs.contains(file)) {
+        update(digest, "library " + file.getName() + " " + getLibraryHash(file));
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  @Nullable
+  private static String computeSourcesHash(CompileContext context, ModuleBuildTarget target, @Nullable CompileScope scope) throws IOException {
+    final MessageDigest digest = createDigest();
+    final BuildRootIndex rootIndex = context.getProjectDescriptor().getBuildRootIndex();
+    final List<JavaSourceRootDescriptor> roots = rootIndex.getTargetRoots(target, context);
+    for (int i = 0; i < roots.size(); i++) {
+      final JavaSourceRootDescriptor rd = roots.get(i);
+      if (rd.isTemp) {
+        continue;
+      }
+      update(digest, "root " + i + " " + rd.getPackagePrefix());
+      if (!updateWithSources(scope, rootIndex, rd, rd.getRootFile(), "", digest)) {
+        return null;
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  private static boolean updateWithSources(@Nullable CompileScope scope, BuildRootIndex rootIndex, JavaSourceRootDescriptor rd, File file,
+                                           String relativePath, MessageDigest digest) throws IOException {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      if (!rootIndex.isDirectoryAccepted(file, rd)) {
+        return true;
+      }
+      Arrays.sort(children);
+      for (File child : children) {
+        final String childPath = relativePath.isEmpty() ? child.getName() : relativePath + "/" + child.getName();
+        if (!updateWithSources(scope, rootIndex, rd, child, childPath, digest)) {
+          return false;
+        }
+      }
+    }
+    else if (rootIndex.isFileAccepted(file, rd)) {
+      if (scope != null && !scope.isAffected(rd.target, file)) {
+        // only a part of the target is compiled
+        return false;
+      }
+      final byte[] content = FileUtil.loadFileBytes(file);
+      update(digest, "source " + relativePath + " " + content.length);
+      digest.update(content);
+    }
+    return true;
+  }
+
+  private static String getLibraryHash(File file) throws IOException {
+    if (file.isDirectory()) {
+      final MessageDigest digest = createDigest();
+      updateWithDirectory(file, "", digest);
+      return toHex(digest.digest());
+    }
+    if (!file.isFile()) {
+      return "none";
+    }
+    final long length = file.length();
+    final long timestamp = file.lastModified();
+    final LibraryHash hash = ourLibraryHashes.get(file);
+    if (hash != null && hash.myLength == length && hash.myTimestamp == timestamp) {
+      return hash.myHash;
+    }
+    final MessageDigest digest = createDigest();
+    final InputStream input = new BufferedInputStream(new FileInputStream(file));
+    try {
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    finally {
+      input.close();
+    }
+    final String result = toHex(digest.digest());
+    ourLibraryHashes.put(file, new LibraryHash(length, timestamp, result));
+    return result;
+  }
+
+  private static void updateWithDirectory(File dir, String relativePath, MessageDigest digest) throws IOException {
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      final String childPath = relativePath + "/" + child.getName();
+      if (child.isDirectory()) {
+        updateWithDirectory(child, childPath, digest);
+      }
+      else {
+        final byte[] content = FileUtil.loadFileBytes(child);
+        update(digest, childPath + " " + content.length);
+        digest.update(content);
+      }
+    }
+  }
+
+  private static List<SourceOutputs> readMapping(ZipFile zip, List<JavaSourceRootDescriptor> roots) throws IOException {
+    final ZipEntry mappingEntry = zip.getEntry(MAPPING_ENTRY_NAME);
+    if (mappingEntry == null) {
+      throw new IOException(MAPPING_ENTRY_NAME + " not found");
+    }
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(zip.getInputStream(mappingEntry)));
+    try {
+      if (input.readInt() != VERSION) {
+        throw new IOException("unsupported version");
+      }
+      final int count = input.readInt();
+      final List<SourceOutputs> result = new ArrayList<SourceOutputs>(count);
+      for (int i = 0; i < count; i++) {
+        final int rootIndex = input.readInt();
+        if (rootIndex < 0 || rootIndex >= roots.size()) {
+          throw new IOException("unknown source root #" + rootIndex);
+        }
+        final File source = new File(roots.get(rootIndex).getRootFile(), FileUtil.toSystemDependentName(input.readUTF()));
+        final int outputsCount = input.readInt();
+        final List<String> outputs = new ArrayList<String>(outputsCount);
+        for (int j = 0; j < outputsCount; j++) {
+          final String output = input.readUTF();
+          if (zip.getEntry(OUTPUT_ENTRY_PREFIX + output) == null) {
+            throw new IOException(output + " not found");
+          }
+          outputs.add(output);
+        }
+        result.add(new SourceOutputs(source, outputs));
+      }
+      return result;
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  private static void restoreOutputs(ZipFile zip, SourceOutputs entry, File outputDir, String outputRootPath,
+                                     SourceToOutputMapping sourceToOutput, Callbacks.Backend callback, Set<String> associatedClasses,
+                                     FileGeneratedEvent generatedEvent) throws IOException {
+    final String sourcePath = FileUtil.toSystemIndependentName(entry.mySource.getPath());
+    final List<String> outputPaths = new ArrayList<String>(entry.myOutputs.size());
+    for (String relativePath : entry.myOutputs) {
+      final File outputFile = new File(outputDir, FileUtil.toSystemDependentName(relativePath));
+      final String outputPath = FileUtil.toSystemIndependentName(outputFile.getPath());
+      outputPaths.add(outputPath);
+      if (!associatedClasses.add(outputPath)) {
+        // already restored for another source
+        continue;
+      }
+      final InputStream input = zip.getInputStream(zip.getEntry(OUTPUT_ENTRY_PREFIX + relativePath));
+      final byte[] content;
+      try {
+        content = FileUtil.loadBytes(input);
+      }
+      finally {
+        input.close();
+      }
+      FileUtil.writeToFile(outputFile, content);
+      generatedEvent.add(outputRootPath, relativePath);
+      if (StringUtil.endsWithIgnoreCase(relativePath, ".class")) {
+        callback.associate(outputPath, sourcePath, new ClassReader(content));
+      }
+    }
+    sourceToOutput.setOutputs(entry.mySource.getPath(), outputPaths);
+  }
+
+  private static int findRootIndex(List<JavaSourceRootDescriptor> roots, String sourcePath) {
+    for (int i = 0; i < roots.size(); i++) {
+      final JavaSourceRootDescriptor rd = roots.get(i);
+      if (!rd.isTemp && FileUtil.isAncestor(rd.getRootFile().getPath(), sourcePath, true)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Nullable
+  private static String getRelativePath(String rootPath, String path) {
+    final String relativePath = FileUtil.getRelativePath(FileUtil.toSystemIndependentName(rootPath), FileUtil.toSystemIndependentName(path), '/');
+    return relativePath == null || relativePath.startsWith("../") ? null : relativePath;
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void update(MessageDigest digest, String data) {
+    try {
+      digest.update(data.getBytes("UTF-8"));
+      digest.update((byte)0);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class SourceOutputs {
+    private final File mySource;
+    private final List<String> myOutputs;
+
+    private SourceOutputs(File source, List<String> outputs) {
+      mySource = source;
+      myOutputs = outputs;
+    }
+  }
+
+  private static class LibraryHash {
+    private final long myLength;
+    private final long myTimestamp;
+    private final String myHash;
+
+    private LibraryHash(long length, long timestamp, String hash) {
+      myLength = length;
+      myTimestamp = timestamp;
+      myHash = hash;
+    }
+  }
+}
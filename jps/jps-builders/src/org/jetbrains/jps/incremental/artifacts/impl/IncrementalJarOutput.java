@@ -0,0 +1,252 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes an archive reusing the compressed data of the entries which have the same size and CRC in the previously built archive.
+ * New and changed entries are compressed in parallel, the entries are written in the order they were added.
+ */
+class IncrementalJarOutput extends JarOutput {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.artifacts.impl.IncrementalJarOutput");
+  private static final boolean PARALLEL_COMPRESSION = Boolean.parseBoolean(System.getProperty(GlobalOptions.PARALLEL_JAR_COMPRESSION_OPTION, "true"));
+  private static final int MAX_PENDING_ENTRIES = 256;
+  private static final long MAX_PENDING_BYTES = 32 * 1024 * 1024;
+  private final File myJarFile;
+  private final JBZipFile myZip;
+  @Nullable
+  private final JBZipFile myPreviousZip;
+  @Nullable
+  private final BoundedTaskExecutor myCompressionExecutor;
+  private final LinkedList<PendingEntry> myPending = new LinkedList<PendingEntry>();
+  private long myPendingBytes;
+  private int myReusedCount;
+  private int myCompressedCount;
+
+  IncrementalJarOutput(@NotNull File jarFile, @Nullable Manifest manifest, @Nullable File previousJar) throws IOException {
+    myJarFile = jarFile;
+    myZip = new JBZipFile(jarFile);
+    myPreviousZip = previousJar != null && previousJar.isFile() ? openPrevious(previousJar) : null;
+    final int processors = Runtime.getRuntime().availableProcessors();
+    myCompressionExecutor = PARALLEL_COMPRESSION && processors > 1 ? new BoundedTaskExecutor(SharedThreadPool.getInstance(), processors) : null;
+    if (manifest != null) {
+      final BufferExposingByteArrayOutputStream manifestBytes = new BufferExposingByteArrayOutputStream();
+      manifest.write(manifestBytes);
+      // the manifest goes first like in JarOutputStream, the builder adds the META-INF/ entry later if it's needed
+      putBytes(JarFile.MANIFEST_NAME, System.currentTimeMillis(), manifestBytes.toByteArray(), ZipEntry.DEFLATED);
+    }
+  }
+
+  @Nullable
+  private static JBZipFile openPrevious(File previousJar) {
+    try {
+      return new JBZipFile(previousJar, "UTF-8", true);
+    }
+    catch (IOException e) {
+      LOG.debug("Cannot reuse entries of " + previousJar + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  @Override
+  public void putDirectory(@NotNull String relativePath) throws IOException {
+    if (myZip.getEntry(relativePath) != null) {
+      return;
+    }
+    final JBZipEntry entry = myZip.getOrCreateEntry(relativePath);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(0);
+    entry.setCrc(0);
+    entry.setTime(System.currentTimeMillis());
+    addPending(new PendingEntry(entry, new byte[0], null), 0);
+  }
+
+  @Override
+  public void putFile(@NotNull String relativePath, @NotNull File file) throws IOException {
+    final byte[] content = FileUtil.loadFileBytes(file);
+    putBytes(relativePath, file.lastModified(), content, content.length == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED);
+  }
+
+  @Override
+  public void putEntry(@NotNull String relativePath, long timestamp, @NotNull ZipEntry originalEntry, @NotNull InputStream content)
+    throws IOException {
+    final int method = originalEntry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED;
+    if (originalEntry.getSize() >= 0 && originalEntry.getCrc() != -1 &&
+        reuse(relativePath, timestamp, originalEntry.getSize(), originalEntry.getCrc(), method)) {
+      return;
+    }
+    putBytes(relativePath, timestamp, FileUtil.loadBytes(content), method);
+  }
+
+  private void putBytes(String relativePath, long timestamp, final byte[] content, int method) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(content);
+    if (reuse(relativePath, timestamp, content.length, crc.getValue(), method)) {
+      return;
+    }
+
+    final JBZipEntry entry = createEntry(relativePath, timestamp, content.length, crc.getValue(), method);
+    if (method == ZipEntry.STORED) {
+      addPending(new PendingEntry(entry, content, null), content.length);
+      return;
+    }
+    myCompressedCount++;
+    if (myCompressionExecutor == null) {
+      addPending(new PendingEntry(entry, deflate(content), null), content.length);
+      return;
+    }
+    final Future<byte[]> compressed = myCompressionExecutor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return deflate(content);
+      }
+    });
+    addPending(new PendingEntry(entry, null, compressed), content.length);
+  }
+
+  private boolean reuse(String relativePath, long timestamp, long size, long crc, int method) throws IOException {
+    if (myPreviousZip == null || myZip.getEntry(relativePath) != null) {
+      return false;
+    }
+    final JBZipEntry previous = myPreviousZip.getEntry(relativePath);
+    if (previous == null || previous.isDirectory() || previous.getMethod() != method || previous.getSize() != size || previous.getCrc() != crc) {
+      return false;
+    }
+    final JBZipEntry entry = createEntry(relativePath, timestamp, size, crc, method);
+    addPending(new PendingEntry(entry, previous.getRawData(), null), previous.getCompressedSize());
+    myReusedCount++;
+    return true;
+  }
+
+  private JBZipEntry createEntry(String relativePath, long timestamp, long size, long crc, int method) {
+    final JBZipEntry entry = myZip.getOrCreateEntry(relativePath);
+    entry.setMethod(method);
+    entry.setSize(size);
+    entry.setCrc(crc);
+    entry.setTime(timestamp);
+    return entry;
+  }
+
+  private void addPending(PendingEntry entry, long size) throws IOException {
+    entry.mySize = size;
+    myPending.add(entry);
+    myPendingBytes += size;
+    while (myPending.size() > MAX_PENDING_ENTRIES || myPendingBytes > MAX_PENDING_BYTES) {
+      writeFirstPending();
+    }
+  }
+
+  private void writeFirstPending() throws IOException {
+    final PendingEntry pending = myPending.removeFirst();
+    myPendingBytes -= pending.mySize;
+    pending.myEntry.setRawData(pending.getRawData());
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      while (!myPending.isEmpty()) {
+        writeFirstPending();
+      }
+    }
+    finally {
+      try {
+        if (myPreviousZip != null) {
+          myPreviousZip.close();
+        }
+      }
+      finally {
+        myZip.close();
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(myJarFile + ": " + myReusedCount + " entries copied from the previous archive, " + myCompressedCount + " entries compressed");
+    }
+  }
+
+  private static byte[] deflate(byte[] content) throws IOException {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      final BufferExposingByteArrayOutputStream compressed = new BufferExposingByteArrayOutputStream(content.length / 2 + 16);
+      final DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater);
+      try {
+        stream.write(content);
+      }
+      finally {
+        stream.close();
+      }
+      return compressed.toByteArray();
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  private static class PendingEntry {
+    private final JBZipEntry myEntry;
+    @Nullable
+    private final byte[] myRawData;
+    @Nullable
+    private final Future<byte[]> myCompressedData;
+    private long mySize;
+
+    private PendingEntry(JBZipEntry entry, @Nullable byte[] rawData, @Nullable Future<byte[]> compressedData) {
+      myEntry = entry;
+      myRawData = rawData;
+      myCompressedData = compressedData;
+    }
+
+    private byte[] getRawData() throws IOException {
+      if (myCompressedData == null) {
+        return myRawData;
+      }
+      try {
+        return myCompressedData.get();
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.ZipUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Destination of the entries of an archive built by {@link JarsBuilder}. Callers are responsible for not adding the same path twice.
+ */
+abstract class JarOutput {
+  /**
+   * @param relativePath path of the directory entry ending with '/'
+   */
+  public abstract void putDirectory(@NotNull String relativePath) throws IOException;
+
+  public abstract void putFile(@NotNull String relativePath, @NotNull File file) throws IOException;
+
+  /**
+   * Adds an entry extracted from another archive
+   */
+  public abstract void putEntry(@NotNull String relativePath, long timestamp, @NotNull ZipEntry originalEntry, @NotNull InputStream content)
+    throws IOException;
+
+  public abstract void close() throws IOException;
+
+  /**
+   * @param previousJar the archive built for the same destination last time; in incremental mode its entries whose content hasn't
+   *                    changed are copied without recompressing them
+   */
+  public static JarOutput create(@NotNull File jarFile, @Nullable Manifest manifest, @Nullable File previousJar, boolean incremental)
+    throws IOException {
+    if (incremental) {
+      return new IncrementalJarOutput(jarFile, manifest, previousJar);
+    }
+    return new StreamJarOutput(jarFile, manifest);
+  }
+
+  private static class StreamJarOutput extends JarOutput {
+    private final JarOutputStream myStream;
+
+    private StreamJarOutput(File jarFile, @Nullable Manifest manifest) throws IOException {
+      final BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(jarFile));
+      myStream = manifest != null ? new JarOutputStream(outputStream, manifest) : new JarOutputStream(outputStream);
+    }
+
+    @Override
+    public void putDirectory(@NotNull String relativePath) throws IOException {
+      ZipEntry e = new ZipEntry(relativePath);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(0);
+      e.setCrc(0);
+      myStream.putNextEntry(e);
+      myStream.closeEntry();
+    }
+
+    @Override
+    public void putFile(@NotNull String relativePath, @NotNull File file) throws IOException {
+      ZipUtil.addFileToZip(myStream, file, relativePath, null, null);
+    }
+
+    @Override
+    public void putEntry(@NotNull String relativePath, long timestamp, @NotNull ZipEntry originalEntry, @NotNull InputStream content)
+      throws IOException {
+      ZipEntry newEntry = new ZipEntry(relativePath);
+      newEntry.setTime(timestamp);
+      if (originalEntry.getMethod() == ZipEntry.STORED) {
+        newEntry.setMethod(ZipEntry.STORED);
+        newEntry.setSize(originalEntry.getSize());
+        newEntry.setCrc(originalEntry.getCrc());
+      }
+      myStream.putNextEntry(newEntry);
+      FileUtil.copy(content, myStream);
+      myStream.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+      myStream.close();
+    }
+  }
+}
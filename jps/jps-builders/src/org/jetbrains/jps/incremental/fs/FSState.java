@@ -190,4 +190,11 @@ public class FSState {
   public boolean isInitialScanPerformed(BuildTarget<?> target) {
     return myInitialScanPerformed.contains(target);
   }
+
+  /**
+   * Forces scanning of the target roots at the next build; the dirty files of the target are recalculated by the scan
+   */
+  public void clearInitialScanPerformed(BuildTarget<?> target) {
+    myInitialScanPerformed.remove(target);
+  }
 }
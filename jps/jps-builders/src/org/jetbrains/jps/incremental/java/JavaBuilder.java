@@ -39,7 +39,6 @@ import org.jetbrains.jps.builders.FileProcessor;
 import org.jetbrains.jps.builders.java.JavaBuilderExtension;
 import org.jetbrains.jps.builders.java.JavaBuilderUtil;
 import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
-import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
 import org.jetbrains.jps.builders.java.dependencyView.Mappings;
 import org.jetbrains.jps.builders.logging.ProjectBuilderLogger;
 import org.jetbrains.jps.cmdline.ProjectDescriptor;
@@ -145,6 +144,16 @@ public class JavaBuilder extends ModuleLevelBuilder {
       messageText = "Using eclipse compiler to compile java sources";
     }
     COMPILER_VERSION_INFO.set(context, new AtomicReference<String>(messageText));
+    // in-process compilations share the archives until the build is finished
+    ClasspathArchiveCache.setEnabled(true);
+  }
+
+  @Override
+  public void buildFinished(CompileContext context) {
+    final String archiveStatistics = ClasspathArchiveCache.clear();
+    if (archiveStatistics != null) {
+      LOG.info(archiveStatistics);
+    }
   }
 
   @Override
@@ -233,8 +242,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
 
     // begin compilation round
     final Mappings delta = pd.dataManager.getMappings().createDelta();
-    final Callbacks.Backend mappingsCallback = delta.getCallback();
-    final OutputFilesSink outputSink = new OutputFilesSink(context, outputConsumer, mappingsCallback, chunk.getName());
+    final OutputFilesSink outputSink = new OutputFilesSink(context, outputConsumer, delta, chunk.getName());
     try {
       if (hasSourcesToCompile) {
         final AtomicReference<String> ref = COMPILER_VERSION_INFO.get(context);
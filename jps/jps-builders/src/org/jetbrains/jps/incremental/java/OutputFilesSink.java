@@ -22,6 +22,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
 import org.jetbrains.jps.builders.java.dependencyView.Callbacks;
+import org.jetbrains.jps.builders.java.dependencyView.Mappings;
 import org.jetbrains.jps.incremental.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
@@ -39,7 +40,7 @@ import java.util.Set;
 * @author Eugene Zhuravlev
 *         Date: 2/16/12
 */
-class OutputFilesSink implements OutputFileConsumer {
+class OutputFilesSink implements OutputFileConsumer, Callbacks.AnalysisErrorHandler {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.java.OutputFilesSink");
   private final CompileContext myContext;
   private final ModuleLevelBuilder.OutputConsumer myOutputConsumer;
@@ -49,11 +50,11 @@ class OutputFilesSink implements OutputFileConsumer {
 
   public OutputFilesSink(CompileContext context,
                          ModuleLevelBuilder.OutputConsumer outputConsumer,
-                         Callbacks.Backend callback,
+                         Mappings delta,
                          String chunkName) {
     myContext = context;
     myOutputConsumer = outputConsumer;
-    myMappingsCallback = callback;
+    myMappingsCallback = delta.getCallback(this);
     myChunkName = "[" +chunkName + "]";
   }
 
@@ -92,11 +93,7 @@ class OutputFilesSink implements OutputFileConsumer {
         }
         catch (Throwable e) {
           // need this to make sure that unexpected errors in, for example, ASM will not ruin the compilation  
-          final String message = "Class dependency information may be incomplete! Error parsing generated class " + fileObject.getFile().getPath();
-          LOG.info(message, e);
-          myContext.processMessage(new CompilerMessage(
-            JavaBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, message + "\n" + CompilerMessage.getTextFromThrowable(e), sourcePath)
-          );
+          analysisFailed(fileObject.getFile().getPath(), sourcePath, e);
         }
       }
     }
@@ -112,6 +109,15 @@ class OutputFilesSink implements OutputFileConsumer {
     }
   }
 
+  @Override
+  public void analysisFailed(String classFileName, String sourceFileName, Throwable error) {
+    final String message = "Class dependency information may be incomplete! Error parsing generated class " + classFileName;
+    LOG.info(message, error);
+    myContext.processMessage(new CompilerMessage(
+      JavaBuilder.BUILDER_NAME, BuildMessage.Kind.WARNING, message + "\n" + CompilerMessage.getTextFromThrowable(error), sourceFileName)
+    );
+  }
+
   public Set<File> getSuccessfullyCompiled() {
     return Collections.unmodifiableSet(mySuccessfullyCompiled);
   }
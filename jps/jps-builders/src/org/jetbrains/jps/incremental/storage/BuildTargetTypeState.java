@@ -33,7 +33,9 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class BuildTargetTypeState {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.BuildTargetTypeState");
+  private static final int VERSION = 1;
   private final Map<BuildTarget<?>, Integer> myTargetIds;
+  private final ConcurrentMap<BuildTarget<?>, Long> myAverageBuildTimes = new ConcurrentHashMap<BuildTarget<?>, Long>();
   private final ConcurrentMap<BuildTarget<?>, BuildTargetConfiguration> myConfigurations;
   private final BuildTargetType<?> myTargetType;
   private final BuildTargetsState myTargetsState;
@@ -56,16 +58,20 @@ public class BuildTargetTypeState {
     try {
       DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(myTargetsFile)));
       try {
-        input.readInt();//reserved for version
+        final int version = input.readInt();
         int size = input.readInt();
         BuildTargetLoader<?> loader = myTargetType.createLoader(myTargetsState.getModel());
         while (size-- > 0) {
           String stringId = IOUtil.readString(input);
           int intId = input.readInt();
+          long averageBuildTime = version >= 1 ? input.readLong() : -1;
           myTargetsState.markUsedId(intId);
           BuildTarget<?> target = loader.createTarget(stringId);
           if (target != null) {
             myTargetIds.put(target, intId);
+            if (averageBuildTime >= 0) {
+              myAverageBuildTimes.put(target, averageBuildTime);
+            }
           }
           else {
             LOG.info("Unknown " + myTargetType.getTypeId() + " target: " + stringId);
@@ -88,11 +94,12 @@ public class BuildTargetTypeState {
       FileUtil.createParentDirs(myTargetsFile);
       DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myTargetsFile)));
       try {
-        output.writeInt(0);
+        output.writeInt(VERSION);
         output.writeInt(myTargetIds.size());
         for (Map.Entry<BuildTarget<?>, Integer> entry : myTargetIds.entrySet()) {
           IOUtil.writeString(entry.getKey().getId(), output);
           output.writeInt(entry.getValue());
+          output.writeLong(getAverageBuildTime(entry.getKey()));
         }
       }
       finally {
@@ -111,6 +118,17 @@ public class BuildTargetTypeState {
     return myTargetIds.get(target);
   }
 
+  public long getAverageBuildTime(BuildTarget<?> target) {
+    final Long time = myAverageBuildTimes.get(target);
+    return time != null ? time : -1;
+  }
+
+  public void updateAverageBuildTime(BuildTarget<?> target, long time) {
+    final Long previous = myAverageBuildTimes.get(target);
+    // recent builds are more representative, the weight of older ones decreases exponentially
+    myAverageBuildTimes.put(target, previous != null ? (previous + time) / 2 : time);
+  }
+
   public BuildTargetConfiguration getConfiguration(BuildTarget<?> target) {
     BuildTargetConfiguration configuration = myConfigurations.get(target);
     if (configuration == null) {
@@ -92,6 +92,18 @@ public class BuildTargetsState {
     return getTypeState(target.getTargetType()).getTargetId(target);
   }
 
+  /**
+   * @return the time in ms the target took to build when it had something to build, averaged over the previous builds with the weight
+   * halved for each older build, or -1 if the target has not been built yet
+   */
+  public long getAverageBuildTime(@NotNull BuildTarget<?> target) {
+    return getTypeState(target.getTargetType()).getAverageBuildTime(target);
+  }
+
+  public void updateAverageBuildTime(@NotNull BuildTarget<?> target, long time) {
+    getTypeState(target.getTargetType()).updateAverageBuildTime(target, time);
+  }
+
   public BuildTargetConfiguration getTargetConfiguration(@NotNull BuildTarget<?> target) {
     return getTypeState(target.getTargetType()).getConfiguration(target);
   }
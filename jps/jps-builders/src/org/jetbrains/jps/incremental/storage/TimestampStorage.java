@@ -15,22 +15,29 @@
  */
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DataExternalizer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.BuildTarget;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
 public class TimestampStorage extends AbstractStateStorage<File, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+  private static final long NO_HASH = 0L;
   private final BuildTargetsState myTargetsState;
+  private final boolean myUseContentHashes = Boolean.parseBoolean(System.getProperty(GlobalOptions.USE_CONTENT_HASHES_OPTION, "false"));
+  private final AtomicInteger myUnchangedContentCount = new AtomicInteger();
 
   public TimestampStorage(File storePath, BuildTargetsState targetsState) throws IOException {
     super(storePath, new FileKeyDescriptor(), new StateExternalizer());
@@ -49,27 +56,86 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
 
   @Override
   public long getStamp(File file, BuildTarget<?> target) throws IOException {
+    final TimestampPerTarget stamp = findStamp(getState(file), target);
+    return stamp != null? stamp.timestamp : -1L;
+  }
+
+  @Override
+  public boolean isModified(File file, BuildTarget<?> target, long currentStamp) throws IOException {
     final TimestampPerTarget[] state = getState(file);
+    final TimestampPerTarget stamp = findStamp(state, target);
+    if (stamp == null) {
+      return true;
+    }
+    if (stamp.timestamp == currentStamp) {
+      return false;
+    }
+    if (stamp.hash == NO_HASH || stamp.hash != computeHash(file)) {
+      return true;
+    }
+    // the content is the same as when the stamp was saved, so only the timestamp is updated
+    update(file, updateTimestamp(state, stamp.targetId, currentStamp, stamp.hash));
+    myUnchangedContentCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * @return the number of files which were not considered modified since the previous call because their content has not changed
+   * while their timestamps had
+   */
+  public int getAndResetUnchangedContentCount() {
+    return myUnchangedContentCount.getAndSet(0);
+  }
+
+  @Override
+  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
+    int targetId = myTargetsState.getBuildTargetId(buildTarget);
+    long hash = NO_HASH;
+    if (myUseContentHashes) {
+      hash = computeHash(file);
+      if (FileSystemUtil.lastModified(file) != timestamp) {
+        // the file was changed after the timestamp had been read, the hash may be of the new content
+        hash = NO_HASH;
+      }
+    }
+    update(file, updateTimestamp(getState(file), targetId, timestamp, hash));
+  }
+
+  @Nullable
+  private TimestampPerTarget findStamp(@Nullable TimestampPerTarget[] state, BuildTarget<?> target) {
     if (state != null) {
       int targetId = myTargetsState.getBuildTargetId(target);
       for (TimestampPerTarget timestampPerTarget : state) {
         if (timestampPerTarget.targetId == targetId) {
-          return timestampPerTarget.timestamp;
+          return timestampPerTarget;
         }
       }
     }
-    return -1L;
+    return null;
   }
 
-  @Override
-  public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
-    int targetId = myTargetsState.getBuildTargetId(buildTarget);
-    update(file, updateTimestamp(getState(file), targetId, timestamp));
+  private static long computeHash(File file) {
+    final byte[] digest;
+    try {
+      final MessageDigest md5 = MessageDigest.getInstance("MD5");
+      digest = md5.digest(FileUtil.loadFileBytes(file));
+    }
+    catch (IOException e) {
+      return NO_HASH;
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    long hash = 0L;
+    for (int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (digest[i] & 0xFF);
+    }
+    return hash;
   }
 
   @NotNull
-  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp) {
-    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp);
+  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp, long hash) {
+    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp, hash);
     if (oldState == null) {
       return new TimestampPerTarget[]{newItem};
     }
@@ -105,10 +171,15 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   public static class TimestampPerTarget {
     public final int targetId;
     public final long timestamp;
+    /**
+     * leading bits of the file content's MD5, or 0 if the content was not hashed when the stamp was saved
+     */
+    public final long hash;
 
-    public TimestampPerTarget(int targetId, long timestamp) {
+    public TimestampPerTarget(int targetId, long timestamp, long hash) {
       this.targetId = targetId;
       this.timestamp = timestamp;
+      this.hash = hash;
     }
   }
 
@@ -118,6 +189,7 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (TimestampPerTarget target : value) {
         out.writeInt(target.targetId);
         out.writeLong(target.timestamp);
+        out.writeLong(target.hash);
       }
     }
 
@@ -127,7 +199,8 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (int i = 0; i < size; i++) {
         int id = in.readInt();
         long timestamp = in.readLong();
-        targets[i] = new TimestampPerTarget(id, timestamp);
+        long hash = in.readLong();
+        targets[i] = new TimestampPerTarget(id, timestamp, hash);
       }
       return targets;
     }
@@ -34,4 +34,10 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file, BuildTarget<?> target) throws IOException;
+
+  /**
+   * @return true if the file should be considered changed since its stamp was saved for the target. Depending on the settings,
+   * a file whose timestamp differs from the saved one may still be considered unchanged if its content is the same
+   */
+  boolean isModified(File file, BuildTarget<?> target, long currentStamp) throws IOException;
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Opened classpath archives together with their package listings, shared by all compilations in the process until
+ * {@link #clear()} is called at the end of the build. An archive is opened and indexed again if its size or timestamp changes.
+ * <p/>
+ * The cache is only used after it has been {@link #setEnabled(boolean) enabled} by the build process, which clears it when the build
+ * is finished. Compilations in a separate javac server process are not followed by such a cleanup and list archives through javac.
+ * Only the classpath is listed through the cache, javac reads the platform classes itself.
+ */
+public class ClasspathArchiveCache {
+  private static final Map<File, ArchiveIndex> ourIndices = new HashMap<File, ArchiveIndex>();
+  // outdated archives may still be read by running compilations, so they are closed only when the cache is cleared
+  private static final List<ArchiveIndex> ourOutdated = new ArrayList<ArchiveIndex>();
+  private static final AtomicInteger ourArchivesOpened = new AtomicInteger();
+  private static final AtomicInteger ourArchivesReused = new AtomicInteger();
+  private static final AtomicInteger ourPackagesListed = new AtomicInteger();
+  private static final AtomicInteger ourPackagesMissing = new AtomicInteger();
+  private static volatile boolean ourEnabled;
+
+  private ClasspathArchiveCache() {
+  }
+
+  public static void setEnabled(boolean enabled) {
+    ourEnabled = enabled;
+  }
+
+  static boolean isEnabled() {
+    return ourEnabled;
+  }
+
+  @Nullable
+  static ArchiveIndex getIndex(File archive) {
+    final long length = archive.length();
+    final long timestamp = archive.lastModified();
+    synchronized (ourIndices) {
+      final ArchiveIndex cached = ourIndices.get(archive);
+      if (cached != null) {
+        if (cached.myLength == length && cached.myTimestamp == timestamp) {
+          ourArchivesReused.incrementAndGet();
+          return cached;
+        }
+        ourIndices.remove(archive);
+        ourOutdated.add(cached);
+      }
+      final ArchiveIndex index;
+      try {
+        index = new ArchiveIndex(new ZipFile(archive), length, timestamp);
+      }
+      catch (IOException e) {
+        return null;
+      }
+      ourArchivesOpened.incrementAndGet();
+      ourIndices.put(archive, index);
+      return index;
+    }
+  }
+
+  /**
+   * Closes all cached archives and resets the statistics
+   * @return the statistics collected since the previous call, or null if nothing was cached
+   */
+  @Nullable
+  public static String clear() {
+    final List<ArchiveIndex> indices;
+    synchronized (ourIndices) {
+      indices = new ArrayList<ArchiveIndex>(ourIndices.values());
+      indices.addAll(ourOutdated);
+      ourIndices.clear();
+      ourOutdated.clear();
+    }
+    for (ArchiveIndex index : indices) {
+      index.close();
+    }
+    final int opened = ourArchivesOpened.getAndSet(0);
+    final int reused = ourArchivesReused.getAndSet(0);
+    final int listed = ourPackagesListed.getAndSet(0);
+    final int missing = ourPackagesMissing.getAndSet(0);
+    if (opened == 0) {
+      return null;
+    }
+    return "Classpath archives: " + opened + " opened, " + reused + " reopenings avoided; " +
+           listed + " package listings served from index, " + missing + " of them without entries";
+  }
+
+  static class ArchiveIndex {
+    private final ZipFile myZip;
+    private final long myLength;
+    private final long myTimestamp;
+    // package path ("java/util", "" for the default package) -> entries of the package
+    private final Map<String, List<ZipEntry>> myPackages = new HashMap<String, List<ZipEntry>>();
+
+    private ArchiveIndex(ZipFile zip, long length, long timestamp) {
+      myZip = zip;
+      myLength = length;
+      myTimestamp = timestamp;
+      for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+        final ZipEntry entry = entries.nextElement();
+        if (entry.isDirectory()) {
+          continue;
+        }
+        final String name = entry.getName();
+        final int slash = name.lastIndexOf('/');
+        final String packagePath = slash >= 0 ? name.substring(0, slash) : "";
+        List<ZipEntry> packageEntries = myPackages.get(packagePath);
+        if (packageEntries == null) {
+          packageEntries = new ArrayList<ZipEntry>();
+          myPackages.put(packagePath, packageEntries);
+        }
+        packageEntries.add(entry);
+      }
+    }
+
+    void collect(@NotNull String packagePath, Set<JavaFileObject.Kind> kinds, boolean recurse, @Nullable String encodingName, Collection<JavaFileObject> result) {
+      ourPackagesListed.incrementAndGet();
+      final int sizeBefore = result.size();
+      collectPackage(myPackages.get(packagePath), kinds, encodingName, result);
+      if (recurse) {
+        final String prefix = packagePath.length() == 0 ? "" : packagePath + "/";
+        for (Map.Entry<String, List<ZipEntry>> entry : myPackages.entrySet()) {
+          final String path = entry.getKey();
+          if (path.startsWith(prefix) && !path.equals(packagePath)) {
+            collectPackage(entry.getValue(), kinds, encodingName, result);
+          }
+        }
+      }
+      if (result.size() == sizeBefore) {
+        ourPackagesMissing.incrementAndGet();
+      }
+    }
+
+    private void collectPackage(@Nullable List<ZipEntry> entries, Set<JavaFileObject.Kind> kinds, @Nullable String encodingName, Collection<JavaFileObject> result) {
+      if (entries != null) {
+        for (ZipEntry entry : entries) {
+          final JavaFileObject.Kind kind = JavacFileManager.getKind(entry.getName());
+          if (kinds.contains(kind)) {
+            result.add(new ClasspathFileObject(myZip, entry, kind, encodingName));
+          }
+        }
+      }
+    }
+
+    private void close() {
+      try {
+        myZip.close();
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.io.*;
+import java.net.URI;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A class file listed from the compilation classpath by {@link JavacFileManager}: either an entry of a cached archive
+ * or a file under a classpath directory.
+ */
+final class ClasspathFileObject extends SimpleJavaFileObject {
+  @Nullable
+  private final ZipFile myZip;
+  @Nullable
+  private final ZipEntry myEntry;
+  @Nullable
+  private final File myFile;
+  private final URI myUri;
+  private final String myPath;
+  private final String myBinaryName;
+  @Nullable
+  private final String myEncodingName;
+
+  ClasspathFileObject(@NotNull ZipFile zip, @NotNull ZipEntry entry, @NotNull Kind kind, @Nullable String encodingName) {
+    // SimpleJavaFileObject does not accept opaque URIs, so the archive URI is passed and the entry URI is reported by toUri()
+    super(new File(zip.getName()).toURI(), kind);
+    myUri = URI.create("jar:" + uri + "!/" + entry.getName());
+    myZip = zip;
+    myEntry = entry;
+    myFile = null;
+    myPath = zip.getName() + "(" + entry.getName() + ")";
+    myBinaryName = toBinaryName(entry.getName(), kind);
+    myEncodingName = encodingName;
+  }
+
+  ClasspathFileObject(@NotNull File file, @NotNull String relativePath, @NotNull Kind kind, @Nullable String encodingName) {
+    super(file.toURI(), kind);
+    myUri = uri;
+    myZip = null;
+    myEntry = null;
+    myFile = file;
+    myPath = file.getPath();
+    myBinaryName = toBinaryName(relativePath, kind);
+    myEncodingName = encodingName;
+  }
+
+  String getBinaryName() {
+    return myBinaryName;
+  }
+
+  @Override
+  public URI toUri() {
+    return myUri;
+  }
+
+  @Override
+  public String getName() {
+    return myPath;
+  }
+
+  @Override
+  public InputStream openInputStream() throws IOException {
+    if (myZip != null) {
+      return myZip.getInputStream(myEntry);
+    }
+    return new BufferedInputStream(new FileInputStream(myFile));
+  }
+
+  @Override
+  public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+    // sources may be found on the classpath when no sourcepath is specified
+    final InputStream stream = openInputStream();
+    try {
+      final byte[] bytes = FileUtil.loadBytes(stream);
+      return myEncodingName != null? new String(bytes, myEncodingName) : new String(bytes);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  @Override
+  public long getLastModified() {
+    return myEntry != null ? myEntry.getTime() : myFile.lastModified();
+  }
+
+  @Override
+  public boolean isNameCompatible(String simpleName, Kind kind) {
+    if (kind != getKind()) {
+      return false;
+    }
+    final int dot = myBinaryName.lastIndexOf('.');
+    return simpleName.equals(dot >= 0 ? myBinaryName.substring(dot + 1) : myBinaryName);
+  }
+
+  @Override
+  public int hashCode() {
+    return myUri.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof JavaFileObject && myUri.equals(((JavaFileObject)obj).toUri());
+  }
+
+  @Override
+  public String toString() {
+    return myPath;
+  }
+
+  private static String toBinaryName(String relativePath, Kind kind) {
+    final String path = relativePath.endsWith(kind.extension) ? relativePath.substring(0, relativePath.length() - kind.extension.length()) : relativePath;
+    return path.replace('/', '.').replace(File.separatorChar, '.');
+  }
+}
@@ -18,6 +18,7 @@ package org.jetbrains.jps.javac;
 import com.intellij.openapi.util.io.FileUtilRt;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.builders.java.JavaSourceTransformer;
 import org.jetbrains.jps.incremental.Utils;
 
@@ -35,10 +36,13 @@ import java.util.*;
  *         Date: 9/24/11
  */
 class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> implements StandardJavaFileManager{
+  private static final boolean USE_SHARED_CLASSPATH_CACHE = Boolean.parseBoolean(System.getProperty(GlobalOptions.JAVAC_SHARED_CLASSPATH_CACHE_OPTION, "true"));
 
   private final Context myContext;
   private final Collection<JavaSourceTransformer> mySourceTransformers;
   private Map<File, Set<File>> myOutputsMap = Collections.emptyMap();
+  @Nullable
+  private String myEncodingName;
 
   interface Context {
     boolean isCanceled();
@@ -64,8 +68,21 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
     myOutputsMap = outputDirToSrcRoots;
   }
 
+  @Override
+  public boolean handleOption(String current, Iterator<String> remaining) {
+    if ("-encoding".equals(current) && remaining.hasNext()) {
+      final String encoding = remaining.next();
+      myEncodingName = encoding;
+      return super.handleOption(current, Collections.singleton(encoding).iterator());
+    }
+    return super.handleOption(current, remaining);
+  }
+
   @Override
   public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof ClasspathFileObject) {
+      return ((ClasspathFileObject)file).getBinaryName();
+    }
     return super.inferBinaryName(location, unwrapFileObject(file));
   }
 
@@ -94,7 +111,7 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
   }
 
   public boolean isSameFile(FileObject a, FileObject b) {
-    if (a instanceof OutputFileObject || b instanceof OutputFileObject) {
+    if (a instanceof OutputFileObject || b instanceof OutputFileObject || a instanceof ClasspathFileObject || b instanceof ClasspathFileObject) {
       return a.equals(b);
     }
     return super.isSameFile(unwrapFileObject(a), unwrapFileObject(b));
@@ -121,11 +138,63 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
 
   @Override
   public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+    // the platform classpath is left to javac: it reads ct.sym instead of rt.jar, which hides internal JDK classes
+    if (USE_SHARED_CLASSPATH_CACHE && ClasspathArchiveCache.isEnabled() && location == StandardLocation.CLASS_PATH) {
+      final Iterable<? extends File> roots = getStdManager().getLocation(location);
+      if (roots != null) {
+        checkCanceled();
+        final List<JavaFileObject> objects = listClasspath(roots, packageName, kinds, recurse, myEncodingName);
+        //noinspection unchecked
+        return kinds.contains(JavaFileObject.Kind.SOURCE)? (Iterable<JavaFileObject>)wrapJavaFileObjects(objects) : objects;
+      }
+    }
     final Iterable<JavaFileObject> objects = super.list(location, packageName, kinds, recurse);
     //noinspection unchecked
     return kinds.contains(JavaFileObject.Kind.SOURCE)? (Iterable<JavaFileObject>)wrapJavaFileObjects(objects) : objects;
   }
 
+  // classpath archives are indexed once per build and shared by all chunks, see ClasspathArchiveCache
+  private static List<JavaFileObject> listClasspath(Iterable<? extends File> roots, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse, @Nullable String encodingName) {
+    final String packagePath = packageName.replace('.', '/');
+    final List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+    for (File root : roots) {
+      if (root.isDirectory()) {
+        final String relativePath = packagePath.replace('/', File.separatorChar);
+        final File packageDir = relativePath.isEmpty()? root : new File(root, relativePath);
+        listDirectory(packageDir, packagePath, kinds, recurse, encodingName, result);
+      }
+      else {
+        final ClasspathArchiveCache.ArchiveIndex index = ClasspathArchiveCache.getIndex(root);
+        if (index != null) {
+          index.collect(packagePath, kinds, recurse, encodingName, result);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void listDirectory(File dir, String packagePath, Set<JavaFileObject.Kind> kinds, boolean recurse, @Nullable String encodingName, List<JavaFileObject> result) {
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      final String name = child.getName();
+      final String childPath = packagePath.isEmpty()? name : packagePath + "/" + name;
+      if (child.isDirectory()) {
+        if (recurse) {
+          listDirectory(child, childPath, kinds, recurse, encodingName, result);
+        }
+      }
+      else {
+        final JavaFileObject.Kind kind = getKind(name);
+        if (kinds.contains(kind)) {
+          result.add(new ClasspathFileObject(child, childPath, kind, encodingName));
+        }
+      }
+    }
+  }
+
   private Iterable<? extends JavaFileObject> wrapJavaFileObjects(Iterable<? extends JavaFileObject> originalObjects) {
     if (mySourceTransformers.isEmpty()) {
       return originalObjects;
@@ -268,7 +337,7 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
     }
   }
 
-  private static JavaFileObject.Kind getKind(String name) {
+  static JavaFileObject.Kind getKind(String name) {
     if (name.endsWith(JavaFileObject.Kind.CLASS.extension)){
       return JavaFileObject.Kind.CLASS;
     }
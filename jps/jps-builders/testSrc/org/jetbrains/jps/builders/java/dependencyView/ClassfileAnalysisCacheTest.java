@@ -0,0 +1,126 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+public class ClassfileAnalysisCacheTest extends TestCase {
+  private File myTempDir;
+  private DependencyContext myContext;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("analysisCache", null);
+    myContext = new DependencyContext(myTempDir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myContext.close();
+      FileUtil.delete(myTempDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testResultsKeptAfterReopening() throws IOException {
+    final Map<String, byte[]> classes = MappingsClassAnalysisTest.loadClasses();
+    final File file = new File(myTempDir, "classAnalysis.tab");
+
+    ClassfileAnalysisCache cache = new ClassfileAnalysisCache(file, myContext);
+    try {
+      for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+        final ClassReader reader = new ClassReader(entry.getValue());
+        cache.put(ClassfileAnalysisCache.hash(entry.getKey(), reader), analyze(entry.getKey(), reader));
+      }
+      cache.flush(false);
+    }
+    finally {
+      cache.close();
+    }
+
+    cache = new ClassfileAnalysisCache(file, myContext);
+    try {
+      for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+        final ClassReader reader = new ClassReader(entry.getValue());
+        final Pair<ClassRepr, Set<UsageRepr.Usage>> expected = analyze(entry.getKey(), reader);
+        final Pair<ClassRepr, Set<UsageRepr.Usage>> cached = cache.get(ClassfileAnalysisCache.hash(entry.getKey(), reader));
+        assertNotNull(entry.getKey(), cached);
+        assertEquals(entry.getKey(), toString(expected.first), toString(cached.first));
+        assertEquals(entry.getKey(), expected.second, cached.second);
+      }
+      final ClassReader reader = new ClassReader(classes.values().iterator().next());
+      assertNull(cache.get(ClassfileAnalysisCache.hash("Missing.class", reader)));
+    }
+    finally {
+      cache.close();
+    }
+  }
+
+  public void testResultWithoutClass() throws IOException {
+    final ClassfileAnalysisCache cache = new ClassfileAnalysisCache(new File(myTempDir, "classAnalysis.tab"), myContext);
+    try {
+      final byte[] hash = ClassfileAnalysisCache.hash("a.class", new ClassReader(MappingsClassAnalysisTest.loadClasses().values().iterator().next()));
+      cache.put(hash, Pair.<ClassRepr, Set<UsageRepr.Usage>>create(null, Collections.<UsageRepr.Usage>emptySet()));
+      cache.flush(true);
+      final Pair<ClassRepr, Set<UsageRepr.Usage>> cached = cache.get(hash);
+      assertNotNull(cached);
+      assertNull(cached.first);
+      assertTrue(cached.second.isEmpty());
+    }
+    finally {
+      cache.close();
+    }
+  }
+
+  public void testHashDependsOnPathAndContent() throws IOException {
+    final byte[] content = MappingsClassAnalysisTest.loadClasses().values().iterator().next();
+    final byte[] hash = ClassfileAnalysisCache.hash("a/A.class", new ClassReader(content));
+    assertTrue(Arrays.equals(hash, ClassfileAnalysisCache.hash("a/A.class", new ClassReader(content.clone()))));
+    assertFalse(Arrays.equals(hash, ClassfileAnalysisCache.hash("b/A.class", new ClassReader(content))));
+
+    final byte[] changed = content.clone();
+    changed[changed.length - 1] ^= 1;
+    assertFalse(Arrays.equals(hash, ClassfileAnalysisCache.hash("a/A.class", new ClassReader(changed))));
+  }
+
+  private Pair<ClassRepr, Set<UsageRepr.Usage>> analyze(String classFileName, ClassReader reader) {
+    return new ClassfileAnalyzer(myContext).analyze(myContext.get(classFileName), reader);
+  }
+
+  private String toString(ClassRepr repr) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final PrintStream stream = new PrintStream(bytes);
+    repr.toStream(myContext, stream);
+    stream.close();
+    return bytes.toString();
+  }
+}
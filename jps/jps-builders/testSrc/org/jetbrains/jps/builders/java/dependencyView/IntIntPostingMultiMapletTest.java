@@ -0,0 +1,302 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.IntInlineKeyDescriptor;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class IntIntPostingMultiMapletTest extends TestCase {
+  private static final int REPLAY_RUNS = 5;
+  private static final int REPLAY_ROUNDS = 10;
+  private File myTempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("postings", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myTempDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testRandomModificationsMatchTransientMaplet() throws IOException {
+    final File file = new File(myTempDir, "postings.tab");
+    final IntIntTransientMultiMaplet expected = new IntIntTransientMultiMaplet();
+    IntIntPostingMultiMaplet actual = new IntIntPostingMultiMaplet(file, new IntInlineKeyDescriptor());
+    final Random random = new Random(42);
+
+    for (int i = 0; i < 100000; i++) {
+      final int key = random.nextInt(500);
+      final int value = random.nextInt(100);
+      switch (random.nextInt(10)) {
+        case 0:
+          expected.remove(key);
+          actual.remove(key);
+          break;
+        case 1:
+          final TIntHashSet replacement = new TIntHashSet(new int[]{value, value + 1});
+          expected.replace(key, new TIntHashSet(replacement.toArray()));
+          actual.replace(key, replacement);
+          break;
+        case 2:
+        case 3:
+          expected.removeFrom(key, value);
+          actual.removeFrom(key, value);
+          break;
+        default:
+          expected.put(key, value);
+          actual.put(key, value);
+      }
+
+      if (i % 5000 == 0) {
+        actual.flush(true);
+      }
+      if (i % 20000 == 0) {
+        actual.flush(false);
+      }
+      if (i % 30000 == 0) {
+        actual.close();
+        actual = new IntIntPostingMultiMaplet(file, new IntInlineKeyDescriptor());
+      }
+      if (i % 1000 == 0) {
+        assertSameContent(expected, actual);
+      }
+    }
+
+    actual.close();
+    actual = new IntIntPostingMultiMaplet(file, new IntInlineKeyDescriptor());
+    try {
+      assertSameContent(expected, actual);
+    }
+    finally {
+      actual.close();
+    }
+  }
+
+  public void testFailedBackgroundMergeIsRetried() throws IOException {
+    final File file = new File(myTempDir, "postings.tab");
+    final boolean[] fail = {true};
+    final IntIntPostingMultiMaplet maplet = new IntIntPostingMultiMaplet(file, new IntInlineKeyDescriptor()) {
+      @Override
+      void writeBatch(TIntObjectHashMap<PostingDelta> batch) throws IOException {
+        if (fail[0]) {
+          fail[0] = false;
+          throw new IOException("disk full");
+        }
+        super.writeBatch(batch);
+      }
+    };
+    final IntIntTransientMultiMaplet expected = new IntIntTransientMultiMaplet();
+    try {
+      for (int key = 0; key < 100; key++) {
+        expected.put(key, key + 1);
+        maplet.put(key, key + 1);
+        expected.put(key, key + 2);
+        maplet.put(key, key + 2);
+      }
+      maplet.flush(true);
+
+      // changes made while the failed batch isn't waited for yet are applied after it
+      expected.removeFrom(1, 2);
+      maplet.removeFrom(1, 2);
+      expected.remove(2);
+      maplet.remove(2);
+      expected.put(3, 10);
+      maplet.put(3, 10);
+      assertSameContent(expected, maplet);
+
+      try {
+        maplet.flush(false);
+        fail("the failure of the background merge must be reported");
+      }
+      catch (RuntimeException e) {
+        assertEquals("disk full", e.getCause().getMessage());
+      }
+      assertSameContent(expected, maplet);
+      maplet.flush(false);
+      assertSameContent(expected, maplet);
+    }
+    finally {
+      maplet.close();
+    }
+
+    final IntIntPostingMultiMaplet reopened = new IntIntPostingMultiMaplet(file, new IntInlineKeyDescriptor());
+    try {
+      assertSameContent(expected, reopened);
+    }
+    finally {
+      reopened.close();
+    }
+  }
+
+  /**
+   * Replays the dependencies ClassfileAnalyzer reports for the classes of a library as they are stored by Mappings when the
+   * library is recompiled several times, with the posting storage and with the appending storage it replaces.
+   */
+  public void testReplayClassfileAnalyzerOutputPerformance() throws Throwable {
+    final List<int[]> dependencies = recordDependencies();
+    assertFalse(dependencies.isEmpty());
+
+    // both storages are measured on the same machine and disk, so only their ratio is checked
+    final long appendingTime = measureReplay(dependencies, false);
+    final long postingsTime = measureReplay(dependencies, true);
+    System.out.println("Replaying " + dependencies.size() + " dependencies: " + postingsTime + " ms with postings, " + appendingTime +
+                       " ms with the appending storage");
+    assertTrue("postings: " + postingsTime + " ms, appending storage: " + appendingTime + " ms", postingsTime <= appendingTime);
+
+    final IntIntMultiMaplet appending = createMaplet(new File(myTempDir, "appending.tab"), false);
+    final IntIntMultiMaplet postings = createMaplet(new File(myTempDir, "postings.tab"), true);
+    try {
+      replay(dependencies, appending);
+      replay(dependencies, postings);
+      assertSameContent(appending, postings);
+    }
+    finally {
+      appending.close();
+      postings.close();
+    }
+  }
+
+  /**
+   * @return the best time of several replays, each into a new storage
+   */
+  private long measureReplay(List<int[]> dependencies, boolean postings) throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < REPLAY_RUNS; run++) {
+      final IntIntMultiMaplet maplet = createMaplet(new File(myTempDir, "replay" + run + (postings ? ".postings" : ".appending")), postings);
+      final long start = System.currentTimeMillis();
+      try {
+        replay(dependencies, maplet);
+      }
+      finally {
+        maplet.close();
+      }
+      best = Math.min(best, System.currentTimeMillis() - start);
+    }
+    return best;
+  }
+
+  private static IntIntMultiMaplet createMaplet(File file, boolean postings) throws IOException {
+    return postings ? new IntIntPostingMultiMaplet(file, new IntInlineKeyDescriptor())
+                    : new IntIntPersistentMultiMaplet(file, new IntInlineKeyDescriptor());
+  }
+
+  private static void replay(final List<int[]> dependencies, final IntIntMultiMaplet maplet) {
+    for (int round = 0; round < REPLAY_ROUNDS; round++) {
+      // every round recompiles all classes: their old dependencies are removed and the new ones are added
+      for (int[] dependency : dependencies) {
+        if (round > 0) {
+          maplet.removeFrom(dependency[0], dependency[1]);
+        }
+        maplet.put(dependency[0], dependency[1]);
+      }
+      // integrate() reads the relation back for every changed class
+      for (int[] dependency : dependencies) {
+        maplet.get(dependency[0]);
+      }
+      // caches are flushed after every chunk
+      maplet.flush(true);
+    }
+    maplet.flush(false);
+  }
+
+  private List<int[]> recordDependencies() throws IOException {
+    final List<int[]> result = new ArrayList<int[]>();
+    final DependencyContext context = new DependencyContext(new File(myTempDir, "context"));
+    final ZipFile zip = new ZipFile(PathManager.getJarPathForClass(ClassReader.class));
+    try {
+      final Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (!entry.getName().endsWith(".class")) {
+          continue;
+        }
+        final InputStream stream = zip.getInputStream(entry);
+        final ClassReader reader;
+        try {
+          reader = new ClassReader(stream);
+        }
+        finally {
+          stream.close();
+        }
+        final Pair<ClassRepr, Set<UsageRepr.Usage>> analysis = new ClassfileAnalyzer(context).analyze(context.get(entry.getName()), reader);
+        final ClassRepr repr = analysis.first;
+        if (repr == null) {
+          continue;
+        }
+        for (final int superClass : repr.getSupers()) {
+          result.add(new int[]{superClass, repr.name});
+        }
+        for (final UsageRepr.Usage usage : analysis.second) {
+          if (usage.getOwner() != repr.name) {
+            result.add(new int[]{usage.getOwner(), repr.name});
+          }
+        }
+      }
+    }
+    finally {
+      zip.close();
+      context.close();
+    }
+    return result;
+  }
+
+  private static void assertSameContent(final IntIntMultiMaplet expected, final IntIntMultiMaplet actual) {
+    final int[] count = new int[2];
+    expected.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        assertEquals("key " + key, value, actual.get(key));
+        count[0]++;
+        return true;
+      }
+    });
+    actual.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        assertTrue(expected.containsKey(key));
+        count[1]++;
+        return true;
+      }
+    });
+    assertEquals(count[0], count[1]);
+  }
+}
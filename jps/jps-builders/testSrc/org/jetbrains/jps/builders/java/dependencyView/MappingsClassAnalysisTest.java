@@ -0,0 +1,201 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassVisitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Classes passed to the mappings callback are analyzed either in place or in parallel, the result must be the same.
+ */
+public class MappingsClassAnalysisTest extends TestCase {
+  private File myTempDir;
+  private ExecutorService myPool;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("mappings", null);
+    myPool = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myPool.shutdownNow();
+      FileUtil.delete(myTempDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testParallelAnalysisRegistersSameMappings() throws IOException {
+    final Map<String, byte[]> classes = loadClasses();
+    assertFalse(classes.isEmpty());
+
+    final String inPlace = build(new Mappings(new File(myTempDir, "inPlace"), true, null), classes, null);
+    final String parallel = build(new Mappings(new File(myTempDir, "parallel"), true, new BoundedTaskExecutor(myPool, 4)), classes, null);
+    assertEquals(inPlace, parallel);
+  }
+
+  public void testAnalysisErrorsPassedToHandler() throws IOException {
+    final Map<String, byte[]> classes = loadClasses();
+    final String brokenClass = classes.keySet().iterator().next();
+    final byte[] broken = classes.get(brokenClass).clone();
+    // the constant pool is still valid, but the index of the class name points outside of it
+    final int header = new ClassReader(broken).header;
+    broken[header + 2] = (byte)0xFF;
+    broken[header + 3] = (byte)0xFF;
+    classes.put(brokenClass, broken);
+
+    final List<String> errors = new ArrayList<String>();
+    final Callbacks.AnalysisErrorHandler handler = new Callbacks.AnalysisErrorHandler() {
+      @Override
+      public void analysisFailed(String classFileName, String sourceFileName, Throwable error) {
+        assertNotNull(error);
+        errors.add(classFileName + " <- " + sourceFileName);
+      }
+    };
+    final String parallel = build(new Mappings(new File(myTempDir, "parallel"), true, new BoundedTaskExecutor(myPool, 4)), classes, handler);
+    assertEquals(Collections.singletonList(brokenClass + " <- " + getSourceName(brokenClass)), errors);
+
+    // the other classes are registered as if the broken one was not compiled at all
+    classes.remove(brokenClass);
+    final String inPlace = build(new Mappings(new File(myTempDir, "inPlace"), true, null), classes, null);
+    assertEquals(inPlace, parallel);
+  }
+
+  public void testInPlaceAnalysisErrorsThrownFromCallback() throws IOException {
+    final Map<String, byte[]> classes = loadClasses();
+    final byte[] broken = classes.values().iterator().next().clone();
+    final int header = new ClassReader(broken).header;
+    broken[header + 2] = (byte)0xFF;
+    broken[header + 3] = (byte)0xFF;
+
+    final Mappings mappings = new Mappings(new File(myTempDir, "inPlace"), true, null);
+    final Mappings delta = mappings.createDelta();
+    try {
+      delta.getCallback().associate("Broken.class", "Broken.java", new ClassReader(broken));
+      fail("the error is expected to be thrown to the caller");
+    }
+    catch (RuntimeException ignored) {
+    }
+    finally {
+      delta.close();
+      mappings.close();
+    }
+  }
+
+  public void testCloseWaitsForRunningAnalyses() throws IOException {
+    final Map<String, byte[]> classes = loadClasses();
+    final AtomicInteger running = new AtomicInteger();
+
+    final Mappings mappings = new Mappings(new File(myTempDir, "parallel"), true, new BoundedTaskExecutor(myPool, 4));
+    final Mappings delta = mappings.createDelta();
+    final Callbacks.Backend callback = delta.getCallback();
+    for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+      callback.associate(entry.getKey(), getSourceName(entry.getKey()), new ClassReader(entry.getValue()) {
+        @Override
+        public void accept(ClassVisitor classVisitor, int flags) {
+          running.incrementAndGet();
+          try {
+            super.accept(classVisitor, flags);
+          }
+          finally {
+            running.decrementAndGet();
+          }
+        }
+      });
+    }
+    // the delta is dropped without integration, e.g. when the compilation is canceled
+    delta.close();
+    assertEquals(0, running.get());
+    mappings.close();
+  }
+
+  private static String build(Mappings mappings, Map<String, byte[]> classes, Callbacks.AnalysisErrorHandler handler) {
+    try {
+      final Mappings delta = mappings.createDelta();
+      final Callbacks.Backend callback = delta.getCallback(handler);
+      for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+        callback.associate(entry.getKey(), getSourceName(entry.getKey()), new ClassReader(entry.getValue()));
+      }
+      mappings.differentiateOnRebuild(delta);
+      mappings.integrate(delta);
+
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final PrintStream stream = new PrintStream(bytes);
+      mappings.toStream(stream);
+      stream.close();
+      return bytes.toString();
+    }
+    finally {
+      mappings.close();
+    }
+  }
+
+  private static String getSourceName(String classFileName) {
+    final int inner = classFileName.indexOf('$');
+    return (inner > 0 ? classFileName.substring(0, inner) : classFileName.substring(0, classFileName.length() - ".class".length())) + ".java";
+  }
+
+  static Map<String, byte[]> loadClasses() throws IOException {
+    final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+    final ZipFile zip = new ZipFile(PathManager.getJarPathForClass(ClassReader.class));
+    try {
+      final Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (!entry.getName().endsWith(".class")) {
+          continue;
+        }
+        final InputStream stream = zip.getInputStream(entry);
+        try {
+          result.put(entry.getName(), FileUtil.loadBytes(stream));
+        }
+        finally {
+          stream.close();
+        }
+      }
+    }
+    finally {
+      zip.close();
+    }
+    return result;
+  }
+}
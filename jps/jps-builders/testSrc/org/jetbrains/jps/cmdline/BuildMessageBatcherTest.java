@@ -0,0 +1,251 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.application.ex.PathManagerEx;
+import com.google.protobuf.ByteString;
+import com.intellij.openapi.util.Pair;
+import junit.framework.TestCase;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jetbrains.jps.api.CmdlineProtoUtil;
+import org.jetbrains.jps.api.CmdlineRemoteProto;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays the messages of noisy builds: a synthetic one where every compiled file produces a warning, a progress message
+ * and a generated file event, and a build recorded in testData/buildMessages.
+ */
+public class BuildMessageBatcherTest extends TestCase {
+  private static final int FILES_COUNT = 20000;
+  private static final int REPLAY_ROUNDS = 50;
+
+  public void testNoisyBuild() {
+    final List<CmdlineRemoteProto.Message> written = new ArrayList<CmdlineRemoteProto.Message>();
+    final BuildMessageBatcher batcher = new BuildMessageBatcher(UUID.randomUUID(), null) {
+      @Override
+      protected ChannelFuture doWrite(CmdlineRemoteProto.Message message) {
+        written.add(message);
+        return null;
+      }
+    };
+
+    long unbatchedSize = 0;
+    for (int i = 0; i < FILES_COUNT; i++) {
+      final String source = "/project/src/pkg" + i % 100 + "/Class" + i + ".java";
+      final CmdlineRemoteProto.Message.BuilderMessage progress = CmdlineProtoUtil.createCompileProgressMessageResponse("Compiling " + source, (float)i / FILES_COUNT);
+      final CmdlineRemoteProto.Message.BuilderMessage warning = CmdlineProtoUtil.createCompileMessage(
+        BuildMessage.Kind.WARNING, "javac: unchecked call", source, 10, 20, 15, 3, 5, -1.0f);
+      final List<Pair<String, String>> paths = Collections.singletonList(Pair.create("/project/out", "pkg" + i % 100 + "/Class" + i + ".class"));
+      batcher.sendProgress(progress);
+      batcher.send(warning);
+      batcher.sendFilesGenerated(paths);
+      unbatchedSize += progress.getSerializedSize() + warning.getSerializedSize() + CmdlineProtoUtil.createFileGeneratedEvent(paths).getSerializedSize();
+    }
+    batcher.flush();
+
+    int warnings = 0;
+    int generatedFiles = 0;
+    int generatedEvents = 0;
+    int progressMessages = 0;
+    long batchedSize = 0;
+    for (CmdlineRemoteProto.Message message : written) {
+      final CmdlineRemoteProto.Message.BuilderMessage builderMessage = message.getBuilderMessage();
+      batchedSize += builderMessage.getSerializedSize();
+      if (builderMessage.hasBuildEvent()) {
+        generatedFiles += builderMessage.getBuildEvent().getGeneratedFilesCount();
+        generatedEvents++;
+      }
+      else if (builderMessage.getCompileMessage().getKind() == CmdlineRemoteProto.Message.BuilderMessage.CompileMessage.Kind.PROGRESS) {
+        progressMessages++;
+      }
+      else if (builderMessage.getCompileMessage().getKind() == CmdlineRemoteProto.Message.BuilderMessage.CompileMessage.Kind.WARNING) {
+        assertEquals("/project/src/pkg" + warnings % 100 + "/Class" + warnings + ".java", builderMessage.getCompileMessage().getSourceFilePath());
+        warnings++;
+      }
+    }
+
+    assertEquals(FILES_COUNT, warnings);
+    assertEquals(FILES_COUNT, generatedFiles);
+    assertTrue(String.valueOf(generatedEvents), generatedEvents < FILES_COUNT / 100);
+    assertEquals(3 * FILES_COUNT, batcher.getReceivedCount());
+    assertEquals(written.size(), batcher.getSentCount());
+    // every warning is sent, the progress messages are skipped unless they are 100 ms apart
+    assertEquals(FILES_COUNT + generatedEvents + progressMessages, written.size());
+    assertTrue(String.valueOf(progressMessages), progressMessages < FILES_COUNT / 2);
+    assertTrue(batchedSize + " >= " + unbatchedSize, batchedSize < unbatchedSize);
+  }
+
+  /**
+   * Replays the messages recorded from a real build of 600 classes compiled with -Xlint:all
+   */
+  public void testReplayRecordedBuild() throws IOException {
+    final List<CmdlineRemoteProto.Message.BuilderMessage> recorded = loadRecordedMessages("noisyBuild.gz");
+    // lite messages don't implement equals(), they are compared by their serialized form
+    final List<ByteString> recordedCompileMessages = new ArrayList<ByteString>();
+    final List<ByteString> recordedFiles = new ArrayList<ByteString>();
+    long recordedSize = 0;
+    for (CmdlineRemoteProto.Message.BuilderMessage message : recorded) {
+      recordedSize += message.getSerializedSize();
+      if (message.hasBuildEvent()) {
+        addGeneratedFiles(message, recordedFiles);
+      }
+      else if (!isProgress(message)) {
+        recordedCompileMessages.add(message.getCompileMessage().toByteString());
+      }
+    }
+
+    final List<CmdlineRemoteProto.Message> written = new ArrayList<CmdlineRemoteProto.Message>();
+    long time = 0;
+    for (int round = 0; round < REPLAY_ROUNDS; round++) {
+      written.clear();
+      final BuildMessageBatcher batcher = new BuildMessageBatcher(UUID.randomUUID(), null) {
+        @Override
+        protected ChannelFuture doWrite(CmdlineRemoteProto.Message message) {
+          written.add(message);
+          return null;
+        }
+      };
+      final long start = System.nanoTime();
+      replay(batcher, recorded);
+      time += System.nanoTime() - start;
+      assertEquals(recorded.size(), batcher.getReceivedCount());
+      assertEquals(written.size(), batcher.getSentCount());
+    }
+
+    final List<ByteString> compileMessages = new ArrayList<ByteString>();
+    final List<ByteString> files = new ArrayList<ByteString>();
+    long sentSize = 0;
+    for (CmdlineRemoteProto.Message message : written) {
+      final CmdlineRemoteProto.Message.BuilderMessage builderMessage = message.getBuilderMessage();
+      sentSize += builderMessage.getSerializedSize();
+      if (builderMessage.hasBuildEvent()) {
+        addGeneratedFiles(builderMessage, files);
+      }
+      else if (!isProgress(builderMessage)) {
+        compileMessages.add(builderMessage.getCompileMessage().toByteString());
+      }
+    }
+    System.out.println("Replayed " + recorded.size() + " recorded messages (" + recordedSize + " bytes) as " + written.size() +
+                       " messages (" + sentSize + " bytes), " + time / REPLAY_ROUNDS / 1000 + " us per build");
+
+    // the warnings and errors are sent as is and in the same order, the generated files are merged
+    assertEquals(recordedCompileMessages, compileMessages);
+    assertEquals(recordedFiles, files);
+    assertTrue(written.size() + " >= " + recorded.size(), written.size() < recorded.size());
+    assertTrue(sentSize + " >= " + recordedSize, sentSize < recordedSize);
+  }
+
+  public void testWaitingForSlowReaderDoesNotBlockOtherThreads() throws Exception {
+    final DefaultChannelFuture pendingWrite = new DefaultChannelFuture(null, false);
+    final BuildMessageBatcher batcher = new BuildMessageBatcher(UUID.randomUUID(), null) {
+      @Override
+      protected ChannelFuture doWrite(CmdlineRemoteProto.Message message) {
+        return pendingWrite;
+      }
+
+      @Override
+      protected boolean isWritable() {
+        return pendingWrite.isDone();
+      }
+    };
+    final CountDownLatch sent = new CountDownLatch(1);
+    final Thread sender = new Thread("message sender") {
+      @Override
+      public void run() {
+        batcher.send(CmdlineProtoUtil.createCompileMessage(BuildMessage.Kind.WARNING, "warning", null, -1, -1, -1, -1, -1, -1.0f));
+        sent.countDown();
+      }
+    };
+    sender.start();
+    try {
+      // the sender waits for the write to complete without holding the lock
+      assertFalse(sent.await(200, TimeUnit.MILLISECONDS));
+      final long start = System.currentTimeMillis();
+      assertEquals(1, batcher.getSentCount());
+      assertEquals(1, batcher.getReceivedCount());
+      assertTrue(System.currentTimeMillis() - start < 200);
+
+      pendingWrite.setSuccess();
+      assertTrue(sent.await(5, TimeUnit.SECONDS));
+    }
+    finally {
+      sender.join();
+    }
+  }
+
+  private static List<CmdlineRemoteProto.Message.BuilderMessage> loadRecordedMessages(String name) throws IOException {
+    final File file = PathManagerEx.findFileUnderCommunityHome("jps/jps-builders/testData/buildMessages/" + name);
+    final List<CmdlineRemoteProto.Message.BuilderMessage> messages = new ArrayList<CmdlineRemoteProto.Message.BuilderMessage>();
+    final InputStream input = new GZIPInputStream(new FileInputStream(file));
+    try {
+      while (true) {
+        final CmdlineRemoteProto.Message.BuilderMessage message = CmdlineRemoteProto.Message.BuilderMessage.parseDelimitedFrom(input);
+        if (message == null) {
+          return messages;
+        }
+        messages.add(message);
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Sends the messages the same way BuildSession does
+   */
+  private static void replay(BuildMessageBatcher batcher, List<CmdlineRemoteProto.Message.BuilderMessage> messages) {
+    for (CmdlineRemoteProto.Message.BuilderMessage message : messages) {
+      if (message.hasBuildEvent()) {
+        final List<Pair<String, String>> paths = new ArrayList<Pair<String, String>>();
+        for (CmdlineRemoteProto.Message.BuilderMessage.BuildEvent.GeneratedFile file : message.getBuildEvent().getGeneratedFilesList()) {
+          paths.add(Pair.create(file.getOutputRoot(), file.getRelativePath()));
+        }
+        batcher.sendFilesGenerated(paths);
+      }
+      else if (isProgress(message)) {
+        batcher.sendProgress(message);
+      }
+      else {
+        batcher.send(message);
+      }
+    }
+    batcher.flush();
+  }
+
+  private static void addGeneratedFiles(CmdlineRemoteProto.Message.BuilderMessage message, List<ByteString> files) {
+    for (CmdlineRemoteProto.Message.BuilderMessage.BuildEvent.GeneratedFile file : message.getBuildEvent().getGeneratedFilesList()) {
+      files.add(file.toByteString());
+    }
+  }
+
+  private static boolean isProgress(CmdlineRemoteProto.Message.BuilderMessage message) {
+    return message.getCompileMessage().getKind() == CmdlineRemoteProto.Message.BuilderMessage.CompileMessage.Kind.PROGRESS;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.CompileScopeTestBuilder;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.IncProjectBuilder.BuildChunkTask;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.util.*;
+
+public class BuildChunkSchedulingTest extends JpsBuildTestCase {
+  private ProjectDescriptor myDescriptor;
+  private final List<BuildChunkTask> myTasks = new ArrayList<BuildChunkTask>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDescriptor = createProjectDescriptor(BuildLoggingManager.DEFAULT);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myDescriptor.release();
+    super.tearDown();
+  }
+
+  public void testCriticalPathFirst() {
+    final BuildChunkTask small = createTask("small", 30);
+    final BuildChunkTask medium = createTask("medium", 50);
+    final BuildChunkTask util = createTask("util", 10);
+    final BuildChunkTask app = createTask("app", 100);
+    app.addDependency(util);
+
+    // the cheap 'util' goes first because the most expensive chunk waits for it
+    assertStartOrder(CompileScopeTestBuilder.rebuild().allModules(), util, app, medium, small);
+    assertEquals(112, util.getCriticalPathCost());
+    assertEquals(101, app.getCriticalPathCost());
+  }
+
+  public void testLongestChainFirst() {
+    final BuildChunkTask a = createTask("a", 40);
+    final BuildChunkTask b = createTask("b", 20);
+    final BuildChunkTask c = createTask("c", 20);
+    final BuildChunkTask d = createTask("d", 20);
+    final BuildChunkTask e = createTask("e", 20);
+    c.addDependency(b);
+    d.addDependency(c);
+    e.addDependency(a);
+
+    // b-c-d is the longest chain, then 'a' goes before 'c' because a-e is longer than c-d
+    assertStartOrder(CompileScopeTestBuilder.rebuild().allModules(), b, a, c, d, e);
+    assertEquals(63, b.getCriticalPathCost());
+    assertEquals(62, a.getCriticalPathCost());
+  }
+
+  public void testNotBuiltTargetCostsAverageTime() {
+    final BuildChunkTask a = createTask("a", 10);
+    final BuildChunkTask b = createTask("b", -1);
+    final BuildChunkTask c = createTask("c", 30);
+
+    assertStartOrder(CompileScopeTestBuilder.rebuild().allModules(), c, b, a);
+    assertEquals(21, b.getCriticalPathCost());
+  }
+
+  public void testNotAffectedChunkCostsNothing() {
+    final BuildChunkTask big = createTask("big", 100);
+    final BuildChunkTask util = createTask("util", 50);
+    final BuildChunkTask app = createTask("app", 10);
+    app.addDependency(util);
+
+    // only 'util' is built, 'big' and 'app' are up to date
+    assertStartOrder(CompileScopeTestBuilder.make().module(getModule(util)), util, big, app);
+    assertEquals(1, big.getCriticalPathCost());
+    assertEquals(52, util.getCriticalPathCost());
+  }
+
+  public void testSortedOrderForEqualCosts() {
+    final BuildChunkTask a = createTask("a", 10);
+    final BuildChunkTask b = createTask("b", 10);
+    final BuildChunkTask c = createTask("c", 10);
+
+    assertStartOrder(CompileScopeTestBuilder.rebuild().allModules(), a, b, c);
+  }
+
+  private BuildChunkTask createTask(String name, long buildTime) {
+    final JpsModule module = addModule(name);
+    final ModuleBuildTarget target = new ModuleBuildTarget(module, JavaModuleBuildTargetType.PRODUCTION);
+    if (buildTime >= 0) {
+      myDescriptor.getTargetsState().updateAverageBuildTime(target, buildTime);
+    }
+    final BuildChunkTask task = new BuildChunkTask(new BuildTargetChunk(Collections.<BuildTarget<?>>singleton(target)), myTasks.size());
+    myTasks.add(task);
+    return task;
+  }
+
+  private static JpsModule getModule(BuildChunkTask task) {
+    return ((ModuleBuildTarget)task.getChunk().getTargets().iterator().next()).getModule();
+  }
+
+  /**
+   * Builds the tasks in a single thread, so the order of all the started tasks is defined by the scheduler
+   */
+  private void assertStartOrder(CompileScopeTestBuilder scope, BuildChunkTask... expected) {
+    IncProjectBuilder.computeCriticalPaths(myTasks, myDescriptor.getTargetsState(), scope.build());
+    final PriorityQueue<BuildChunkTask> readyTasks = new PriorityQueue<BuildChunkTask>(11, IncProjectBuilder.CRITICAL_PATH_FIRST);
+    for (BuildChunkTask task : myTasks) {
+      if (task.isReady()) {
+        readyTasks.add(task);
+      }
+    }
+    final List<String> started = new ArrayList<String>();
+    while (!readyTasks.isEmpty()) {
+      final BuildChunkTask task = readyTasks.poll();
+      started.add(task.getChunk().toString());
+      readyTasks.addAll(task.markAsFinishedAndGetNextReadyTasks());
+    }
+    final List<String> expectedNames = new ArrayList<String>();
+    for (BuildChunkTask task : expected) {
+      expectedNames.add(task.getChunk().toString());
+    }
+    assertEquals(expectedNames, started);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.util.JpsPathUtil;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import static com.intellij.util.io.TestFileSystemBuilder.fs;
+
+public class TargetOutputCacheTest extends JpsBuildTestCase {
+  private File myCacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myCacheDir = FileUtil.createTempDirectory("output-cache", null);
+    System.setProperty(GlobalOptions.BUILD_OUTPUT_CACHE_DIR_OPTION, myCacheDir.getAbsolutePath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.BUILD_OUTPUT_CACHE_DIR_OPTION);
+    FileUtil.delete(myCacheDir);
+    super.tearDown();
+  }
+
+  public void testStoreAndRestore() throws IOException {
+    final String a = createFile("src/a/A.java", "package a; public class A { B b; }");
+    final String b = createFile("src/a/B.java", "package a; class B {}");
+    final JpsModule m = addModule("m", PathUtil.getParentPath(PathUtil.getParentPath(a)));
+    rebuildAll();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/a/A.java", "src/a/B.java");
+    assertEquals(1, getCacheEntries().length);
+    final byte[] compiled = FileUtil.loadFileBytes(new File(getOutputDir(m), "a/A.class"));
+
+    // nothing is compiled, the outputs and the dependency information come from the cache
+    rebuildAll();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+    assertOutput(m, fs().dir("a").file("A.class").file("B.class"));
+    assertEquals(compiled.length, new File(getOutputDir(m), "a/A.class").length());
+    assertEquals(1, getCacheEntries().length);
+
+    // the restored dependency information makes the dependent class recompiled
+    change(b, "package a; interface B {}");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/a/A.java", "src/a/B.java");
+  }
+
+  public void testChangedSourcesNotRestored() {
+    final String a = createFile("src/A.java", "public class A {}");
+    final JpsModule m = addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+    assertEquals(1, getCacheEntries().length);
+
+    // the key of the changed target differs from the stored one, so it is compiled and stored separately
+    change(a, "public class A { void foo() {} }");
+    rebuildAll();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/A.java");
+    assertEquals(2, getCacheEntries().length);
+
+    change(a, "public class A {}");
+    rebuildAll();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+    assertOutput(m, fs().file("A.class"));
+  }
+
+  public void testDependentTargetKeyChanges() {
+    final String b = createFile("dep/B.java", "public class B {}");
+    final String a = createFile("src/A.java", "public class A { B b; }");
+    final JpsModule dep = addModule("dep", PathUtil.getParentPath(b));
+    final JpsModule m = addModule("m", PathUtil.getParentPath(a));
+    m.getDependenciesList().addModuleDependency(dep);
+    rebuildAll();
+    assertEquals(2, getCacheEntries().length);
+
+    // the key of a target includes the keys of its dependencies
+    change(b, "public class B { int i; }");
+    rebuildAll();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "dep/B.java", "src/A.java");
+    assertEquals(4, getCacheEntries().length);
+  }
+
+  private File[] getCacheEntries() {
+    final File[] entries = myCacheDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".zip");
+      }
+    });
+    assertNotNull(entries);
+    return entries;
+  }
+
+  private static File getOutputDir(JpsModule module) {
+    final String outputUrl = JpsJavaExtensionService.getInstance().getOutputUrl(module, false);
+    assertNotNull(outputUrl);
+    return JpsPathUtil.urlToFile(outputUrl);
+  }
+}
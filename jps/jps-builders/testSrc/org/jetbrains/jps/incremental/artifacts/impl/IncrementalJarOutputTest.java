@@ -0,0 +1,269 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts.impl;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class IncrementalJarOutputTest extends TestCase {
+  private File myTempDir;
+  private File mySourceDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("jars", null);
+    mySourceDir = new File(myTempDir, "src");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myTempDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testIncrementalRebuildSameAsFullBuild() throws IOException {
+    writeFile("a/unchanged.txt", StringUtil.repeat("unchanged ", 1000));
+    writeFile("a/changed.txt", StringUtil.repeat("old ", 1000));
+    writeFile("a/removed.txt", "removed");
+    writeFile("empty.txt", "");
+    final File library = createLibrary("lib/Lib.class", StringUtil.repeat("library ", 500));
+    final Manifest manifest = createManifest();
+
+    final File previous = new File(myTempDir, "previous.jar");
+    build(previous, manifest, null, true, library);
+
+    writeFile("a/changed.txt", StringUtil.repeat("new ", 1000));
+    FileUtil.delete(new File(mySourceDir, "a/removed.txt"));
+    writeFile("b/added.txt", StringUtil.repeat("added ", 1000));
+
+    final File incremental = new File(myTempDir, "incremental.jar");
+    build(incremental, manifest, previous, true, library);
+    final File full = new File(myTempDir, "full.jar");
+    build(full, manifest, null, false, library);
+
+    assertEquals(readEntries(full), readEntries(incremental));
+    assertNotNull(readManifest(incremental));
+    assertEquals("test", readManifest(incremental).getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_TITLE));
+
+    // the unchanged entries are copied as they were compressed, the changed one is compressed again
+    assertTrue(Arrays.equals(getRawData(previous, "a/unchanged.txt"), getRawData(incremental, "a/unchanged.txt")));
+    assertTrue(Arrays.equals(getRawData(previous, "lib/Lib.class"), getRawData(incremental, "lib/Lib.class")));
+    assertFalse(Arrays.equals(getRawData(previous, "a/changed.txt"), getRawData(incremental, "a/changed.txt")));
+  }
+
+  public void testPreviousJarNotModified() throws IOException {
+    writeFile("a.txt", StringUtil.repeat("a", 100));
+    final File previous = new File(myTempDir, "previous.jar");
+    build(previous, null, null, true, null);
+    final byte[] content = FileUtil.loadFileBytes(previous);
+    assertTrue(previous.setReadOnly());
+
+    writeFile("b.txt", StringUtil.repeat("b", 100));
+    final File incremental = new File(myTempDir, "incremental.jar");
+    build(incremental, null, previous, true, null);
+    assertTrue(Arrays.equals(content, FileUtil.loadFileBytes(previous)));
+    assertEquals(Arrays.asList("a.txt " + StringUtil.repeat("a", 100), "b.txt " + StringUtil.repeat("b", 100)), readEntries(incremental));
+  }
+
+  public void testRawDataCopiedBetweenArchives() throws IOException {
+    final File library = createLibrary("data.txt", StringUtil.repeat("data ", 1000));
+    final File copy = new File(myTempDir, "copy.zip");
+    final JBZipFile source = new JBZipFile(library, "UTF-8", true);
+    try {
+      final JBZipEntry entry = source.getEntry("data.txt");
+      final byte[] rawData = entry.getRawData();
+      assertEquals(entry.getCompressedSize(), rawData.length);
+      assertTrue(rawData.length < entry.getSize());
+
+      final JBZipFile target = new JBZipFile(copy);
+      try {
+        final JBZipEntry copied = target.getOrCreateEntry("copied.txt");
+        copied.setMethod(entry.getMethod());
+        copied.setSize(entry.getSize());
+        copied.setCrc(entry.getCrc());
+        copied.setRawData(rawData);
+      }
+      finally {
+        target.close();
+      }
+    }
+    finally {
+      source.close();
+    }
+    assertEquals(Arrays.asList("copied.txt " + StringUtil.repeat("data ", 1000)), readEntries(copy));
+  }
+
+  public void testReadonlyArchiveCannotBeModified() throws IOException {
+    final File library = createLibrary("data.txt", "data");
+    final JBZipFile zip = new JBZipFile(library, "UTF-8", true);
+    try {
+      zip.getOrCreateEntry("new.txt").setData("new".getBytes());
+      fail("modification of a read-only archive must fail");
+    }
+    catch (IOException ignored) {
+    }
+    finally {
+      zip.close();
+    }
+  }
+
+  private void build(File jarFile, @Nullable Manifest manifest, @Nullable File previousJar, boolean incremental, @Nullable File library)
+    throws IOException {
+    final JarOutput output = JarOutput.create(jarFile, manifest, previousJar, incremental);
+    try {
+      // the builder adds the parent directories before their files, and copies the entries of the libraries
+      addFiles(output, mySourceDir, "");
+      if (library != null) {
+        final ZipFile zip = new ZipFile(library);
+        try {
+          final Enumeration<? extends ZipEntry> entries = zip.entries();
+          while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            final InputStream stream = zip.getInputStream(entry);
+            try {
+              output.putEntry(entry.getName(), entry.getTime(), entry, stream);
+            }
+            finally {
+              stream.close();
+            }
+          }
+        }
+        finally {
+          zip.close();
+        }
+      }
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  private static void addFiles(JarOutput output, File dir, String prefix) throws IOException {
+    final File[] children = dir.listFiles();
+    assertNotNull(children);
+    Arrays.sort(children);
+    for (File child : children) {
+      final String path = prefix + child.getName();
+      if (child.isDirectory()) {
+        output.putDirectory(path + "/");
+        addFiles(output, child, path + "/");
+      }
+      else {
+        output.putFile(path, child);
+      }
+    }
+  }
+
+  private void writeFile(String relativePath, String text) throws IOException {
+    FileUtil.writeToFile(new File(mySourceDir, relativePath), text);
+  }
+
+  private File createLibrary(String entryName, String text) throws IOException {
+    final File library = new File(myTempDir, "library.zip");
+    final ZipOutputStream stream = new ZipOutputStream(new FileOutputStream(library));
+    try {
+      stream.putNextEntry(new ZipEntry(entryName));
+      stream.write(text.getBytes());
+      stream.closeEntry();
+    }
+    finally {
+      stream.close();
+    }
+    return library;
+  }
+
+  private static Manifest createManifest() {
+    final Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, "test");
+    return manifest;
+  }
+
+  /**
+   * @return the entries in the order they are stored, with their content
+   */
+  private static List<String> readEntries(File jarFile) throws IOException {
+    final List<String> result = new ArrayList<String>();
+    final ZipFile zip = new ZipFile(jarFile);
+    try {
+      final Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (entry.getName().equals(JarFile.MANIFEST_NAME)) {
+          result.add(entry.getName());
+          continue;
+        }
+        final InputStream stream = zip.getInputStream(entry);
+        try {
+          result.add(entry.getName() + " " + new String(FileUtil.loadBytes(stream)));
+        }
+        finally {
+          stream.close();
+        }
+      }
+    }
+    finally {
+      zip.close();
+    }
+    return result;
+  }
+
+  @Nullable
+  private static Manifest readManifest(File jarFile) throws IOException {
+    // JarInputStream finds the manifest only if it is one of the first entries
+    final JarInputStream stream = new JarInputStream(new FileInputStream(jarFile));
+    try {
+      return stream.getManifest();
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static byte[] getRawData(File jarFile, String entryName) throws IOException {
+    final JBZipFile zip = new JBZipFile(jarFile, "UTF-8", true);
+    try {
+      final JBZipEntry entry = zip.getEntry(entryName);
+      assertNotNull(entryName, entry);
+      return entry.getRawData();
+    }
+    finally {
+      zip.close();
+    }
+  }
+}
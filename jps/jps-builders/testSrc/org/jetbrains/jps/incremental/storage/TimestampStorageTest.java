@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TimestampStorageTest extends JpsBuildTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(GlobalOptions.USE_CONTENT_HASHES_OPTION, "true");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.USE_CONTENT_HASHES_OPTION);
+    super.tearDown();
+  }
+
+  public void testTouchedFileNotRecompiled() {
+    final String a = createFile("src/A.java", "public class A { B b; }");
+    createFile("src/B.java", "class B {}");
+    addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+
+    // only the timestamp changes
+    change(a);
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME);
+
+    change(a, "public class A { B b; int i; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/A.java");
+  }
+
+  public void testHashNotSavedForFileChangedAfterTimestampRead() throws IOException {
+    final String a = createFile("src/A.java", "public class A {}");
+    final JpsModule m = addModule("m", PathUtil.getParentPath(a));
+    final File file = new File(a);
+    final long stampBeforeChange = FileSystemUtil.lastModified(file);
+    // the file is edited after the build has read its timestamp, but before the stamp is saved
+    change(a, "public class A { int i; }");
+
+    final ProjectDescriptor descriptor = createProjectDescriptor(BuildLoggingManager.DEFAULT);
+    try {
+      final TimestampStorage storage = descriptor.timestamps.getStorage();
+      final ModuleBuildTarget target = new ModuleBuildTarget(m, JavaModuleBuildTargetType.PRODUCTION);
+      storage.saveStamp(file, target, stampBeforeChange);
+      assertTrue(storage.isModified(file, target, FileSystemUtil.lastModified(file)));
+
+      // the stamp saved for the current content is compared by the hash
+      storage.saveStamp(file, target, FileSystemUtil.lastModified(file));
+      change(a);
+      assertFalse(storage.isModified(file, target, FileSystemUtil.lastModified(file)));
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.builders.java.JavaSourceTransformer;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClasspathArchiveCacheTest extends TestCase {
+  private static final Set<JavaFileObject.Kind> CLASSES = EnumSet.of(JavaFileObject.Kind.CLASS);
+  private File myTempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("archives", null);
+    ClasspathArchiveCache.clear();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      ClasspathArchiveCache.clear();
+      ClasspathArchiveCache.setEnabled(false);
+      FileUtil.delete(myTempDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testUnchangedArchiveReused() throws IOException {
+    final File jar = new File(myTempDir, "lib.jar");
+    createJar(jar, "a/A.class", "a/b/B.class", "C.class");
+
+    final ClasspathArchiveCache.ArchiveIndex index = ClasspathArchiveCache.getIndex(jar);
+    assertNotNull(index);
+    assertSame(index, ClasspathArchiveCache.getIndex(jar));
+    assertEquals(Arrays.asList("a.A"), list(index, "a", false));
+    assertEquals(Arrays.asList("a.A", "a.b.B"), list(index, "a", true));
+    assertEquals(Arrays.asList("C"), list(index, "", false));
+    assertEquals(Collections.<String>emptyList(), list(index, "missing", true));
+
+    final String statistics = ClasspathArchiveCache.clear();
+    assertNotNull(statistics);
+    assertTrue(statistics, statistics.startsWith("Classpath archives: 1 opened, 1 reopenings avoided"));
+    assertNull(ClasspathArchiveCache.clear());
+  }
+
+  public void testChangedArchiveIndexedAgain() throws IOException {
+    final File jar = new File(myTempDir, "lib.jar");
+    createJar(jar, "a/A.class");
+    final ClasspathArchiveCache.ArchiveIndex index = ClasspathArchiveCache.getIndex(jar);
+    assertNotNull(index);
+    assertEquals(Arrays.asList("a.A"), list(index, "a", false));
+
+    createJar(jar, "a/A.class", "a/Added.class");
+    assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+    final ClasspathArchiveCache.ArchiveIndex changed = ClasspathArchiveCache.getIndex(jar);
+    assertNotNull(changed);
+    assertNotSame(index, changed);
+    assertEquals(Arrays.asList("a.A", "a.Added"), list(changed, "a", false));
+    assertSame(changed, ClasspathArchiveCache.getIndex(jar));
+
+    // the outdated index may still be used by a running compilation, it is closed with the cache
+    assertEquals(Arrays.asList("a.A"), list(index, "a", false));
+    assertTrue(ClasspathArchiveCache.clear().startsWith("Classpath archives: 2 opened, 1 reopenings avoided"));
+  }
+
+  public void testRemovedEntriesNotListed() throws IOException {
+    final File jar = new File(myTempDir, "lib.jar");
+    createJar(jar, "a/A.class");
+    final ClasspathArchiveCache.ArchiveIndex index = ClasspathArchiveCache.getIndex(jar);
+
+    createJar(jar, "a/B.class");
+    assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+    final ClasspathArchiveCache.ArchiveIndex changed = ClasspathArchiveCache.getIndex(jar);
+    assertNotSame(index, changed);
+    assertEquals(Arrays.asList("a.B"), list(changed, "a", false));
+  }
+
+  public void testMissingArchive() {
+    assertNull(ClasspathArchiveCache.getIndex(new File(myTempDir, "missing.jar")));
+  }
+
+  public void testNotUsedUntilEnabled() throws IOException {
+    final File jar = new File(myTempDir, "lib.jar");
+    createJar(jar, "a/A.class");
+    // nothing enables the cache but the build process
+    assertFalse(ClasspathArchiveCache.isEnabled());
+    assertEquals(Arrays.asList("a.A"), list(jar, StandardLocation.CLASS_PATH, false));
+
+    ClasspathArchiveCache.setEnabled(true);
+    assertEquals(Arrays.asList("a.A"), list(jar, StandardLocation.CLASS_PATH, true));
+  }
+
+  public void testPlatformClasspathListedByJavac() throws IOException {
+    final File jar = new File(myTempDir, "rt.jar");
+    createJar(jar, "a/A.class");
+    ClasspathArchiveCache.setEnabled(true);
+    assertEquals(Arrays.asList("a.A"), list(jar, StandardLocation.PLATFORM_CLASS_PATH, false));
+    assertNull(ClasspathArchiveCache.clear());
+  }
+
+  /**
+   * @param cached whether the classes are expected to be listed through the cache
+   */
+  private static List<String> list(File jar, StandardLocation location, boolean cached) throws IOException {
+    final StandardJavaFileManager stdManager = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+    final JavacFileManager manager = new JavacFileManager(new JavacFileManager.Context() {
+      @Override
+      public boolean isCanceled() {
+        return false;
+      }
+
+      @Override
+      public StandardJavaFileManager getStandardFileManager() {
+        return stdManager;
+      }
+
+      @Override
+      public void consumeOutputFile(@NotNull OutputFileObject obj) {
+      }
+
+      @Override
+      public void reportMessage(Diagnostic.Kind kind, String message) {
+      }
+    }, Collections.<JavaSourceTransformer>emptyList());
+    try {
+      manager.setLocation(location, Collections.singletonList(jar));
+      final List<String> names = new ArrayList<String>();
+      for (JavaFileObject object : manager.list(location, "a", CLASSES, false)) {
+        assertEquals(object.getName(), cached, object instanceof ClasspathFileObject);
+        names.add(manager.inferBinaryName(location, object));
+      }
+      return names;
+    }
+    finally {
+      manager.close();
+    }
+  }
+
+  private static List<String> list(ClasspathArchiveCache.ArchiveIndex index, String packagePath, boolean recurse) {
+    final List<JavaFileObject> objects = new ArrayList<JavaFileObject>();
+    index.collect(packagePath, CLASSES, recurse, null, objects);
+    final List<String> names = new ArrayList<String>();
+    for (JavaFileObject object : objects) {
+      names.add(((ClasspathFileObject)object).getBinaryName());
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private static void createJar(File jar, String... entries) throws IOException {
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(new byte[]{(byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE});
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.build;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.IOUtil;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+
+/**
+ * Changes of files under the watched roots recorded by {@link FileChangesWatcher} in the build data directory. The file is locked while
+ * the watcher is running, so a build can trust the recorded changes only if the lock is held by somebody else.
+ * <p/>
+ * Format: version, journal id, the list of watched roots followed by the paths of changed or deleted files. The journal gets a new id each time
+ * the watcher cannot guarantee that all changes were recorded (e.g. when the OS event queue overflows).
+ * <p/>
+ * The OS reports changes with a delay, so before the journal is used a cookie file is created in a directory watched along with the roots
+ * and the build waits until its creation is recorded: all changes made before that point are in the journal then. The cookies directory
+ * is in the build data directory, so nothing is created in the source roots.
+ */
+class FileChangesJournal {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.build.FileChangesJournal");
+  static final String JOURNAL_FILE = "fs_changes.log";
+  private static final String LOCK_FILE = "fs_watcher.lock";
+  private static final String COOKIES_DIRECTORY = "fs_cookies";
+  private static final int VERSION = 2;
+  private static final String COOKIE_PREFIX = "cookie_";
+  private static final long SYNC_TIMEOUT = 3000;
+  private static final long SYNC_CHECK_INTERVAL = 10;
+  private final long myId;
+  private final Set<File> myWatchedRoots;
+  private final Set<String> myChangedPaths;
+  private long myEndOffset;
+
+  private FileChangesJournal(long id, Set<File> watchedRoots, Set<String> changedPaths, long endOffset) {
+    myId = id;
+    myWatchedRoots = watchedRoots;
+    myChangedPaths = changedPaths;
+    myEndOffset = endOffset;
+  }
+
+  public long getId() {
+    return myId;
+  }
+
+  public long getEndOffset() {
+    return myEndOffset;
+  }
+
+  public boolean isWatched(File root) {
+    return myWatchedRoots.contains(root);
+  }
+
+  /**
+   * @return paths of files and directories which were created, modified or deleted after the requested offset
+   */
+  public Set<String> getChangedPaths() {
+    return myChangedPaths;
+  }
+
+  /**
+   * @return the changes recorded after {@code offset} if the journal has the specified id, all recorded changes if {@code id} doesn't match
+   * and null if no watcher is running for the data directory or it doesn't record the changes in time
+   */
+  @Nullable
+  public static FileChangesJournal read(File dataStorageRoot, long id, long offset) {
+    return read(dataStorageRoot, id, offset, SYNC_TIMEOUT);
+  }
+
+  @Nullable
+  static FileChangesJournal read(File dataStorageRoot, long id, long offset, long syncTimeout) {
+    final File journalFile = new File(dataStorageRoot, JOURNAL_FILE);
+    if (!journalFile.isFile() || !isLocked(new File(dataStorageRoot, LOCK_FILE))) {
+      return null;
+    }
+    FileChangesJournal journal = readJournal(journalFile, id, offset);
+    if (journal == null || journal.myWatchedRoots.isEmpty()) {
+      return journal;
+    }
+    final File cookiesDirectory = getCookiesDirectory(dataStorageRoot);
+    final File cookie = createCookie(cookiesDirectory);
+    if (cookie == null) {
+      return null;
+    }
+    try {
+      final long deadline = System.currentTimeMillis() + syncTimeout;
+      while (!journal.myChangedPaths.contains(cookie.getPath())) {
+        if (System.currentTimeMillis() > deadline) {
+          LOG.info("File changes watcher didn't record " + cookie + " in " + syncTimeout + " ms, the file system will be scanned");
+          return null;
+        }
+        Thread.sleep(SYNC_CHECK_INTERVAL);
+        // only the records appended since the previous check are read
+        final FileChangesJournal tail = readJournal(journalFile, journal.myId, journal.myEndOffset);
+        if (tail == null) {
+          return null;
+        }
+        if (tail.myId == journal.myId) {
+          journal.myChangedPaths.addAll(tail.myChangedPaths);
+          journal.myEndOffset = tail.myEndOffset;
+        }
+        else {
+          journal = tail;
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      return null;
+    }
+    finally {
+      FileUtil.delete(cookie);
+    }
+    // cookies of this and previous builds aren't source files
+    final String cookiesPrefix = cookiesDirectory.getPath() + File.separator;
+    for (Iterator<String> iterator = journal.myChangedPaths.iterator(); iterator.hasNext(); ) {
+      final String path = iterator.next();
+      if (path.startsWith(cookiesPrefix) || path.equals(cookiesDirectory.getPath())) {
+        iterator.remove();
+      }
+    }
+    return journal;
+  }
+
+  /**
+   * @return the directory watched by {@link FileChangesWatcher} in addition to the roots, where builds create the cookie files
+   */
+  static File getCookiesDirectory(File dataStorageRoot) {
+    return new File(dataStorageRoot, COOKIES_DIRECTORY);
+  }
+
+  @Nullable
+  private static File createCookie(File cookiesDirectory) {
+    // the path must be built the same way as the paths reported by the watcher
+    final File cookie = new File(cookiesDirectory, COOKIE_PREFIX + System.nanoTime());
+    try {
+      if (cookie.createNewFile()) {
+        return cookie;
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot create a cookie file in " + cookiesDirectory + ": " + e.getMessage());
+    }
+    return null;
+  }
+
+  @Nullable
+  static FileChangesJournal readJournal(File journalFile, long id, long offset) {
+    try {
+      final RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+      try {
+        final long length = file.length();
+        if (file.readInt() != VERSION) {
+          return null;
+        }
+        final long journalId = file.readLong();
+        int rootsCount = file.readInt();
+        final Set<File> roots = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+        while (rootsCount-- > 0) {
+          roots.add(new File(IOUtil.readString(file)));
+        }
+        final long headerSize = file.getFilePointer();
+        final long start = journalId == id && offset >= headerSize && offset <= length ? offset : headerSize;
+
+        // only the records after the requested offset are loaded
+        final byte[] bytes = new byte[(int)(length - start)];
+        file.seek(start);
+        file.readFully(bytes);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        final Set<String> paths = new LinkedHashSet<String>();
+        long endOffset = start;
+        try {
+          while (in.available() > 0) {
+            paths.add(IOUtil.readString(in));
+            endOffset = length - in.available();
+          }
+        }
+        catch (EOFException ignored) {
+          // the last record is being written by the watcher, it will be read by the next build
+        }
+        return new FileChangesJournal(journalId, roots, paths, endOffset);
+      }
+      finally {
+        file.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read " + journalFile + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static boolean isLocked(File lockFile) {
+    if (!lockFile.isFile()) {
+      return false;
+    }
+    try {
+      final RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+      try {
+        final FileLock lock = file.getChannel().tryLock();
+        if (lock == null) {
+          return true;
+        }
+        lock.release();
+        return false;
+      }
+      catch (OverlappingFileLockException e) {
+        // the watcher is running in this process
+        return true;
+      }
+      finally {
+        file.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot check " + lockFile + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Appends changes to the journal; only one writer may exist for a data directory.
+   */
+  public static class Writer {
+    private static final long MAX_JOURNAL_SIZE = 64 * 1024 * 1024;
+    private final File myJournalFile;
+    private final RandomAccessFile myLockFile;
+    private final FileLock myLock;
+    private Collection<File> myRoots = Collections.emptyList();
+    private OutputStream myOutput;
+    private long mySize;
+    private long myId;
+
+    public Writer(File dataStorageRoot) throws IOException {
+      FileUtil.createDirectory(dataStorageRoot);
+      myJournalFile = new File(dataStorageRoot, JOURNAL_FILE);
+      myLockFile = new RandomAccessFile(new File(dataStorageRoot, LOCK_FILE), "rw");
+      FileLock lock;
+      try {
+        lock = myLockFile.getChannel().tryLock();
+      }
+      catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        myLockFile.close();
+        throw new IOException("Changes in " + dataStorageRoot + " are already being watched by another process");
+      }
+      myLock = lock;
+      // changes made since the previous watcher had stopped weren't recorded
+      FileUtil.delete(myJournalFile);
+    }
+
+    /**
+     * Starts a new journal, builds will scan the file system to find changes made before this point
+     * @param roots roots under which all changes will be recorded
+     */
+    public synchronized void reset(Collection<File> roots) throws IOException {
+      if (myOutput != null) {
+        myOutput.close();
+      }
+      myRoots = new ArrayList<File>(roots);
+      final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      myId = Math.max(myId + 1, System.currentTimeMillis());
+      out.writeInt(VERSION);
+      out.writeLong(myId);
+      out.writeInt(myRoots.size());
+      for (File root : myRoots) {
+        IOUtil.writeString(root.getPath(), out);
+      }
+      out.close();
+      myOutput = new FileOutputStream(myJournalFile);
+      myOutput.write(bytes.getInternalBuffer(), 0, bytes.size());
+      myOutput.flush();
+      mySize = bytes.size();
+    }
+
+    public synchronized void write(Collection<File> paths) throws IOException {
+      if (paths.isEmpty() || myOutput == null) {
+        return;
+      }
+      if (mySize > MAX_JOURNAL_SIZE) {
+        LOG.info("The journal of file changes is too big and will be restarted");
+        reset(myRoots);
+      }
+      final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      for (File file : paths) {
+        IOUtil.writeString(file.getPath(), out);
+      }
+      out.close();
+      // the batch is written at once, so a build may only see a part of the last record
+      myOutput.write(bytes.getInternalBuffer(), 0, bytes.size());
+      myOutput.flush();
+      mySize += bytes.size();
+    }
+
+    public synchronized void close() throws IOException {
+      if (!myLock.isValid()) {
+        return;
+      }
+      try {
+        if (myOutput != null) {
+          myOutput.close();
+          myOutput = null;
+        }
+      }
+      finally {
+        myLock.release();
+        myLockFile.close();
+      }
+    }
+  }
+}
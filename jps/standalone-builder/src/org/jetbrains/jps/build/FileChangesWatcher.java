@@ -0,0 +1,282 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.build;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records changes under the specified roots to {@link FileChangesJournal} using the NIO2 watch service of the running JDK. The classes of
+ * java.nio.file are accessed via reflection because the builder must be able to run under JDK 1.6.
+ */
+class FileChangesWatcher {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.build.FileChangesWatcher");
+  private static final long EVENTS_COLLECTING_TIMEOUT = 50;
+  private final Nio2 myNio2;
+  private final FileChangesJournal.Writer myJournal;
+  private final FileFilter myDirectoryFilter;
+  private final Object myWatchService;
+  private final Map<Object, File> myWatchedDirectories = new HashMap<Object, File>();
+  private final Set<File> myWatchedRoots = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+  private final Thread myThread;
+  private volatile boolean myStopped;
+
+  private FileChangesWatcher(Nio2 nio2, FileChangesJournal.Writer journal, File cookiesDirectory, Collection<File> roots,
+                             FileFilter directoryFilter) throws Exception {
+    myNio2 = nio2;
+    myJournal = journal;
+    myDirectoryFilter = directoryFilter;
+    myWatchService = nio2.newWatchService.invoke(nio2.fileSystem);
+    // builds create cookie files there to find out when the changes made before are recorded, see FileChangesJournal
+    FileUtil.delete(cookiesDirectory);
+    if (!FileUtil.createDirectory(cookiesDirectory)) {
+      throw new IOException("Cannot create " + cookiesDirectory);
+    }
+    register(cookiesDirectory);
+    for (File root : roots) {
+      if (registerRecursively(root, null)) {
+        myWatchedRoots.add(root);
+      }
+    }
+    myThread = new Thread("File changes watcher") {
+      @Override
+      public void run() {
+        processEvents();
+      }
+    };
+  }
+
+  /**
+   * @return the started watcher or null if watching file changes isn't supported by the running JDK
+   */
+  @Nullable
+  public static FileChangesWatcher start(File dataStorageRoot, Collection<File> roots, FileFilter directoryFilter) throws IOException {
+    final Nio2 nio2;
+    try {
+      nio2 = new Nio2();
+    }
+    catch (Exception e) {
+      LOG.info("NIO2 watch service isn't available: " + e.getMessage());
+      return null;
+    }
+
+    final FileChangesJournal.Writer journal = new FileChangesJournal.Writer(dataStorageRoot);
+    final FileChangesWatcher watcher;
+    try {
+      watcher = new FileChangesWatcher(nio2, journal, FileChangesJournal.getCookiesDirectory(dataStorageRoot), roots, directoryFilter);
+    }
+    catch (Exception e) {
+      journal.close();
+      throw new IOException(e);
+    }
+    // the journal is started after all directories are registered, builds will scan the files changed before this point
+    journal.reset(watcher.myWatchedRoots);
+    watcher.myThread.start();
+    return watcher;
+  }
+
+  public int getWatchedRootsCount() {
+    return myWatchedRoots.size();
+  }
+
+  public int getWatchedDirectoriesCount() {
+    synchronized (myWatchedDirectories) {
+      return myWatchedDirectories.size();
+    }
+  }
+
+  public void stop() {
+    myStopped = true;
+    try {
+      myNio2.closeWatchService.invoke(myWatchService);
+      myThread.join();
+    }
+    catch (Exception e) {
+      LOG.info(e);
+    }
+  }
+
+  public void waitFor() throws InterruptedException {
+    myThread.join();
+  }
+
+  private void processEvents() {
+    try {
+      while (!myStopped) {
+        final Set<File> changed = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+        boolean overflow = false;
+        Object key = myNio2.take.invoke(myWatchService);
+        while (key != null) {
+          overflow |= processKey(key, changed);
+          key = myNio2.poll.invoke(myWatchService, EVENTS_COLLECTING_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        if (overflow) {
+          LOG.info("Some file system events were lost, the next build will scan the file system");
+          myJournal.reset(myWatchedRoots);
+        }
+        else {
+          myJournal.write(changed);
+        }
+      }
+    }
+    catch (InvocationTargetException e) {
+      if (!myStopped) {
+        LOG.error(e.getCause());
+      }
+    }
+    catch (Exception e) {
+      LOG.error(e);
+    }
+    finally {
+      // builds won't rely on the journal after the lock is released
+      try {
+        myJournal.close();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+    }
+  }
+
+  /**
+   * @return true if events for the key were lost
+   */
+  private boolean processKey(Object key, Set<File> changed) throws Exception {
+    final File dir;
+    synchronized (myWatchedDirectories) {
+      dir = myWatchedDirectories.get(key);
+    }
+    boolean overflow = false;
+    for (Object event : (List<?>)myNio2.pollEvents.invoke(key)) {
+      final Object kind = myNio2.kind.invoke(event);
+      if (kind == myNio2.overflowKind || dir == null) {
+        overflow = true;
+        continue;
+      }
+      final File file = new File(dir, String.valueOf(myNio2.context.invoke(event)));
+      changed.add(file);
+      if (kind == myNio2.createKind && file.isDirectory()) {
+        // files may be created in the directory before it is registered, so report all of them
+        registerRecursively(file, changed);
+      }
+    }
+    if (!(Boolean)myNio2.reset.invoke(key)) {
+      // the directory was deleted
+      synchronized (myWatchedDirectories) {
+        myWatchedDirectories.remove(key);
+      }
+      if (dir != null && myWatchedRoots.remove(dir)) {
+        // files under a moved root don't produce events, and it won't be watched if it is created again
+        LOG.info("Root " + dir + " was deleted and isn't watched anymore");
+        overflow = true;
+      }
+    }
+    return overflow;
+  }
+
+  /**
+   * @return false if {@code dir} isn't a directory or shouldn't be watched
+   */
+  private boolean registerRecursively(File dir, @Nullable Set<File> created) throws Exception {
+    if (!dir.isDirectory() || !myDirectoryFilter.accept(dir)) {
+      return false;
+    }
+    try {
+      register(dir);
+    }
+    catch (InvocationTargetException e) {
+      if (dir.isDirectory()) {
+        throw e;
+      }
+      return false; // already deleted
+    }
+    // the children are listed after the directory is registered so files created meanwhile aren't lost
+    final File[] children = dir.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        if (created != null) {
+          created.add(child);
+        }
+        registerRecursively(child, created);
+      }
+    }
+    return true;
+  }
+
+  private void register(File dir) throws Exception {
+    final Object path = myNio2.getPath.invoke(myNio2.fileSystem, dir.getPath(), new String[0]);
+    final Object key = myNio2.register.invoke(path, myWatchService, myNio2.kinds);
+    synchronized (myWatchedDirectories) {
+      myWatchedDirectories.put(key, dir);
+    }
+  }
+
+  private static class Nio2 {
+    private final Object fileSystem;
+    private final Method newWatchService;
+    private final Method getPath;
+    private final Method register;
+    private final Object kinds;
+    private final Object createKind;
+    private final Object overflowKind;
+    private final Method take;
+    private final Method poll;
+    private final Method closeWatchService;
+    private final Method pollEvents;
+    private final Method reset;
+    private final Method kind;
+    private final Method context;
+
+    private Nio2() throws Exception {
+      final Class<?> fileSystemClass = Class.forName("java.nio.file.FileSystem");
+      final Class<?> pathClass = Class.forName("java.nio.file.Path");
+      final Class<?> watchServiceClass = Class.forName("java.nio.file.WatchService");
+      final Class<?> watchKeyClass = Class.forName("java.nio.file.WatchKey");
+      final Class<?> watchEventClass = Class.forName("java.nio.file.WatchEvent");
+      final Class<?> kindClass = Class.forName("java.nio.file.WatchEvent$Kind");
+      final Class<?> standardKindsClass = Class.forName("java.nio.file.StandardWatchEventKinds");
+
+      fileSystem = Class.forName("java.nio.file.FileSystems").getMethod("getDefault").invoke(null);
+      newWatchService = fileSystemClass.getMethod("newWatchService");
+      getPath = fileSystemClass.getMethod("getPath", String.class, String[].class);
+      kinds = Array.newInstance(kindClass, 3);
+      register = pathClass.getMethod("register", watchServiceClass, kinds.getClass());
+      createKind = standardKindsClass.getField("ENTRY_CREATE").get(null);
+      Array.set(kinds, 0, createKind);
+      Array.set(kinds, 1, standardKindsClass.getField("ENTRY_DELETE").get(null));
+      Array.set(kinds, 2, standardKindsClass.getField("ENTRY_MODIFY").get(null));
+      overflowKind = standardKindsClass.getField("OVERFLOW").get(null);
+      take = watchServiceClass.getMethod("take");
+      poll = watchServiceClass.getMethod("poll", long.class, TimeUnit.class);
+      closeWatchService = watchServiceClass.getMethod("close");
+      pollEvents = watchKeyClass.getMethod("pollEvents");
+      reset = watchKeyClass.getMethod("reset");
+      kind = watchEventClass.getMethod("kind");
+      context = watchEventClass.getMethod("context");
+    }
+  }
+}
@@ -19,8 +19,14 @@ import com.intellij.util.ArrayUtil;
 import com.intellij.util.ParameterizedRunnable;
 import com.sampullara.cli.Args;
 import com.sampullara.cli.Argument;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.BuildType;
 import org.jetbrains.jps.api.CanceledStatus;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.ModuleBasedTarget;
+import org.jetbrains.jps.builders.impl.BuildDataPathsImpl;
+import org.jetbrains.jps.builders.impl.BuildRootIndexImpl;
+import org.jetbrains.jps.builders.impl.BuildTargetIndexImpl;
 import org.jetbrains.jps.builders.java.JavaModuleBuildTargetType;
 import org.jetbrains.jps.cmdline.BuildRunner;
 import org.jetbrains.jps.cmdline.JpsModelLoader;
@@ -29,11 +35,14 @@ import org.jetbrains.jps.cmdline.ProjectDescriptor;
 import org.jetbrains.jps.incremental.MessageHandler;
 import org.jetbrains.jps.incremental.Utils;
 import org.jetbrains.jps.incremental.artifacts.ArtifactBuildTargetType;
-import org.jetbrains.jps.incremental.fs.BuildFSState;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.indices.ModuleExcludeIndex;
+import org.jetbrains.jps.indices.impl.IgnoredFileIndexImpl;
+import org.jetbrains.jps.indices.impl.ModuleExcludeIndexImpl;
 import org.jetbrains.jps.model.JpsModel;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.util.*;
 
 import static org.jetbrains.jps.api.CmdlineRemoteProto.Message.ControllerMessage.ParametersMessage.TargetTypeBuildScope;
@@ -64,6 +73,10 @@ public class Standalone {
   @Argument(value = "i", description = "Build incrementally")
   public boolean incremental;
 
+  @Argument(value = "watch", prefix = "--", description = "Keep running and record changes in source roots of the project, so incremental builds " +
+                                                          "started meanwhile don't need to scan the file system")
+  public boolean watch;
+
   public static void main(String[] args) {
     Standalone instance = new Standalone();
     List<String> projectPaths;
@@ -84,7 +97,12 @@ public class Standalone {
       printUsageAndExit();
     }
 
-    instance.loadAndRunBuild(projectPaths.get(0));
+    if (instance.watch) {
+      instance.watchChanges(projectPaths.get(0));
+    }
+    else {
+      instance.loadAndRunBuild(projectPaths.get(0));
+    }
     System.exit(0);
   }
 
@@ -94,12 +112,91 @@ public class Standalone {
   }
 
   public void loadAndRunBuild(final String projectPath) {
+    if (modules.length == 0 && artifacts.length == 0 && !allModules) {
+      System.err.println("Nothing to compile: at least one of --modules, --artifacts or --all-modules parameters must be specified");
+      return;
+    }
+
+    JpsModelLoaderImpl loader = createModelLoader(projectPath);
+    File dataStorageRoot = getDataStorageRoot(projectPath);
+    if (loader == null || dataStorageRoot == null) {
+      return;
+    }
+    Set<String> modulesSet = new HashSet<String>(Arrays.asList(modules));
+    List<String> artifactsList = Arrays.asList(artifacts);
+
+    long start = System.currentTimeMillis();
+    try {
+      runBuild(loader, dataStorageRoot, !incremental, modulesSet, allModules, artifactsList, true, new ConsoleMessageHandler());
+    }
+    catch (Throwable t) {
+      System.err.println("Internal error: " + t.getMessage());
+      t.printStackTrace();
+    }
+    System.out.println("Build finished in " + Utils.formatDuration(System.currentTimeMillis() - start));
+  }
+
+  public void watchChanges(final String projectPath) {
+    JpsModelLoaderImpl loader = createModelLoader(projectPath);
+    File dataStorageRoot = getDataStorageRoot(projectPath);
+    if (loader == null || dataStorageRoot == null) {
+      return;
+    }
+
+    final FileChangesWatcher watcher;
+    try {
+      JpsModel model = loader.loadModel();
+      BuildTargetIndexImpl targetIndex = new BuildTargetIndexImpl(model);
+      final ModuleExcludeIndex excludeIndex = new ModuleExcludeIndexImpl(model);
+      final IgnoredFileIndexImpl ignoredFileIndex = new IgnoredFileIndexImpl(model);
+      BuildRootIndexImpl rootIndex = new BuildRootIndexImpl(targetIndex, model, excludeIndex, new BuildDataPathsImpl(dataStorageRoot), ignoredFileIndex);
+      Set<File> roots = new LinkedHashSet<File>();
+      for (BuildTarget<?> target : targetIndex.getAllTargets()) {
+        if (target instanceof ModuleBasedTarget<?>) {
+          roots.addAll(StandaloneFSState.getRootsToWatch(target, rootIndex));
+        }
+      }
+      watcher = FileChangesWatcher.start(dataStorageRoot, roots, new FileFilter() {
+        @Override
+        public boolean accept(File dir) {
+          return !excludeIndex.isExcluded(dir) && !ignoredFileIndex.isIgnored(dir.getName());
+        }
+      });
+    }
+    catch (Throwable t) {
+      System.err.println("Cannot watch changes: " + t.getMessage());
+      t.printStackTrace();
+      return;
+    }
+    if (watcher == null) {
+      System.err.println("Watching file changes requires Java 7 or later");
+      return;
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread("Stop file changes watcher") {
+      @Override
+      public void run() {
+        watcher.stop();
+      }
+    });
+    System.out.println("Watching " + watcher.getWatchedDirectoriesCount() + " directories under " + watcher.getWatchedRootsCount() +
+                       " source roots, press Ctrl+C to stop");
+    try {
+      watcher.waitFor();
+    }
+    catch (InterruptedException ignored) {
+    }
+    System.out.println("File changes watcher stopped");
+  }
+
+  @Nullable
+  private JpsModelLoaderImpl createModelLoader(String projectPath) {
     String globalOptionsPath = null;
     if (configPath != null) {
       File optionsDir = new File(configPath, "options");
       if (!optionsDir.isDirectory()) {
         System.err.println("'" + configPath + "' is not valid config path: " + optionsDir.getAbsolutePath() + " not found");
-        return;
+        return null;
       }
       globalOptionsPath = optionsDir.getAbsolutePath();
     }
@@ -110,40 +207,20 @@ public class Standalone {
       File scriptFile = new File(scriptPath);
       if (!scriptFile.isFile()) {
         System.err.println("Script '" + scriptPath + "' not found");
-        return;
+        return null;
       }
       initializer = new GroovyModelInitializer(scriptFile);
     }
+    return new JpsModelLoaderImpl(projectPath, globalOptionsPath, initializer);
+  }
 
-    if (modules.length == 0 && artifacts.length == 0 && !allModules) {
-      System.err.println("Nothing to compile: at least one of --modules, --artifacts or --all-modules parameters must be specified");
-      return;
-    }
-
-    JpsModelLoaderImpl loader = new JpsModelLoaderImpl(projectPath, globalOptionsPath, initializer);
-    Set<String> modulesSet = new HashSet<String>(Arrays.asList(modules));
-    List<String> artifactsList = Arrays.asList(artifacts);
-    File dataStorageRoot;
-    if (cacheDirPath != null) {
-      dataStorageRoot = new File(cacheDirPath);
-    }
-    else {
-      dataStorageRoot = Utils.getDataStorageRoot(projectPath);
-    }
+  @Nullable
+  private File getDataStorageRoot(String projectPath) {
+    File dataStorageRoot = cacheDirPath != null ? new File(cacheDirPath) : Utils.getDataStorageRoot(projectPath);
     if (dataStorageRoot == null) {
       System.err.println("Error: Cannot determine build data storage root for project " + projectPath);
-      return;
     }
-
-    long start = System.currentTimeMillis();
-    try {
-      runBuild(loader, dataStorageRoot, !incremental, modulesSet, allModules, artifactsList, true, new ConsoleMessageHandler());
-    }
-    catch (Throwable t) {
-      System.err.println("Internal error: " + t.getMessage());
-      t.printStackTrace();
-    }
-    System.out.println("Build finished in " + Utils.formatDuration(System.currentTimeMillis() - start));
+    return dataStorageRoot;
   }
 
   @Deprecated
@@ -179,11 +256,14 @@ public class Standalone {
                               boolean includeDependenciesToScope) throws Exception {
     final BuildRunner buildRunner = new BuildRunner(loader, Collections.<String>emptyList(), Collections.<String, String>emptyMap()
     );
-    ProjectDescriptor descriptor = buildRunner.load(messageHandler, dataStorageRoot, new BuildFSState(true));
+    StandaloneFSState fsState = new StandaloneFSState(dataStorageRoot);
+    ProjectDescriptor descriptor = buildRunner.load(messageHandler, dataStorageRoot, fsState.createFSState());
     try {
+      fsState.load(descriptor);
       buildRunner.runBuild(descriptor, CanceledStatus.NULL, null, messageHandler, BuildType.BUILD, scopes, includeDependenciesToScope);
     }
     finally {
+      fsState.save(descriptor);
       descriptor.release();
     }
   }
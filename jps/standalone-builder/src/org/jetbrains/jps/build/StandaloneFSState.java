@@ -0,0 +1,230 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.build;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataOutputStream;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.builders.BuildRootDescriptor;
+import org.jetbrains.jps.builders.BuildRootIndex;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.ModuleBasedTarget;
+import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.fs.BuildFSState;
+import org.jetbrains.jps.incremental.fs.FSState;
+import org.jetbrains.jps.incremental.storage.Timestamps;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the dirty files of standalone builds between runs. The saved state is used only if {@link FileChangesWatcher} has been running
+ * since the state was saved; in that case the changes recorded in {@link FileChangesJournal} are applied to the state instead of scanning
+ * source roots and comparing timestamps of all files.
+ */
+class StandaloneFSState {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.build.StandaloneFSState");
+  private static final String FS_STATE_FILE = "standalone_fs_state.dat";
+  private final File myStateFile;
+  @Nullable
+  private final FileChangesJournal myJournal;
+  @Nullable
+  private final DataInputStream mySavedState;
+
+  StandaloneFSState(File dataStorageRoot) {
+    myStateFile = new File(dataStorageRoot, FS_STATE_FILE);
+    long savedJournalId = -1;
+    long savedOffset = 0;
+    DataInputStream savedState = null;
+    try {
+      if (myStateFile.isFile()) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(FileUtil.loadFileBytes(myStateFile)));
+        if (in.readInt() == FSState.VERSION) {
+          savedJournalId = in.readLong();
+          savedOffset = in.readLong();
+          savedState = in;
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read " + myStateFile + ": " + e.getMessage());
+    }
+    // if the build fails to save the state, the next one will scan the file system
+    FileUtil.delete(myStateFile);
+    myJournal = FileChangesJournal.read(dataStorageRoot, savedJournalId, savedOffset);
+    mySavedState = myJournal != null && myJournal.getId() == savedJournalId ? savedState : null;
+  }
+
+  public BuildFSState createFSState() {
+    return new BuildFSState(myJournal == null);
+  }
+
+  /**
+   * Loads the saved state and applies the changes recorded after it was saved; targets which aren't loaded will be scanned by the build
+   */
+  public void load(ProjectDescriptor pd) {
+    if (myJournal == null) {
+      return;
+    }
+    if (mySavedState == null) {
+      LOG.info("Saved state doesn't match the journal of file changes, the file system will be scanned");
+      return;
+    }
+    final BuildFSState fsState = pd.fsState;
+    try {
+      fsState.load(mySavedState, pd.getModel(), pd.getBuildRootIndex());
+      applyChanges(pd, myJournal.getChangedPaths());
+      for (BuildTarget<?> target : pd.getBuildTargetIndex().getAllTargets()) {
+        if (fsState.isInitialScanPerformed(target) && !isWatched(target, pd.getBuildRootIndex())) {
+          fsState.clearInitialScanPerformed(target);
+        }
+      }
+      LOG.info(myJournal.getChangedPaths().size() + " changed paths applied to the saved state");
+    }
+    catch (Throwable e) {
+      LOG.info("Cannot load saved state: " + e.getMessage());
+      fsState.clearAll();
+    }
+  }
+
+  private boolean isWatched(BuildTarget<?> target, BuildRootIndex rootIndex) {
+    if (!(target instanceof ModuleBasedTarget<?>)) {
+      return false;
+    }
+    for (File root : getRootsToWatch(target, rootIndex)) {
+      if (!myJournal.isWatched(root) && root.exists()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void applyChanges(ProjectDescriptor pd, Collection<String> paths) throws IOException {
+    final Timestamps timestamps = pd.timestamps.getStorage();
+    final BuildRootIndex rootIndex = pd.getBuildRootIndex();
+    final Map<BuildTarget<?>, List<File>> deletedDirectories = new HashMap<BuildTarget<?>, List<File>>();
+    Map<File, List<BuildRootDescriptor>> rootsMap = null;
+    for (String path : paths) {
+      final File file = new File(path);
+      if (file.isDirectory()) {
+        // files in created directories are recorded separately
+        continue;
+      }
+      final Collection<BuildRootDescriptor> descriptors = rootIndex.findAllParentDescriptors(file, null, null);
+      if (file.exists()) {
+        for (BuildRootDescriptor rd : descriptors) {
+          if (!rd.isGenerated() && timestamps.isModified(file, rd.getTarget(), FileSystemUtil.lastModified(file))) {
+            pd.fsState.markDirty(null, file, rd, timestamps, false);
+          }
+        }
+      }
+      else if (!descriptors.isEmpty()) {
+        for (BuildRootDescriptor rd : descriptors) {
+          pd.fsState.registerDeleted(rd.getTarget(), file, timestamps);
+        }
+      }
+      else {
+        // the path may be a directory moved out of the root, files under it don't produce events
+        if (rootsMap == null) {
+          rootsMap = collectRoots(pd);
+        }
+        for (File parent = file.getParentFile(); parent != null; parent = parent.getParentFile()) {
+          final List<BuildRootDescriptor> parentRoots = rootsMap.get(parent);
+          if (parentRoots != null) {
+            for (BuildRootDescriptor rd : parentRoots) {
+              List<File> dirs = deletedDirectories.get(rd.getTarget());
+              if (dirs == null) {
+                dirs = new ArrayList<File>();
+                deletedDirectories.put(rd.getTarget(), dirs);
+              }
+              dirs.add(file);
+            }
+          }
+        }
+      }
+    }
+
+    for (Map.Entry<BuildTarget<?>, List<File>> entry : deletedDirectories.entrySet()) {
+      final BuildTarget<?> target = entry.getKey();
+      for (Iterator<String> it = pd.dataManager.getSourceToOutputMap(target).getSourcesIterator(); it.hasNext(); ) {
+        final File source = new File(it.next());
+        for (File dir : entry.getValue()) {
+          if (FileUtil.isAncestor(dir, source, true) && !source.exists()) {
+            pd.fsState.registerDeleted(target, source, timestamps);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  private static Map<File, List<BuildRootDescriptor>> collectRoots(ProjectDescriptor pd) {
+    final Map<File, List<BuildRootDescriptor>> roots = new HashMap<File, List<BuildRootDescriptor>>();
+    for (BuildTarget<?> target : pd.getBuildTargetIndex().getAllTargets()) {
+      for (BuildRootDescriptor rd : pd.getBuildRootIndex().getTargetRoots(target, null)) {
+        List<BuildRootDescriptor> descriptors = roots.get(rd.getRootFile());
+        if (descriptors == null) {
+          descriptors = new ArrayList<BuildRootDescriptor>();
+          roots.put(rd.getRootFile(), descriptors);
+        }
+        descriptors.add(rd);
+      }
+    }
+    return roots;
+  }
+
+  public void save(ProjectDescriptor pd) {
+    if (myJournal == null) {
+      return;
+    }
+    try {
+      final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      try {
+        out.writeInt(FSState.VERSION);
+        out.writeLong(myJournal.getId());
+        // changes recorded during the build will be applied again by the next build
+        out.writeLong(myJournal.getEndOffset());
+        pd.fsState.save(out);
+      }
+      finally {
+        out.close();
+      }
+      FileUtil.writeToFile(myStateFile, bytes.getInternalBuffer(), 0, bytes.size());
+    }
+    catch (IOException e) {
+      LOG.info("Cannot save " + myStateFile + ": " + e.getMessage());
+      FileUtil.delete(myStateFile);
+    }
+  }
+
+  /**
+   * @return roots under which changes must be recorded to avoid scanning them in the build
+   */
+  public static List<File> getRootsToWatch(BuildTarget<?> target, BuildRootIndex rootIndex) {
+    final List<File> roots = new ArrayList<File>();
+    for (BuildRootDescriptor rd : rootIndex.getTargetRoots(target, null)) {
+      if (!rd.isGenerated() && !(rd instanceof JavaSourceRootDescriptor && ((JavaSourceRootDescriptor)rd).isTemp)) {
+        roots.add(rd.getRootFile());
+      }
+    }
+    return roots;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.build;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+public class FileChangesJournalTest extends TestCase {
+  private File myTempDir;
+  private File myDataDir;
+  private File myRoot;
+  private File myJournalFile;
+  private FileChangesJournal.Writer myWriter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("journal", null);
+    myDataDir = new File(myTempDir, "data");
+    myRoot = new File(myTempDir, "src");
+    FileUtil.createDirectory(myRoot);
+    myJournalFile = new File(myDataDir, FileChangesJournal.JOURNAL_FILE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      if (myWriter != null) {
+        myWriter.close();
+      }
+      FileUtil.delete(myTempDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testFormat() throws IOException {
+    startWriter();
+    myWriter.write(Arrays.asList(new File(myRoot, "A.java"), new File(myRoot, "b/B.java")));
+
+    final FileChangesJournal journal = FileChangesJournal.readJournal(myJournalFile, -1, 0);
+    assertNotNull(journal);
+    assertTrue(journal.isWatched(myRoot));
+    assertFalse(journal.isWatched(myTempDir));
+    assertEquals(Arrays.asList(new File(myRoot, "A.java").getPath(), new File(myRoot, "b/B.java").getPath()),
+                 new ArrayList<String>(journal.getChangedPaths()));
+    assertEquals(myJournalFile.length(), journal.getEndOffset());
+  }
+
+  public void testChangesAfterOffset() throws IOException {
+    startWriter();
+    myWriter.write(Collections.singletonList(new File(myRoot, "A.java")));
+    final FileChangesJournal first = FileChangesJournal.readJournal(myJournalFile, -1, 0);
+    assertNotNull(first);
+
+    myWriter.write(Collections.singletonList(new File(myRoot, "B.java")));
+    final FileChangesJournal second = FileChangesJournal.readJournal(myJournalFile, first.getId(), first.getEndOffset());
+    assertNotNull(second);
+    assertEquals(first.getId(), second.getId());
+    assertEquals(Collections.singleton(new File(myRoot, "B.java").getPath()), second.getChangedPaths());
+
+    final FileChangesJournal nothingNew = FileChangesJournal.readJournal(myJournalFile, second.getId(), second.getEndOffset());
+    assertNotNull(nothingNew);
+    assertTrue(nothingNew.getChangedPaths().isEmpty());
+    assertEquals(second.getEndOffset(), nothingNew.getEndOffset());
+  }
+
+  public void testAllChangesReadForOtherIdOrInvalidOffset() throws IOException {
+    startWriter();
+    myWriter.write(Arrays.asList(new File(myRoot, "A.java"), new File(myRoot, "B.java")));
+    final FileChangesJournal journal = FileChangesJournal.readJournal(myJournalFile, -1, 0);
+    assertNotNull(journal);
+
+    assertEquals(2, FileChangesJournal.readJournal(myJournalFile, journal.getId() + 1, journal.getEndOffset()).getChangedPaths().size());
+    assertEquals(2, FileChangesJournal.readJournal(myJournalFile, journal.getId(), journal.getEndOffset() + 1).getChangedPaths().size());
+    assertEquals(2, FileChangesJournal.readJournal(myJournalFile, journal.getId(), 1).getChangedPaths().size());
+  }
+
+  public void testPartiallyWrittenRecordSkipped() throws IOException {
+    startWriter();
+    myWriter.write(Collections.singletonList(new File(myRoot, "A.java")));
+    final long length = myJournalFile.length();
+    final FileOutputStream output = new FileOutputStream(myJournalFile, true);
+    try {
+      // the length of the next path without the path itself
+      output.write(new byte[]{0, 0, 0, 10});
+    }
+    finally {
+      output.close();
+    }
+
+    final FileChangesJournal journal = FileChangesJournal.readJournal(myJournalFile, -1, 0);
+    assertNotNull(journal);
+    assertEquals(Collections.singleton(new File(myRoot, "A.java").getPath()), journal.getChangedPaths());
+    assertEquals(length, journal.getEndOffset());
+  }
+
+  public void testRestartedJournalGetsNewId() throws IOException {
+    startWriter();
+    myWriter.write(Collections.singletonList(new File(myRoot, "A.java")));
+    final FileChangesJournal before = FileChangesJournal.readJournal(myJournalFile, -1, 0);
+    assertNotNull(before);
+
+    // e.g. after the OS event queue overflows; the saved state doesn't match the journal anymore, so the build scans the roots
+    myWriter.reset(Collections.singletonList(myRoot));
+    final FileChangesJournal after = FileChangesJournal.readJournal(myJournalFile, before.getId(), before.getEndOffset());
+    assertNotNull(after);
+    assertTrue(after.getId() != before.getId());
+    assertTrue(after.getChangedPaths().isEmpty());
+  }
+
+  public void testNotUsedWithoutWatcher() throws IOException {
+    startWriter();
+    myWriter.close();
+    myWriter = null;
+    assertTrue(myJournalFile.isFile());
+    assertNull(FileChangesJournal.read(myDataDir, -1, 0));
+  }
+
+  public void testNotUsedIfChangesAreNotRecordedInTime() throws IOException {
+    // the journal is locked, but nobody records the changes
+    startWriter();
+    final File cookiesDirectory = FileChangesJournal.getCookiesDirectory(myDataDir);
+    FileUtil.createDirectory(cookiesDirectory);
+    assertNull(FileChangesJournal.read(myDataDir, -1, 0, 100));
+    assertEquals(0, cookiesDirectory.list().length);
+    assertEquals(0, myRoot.list().length);
+  }
+
+  public void testNotUsedWithoutCookiesDirectory() throws IOException {
+    startWriter();
+    assertNull(FileChangesJournal.read(myDataDir, -1, 0, 1000));
+  }
+
+  public void testChangesRecordedBeforeRead() throws Exception {
+    final FileChangesWatcher watcher = FileChangesWatcher.start(myDataDir, Collections.singletonList(myRoot), new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return true;
+      }
+    });
+    if (watcher == null) {
+      // the watch service isn't available in the running JDK
+      return;
+    }
+    try {
+      final File file = new File(myRoot, "A.java");
+      FileUtil.writeToFile(file, "class A {}");
+
+      // the change is read right after it's made, before the watcher would write it without waiting
+      final FileChangesJournal journal = FileChangesJournal.read(myDataDir, -1, 0);
+      assertNotNull(journal);
+      assertEquals(Collections.singleton(file.getPath()), journal.getChangedPaths());
+      // cookies are created outside of the watched roots
+      assertEquals(Collections.singletonList("A.java"), Arrays.asList(myRoot.list()));
+      assertEquals(0, FileChangesJournal.getCookiesDirectory(myDataDir).list().length);
+
+      // the cookie of the previous read is ignored
+      final FileChangesJournal next = FileChangesJournal.read(myDataDir, journal.getId(), journal.getEndOffset());
+      assertNotNull(next);
+      assertTrue(next.getChangedPaths().isEmpty());
+    }
+    finally {
+      watcher.stop();
+    }
+  }
+
+  private void startWriter() throws IOException {
+    myWriter = new FileChangesJournal.Writer(myDataDir);
+    myWriter.reset(Collections.singletonList(myRoot));
+  }
+}
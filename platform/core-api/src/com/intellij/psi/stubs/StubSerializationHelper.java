@@ -23,6 +23,7 @@ import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.IOUtil;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
+import gnu.trove.TObjectIntProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -31,7 +32,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Author: dmitrylomov
@@ -55,6 +58,19 @@ public class StubSerializationHelper {
     assert oldId == 0 : "Serializer " + serializer + " is already registered; Old ID:" + oldId;
   }
 
+  @NotNull
+  public Map<String, Integer> getSerializerIds() {
+    final Map<String, Integer> result = new HashMap<String, Integer>();
+    mySerializerToId.forEachEntry(new TObjectIntProcedure<ObjectStubSerializer>() {
+      @Override
+      public boolean execute(ObjectStubSerializer serializer, int id) {
+        result.put(serializer.getExternalId(), id);
+        return true;
+      }
+    });
+    return result;
+  }
+
   private int persistentId(@NotNull final ObjectStubSerializer serializer) throws IOException {
     return myNameStorage.enumerate(serializer.getExternalId());
   }
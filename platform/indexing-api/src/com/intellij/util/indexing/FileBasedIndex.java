@@ -101,6 +101,13 @@ public abstract class FileBasedIndex implements BaseComponent {
   @NotNull
   public abstract <K> Collection<K> getAllKeys(@NotNull ID<K, ?> indexId, @NotNull Project project);
 
+  /**
+   * Cheap check to skip lookups of keys absent in the index.
+   *
+   * @return false if the index has no data for the key for sure, true if it may have
+   */
+  public abstract <K> boolean mayContainKey(@NotNull ID<K, ?> indexId, @NotNull K dataKey, @NotNull GlobalSearchScope filter);
+
   /**
    * DO NOT CALL DIRECTLY IN CLIENT CODE
    * The method is internal to indexing engine end is called internally. The method is public due to implementation details
@@ -800,6 +800,7 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
       @Override
       public void run() {
         if (progress != null) progress.checkCanceled();
+        if (!FileBasedIndex.getInstance().mayContainKey(IdIndex.NAME, entry, commonScope)) return;
         FileBasedIndex.getInstance().processValues(IdIndex.NAME, entry, null, new FileBasedIndex.ValueProcessor<Integer>() {
             @Override
             public boolean process(VirtualFile file, Integer value) {
@@ -911,7 +912,11 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
     return ApplicationManager.getApplication().runReadAction(new NullableComputable<Boolean>() {
       @Override
       public Boolean compute() {
-        return FileBasedIndex.getInstance().processFilesContainingAllKeys(IdIndex.NAME, keys, scope, checker, processor);
+        final FileBasedIndex index = FileBasedIndex.getInstance();
+        for (IdIndexEntry key : keys) {
+          if (!index.mayContainKey(IdIndex.NAME, key, scope)) return true; // no file contains all the keys
+        }
+        return index.processFilesContainingAllKeys(IdIndex.NAME, keys, scope, checker, processor);
       }
     });
   }
@@ -19,6 +19,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Map;
 
 /**
  * Author: dmitrylomov
@@ -39,4 +40,10 @@ public abstract class SerializationManagerEx extends SerializationManager {
   public abstract void repairNameStorage();
 
   public abstract void flushNameStorage();
+
+  /**
+   * @return ids which serialized stub trees refer to stub serializers with, by serializer external ids
+   */
+  @NotNull
+  public abstract Map<String, Integer> getSerializerIds();
 }
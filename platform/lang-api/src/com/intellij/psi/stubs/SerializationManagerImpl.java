@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
@@ -168,6 +169,13 @@ public class SerializationManagerImpl extends SerializationManagerEx implements
     }
   }
 
+  @NotNull
+  @Override
+  public Map<String, Integer> getSerializerIds() {
+    initSerializers();
+    return myStubSerializationHelper.getSerializerIds();
+  }
+
   @NotNull
   @Override
   public Stub deserialize(@NotNull InputStream stream) throws SerializerNotFoundException {
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.internal;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.PlatformDataKeys;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import com.intellij.util.indexing.IndexBundles;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Exports the data of bundled indices for the selected jar, see {@link IndexBundles}.
+ */
+public class ExportIndexBundleAction extends AnAction {
+  public ExportIndexBundleAction() {
+    super("Export Index Bundle...", "Write the index data of the selected jar to a bundle which can be attached on other machines", null);
+  }
+
+  @Override
+  public void actionPerformed(AnActionEvent e) {
+    final Project project = e.getData(PlatformDataKeys.PROJECT);
+    final VirtualFile jarRoot = getJarRoot(e.getData(PlatformDataKeys.VIRTUAL_FILE));
+    if (project == null || jarRoot == null) return;
+
+    final VirtualFileWrapper wrapper = FileChooserFactory.getInstance().createSaveFileDialog(
+      new FileSaverDescriptor("Export Index Bundle", "", IndexBundles.BUNDLE_EXTENSION.substring(1)), project)
+      .save(null, jarRoot.getNameWithoutExtension() + IndexBundles.BUNDLE_EXTENSION);
+    if (wrapper == null) return;
+    final File bundleFile = wrapper.getFile();
+
+    try {
+      ProgressManager.getInstance().runProcessWithProgressSynchronously(new ThrowableComputable<Object, IOException>() {
+        @Override
+        public Object compute() throws IOException {
+          IndexBundles.exportBundle(project, jarRoot, bundleFile);
+          return null;
+        }
+      }, "Exporting Index Bundle", false, project);
+    }
+    catch (IOException ex) {
+      Messages.showErrorDialog(project, "Cannot export index bundle: " + ex.getMessage(), "Export Index Bundle");
+    }
+  }
+
+  @Override
+  public void update(AnActionEvent e) {
+    e.getPresentation().setEnabled(e.getData(PlatformDataKeys.PROJECT) != null &&
+                                   getJarRoot(e.getData(PlatformDataKeys.VIRTUAL_FILE)) != null);
+  }
+
+  @Nullable
+  private static VirtualFile getJarRoot(@Nullable VirtualFile file) {
+    if (file == null) return null;
+    if (file.getFileSystem() instanceof JarFileSystem) {
+      final VirtualFile jar = JarFileSystem.getInstance().getVirtualFileForJar(file);
+      return jar == null ? null : JarFileSystem.getInstance().getJarRootForLocalFile(jar);
+    }
+    return file.isDirectory() ? null : JarFileSystem.getInstance().getJarRootForLocalFile(file);
+  }
+}
@@ -19,28 +19,44 @@
  */
 package com.intellij.psi.stubs;
 
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.CompressionUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Map;
 
 public class SerializedStubTree {
+  // the keys of indexed stubs are stored with the tree, so stub indices are updated without deserializing the old tree
+  static final boolean ourStoreIndexedStubs = SystemProperties.getBooleanProperty("idea.stubs.store.indexed.keys", true);
+
   private final byte[] myBytes;
   private final int myLength;
   private final long myByteContentLength;
   private final int myCharContentLength;
   private Stub myStubElement;
+  @NotNull private final byte[] myIndexedStubBytes; // empty if the keys were not stored
+  private Map<StubIndexKey, Map<Object, StubIdList>> myIndexedStubs;
 
   public SerializedStubTree(final byte[] bytes, int length, @Nullable Stub stubElement, long byteContentLength, int charContentLength) {
+    this(bytes, length, stubElement, byteContentLength, charContentLength, null, ArrayUtil.EMPTY_BYTE_ARRAY);
+  }
+
+  SerializedStubTree(final byte[] bytes, int length, @Nullable Stub stubElement, long byteContentLength, int charContentLength,
+                     @Nullable Map<StubIndexKey, Map<Object, StubIdList>> indexedStubs, @NotNull byte[] indexedStubBytes) {
     myBytes = bytes;
     myLength = length;
     myByteContentLength = byteContentLength;
     myCharContentLength = charContentLength;
     myStubElement = stubElement;
+    myIndexedStubs = indexedStubs;
+    myIndexedStubBytes = indexedStubBytes;
   }
 
   public SerializedStubTree(DataInput in) throws IOException {
@@ -48,12 +64,31 @@ public class SerializedStubTree {
     myLength = myBytes.length;
     myByteContentLength = in.readLong();
     myCharContentLength = in.readInt();
+    myIndexedStubBytes = ourStoreIndexedStubs ? CompressionUtil.readCompressed(in) : ArrayUtil.EMPTY_BYTE_ARRAY;
   }
 
   public void write(DataOutput out) throws IOException {
     CompressionUtil.writeCompressed(out, myBytes, myLength);
     out.writeLong(myByteContentLength);
     out.writeInt(myCharContentLength);
+    if (ourStoreIndexedStubs) {
+      CompressionUtil.writeCompressed(out, myIndexedStubBytes, myIndexedStubBytes.length);
+    }
+  }
+
+  /**
+   * @return the keys of stubs indexed for the tree or null if they were not stored with the tree
+   */
+  @Nullable
+  Map<StubIndexKey, Map<Object, StubIdList>> getIndexedStubs() throws IOException {
+    final Map<StubIndexKey, Map<Object, StubIdList>> indexedStubs = myIndexedStubs;
+    if (indexedStubs != null) {
+      // like myStubElement, the keys computed while indexing are used once
+      myIndexedStubs = null;
+      return indexedStubs;
+    }
+    if (myIndexedStubBytes.length == 0) return null;
+    return ((StubIndexImpl)StubIndex.getInstance()).readIndexedStubs(new DataInputStream(new UnsyncByteArrayInputStream(myIndexedStubBytes)));
   }
 
   // willIndexStub is one time optimization hint, once can safely pass false
@@ -30,6 +30,7 @@ import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
@@ -43,21 +44,23 @@ import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.KeyDescriptor;
 import gnu.trove.THashMap;
+import gnu.trove.TIntHashSet;
 import gnu.trove.TObjectIntHashMap;
+import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 
@@ -79,6 +82,19 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
 
   private StubIndexState myPreviouslyRegistered;
 
+  private static final boolean ourSnapshotsEnabled = SystemProperties.getBooleanProperty("idea.stub.index.snapshots", false);
+  @NonNls private static final String SNAPSHOT_FILE_PREFIX = "snapshot.";
+  // with more changed files the snapshots are dropped until they are written again
+  private static final int MAX_DIRTY_FILES = 10000;
+  private volatile Snapshots mySnapshots = Snapshots.EMPTY;
+  // files with data of unsaved documents in the memory storages, these data are never written to snapshots
+  private volatile TIntHashSet myBufferedFiles = new TIntHashSet();
+  // files changed while the snapshots are being written, null when snapshots are not being written
+  @Nullable private TIntHashSet myFilesChangedWhileWritingSnapshots;
+  private final Object mySnapshotsLock = new Object();
+  private final AtomicBoolean mySnapshotsWriting = new AtomicBoolean();
+  private int mySnapshotsGeneration;
+
   public StubIndexImpl(FileBasedIndex fileBasedIndex /* need this to ensure initialization order*/ ) throws IOException {
     final boolean forceClean = Boolean.TRUE == ourForcedClean.getAndSet(Boolean.FALSE);
 
@@ -155,7 +171,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
             }
           }, LangBundle.message("compacting.indices.title"), false, null);
         final MemoryIndexStorage<K, StubIdList> memStorage = new MemoryIndexStorage<K, StubIdList>(storage);
-        myIndices.put(indexKey, new MyIndex<K>(memStorage));
+        myIndices.put(indexKey, new MyIndex<K>(memStorage, extension.getKeyDescriptor()));
         break;
       }
       catch (IOException e) {
@@ -207,6 +223,66 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
+  /**
+   * Writes the keys of stubs indexed for a file, each index is written as a separate block tagged with the index name, the block is
+   * skipped by readers not having the index registered. Numeric ids of indices aren't stable between installations, names are.
+   */
+  void writeIndexedStubs(@NotNull DataOutput out, @NotNull Map<StubIndexKey, Map<Object, StubIdList>> indexedStubs) throws IOException {
+    final StubIdExternalizer idExternalizer = new StubIdExternalizer();
+    final BufferExposingByteArrayOutputStream block = new BufferExposingByteArrayOutputStream();
+    final DataOutputStream blockOut = new DataOutputStream(block);
+    final List<StubIndexKey> keys = new ArrayList<StubIndexKey>(indexedStubs.size());
+    for (StubIndexKey key : indexedStubs.keySet()) {
+      if (myIndices.containsKey(key)) keys.add(key);
+    }
+
+    DataInputOutputUtil.writeINT(out, keys.size());
+    for (StubIndexKey key : keys) {
+      //noinspection unchecked
+      final KeyDescriptor<Object> keyDescriptor = ((MyIndex<Object>)myIndices.get(key)).myKeyDescriptor;
+      final Map<Object, StubIdList> stubs = indexedStubs.get(key);
+      block.reset();
+      DataInputOutputUtil.writeINT(blockOut, stubs.size());
+      for (Map.Entry<Object, StubIdList> entry : stubs.entrySet()) {
+        keyDescriptor.save(blockOut, entry.getKey());
+        idExternalizer.save(blockOut, entry.getValue());
+      }
+      out.writeUTF(key.toString());
+      DataInputOutputUtil.writeINT(out, block.size());
+      out.write(block.getInternalBuffer(), 0, block.size());
+    }
+  }
+
+  @NotNull
+  Map<StubIndexKey, Map<Object, StubIdList>> readIndexedStubs(@NotNull DataInput in) throws IOException {
+    final StubIdExternalizer idExternalizer = new StubIdExternalizer();
+    final int count = DataInputOutputUtil.readINT(in);
+    final Map<StubIndexKey, Map<Object, StubIdList>> result = new THashMap<StubIndexKey, Map<Object, StubIdList>>(count);
+    for (int i = 0; i < count; i++) {
+      final ID<?, ?> id = ID.findByName(in.readUTF());
+      int length = DataInputOutputUtil.readINT(in);
+      //noinspection unchecked
+      final MyIndex<Object> index = id instanceof StubIndexKey ? (MyIndex<Object>)myIndices.get(id) : null;
+      if (index == null) {
+        while (length > 0) {
+          final int skipped = in.skipBytes(length);
+          if (skipped <= 0) throw new EOFException();
+          length -= skipped;
+        }
+        continue;
+      }
+
+      final int size = DataInputOutputUtil.readINT(in);
+      final Map<Object, StubIdList> stubs = new THashMap<Object, StubIdList>(size);
+      for (int j = 0; j < size; j++) {
+        final Object key = index.myKeyDescriptor.read(in);
+        stubs.put(key, idExternalizer.read(in));
+      }
+      result.put((StubIndexKey)id, stubs);
+    }
+    return result;
+  }
+
   @NotNull
   @Override
   public <Key, Psi extends PsiElement> Collection<Psi> get(@NotNull final StubIndexKey<Key, Psi> indexKey,
@@ -230,29 +306,65 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
 
     final MyIndex<Key> index = (MyIndex<Key>)myIndices.get(indexKey);
+    final FileBasedIndexImpl.ProjectIndexableFilesFilter projectFilesFilter = fileBasedIndex.projectIndexableFiles(project);
+
+    ValueContainer.ContainerAction<StubIdList> action = new ValueContainer.ContainerAction<StubIdList>() {
+      @Override
+      public boolean perform(final int id, @NotNull final StubIdList value) {
+        ProgressManager.checkCanceled();
+        if (projectFilesFilter != null && !projectFilesFilter.contains(id)) return true;
+        final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
+        if (file == null || scope != null && !scope.contains(file)) {
+          return true;
+        }
+        return myStubProcessingHelper.processStubsInFile(project, file, value, processor);
+      }
+    };
 
     try {
+      final Snapshots snapshots = mySnapshots;
+      final StubIndexSnapshot<Key> snapshot = (StubIndexSnapshot<Key>)snapshots.myIndices.get(indexKey);
+      if (snapshot != null) {
+        final TIntHashSet dirtyFiles = snapshots.myDirtyFiles;
+        final TIntHashSet bufferedFiles = myBufferedFiles;
+        final ValueContainer.ContainerAction<StubIdList> snapshotAction = action;
+        boolean snapshotProcessed = false;
+        try {
+          if (!snapshot.forEach(key, new ValueContainer.ContainerAction<StubIdList>() {
+            @Override
+            public boolean perform(int id, StubIdList value) {
+              return dirtyFiles.contains(id) || bufferedFiles.contains(id) || snapshotAction.perform(id, value);
+            }
+          })) {
+            return false;
+          }
+          snapshotProcessed = true;
+        }
+        catch (IOException e) {
+          LOG.info(e);
+          dropSnapshots();
+        }
+
+        if (snapshotProcessed) {
+          if (dirtyFiles.isEmpty() && bufferedFiles.isEmpty()) return true;
+
+          // only the files changed after the snapshot was written are looked up in the live index
+          action = new ValueContainer.ContainerAction<StubIdList>() {
+            @Override
+            public boolean perform(int id, StubIdList value) {
+              return !dirtyFiles.contains(id) && !bufferedFiles.contains(id) || snapshotAction.perform(id, value);
+            }
+          };
+        }
+      }
+
       try {
         // disable up-to-date check to avoid locks on attempt to acquire index write lock while holding at the same time the readLock for this index
         FileBasedIndexImpl.disableUpToDateCheckForCurrentThread();
         index.getReadLock().lock();
         final ValueContainer<StubIdList> container = index.getData(key);
 
-        final FileBasedIndexImpl.ProjectIndexableFilesFilter projectFilesFilter = fileBasedIndex.projectIndexableFiles(project);
-
-        return container.forEach(new ValueContainer.ContainerAction<StubIdList>() {
-          @Override
-          public boolean perform(final int id, @NotNull final StubIdList value) {
-            ProgressManager.checkCanceled();
-            if (projectFilesFilter != null && !projectFilesFilter.contains(id)) return true;
-            final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
-            if (file == null || scope != null && !scope.contains(file)) {
-              return true;
-            }
-            return myStubProcessingHelper.processStubsInFile(project, file, value, processor);
-          }
-
-        });
+        return container.forEach(action);
       }
       finally {
         index.getReadLock().unlock();
@@ -298,6 +410,17 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
 
     final MyIndex<K> index = (MyIndex<K>)myIndices.get(indexKey);
     try {
+      final Snapshots snapshots = mySnapshots;
+      final StubIndexSnapshot<K> snapshot = (StubIndexSnapshot<K>)snapshots.myIndices.get(indexKey);
+      if (snapshot != null && snapshots.myDirtyFiles.isEmpty() && myBufferedFiles.isEmpty()) {
+        try {
+          return snapshot.processKeys(processor);
+        }
+        catch (IOException e) {
+          LOG.info(e);
+          dropSnapshots();
+        }
+      }
       return index.processAllKeys(processor);
     }
     catch (StorageException e) {
@@ -331,6 +454,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   }
 
   public void dispose() {
+    dropSnapshots();
     for (UpdatableIndex index : myIndices.values()) {
       index.dispose();
     }
@@ -354,10 +478,17 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
         index.getWriteLock().unlock();
       }
     }
+    if (ourSnapshotsEnabled) {
+      // under the lock: fileStubsChanged() replaces the set with a copy and would bring the cleared files back
+      synchronized (mySnapshotsLock) {
+        myBufferedFiles = new TIntHashSet();
+      }
+    }
   }
 
 
   public void clearAllIndices() {
+    dropSnapshots();
     for (UpdatableIndex index : myIndices.values()) {
       try {
         index.clear();
@@ -407,6 +538,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   public <K> void updateIndex(@NotNull StubIndexKey key, int fileId, @NotNull final Map<K, StubIdList> oldValues, @NotNull Map<K, StubIdList> newValues) {
     try {
       final MyIndex<K> index = (MyIndex<K>)myIndices.get(key);
+      if (ourSnapshotsEnabled) fileStubsChanged(fileId, ((MemoryIndexStorage)index.getStorage()).isBufferingEnabled());
       index.updateWithMap(fileId, newValues, new Callable<Collection<K>>() {
         @Override
         public Collection<K> call() throws Exception {
@@ -420,9 +552,120 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
+  private void fileStubsChanged(int fileId, boolean buffered) {
+    synchronized (mySnapshotsLock) {
+      if (myFilesChangedWhileWritingSnapshots != null) myFilesChangedWhileWritingSnapshots.add(fileId);
+      if (buffered) {
+        if (!myBufferedFiles.contains(fileId)) myBufferedFiles = copyWith(myBufferedFiles, fileId);
+        return;
+      }
+      final Snapshots snapshots = mySnapshots;
+      if (snapshots.myIndices.isEmpty() || snapshots.myDirtyFiles.contains(fileId)) return;
+      if (snapshots.myDirtyFiles.size() >= MAX_DIRTY_FILES) {
+        mySnapshots = Snapshots.EMPTY;
+      }
+      else {
+        mySnapshots = new Snapshots(snapshots.myIndices, copyWith(snapshots.myDirtyFiles, fileId));
+      }
+    }
+  }
+
+  @NotNull
+  private static TIntHashSet copyWith(@NotNull TIntHashSet set, int id) {
+    final TIntHashSet copy = new TIntHashSet(set.size() + 1);
+    copy.addAll(set.toArray());
+    copy.add(id);
+    return copy;
+  }
+
+  private void dropSnapshots() {
+    synchronized (mySnapshotsLock) {
+      mySnapshots = Snapshots.EMPTY;
+    }
+  }
+
+  /**
+   * Writes read-only snapshots of all stub indices in background, the lookups use them for the files not changed since then.
+   * Does nothing unless snapshots are enabled with <code>idea.stub.index.snapshots</code>.
+   */
+  public void scheduleSnapshotsWriting() {
+    if (!ourSnapshotsEnabled || !mySnapshotsWriting.compareAndSet(false, true)) return;
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeSnapshots();
+        }
+        finally {
+          mySnapshotsWriting.set(false);
+        }
+      }
+    });
+  }
+
+  private void writeSnapshots() {
+    final int generation;
+    synchronized (mySnapshotsLock) {
+      myFilesChangedWhileWritingSnapshots = new TIntHashSet();
+      generation = ++mySnapshotsGeneration;
+    }
+
+    Map<StubIndexKey<?, ?>, StubIndexSnapshot<?>> snapshots = new THashMap<StubIndexKey<?, ?>, StubIndexSnapshot<?>>();
+    final long started = System.currentTimeMillis();
+    try {
+      for (Map.Entry<StubIndexKey<?, ?>, MyIndex<?>> entry : myIndices.entrySet()) {
+        snapshots.put(entry.getKey(), writeSnapshot(entry.getKey(), entry.getValue(), generation));
+      }
+      LOG.info("Stub index snapshots written in " + (System.currentTimeMillis() - started) + " ms");
+    }
+    catch (Exception e) {
+      LOG.info(e);
+      snapshots = null;
+    }
+
+    synchronized (mySnapshotsLock) {
+      if (snapshots != null && myFilesChangedWhileWritingSnapshots.size() < MAX_DIRTY_FILES) {
+        mySnapshots = new Snapshots(snapshots, myFilesChangedWhileWritingSnapshots);
+      }
+      myFilesChangedWhileWritingSnapshots = null;
+    }
+  }
+
+  @NotNull
+  private static <K> StubIndexSnapshot<K> writeSnapshot(@NotNull StubIndexKey<?, ?> indexKey, @NotNull MyIndex<K> index, int generation)
+    throws IOException, StorageException {
+    final File dir = IndexInfrastructure.getIndexRootDir(indexKey);
+    final String name = SNAPSHOT_FILE_PREFIX + generation;
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        // snapshot files still mapped by running lookups can't be deleted on some platforms, they'll be deleted next time
+        if (file.getName().startsWith(SNAPSHOT_FILE_PREFIX) && !file.getName().equals(name)) FileUtil.delete(file);
+      }
+    }
+    final IndexStorage<K, StubIdList> storage = ((MemoryIndexStorage<K, StubIdList>)index.getStorage()).getBackendStorage();
+    return StubIndexSnapshot.write(new File(dir, name), storage, index.getReadLock(), index.myKeyDescriptor, new StubIdExternalizer());
+  }
+
+  private static class Snapshots {
+    private static final Snapshots EMPTY = new Snapshots(Collections.<StubIndexKey<?, ?>, StubIndexSnapshot<?>>emptyMap(), new TIntHashSet());
+
+    private final Map<StubIndexKey<?, ?>, StubIndexSnapshot<?>> myIndices;
+    // files changed after the snapshots were written, their data are taken from the live indices
+    private final TIntHashSet myDirtyFiles;
+
+    private Snapshots(@NotNull Map<StubIndexKey<?, ?>, StubIndexSnapshot<?>> indices, @NotNull TIntHashSet dirtyFiles) {
+      myIndices = indices;
+      myDirtyFiles = dirtyFiles;
+    }
+  }
+
   private static class MyIndex<K> extends MapReduceIndex<K, StubIdList, Void> {
-    public MyIndex(final IndexStorage<K, StubIdList> storage) {
+    private final KeyDescriptor<K> myKeyDescriptor;
+
+    public MyIndex(final IndexStorage<K, StubIdList> storage, @NotNull KeyDescriptor<K> keyDescriptor) {
       super(null, null, storage);
+      myKeyDescriptor = keyDescriptor;
     }
 
     @Override
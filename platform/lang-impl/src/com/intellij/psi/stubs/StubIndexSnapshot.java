@@ -0,0 +1,228 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.util.Processor;
+import com.intellij.util.indexing.IndexStorage;
+import com.intellij.util.indexing.StorageException;
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Read-only snapshot of a stub index, written when indexing is finished and read from the mapped file without taking index locks.
+ * <p/>
+ * The file holds the records of keys, each record is the key followed by the ids of files with stubs for the key and their stub ids.
+ * The records are followed by the directory of key hashes and record offsets, sorted by hash, and the trailer with the number of keys
+ * and the offset of the directory.
+ * <p/>
+ * The mapped buffer is never unmapped explicitly since lookups may still be in progress when a snapshot is replaced,
+ * it is released by the garbage collector.
+ */
+class StubIndexSnapshot<K> {
+  private final KeyDescriptor<K> myKeyDescriptor;
+  private final DataExternalizer<StubIdList> myValueExternalizer;
+  private final ByteBuffer myBuffer;
+  private final int myKeysCount;
+  private final int myDirectoryOffset;
+
+  private StubIndexSnapshot(@NotNull File file, @NotNull KeyDescriptor<K> keyDescriptor, @NotNull DataExternalizer<StubIdList> valueExternalizer)
+    throws IOException {
+    myKeyDescriptor = keyDescriptor;
+    myValueExternalizer = valueExternalizer;
+    final FileInputStream stream = new FileInputStream(file);
+    try {
+      final FileChannel channel = stream.getChannel();
+      try {
+        myBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      finally {
+        channel.close();
+      }
+    }
+    finally {
+      stream.close();
+    }
+    myKeysCount = myBuffer.getInt(myBuffer.limit() - 8);
+    myDirectoryOffset = myBuffer.getInt(myBuffer.limit() - 4);
+  }
+
+  /**
+   * Writes the snapshot of the storage data to the file. Every key is read under the read lock, so the data of files updated
+   * while the snapshot is written may be inconsistent and are to be taken from the live index.
+   */
+  @NotNull
+  static <K> StubIndexSnapshot<K> write(@NotNull File file,
+                                        @NotNull IndexStorage<K, StubIdList> storage,
+                                        @NotNull Lock readLock,
+                                        @NotNull KeyDescriptor<K> keyDescriptor,
+                                        @NotNull final DataExternalizer<StubIdList> valueExternalizer) throws IOException, StorageException {
+    final List<K> keys = new ArrayList<K>();
+    readLock.lock();
+    try {
+      storage.processKeys(new Processor<K>() {
+        @Override
+        public boolean process(K key) {
+          keys.add(key);
+          return true;
+        }
+      });
+    }
+    finally {
+      readLock.unlock();
+    }
+
+    final long[] directory = new long[keys.size()];
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      int count = 0;
+      for (K key : keys) {
+        final ValueContainer<StubIdList> container;
+        readLock.lock();
+        try {
+          container = storage.read(key);
+        }
+        finally {
+          readLock.unlock();
+        }
+        // size() counts distinct values, files with equal stub id lists share a value
+        final int[] filesCount = {0};
+        container.forEach(new ValueContainer.ContainerAction<StubIdList>() {
+          @Override
+          public boolean perform(int id, StubIdList value) {
+            filesCount[0]++;
+            return true;
+          }
+        });
+        if (filesCount[0] == 0) continue;
+
+        directory[count++] = ((long)keyDescriptor.getHashCode(key) << 32) | out.size();
+        keyDescriptor.save(out, key);
+        out.writeInt(filesCount[0]);
+        container.forEach(new ValueContainer.ContainerAction<StubIdList>() {
+          @Override
+          public boolean perform(int id, StubIdList value) {
+            try {
+              out.writeInt(id);
+              valueExternalizer.save(out, value);
+            }
+            catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+            return true;
+          }
+        });
+      }
+
+      Arrays.sort(directory, 0, count);
+      final int directoryOffset = out.size();
+      for (int i = 0; i < count; ++i) {
+        out.writeLong(directory[i]);
+      }
+      out.writeInt(count);
+      out.writeInt(directoryOffset);
+    }
+    catch (RuntimeException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      throw e;
+    }
+    finally {
+      out.close();
+    }
+    return new StubIndexSnapshot<K>(file, keyDescriptor, valueExternalizer);
+  }
+
+  boolean forEach(@NotNull K key, @NotNull ValueContainer.ContainerAction<StubIdList> action) throws IOException {
+    final int hash = myKeyDescriptor.getHashCode(key);
+    final ByteBuffer buffer = myBuffer.duplicate();
+    final DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+
+    for (int i = findFirst(hash); i < myKeysCount && hashAt(i) == hash; ++i) {
+      buffer.position(recordOffsetAt(i));
+      if (!myKeyDescriptor.isEqual(key, myKeyDescriptor.read(in))) continue;
+      final int filesCount = in.readInt();
+      for (int j = 0; j < filesCount; ++j) {
+        final int id = in.readInt();
+        if (!action.perform(id, myValueExternalizer.read(in))) return false;
+      }
+      break;
+    }
+    return true;
+  }
+
+  boolean processKeys(@NotNull Processor<K> processor) throws IOException {
+    final ByteBuffer buffer = myBuffer.duplicate();
+    final DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+    for (int i = 0; i < myKeysCount; ++i) {
+      buffer.position(recordOffsetAt(i));
+      if (!processor.process(myKeyDescriptor.read(in))) return false;
+    }
+    return true;
+  }
+
+  private int findFirst(int hash) {
+    int low = 0;
+    int high = myKeysCount;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (hashAt(mid) < hash) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private int hashAt(int index) {
+    return myBuffer.getInt(myDirectoryOffset + index * 8);
+  }
+
+  private int recordOffsetAt(int index) {
+    return myBuffer.getInt(myDirectoryOffset + index * 8 + 4);
+  }
+
+  private static class BufferInputStream extends InputStream {
+    private final ByteBuffer myBuffer;
+
+    private BufferInputStream(@NotNull ByteBuffer buffer) {
+      myBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NotNull byte[] bytes, int offset, int length) {
+      if (!myBuffer.hasRemaining()) return -1;
+      length = Math.min(length, myBuffer.remaining());
+      myBuffer.get(bytes, offset, length);
+      return length;
+    }
+  }
+}
@@ -50,7 +50,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
 
   public static final ID<Integer, SerializedStubTree> INDEX_ID = ID.create("Stubs");
 
-  private static final int VERSION = 25;
+  private static final int VERSION = 26 + (SerializedStubTree.ourStoreIndexedStubs ? 100 : 0);
 
   private static final DataExternalizer<SerializedStubTree> KEY_EXTERNALIZER = new DataExternalizer<SerializedStubTree>() {
     @Override
@@ -139,7 +139,22 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
             SerializationManagerEx.getInstanceEx().serialize(rootStub, bytes);
 
             final int key = Math.abs(FileBasedIndex.getFileId(file));
-            result.put(key, new SerializedStubTree(bytes.getInternalBuffer(), bytes.size(), rootStub, file.getLength(), contentLength));
+            if (SerializedStubTree.ourStoreIndexedStubs) {
+              // the stub tree is indexed here once, its keys are stored with the serialized tree and used for the stub indices update
+              final Map<StubIndexKey, Map<Object, StubIdList>> indexedStubs = indexStubTree(rootStub);
+              final BufferExposingByteArrayOutputStream indexedStubBytes = new BufferExposingByteArrayOutputStream();
+              try {
+                ((StubIndexImpl)StubIndex.getInstance()).writeIndexedStubs(new DataOutputStream(indexedStubBytes), indexedStubs);
+              }
+              catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+              result.put(key, new SerializedStubTree(bytes.getInternalBuffer(), bytes.size(), null, file.getLength(), contentLength,
+                                                     indexedStubs, indexedStubBytes.toByteArray()));
+            }
+            else {
+              result.put(key, new SerializedStubTree(bytes.getInternalBuffer(), bytes.size(), rootStub, file.getLength(), contentLength));
+            }
           }
         });
 
@@ -148,6 +163,23 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     };
   }
 
+  @NotNull
+  private static Map<StubIndexKey, Map<Object, StubIdList>> indexStubTree(@NotNull Stub root) {
+    Map<StubIndexKey, Map<Object, int[]>> map = new ObjectStubTree((ObjectStubBase)root, false).indexStubTree();
+
+    // xxx:fix refs inplace
+    final Map<StubIndexKey, Map<Object, StubIdList>> stubTree = (Map)map;
+    for(StubIndexKey key:map.keySet()) {
+      Map<Object, int[]> value = map.get(key);
+      for(Object k: value.keySet()) {
+        int[] ints = value.get(k);
+        StubIdList stubList = ints.length == 1 ? new StubIdList(ints[0]) : new StubIdList(ints, ints.length);
+        ((Map<Object, StubIdList>)(Map)value).put(k, stubList);
+      }
+    }
+    return stubTree;
+  }
+
   private static void rememberIndexingStamp(final VirtualFile file, long contentLength) {
     try {
       DataOutputStream stream = INDEXED_STAMP.writeAttribute(file);
@@ -367,19 +399,15 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       final Map<StubIndexKey, Map<Object, StubIdList>> stubTree;
       if (!data.isEmpty()) {
         final SerializedStubTree stub = data.values().iterator().next();
-        ObjectStubBase root = (ObjectStubBase)stub.getStub(true);
-        Map<StubIndexKey, Map<Object, int[]>> map = new ObjectStubTree(root, false).indexStubTree();
-
-        // xxx:fix refs inplace
-        stubTree = (Map)map;
-        for(StubIndexKey key:map.keySet()) {
-          Map<Object, int[]> value = map.get(key);
-          for(Object k: value.keySet()) {
-            int[] ints = value.get(k);
-            StubIdList stubList = ints.length == 1 ? new StubIdList(ints[0]) : new StubIdList(ints, ints.length);
-            ((Map<Object, StubIdList>)(Map)value).put(k, stubList);
-          }
+        Map<StubIndexKey, Map<Object, StubIdList>> indexedStubs;
+        try {
+          indexedStubs = stub.getIndexedStubs();
+        }
+        catch (IOException e) {
+          LOG.info(e);
+          indexedStubs = null;
         }
+        stubTree = indexedStubs != null ? indexedStubs : indexStubTree(stub.getStub(true));
       }
       else {
         stubTree = Collections.emptyMap();
@@ -118,7 +118,8 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
       final ValueContainerImpl<Value> newMerged;
 
       if (fromDisk instanceof ValueContainerImpl) {
-        newMerged = ((ValueContainerImpl<Value>)fromDisk).copy();
+        // container is freshly read from the storage and not shared, so there is no need to copy input id sets
+        newMerged = (ValueContainerImpl<Value>)fromDisk;
       } else {
         newMerged = ((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData().copy();
       }
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.LanguageFileType;
+import com.intellij.openapi.fileTypes.TemplateLanguageFileType;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.NotNullComputable;
+import com.intellij.psi.LanguageSubstitutors;
+import com.intellij.util.Processor;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data mapped by an index from file contents, keyed by the hash of the content, its charset and the file type.
+ * <p/>
+ * Only the indices which data depend on the content and the file type alone may share the data, so identical contents
+ * are mapped once and the data are reused for every file with the content. Files of template languages and of languages
+ * with substitutors are always mapped, their data may depend on the file location.
+ * <p/>
+ * Nothing tracks which files still have a content, so the storage is dropped as a whole once it holds more than
+ * the given number of contents and is filled again by the files indexed afterwards.
+ */
+class ContentHashIndexData<K, V> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.ContentHashIndexData");
+  private static final Key<byte[]> CONTENT_HASH = Key.create("content.hash.with.file.type");
+  private static final int HASH_LENGTH = 20;
+
+  private static final KeyDescriptor<byte[]> HASH_DESCRIPTOR = new KeyDescriptor<byte[]>() {
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] hash = new byte[HASH_LENGTH];
+      in.readFully(hash);
+      return hash;
+    }
+
+    @Override
+    public int getHashCode(byte[] value) {
+      return Arrays.hashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+  };
+
+  private final File myFile;
+  private final DataExternalizer<Map<K, V>> myDataExternalizer;
+  private final int myLimit;
+  private PersistentHashMap<byte[], Map<K, V>> myData; // guarded by this
+  private int mySize; // guarded by this
+
+  private final AtomicInteger myHits = new AtomicInteger();
+  private final AtomicInteger myMisses = new AtomicInteger();
+
+  ContentHashIndexData(@NotNull File file, @NotNull FileBasedIndexExtension<K, V> extension, int limit) throws IOException {
+    this(file, extension.getKeyDescriptor(), extension.getValueExternalizer(), limit);
+  }
+
+  ContentHashIndexData(@NotNull File file, @NotNull KeyDescriptor<K> keyDescriptor, @NotNull DataExternalizer<V> valueExternalizer, int limit)
+    throws IOException {
+    myFile = file;
+    myDataExternalizer = new MapDataExternalizer<K, V>(keyDescriptor, valueExternalizer);
+    myLimit = limit;
+    myData = open();
+    mySize = countContents(myData);
+  }
+
+  @NotNull
+  private PersistentHashMap<byte[], Map<K, V>> open() throws IOException {
+    try {
+      return new PersistentHashMap<byte[], Map<K, V>>(myFile, HASH_DESCRIPTOR, myDataExternalizer);
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      PersistentHashMap.deleteFilesStartingWith(myFile);
+      return new PersistentHashMap<byte[], Map<K, V>>(myFile, HASH_DESCRIPTOR, myDataExternalizer);
+    }
+  }
+
+  private static int countContents(@NotNull PersistentHashMap<byte[], ?> data) throws IOException {
+    final int[] count = {0};
+    data.processKeysWithExistingMapping(new Processor<byte[]>() {
+      @Override
+      public boolean process(byte[] hash) {
+        count[0]++;
+        return true;
+      }
+    });
+    return count[0];
+  }
+
+  /**
+   * @return the data of the content, either read from the storage or mapped by the index and stored
+   */
+  @NotNull
+  Map<K, V> map(@NotNull final MapReduceIndex<K, V, FileContent> index, @NotNull final FileContent content) {
+    if (!dependsOnContentOnly(content.getFileType())) {
+      return index.mapInput(content);
+    }
+
+    return map(getHash(content), new NotNullComputable<Map<K, V>>() {
+      @NotNull
+      @Override
+      public Map<K, V> compute() {
+        return index.mapInput(content);
+      }
+    });
+  }
+
+  @NotNull
+  Map<K, V> map(@NotNull byte[] hash, @NotNull NotNullComputable<Map<K, V>> mapper) {
+    try {
+      synchronized (this) {
+        final Map<K, V> data = myData.get(hash);
+        if (data != null) {
+          myHits.incrementAndGet();
+          return data;
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+
+    myMisses.incrementAndGet();
+    final Map<K, V> data = mapper.compute();
+    try {
+      synchronized (this) {
+        if (mySize >= myLimit) {
+          LOG.info("Shared content data of " + myFile.getName() + " exceeded " + myLimit + " contents, dropping it");
+          clear();
+        }
+        if (!myData.containsMapping(hash)) mySize++;
+        myData.put(hash, data);
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+    return data;
+  }
+
+  synchronized void flush() {
+    if (myData.isDirty()) myData.force();
+  }
+
+  synchronized void clear() throws IOException {
+    myData.close();
+    PersistentHashMap.deleteFilesStartingWith(myFile);
+    myData = open();
+    mySize = 0;
+  }
+
+  synchronized int size() {
+    return mySize;
+  }
+
+  synchronized void dispose() {
+    LOG.info("Shared content data of " + myFile.getName() + ": " + myHits.get() + " hits, " + myMisses.get() + " misses");
+    try {
+      myData.close();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  private static boolean dependsOnContentOnly(@NotNull FileType fileType) {
+    if (fileType instanceof TemplateLanguageFileType) return false;
+    return !(fileType instanceof LanguageFileType) ||
+           LanguageSubstitutors.INSTANCE.allForLanguage(((LanguageFileType)fileType).getLanguage()).isEmpty();
+  }
+
+  @NotNull
+  private static byte[] getHash(@NotNull FileContent content) {
+    byte[] hash = content.getUserData(CONTENT_HASH);
+    if (hash == null) {
+      // the charset defines the text the index sees, so the same bytes decoded differently must not share the data
+      final Charset charset = content instanceof FileContentImpl ? ((FileContentImpl)content).getCharset() : null;
+      hash = getHash(content.getFileType().getName(), charset, content.getContent());
+      content.putUserData(CONTENT_HASH, hash);
+    }
+    return hash;
+  }
+
+  @NotNull
+  static byte[] getHash(@NotNull String fileTypeName, @Nullable Charset charset, @NotNull byte[] content) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA1");
+      digest.update(fileTypeName.getBytes(Charset.defaultCharset()));
+      digest.update((byte)0);
+      if (charset != null) digest.update(charset.name().getBytes(Charset.defaultCharset()));
+      digest.update((byte)0);
+      digest.update(content);
+      return digest.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class MapDataExternalizer<K, V> implements DataExternalizer<Map<K, V>> {
+    private final KeyDescriptor<K> myKeyDescriptor;
+    private final DataExternalizer<V> myValueExternalizer;
+
+    private MapDataExternalizer(@NotNull KeyDescriptor<K> keyDescriptor, @NotNull DataExternalizer<V> valueExternalizer) {
+      myKeyDescriptor = keyDescriptor;
+      myValueExternalizer = valueExternalizer;
+    }
+
+    @Override
+    public void save(DataOutput out, Map<K, V> data) throws IOException {
+      out.writeInt(data.size());
+      for (Map.Entry<K, V> entry : data.entrySet()) {
+        myKeyDescriptor.save(out, entry.getKey());
+        myValueExternalizer.save(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public Map<K, V> read(DataInput in) throws IOException {
+      final int size = in.readInt();
+      final Map<K, V> data = new THashMap<K, V>(size);
+      for (int i = 0; i < size; ++i) {
+        final K key = myKeyDescriptor.read(in);
+        data.put(key, myValueExternalizer.read(in));
+      }
+      return data;
+    }
+  }
+}
@@ -45,6 +45,7 @@ import com.intellij.openapi.roots.*;
 import com.intellij.openapi.util.*;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.impl.BulkVirtualFileListenerAdapter;
 import com.intellij.openapi.vfs.newvfs.BulkFileListener;
@@ -75,6 +76,7 @@ import jsr166e.SequenceLock;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
 import java.lang.ref.SoftReference;
@@ -128,6 +130,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   @Nullable private final String myLogPath;
   private final boolean myIsUnitTestMode;
   @Nullable private ScheduledFuture<?> myFlushingFuture;
+  @Nullable private IndexBundles myIndexBundles;
+  // data of indices mapped once for identical contents, filled on initialization only
+  private final Map<ID<?, ?>, ContentHashIndexData<?, ?>> myContentHashIndexData = new THashMap<ID<?, ?>, ContentHashIndexData<?, ?>>();
   private volatile int myLocalModCount;
   private volatile int myFilesModCount;
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
@@ -307,6 +312,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       dropUnregisteredIndices();
 
+      myIndexBundles = IndexBundles.loadAttachedBundles();
+
       // check if rebuild was requested for any index during registration
       for (ID<?, ?> indexId : myIndices.keySet()) {
         if (ourRebuildStatus.get(indexId).compareAndSet(REQUIRES_REBUILD, OK)) {
@@ -536,6 +543,15 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
+    if (ourKeyFilteredIndices.contains(indexId.toString())) {
+      final File filterFile = new File(IndexInfrastructure.getStorageFile(indexId).getPath() + ".bloom");
+      index.setKeyFilter(new KeyBloomFilter<K>(filterFile, keyDescriptor, ourKeyFilterBits));
+    }
+    if (ourContentHashIndices.contains(indexId.toString()) && extension.dependsOnFileContent()) {
+      final File dataFile = new File(IndexInfrastructure.getIndexRootDir(indexId), indexId + ".contents");
+      final ContentHashIndexData<?, ?> previous = myContentHashIndexData.put(indexId, new ContentHashIndexData<K, V>(dataFile, extension, ourContentHashDataLimit));
+      if (previous != null) previous.dispose();
+    }
     index.setInputIdToDataKeysIndex(new Factory<PersistentHashMap<Integer, Collection<K>>>() {
       @Override
       public PersistentHashMap<Integer, Collection<K>> create() {
@@ -717,6 +733,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       LOG.info("START INDEX SHUTDOWN");
       try {
         myChangedFilesCollector.forceUpdate(null, null, null, true);
+        ensureContentIndicesUpToDate();
         IndexingStamp.flushCaches();
 
         for (ID<?, ?> indexId : myIndices.keySet()) {
@@ -725,6 +742,11 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           checkRebuild(indexId, true); // if the index was scheduled for rebuild, only clean it
           index.dispose();
         }
+        IndexingStamp.close();
+        if (myIndexBundles != null) myIndexBundles.dispose();
+        for (ContentHashIndexData<?, ?> data : myContentHashIndexData.values()) {
+          data.dispose();
+        }
 
         myConnection.disconnect();
       }
@@ -749,6 +771,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         if (index != null) {
           index.flush();
         }
+        final ContentHashIndexData<?, ?> contentHashData = myContentHashIndexData.get(indexId);
+        if (contentHashData != null) {
+          contentHashData.flush();
+        }
       }
       catch (StorageException e) {
         LOG.info(e);
@@ -769,6 +795,16 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return allKeys;
   }
 
+  @Override
+  public <K> boolean mayContainKey(@NotNull ID<K, ?> indexId, @NotNull K dataKey, @NotNull GlobalSearchScope filter) {
+    final UpdatableIndex<K, ?, FileContent> index = getIndex(indexId);
+    if (!(index instanceof MapReduceIndex)) {
+      return true;
+    }
+    ensureUpToDate(indexId, filter.getProject(), filter);
+    return ((MapReduceIndex<K, ?, FileContent>)index).mayContainKey(dataKey);
+  }
+
   @Override
   public <K> boolean processAllKeys(@NotNull final ID<K, ?> indexId, Processor<K> processor, @Nullable Project project) {
     try {
@@ -843,6 +879,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                     @Nullable VirtualFile restrictedFile) {
     ProgressManager.checkCanceled();
     myContentlessIndicesUpdateQueue.ensureUpToDate(); // some content full indices depends on contentless ones
+    ensureContentIndicesUpToDate();
     if (!needsFileContentLoading(indexId)) {
       return; //indexed eagerly in foreground while building unindexed file list
     }
@@ -865,6 +902,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         try {
           checkRebuild(indexId, false);
           myChangedFilesCollector.forceUpdate(project, filter, restrictedFile, false);
+          ensureContentIndicesUpToDate();
           indexUnsavedDocuments(indexId, project, filter, restrictedFile);
         }
         catch (StorageException e) {
@@ -1109,10 +1147,23 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   void filesUpdateStarted(Project project) {
     myContentlessIndicesUpdateQueue.signalUpdateStart();
     myContentlessIndicesUpdateQueue.ensureUpToDate();
+    TaskQueue[] contentQueues = myContentIndicesUpdateQueues;
+    if (contentQueues != null) {
+      for (TaskQueue queue : contentQueues) {
+        queue.signalUpdateStart();
+      }
+    }
     myProjectsBeingUpdated.add(project);
   }
 
   void filesUpdateFinished(@NotNull Project project) {
+    TaskQueue[] contentQueues = myContentIndicesUpdateQueues;
+    if (contentQueues != null) {
+      for (TaskQueue queue : contentQueues) {
+        queue.ensureUpToDate();
+        queue.signalUpdateEnd();
+      }
+    }
     myProjectsBeingUpdated.remove(project);
     ++myFilesModCount;
   }
@@ -1423,7 +1474,17 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private void clearIndex(@NotNull final ID<?, ?> indexId) throws StorageException {
     final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
     assert index != null : "Index with key " + indexId + " not found or not registered properly";
+    ensureContentIndicesUpToDate(); // pending updates must not get into the cleared index
     index.clear();
+    final ContentHashIndexData<?, ?> contentHashData = myContentHashIndexData.get(indexId);
+    if (contentHashData != null) {
+      try {
+        contentHashData.clear();
+      }
+      catch (IOException e) {
+        throw new StorageException(e);
+      }
+    }
     try {
       IndexInfrastructure.rewriteVersion(IndexInfrastructure.getVersionFile(indexId), myIndexIdToVersionMap.get(indexId));
     }
@@ -1611,6 +1672,44 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   private final TaskQueue myContentlessIndicesUpdateQueue = new TaskQueue(10000);
+  // indices with bloom filters of keys short-circuiting lookups of absent keys
+  private static final Set<String> ourKeyFilteredIndices =
+    new THashSet<String>(StringUtil.split(System.getProperty("idea.indices.key.filter", "IdIndex"), ","));
+  private static final int ourKeyFilterBits = SystemProperties.getIntProperty("idea.indices.key.filter.bits", 1 << 24);
+  // indices which data depend on the file content and type only, the data are mapped once for identical contents
+  private static final Set<String> ourContentHashIndices =
+    new THashSet<String>(StringUtil.split(System.getProperty("idea.indices.shared.by.content", "IdIndex,TodoIndex"), ","));
+  private static final int ourContentHashDataLimit = SystemProperties.getIntProperty("idea.indices.shared.by.content.limit", 100000);
+  private static final long CONTENT_INDICES_FLUSH_DELAY = 500;
+  // when not null, storage updates of content dependent indices are performed by writer threads while indexing threads map next files,
+  // updates of each index go through the same queue to keep their order.
+  // Updates submitted outside of files update (e.g. on VFS events) are flushed by a pooled thread after a delay
+  @Nullable private volatile TaskQueue[] myContentIndicesUpdateQueues =
+    createContentIndicesUpdateQueues(SystemProperties.getIntProperty("idea.indices.content.writers", 0));
+
+  @Nullable
+  private static TaskQueue[] createContentIndicesUpdateQueues(int writers) {
+    if (writers <= 0) return null;
+    TaskQueue[] queues = new TaskQueue[writers];
+    for (int i = 0; i < writers; ++i) {
+      queues[i] = new TaskQueue(1000, CONTENT_INDICES_FLUSH_DELAY);
+    }
+    return queues;
+  }
+
+  private void ensureContentIndicesUpToDate() {
+    TaskQueue[] queues = myContentIndicesUpdateQueues;
+    if (queues == null) return;
+    for (TaskQueue queue : queues) {
+      queue.ensureUpToDate();
+    }
+  }
+
+  @TestOnly
+  void setContentIndexWriters(int writers) {
+    ensureContentIndicesUpToDate();
+    myContentIndicesUpdateQueues = createContentIndicesUpdateQueues(writers);
+  }
 
   public static final Key<EditorHighlighter> EDITOR_HIGHLIGHTER = new Key<EditorHighlighter>("Editor");
 
@@ -1815,7 +1914,19 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
     assert index != null;
 
-    final Computable<Boolean> update = index.update(inputId, currentFC);
+    Computable<Boolean> preparedUpdate = null;
+    if (myIndexBundles != null && currentFC != null && index instanceof MapReduceIndex) {
+      //noinspection unchecked
+      preparedUpdate = myIndexBundles.prepareUpdate((ID)indexId, (MapReduceIndex)index, inputId, currentFC);
+    }
+    final ContentHashIndexData<?, ?> contentHashData = myContentHashIndexData.get(indexId);
+    if (preparedUpdate == null && contentHashData != null && currentFC != null && index instanceof MapReduceIndex) {
+      //noinspection unchecked
+      final MapReduceIndex<Object, Object, FileContent> mapReduceIndex = (MapReduceIndex<Object, Object, FileContent>)index;
+      //noinspection unchecked
+      preparedUpdate = mapReduceIndex.prepareUpdate(inputId, ((ContentHashIndexData<Object, Object>)contentHashData).map(mapReduceIndex, currentFC));
+    }
+    final Computable<Boolean> update = preparedUpdate != null ? preparedUpdate : index.update(inputId, currentFC);
     final FileType fileType = file.getFileType();
     scheduleUpdate(indexId,
                    new Computable<Boolean>() {
@@ -1835,16 +1946,16 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                    new Runnable() {
                      @Override
                      public void run() {
-                       if (file.isValid()) {
-                         ID stubId = IndexInfrastructure.getStubId(indexId, fileType);
-                         if (currentFC != null) {
-                           IndexingStamp.update(file, stubId, getIndexCreationStamp(stubId, fileType));
-                         }
-                         else {
-                           // mark the file as unindexed
-                           IndexingStamp.update(file, stubId, IndexInfrastructure.INVALID_STAMP);
-                         }
-                         if (myNotRequiringContentIndices.contains(indexId)) IndexingStamp.flushCache(file);
+                       ID stubId = IndexInfrastructure.getStubId(indexId, fileType);
+                       if (currentFC == null) {
+                         // mark the file as unindexed, a deleted one too
+                         IndexingStamp.update(file, stubId, IndexInfrastructure.INVALID_STAMP);
+                       }
+                       else if (file.isValid()) {
+                         IndexingStamp.update(file, stubId, getIndexCreationStamp(stubId, fileType));
+                       }
+                       if (file.isValid() && (myNotRequiringContentIndices.contains(indexId) || myContentIndicesUpdateQueues != null)) {
+                         IndexingStamp.flushCache(file);
                        }
                      }
                    }
@@ -1852,8 +1963,11 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   private void scheduleUpdate(ID<?, ?> indexId, final Computable<Boolean> update, final Runnable successRunnable) {
+    TaskQueue[] contentQueues = myContentIndicesUpdateQueues;
     if (myNotRequiringContentIndices.contains(indexId)) {
       myContentlessIndicesUpdateQueue.submit(update, successRunnable);
+    } else if (contentQueues != null) {
+      contentQueues[indexId.getUniqueId() % contentQueues.length].submit(update, successRunnable);
     } else {
       Boolean result = update.compute();
       if (result == Boolean.TRUE) ApplicationManager.getApplication().runReadAction(successRunnable);
@@ -2309,6 +2423,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     public void before(@NotNull List<? extends VFileEvent> events) {
       myContentlessIndicesUpdateQueue.signalUpdateStart();
       myContentlessIndicesUpdateQueue.ensureUpToDate();
+      ensureContentIndicesUpToDate();
 
       for (VFileEvent event : events) {
         Object requestor = event.getRequestor();
@@ -2327,6 +2442,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     @Override
     public void after(@NotNull List<? extends VFileEvent> events) {
       myContentlessIndicesUpdateQueue.ensureUpToDate();
+      ensureContentIndicesUpToDate();
 
       for (VFileEvent event : events) {
         BulkVirtualFileListenerAdapter.fireAfter(this, event);
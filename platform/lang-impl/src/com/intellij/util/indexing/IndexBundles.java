@@ -0,0 +1,423 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.extensions.Extensions;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.psi.stubs.SerializationManagerEx;
+import com.intellij.psi.stubs.StubUpdatingIndex;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.KeyDescriptor;
+import gnu.trove.THashMap;
+import gnu.trove.TObjectHashingStrategy;
+import gnu.trove.TObjectLongHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-built data of content dependent indices for library jars.
+ * <p/>
+ * A bundle keeps the data mapped by the indexers from every entry of a jar, keyed by the content hash of the entry
+ * (the same hash {@link FSRecords} uses for contents sharing), so the same jar on another machine is indexed by
+ * taking the data from the bundle instead of running the indexers. Bundles are exported with
+ * {@link #exportBundle(Project, VirtualFile, File)} and attached from the directory given by <code>idea.index.bundles.dir</code>.
+ * Only the indices listed in <code>idea.index.bundles.indices</code> (stubs and identifiers by default) are bundled,
+ * data of an index is not used when its version or, for stubs, the stub serializers differ from the local ones.
+ */
+public class IndexBundles {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexBundles");
+  public static final String BUNDLE_EXTENSION = ".ibundle";
+  private static final int VERSION = 1;
+  private static final Key<byte[]> CONTENT_HASH = Key.create("index.bundle.content.hash");
+
+  private static final TObjectHashingStrategy<byte[]> HASH_STRATEGY = new TObjectHashingStrategy<byte[]>() {
+    @Override
+    public int computeHashCode(byte[] hash) {
+      return Arrays.hashCode(hash);
+    }
+
+    @Override
+    public boolean equals(byte[] hash1, byte[] hash2) {
+      return Arrays.equals(hash1, hash2);
+    }
+  };
+
+  private final List<Bundle> myBundles;
+  private final AtomicInteger myHits = new AtomicInteger();
+  private final AtomicInteger myMisses = new AtomicInteger();
+
+  private IndexBundles(@NotNull List<Bundle> bundles) {
+    myBundles = bundles;
+  }
+
+  /**
+   * @return bundles attached from the bundles directory, or null if the directory is not specified or contains no valid bundles
+   */
+  @Nullable
+  static IndexBundles loadAttachedBundles() {
+    final String path = System.getProperty("idea.index.bundles.dir");
+    if (path == null) return null;
+    final File[] files = new File(path).listFiles();
+    if (files == null) return null;
+    return loadBundles(files);
+  }
+
+  @Nullable
+  static IndexBundles loadBundles(@NotNull File[] files) {
+    final Map<String, FileBasedIndexExtension<?, ?>> extensions = getBundledExtensions();
+    final List<Bundle> bundles = new ArrayList<Bundle>();
+    for (File file : files) {
+      if (!file.getName().endsWith(BUNDLE_EXTENSION)) continue;
+      try {
+        final Bundle bundle = new Bundle(file, extensions);
+        if (bundle.hasUsableIndices()) {
+          bundles.add(bundle);
+          LOG.info("Attached index bundle " + file + " with " + bundle.myOffsets.size() + " entries");
+        }
+        else {
+          LOG.info("Index bundle " + file + " is not compatible with the installed indices");
+        }
+      }
+      catch (IOException e) {
+        LOG.info("Cannot attach index bundle " + file, e);
+      }
+    }
+    return bundles.isEmpty() ? null : new IndexBundles(bundles);
+  }
+
+  /**
+   * @return the update of the index with the data taken from a bundle, or null if no attached bundle has the data for the content
+   */
+  @Nullable
+  <K, V> Computable<Boolean> prepareUpdate(@NotNull ID<K, V> indexId,
+                                           @NotNull MapReduceIndex<K, V, FileContent> index,
+                                           int inputId,
+                                           @NotNull FileContent content) {
+    if (!(content.getFile().getFileSystem() instanceof JarFileSystem)) return null;
+
+    byte[] hash = content.getUserData(CONTENT_HASH);
+    if (hash == null) {
+      final byte[] bytes = content.getContent();
+      hash = FSRecords.calculateHash(bytes, 0, bytes.length);
+      content.putUserData(CONTENT_HASH, hash);
+    }
+
+    final Map<K, V> data = getData(indexId, hash);
+    if (data == null) {
+      myMisses.incrementAndGet();
+      return null;
+    }
+    myHits.incrementAndGet();
+    return index.prepareUpdate(inputId, data);
+  }
+
+  /**
+   * @return the data of the index for the content with the given hash from the first attached bundle which has them
+   */
+  @Nullable
+  <K, V> Map<K, V> getData(@NotNull ID<K, V> indexId, @NotNull byte[] contentHash) {
+    for (Bundle bundle : myBundles) {
+      try {
+        final Map<K, V> data = bundle.readData(indexId, contentHash);
+        if (data != null) return data;
+      }
+      catch (IOException e) {
+        LOG.info("Cannot read index bundle " + bundle.myFile, e);
+      }
+    }
+    return null;
+  }
+
+  void dispose() {
+    LOG.info("Index bundles: " + myHits.get() + " hits, " + myMisses.get() + " misses");
+    for (Bundle bundle : myBundles) {
+      bundle.close();
+    }
+  }
+
+  /**
+   * Writes the data of bundled indices for all entries of the jar to the bundle file.
+   * The data are mapped by the indexers in read actions, one entry at a time.
+   */
+  public static void exportBundle(@NotNull final Project project, @NotNull VirtualFile jarRoot, @NotNull File bundleFile) throws IOException {
+    final List<FileBasedIndexExtension<?, ?>> extensions = new ArrayList<FileBasedIndexExtension<?, ?>>(getBundledExtensions().values());
+    final List<VirtualFile> files = new ArrayList<VirtualFile>();
+    VfsUtilCore.visitChildrenRecursively(jarRoot, new VirtualFileVisitor() {
+      @Override
+      public boolean visitFile(@NotNull VirtualFile file) {
+        if (!file.isDirectory()) files.add(file);
+        return true;
+      }
+    });
+
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bundleFile)));
+    try {
+      out.writeInt(VERSION);
+      final BufferExposingByteArrayOutputStream buffer = new BufferExposingByteArrayOutputStream();
+      writeHeader(new DataOutputStream(buffer), extensions);
+      out.writeInt(buffer.size());
+      out.write(buffer.getInternalBuffer(), 0, buffer.size());
+
+      final BufferExposingByteArrayOutputStream dataBuffer = new BufferExposingByteArrayOutputStream();
+      for (final VirtualFile file : files) {
+        final byte[] content = file.contentsToByteArray();
+        buffer.reset();
+        ApplicationManager.getApplication().runReadAction(new ThrowableComputable<Object, IOException>() {
+          @Override
+          public Object compute() throws IOException {
+            final FileContentImpl fileContent = new FileContentImpl(file, content);
+            fileContent.putUserData(IndexingDataKeys.PROJECT, project);
+            final DataOutputStream entryOut = new DataOutputStream(buffer);
+            for (FileBasedIndexExtension<?, ?> extension : extensions) {
+              if (extension.getInputFilter().acceptInput(file)) {
+                dataBuffer.reset();
+                writeData(new DataOutputStream(dataBuffer), extension, fileContent);
+                entryOut.writeInt(dataBuffer.size());
+                entryOut.write(dataBuffer.getInternalBuffer(), 0, dataBuffer.size());
+              }
+              else {
+                entryOut.writeInt(-1);
+              }
+            }
+            return null;
+          }
+        });
+
+        final byte[] hash = FSRecords.calculateHash(content, 0, content.length);
+        out.writeInt(hash.length);
+        out.write(hash);
+        out.writeInt(buffer.size());
+        out.write(buffer.getInternalBuffer(), 0, buffer.size());
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @NotNull
+  private static Map<String, FileBasedIndexExtension<?, ?>> getBundledExtensions() {
+    final Set<String> names =
+      new HashSet<String>(Arrays.asList(System.getProperty("idea.index.bundles.indices", StubUpdatingIndex.INDEX_ID + ",IdIndex").split(",")));
+    final Map<String, FileBasedIndexExtension<?, ?>> result = new LinkedHashMap<String, FileBasedIndexExtension<?, ?>>();
+    for (FileBasedIndexExtension<?, ?> extension : Extensions.getExtensions(FileBasedIndexExtension.EXTENSION_POINT_NAME)) {
+      final String name = extension.getName().toString();
+      if (names.contains(name) && extension.dependsOnFileContent()) {
+        result.put(name, extension);
+      }
+    }
+    return result;
+  }
+
+  private static void writeHeader(@NotNull DataOutputStream out, @NotNull List<FileBasedIndexExtension<?, ?>> extensions)
+    throws IOException {
+    out.writeInt(extensions.size());
+    for (FileBasedIndexExtension<?, ?> extension : extensions) {
+      out.writeUTF(extension.getName().toString());
+      out.writeInt(extension.getVersion());
+      if (extension instanceof StubUpdatingIndex) {
+        // serialized stub trees refer to the serializers and depend on the stub versions of file types
+        writeMap(out, SerializationManagerEx.getInstanceEx().getSerializerIds());
+        final Map<String, Integer> stubVersions = new THashMap<String, Integer>();
+        for (Map.Entry<FileType, Integer> entry : ((StubUpdatingIndex)extension).getVersionMap().entrySet()) {
+          stubVersions.put(entry.getKey().getName(), entry.getValue());
+        }
+        writeMap(out, stubVersions);
+      }
+    }
+  }
+
+  private static <K, V> void writeData(@NotNull DataOutputStream out,
+                                       @NotNull FileBasedIndexExtension<K, V> extension,
+                                       @NotNull FileContent content) throws IOException {
+    final Map<K, V> data = extension.getIndexer().map(content);
+    final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
+    final DataExternalizer<V> valueExternalizer = extension.getValueExternalizer();
+    out.writeInt(data.size());
+    for (Map.Entry<K, V> entry : data.entrySet()) {
+      keyDescriptor.save(out, entry.getKey());
+      valueExternalizer.save(out, entry.getValue());
+    }
+  }
+
+  private static void writeMap(@NotNull DataOutputStream out, @NotNull Map<String, Integer> map) throws IOException {
+    out.writeInt(map.size());
+    for (Map.Entry<String, Integer> entry : map.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue());
+    }
+  }
+
+  @NotNull
+  private static Map<String, Integer> readMap(@NotNull DataInputStream in) throws IOException {
+    final int size = in.readInt();
+    final Map<String, Integer> map = new THashMap<String, Integer>(size);
+    for (int i = 0; i < size; ++i) {
+      map.put(in.readUTF(), in.readInt());
+    }
+    return map;
+  }
+
+  private static class Bundle {
+    private final File myFile;
+    // bundled indices in the order their data are written in entries, null for the indices which data are not usable locally
+    private final List<FileBasedIndexExtension<?, ?>> myIndices = new ArrayList<FileBasedIndexExtension<?, ?>>();
+    private final TObjectLongHashMap<byte[]> myOffsets = new TObjectLongHashMap<byte[]>(HASH_STRATEGY);
+    private RandomAccessFile myRandomAccessFile;
+
+    private Bundle(@NotNull File file, @NotNull Map<String, FileBasedIndexExtension<?, ?>> extensions) throws IOException {
+      myFile = file;
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION) throw new IOException("Unsupported bundle version");
+        final int headerLength = in.readInt();
+        final int indicesCount = in.readInt();
+        for (int i = 0; i < indicesCount; ++i) {
+          final String name = in.readUTF();
+          final int version = in.readInt();
+          FileBasedIndexExtension<?, ?> extension = extensions.get(name);
+          if (extension != null && extension.getVersion() != version) extension = null;
+          if (StubUpdatingIndex.INDEX_ID.toString().equals(name)) {
+            final Map<String, Integer> serializerIds = readMap(in);
+            final Map<String, Integer> stubVersions = readMap(in);
+            if (extension != null && !isStubDataCompatible(serializerIds, stubVersions, (StubUpdatingIndex)extension)) extension = null;
+          }
+          myIndices.add(extension);
+        }
+
+        long offset = 4 + 4 + headerLength;
+        while (true) {
+          final int hashLength;
+          try {
+            hashLength = in.readInt();
+          }
+          catch (EOFException e) {
+            break;
+          }
+          final byte[] hash = new byte[hashLength];
+          in.readFully(hash);
+          final int dataLength = in.readInt();
+          offset += 4 + hashLength + 4;
+          myOffsets.put(hash, offset);
+          skipFully(in, dataLength);
+          offset += dataLength;
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    private static void skipFully(@NotNull DataInputStream in, int length) throws IOException {
+      while (length > 0) {
+        final int skipped = in.skipBytes(length);
+        if (skipped <= 0) throw new EOFException();
+        length -= skipped;
+      }
+    }
+
+    private static boolean isStubDataCompatible(@NotNull Map<String, Integer> serializerIds,
+                                                @NotNull Map<String, Integer> stubVersions,
+                                                @NotNull StubUpdatingIndex index) {
+      // stub trees are used as is, so the serializers must be known under the same ids and the stubs of every file type
+      // must have been built the same way as they would be locally
+      if (!serializerIds.equals(SerializationManagerEx.getInstanceEx().getSerializerIds())) return false;
+      for (Map.Entry<FileType, Integer> entry : index.getVersionMap().entrySet()) {
+        if (!entry.getValue().equals(stubVersions.get(entry.getKey().getName()))) return false;
+      }
+      return true;
+    }
+
+    private boolean hasUsableIndices() {
+      for (FileBasedIndexExtension<?, ?> index : myIndices) {
+        if (index != null) return true;
+      }
+      return false;
+    }
+
+    @Nullable
+    private <K, V> Map<K, V> readData(@NotNull ID<K, V> indexId, @NotNull byte[] hash) throws IOException {
+      final long offset = myOffsets.get(hash);
+      if (offset == 0) return null;
+      int slot = -1;
+      for (int i = 0; i < myIndices.size(); ++i) {
+        final FileBasedIndexExtension<?, ?> index = myIndices.get(i);
+        if (index != null && indexId.equals(index.getName())) {
+          slot = i;
+          break;
+        }
+      }
+      if (slot == -1) return null;
+
+      final byte[] entry;
+      synchronized (this) {
+        if (myRandomAccessFile == null) myRandomAccessFile = new RandomAccessFile(myFile, "r");
+        myRandomAccessFile.seek(offset - 4);
+        entry = new byte[myRandomAccessFile.readInt()];
+        myRandomAccessFile.readFully(entry);
+      }
+
+      final DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+      for (int i = 0; i < slot; ++i) {
+        final int length = in.readInt();
+        if (length > 0) skipFully(in, length);
+      }
+      if (in.readInt() < 0) return null; // the file was not accepted by the index when the bundle was exported
+      //noinspection unchecked
+      return readData(in, (FileBasedIndexExtension<K, V>)myIndices.get(slot));
+    }
+
+    @NotNull
+    private static <K, V> Map<K, V> readData(@NotNull DataInputStream in, @NotNull FileBasedIndexExtension<K, V> extension)
+      throws IOException {
+      final int size = in.readInt();
+      final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
+      final DataExternalizer<V> valueExternalizer = extension.getValueExternalizer();
+      final Map<K, V> data = new THashMap<K, V>(size);
+      for (int i = 0; i < size; ++i) {
+        final K key = keyDescriptor.read(in);
+        data.put(key, valueExternalizer.read(in));
+      }
+      return data;
+    }
+
+    private synchronized void close() {
+      if (myRandomAccessFile == null) return;
+      try {
+        myRandomAccessFile.close();
+      }
+      catch (IOException ignored) {
+      }
+      myRandomAccessFile = null;
+    }
+  }
+}
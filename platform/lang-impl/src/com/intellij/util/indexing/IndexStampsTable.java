@@ -0,0 +1,288 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.openapi.vfs.newvfs.persistent.FlushingDaemon;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TObjectLongHashMap;
+import gnu.trove.TObjectProcedure;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+
+import static com.intellij.util.io.IOUtil.deleteAllFilesStartingWith;
+
+/**
+ * Index stamps of files kept in memory-mapped tables, one table per index with an int slot per file id.
+ * <p/>
+ * The slot tells whether the file is indexed with the index version the table is written for, the table is cleared when the
+ * index creation stamp changes. Slots are updated in place and the tables are forced by the flushing daemon.
+ * <p/>
+ * Tables created for the file system storage which already existed may miss the stamps kept in file attributes by previous versions,
+ * unknown slots of such tables are to be migrated from the attributes.
+ * <p/>
+ * The file system storage reuses ids of deleted files, so slots of the ids which were free when it was opened are cleared when a table
+ * is opened: the stamps of a deleted file may be left if the IDE exited before the file was removed from the indices.
+ */
+class IndexStampsTable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexStampsTable");
+  private static final int VERSION = 1;
+
+  private static final int VERSION_OFFSET = 0;
+  private static final int INDEX_STAMP_OFFSET = VERSION_OFFSET + 4;
+  private static final int HEADER_SIZE = INDEX_STAMP_OFFSET + 8;
+
+  static final int UNKNOWN = 0;
+  static final int INDEXED = 1;
+  static final int NOT_INDEXED = -1;
+
+  private final File myDirectory;
+  private final boolean myMigrating;
+  private final int[] myFreeFileIds;
+  private final PagedFileStorage.StorageLockContext myLockContext = new PagedFileStorage.StorageLockContext(false);
+  private final TIntObjectHashMap<Column> myColumns = new TIntObjectHashMap<Column>(); // guarded by itself
+
+  IndexStampsTable(@NotNull File directory) throws IOException {
+    this(directory, FSRecords.getCreationTimestamp(), FSRecords.getFreeRecordsOnConnect());
+    FlushingDaemon.everyFiveSeconds(new Runnable() {
+      @Override
+      public void run() {
+        force();
+      }
+    });
+  }
+
+  /**
+   * @param vfsTimestamp creation timestamp of the file system storage which file ids the tables are written for
+   * @param freeFileIds ids which may be reused for new files, they aren't indexed
+   */
+  IndexStampsTable(@NotNull File directory, long vfsTimestamp, @NotNull int[] freeFileIds) throws IOException {
+    myDirectory = directory;
+    myFreeFileIds = freeFileIds;
+    myMigrating = readMeta(vfsTimestamp);
+  }
+
+  /**
+   * @return whether the tables may miss the stamps kept in file attributes
+   */
+  private boolean readMeta(long vfsTimestamp) throws IOException {
+    final File metaFile = new File(myDirectory, "stamps.meta");
+    if (metaFile.exists()) {
+      final DataInputStream in = new DataInputStream(new FileInputStream(metaFile));
+      try {
+        if (in.readInt() == VERSION && in.readLong() == vfsTimestamp) return in.readBoolean();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    // either no tables or the file ids they are written for are not valid
+    final boolean migrating = !metaFile.exists();
+    FileUtil.delete(myDirectory);
+    FileUtil.createDirectory(myDirectory);
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(metaFile));
+    try {
+      out.writeInt(VERSION);
+      out.writeLong(vfsTimestamp);
+      out.writeBoolean(migrating);
+    }
+    finally {
+      out.close();
+    }
+    return migrating;
+  }
+
+  boolean isMigrating() {
+    return myMigrating;
+  }
+
+  long getStamp(int fileId, @NotNull ID<?, ?> id) throws IOException {
+    final Column column = getColumn(id);
+    return column.get(fileId) == INDEXED ? column.getIndexStamp() : 0;
+  }
+
+  int getSlot(int fileId, @NotNull ID<?, ?> id) throws IOException {
+    return getColumn(id).get(fileId);
+  }
+
+  void setStamp(int fileId, @NotNull ID<?, ?> id, long stamp) throws IOException {
+    final Column column = getColumn(id);
+    column.set(fileId, stamp >= 0 && stamp == column.getIndexStamp() ? INDEXED : NOT_INDEXED);
+  }
+
+  /**
+   * Fills the unknown slots of the file in the tables opened so far and in the tables of indices the file has the stamps for.
+   */
+  void migrate(int fileId, @Nullable TObjectLongHashMap<ID<?, ?>> stamps) throws IOException {
+    if (stamps != null) {
+      for (Object id : stamps.keys()) {
+        getColumn((ID<?, ?>)id);
+      }
+    }
+    final Object[] columns;
+    synchronized (myColumns) {
+      columns = myColumns.getValues();
+    }
+    for (Object o : columns) {
+      final Column column = (Column)o;
+      final boolean indexed = stamps != null && stamps.containsKey(column.myId) && stamps.get(column.myId) == column.getIndexStamp();
+      column.setIfUnknown(fileId, indexed ? INDEXED : NOT_INDEXED);
+    }
+  }
+
+  void force() {
+    synchronized (myColumns) {
+      myColumns.forEachValue(new TObjectProcedure<Column>() {
+        @Override
+        public boolean execute(Column column) {
+          column.force();
+          return true;
+        }
+      });
+    }
+  }
+
+  void close() {
+    synchronized (myColumns) {
+      myColumns.forEachValue(new TObjectProcedure<Column>() {
+        @Override
+        public boolean execute(Column column) {
+          column.close();
+          return true;
+        }
+      });
+      myColumns.clear();
+    }
+  }
+
+  long getIndexCreationStamp(@NotNull ID<?, ?> id) {
+    return IndexInfrastructure.getIndexCreationStamp(id);
+  }
+
+  @NotNull
+  private Column getColumn(@NotNull ID<?, ?> id) throws IOException {
+    synchronized (myColumns) {
+      Column column = myColumns.get(id.getUniqueId());
+      if (column == null) {
+        column = new Column(id);
+        myColumns.put(id.getUniqueId(), column);
+      }
+      return column;
+    }
+  }
+
+  private class Column {
+    private final ID<?, ?> myId;
+    private final File myFile;
+    @Nullable private ResizeableMappedFile myStorage; // guarded by this
+    private long myIndexStamp;
+    private boolean myFreeIdsCleared; // only once, the free ids may be used by new files after that
+
+    private Column(@NotNull ID<?, ?> id) {
+      myId = id;
+      myFile = new File(myDirectory, id.getUniqueId() + ".stamps");
+    }
+
+    synchronized long getIndexStamp() throws IOException {
+      ensureOpened();
+      return myIndexStamp;
+    }
+
+    synchronized int get(int fileId) throws IOException {
+      final ResizeableMappedFile storage = ensureOpened();
+      final int offset = getOffset(fileId);
+      return offset + 4 <= storage.length() ? storage.getInt(offset) : UNKNOWN;
+    }
+
+    synchronized void set(int fileId, int value) throws IOException {
+      ensureOpened().putInt(getOffset(fileId), value);
+    }
+
+    synchronized void setIfUnknown(int fileId, int value) throws IOException {
+      if (get(fileId) == UNKNOWN) set(fileId, value);
+    }
+
+    synchronized void force() {
+      if (myStorage != null) myStorage.force();
+    }
+
+    synchronized void close() {
+      if (myStorage != null) {
+        myStorage.close();
+        myStorage = null;
+      }
+    }
+
+    /**
+     * Opens the table and clears it if it was written for another version of the index.
+     */
+    @NotNull
+    private ResizeableMappedFile ensureOpened() throws IOException {
+      final long indexStamp = getIndexCreationStamp(myId);
+      if (myStorage != null && indexStamp == myIndexStamp) return myStorage;
+
+      if (myStorage == null) {
+        myStorage = open();
+        if (myStorage.length() >= HEADER_SIZE &&
+            myStorage.getInt(VERSION_OFFSET) == VERSION &&
+            myStorage.getLong(INDEX_STAMP_OFFSET) == indexStamp) {
+          myIndexStamp = indexStamp;
+          clearFreeFileIds(myStorage);
+          return myStorage;
+        }
+      }
+
+      myStorage.close();
+      deleteAllFilesStartingWith(myFile);
+      myStorage = open();
+      myStorage.putInt(VERSION_OFFSET, VERSION);
+      myStorage.putLong(INDEX_STAMP_OFFSET, indexStamp);
+      myIndexStamp = indexStamp;
+      myFreeIdsCleared = true;
+      return myStorage;
+    }
+
+    private void clearFreeFileIds(@NotNull ResizeableMappedFile storage) throws IOException {
+      if (myFreeIdsCleared) return;
+      myFreeIdsCleared = true;
+      for (int fileId : myFreeFileIds) {
+        final int offset = getOffset(fileId);
+        if (offset + 4 <= storage.length() && storage.getInt(offset) != UNKNOWN) {
+          storage.putInt(offset, NOT_INDEXED);
+        }
+      }
+    }
+
+    @NotNull
+    private ResizeableMappedFile open() throws IOException {
+      return new ResizeableMappedFile(myFile, 64 * 1024, myLockContext, PagedFileStorage.BUFFER_SIZE, true);
+    }
+
+    private int getOffset(int fileId) {
+      return HEADER_SIZE + fileId * 4;
+    }
+  }
+}
@@ -16,11 +16,13 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileWithId;
 import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.TObjectLongHashMap;
@@ -29,6 +31,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ArrayBlockingQueue;
 
@@ -37,6 +40,9 @@ import java.util.concurrent.ArrayBlockingQueue;
  *         Date: Dec 25, 2007
  */
 public class IndexingStamp {
+  private static final boolean ourUseStampsTable = SystemProperties.getBooleanProperty("idea.indexing.stamps.table", true);
+  private static volatile IndexStampsTable ourStampsTable;
+
   private IndexingStamp() {
   }
 
@@ -142,6 +148,21 @@ public class IndexingStamp {
   }
 
   public static long getIndexStamp(VirtualFile file, ID<?, ?> indexName) {
+    if (ourUseStampsTable) {
+      if (!(file instanceof NewVirtualFile) || !file.isValid()) return 0;
+      final int fileId = ((NewVirtualFile)file).getId();
+      final IndexStampsTable table = getStampsTable();
+      try {
+        if (table.isMigrating() && table.getSlot(fileId, indexName) == IndexStampsTable.UNKNOWN) {
+          migrate(file, fileId, table);
+        }
+        return table.getStamp(fileId, indexName);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
     synchronized (getStripedLock(file)) {
       Timestamps stamp = createOrGetTimeStamp(file);
       if (stamp != null) return stamp.get(indexName);
@@ -167,7 +188,45 @@ public class IndexingStamp {
     return null;
   }
 
+  private static void migrate(VirtualFile file, int fileId, IndexStampsTable table) throws IOException {
+    synchronized (getStripedLock(file)) {
+      final Timestamps timestamps = new Timestamps(Timestamps.PERSISTENCE.readAttribute(file));
+      table.migrate(fileId, timestamps.myIndexStamps);
+    }
+  }
+
+  private static IndexStampsTable getStampsTable() {
+    IndexStampsTable table = ourStampsTable;
+    if (table == null) {
+      synchronized (IndexingStamp.class) {
+        table = ourStampsTable;
+        if (table == null) {
+          try {
+            ourStampsTable = table = new IndexStampsTable(new File(PathManager.getIndexRoot(), "stamps"));
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    }
+    return table;
+  }
+
   public static void update(final VirtualFile file, final ID<?, ?> indexName, final long indexCreationStamp) {
+    if (ourUseStampsTable) {
+      if (!(file instanceof NewVirtualFile)) return;
+      // the stamps of a deleted file are reset too: its id is reused for a new file after restart
+      if (!file.isValid() && indexCreationStamp >= 0) return;
+      try {
+        getStampsTable().setStamp(((NewVirtualFile)file).getId(), indexName, indexCreationStamp);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+
     synchronized (getStripedLock(file)) {
       try {
         Timestamps stamp = createOrGetTimeStamp(file);
@@ -179,11 +238,30 @@ public class IndexingStamp {
   }
 
   public static void flushCaches() {
+    if (ourUseStampsTable) {
+      final IndexStampsTable table = ourStampsTable;
+      if (table != null) table.force();
+      return;
+    }
     flushCache(null);
     myTimestampsCache.clear();
   }
 
+  public static void close() {
+    if (ourUseStampsTable) {
+      synchronized (IndexingStamp.class) {
+        if (ourStampsTable != null) {
+          ourStampsTable.force();
+          ourStampsTable.close();
+          ourStampsTable = null;
+        }
+      }
+    }
+  }
+
   public static void flushCache(@Nullable VirtualFile finishedFile) {
+    if (ourUseStampsTable) return; // the table is updated in place
+
     if (finishedFile == null || !myFinishedFiles.offer(finishedFile)) {
       VirtualFile[] files = null;
       synchronized (myFinishedFiles) {
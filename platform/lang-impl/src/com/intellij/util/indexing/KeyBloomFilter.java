@@ -0,0 +1,172 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the keys ever added to an index, persisted beside the index storage.
+ * <p/>
+ * Keys are never removed from the filter, so it may contain every key present in the index and rejects most of the absent ones.
+ * The file of the filter is deleted on the first change after the filter was loaded or saved, so the filter not saved because of
+ * a crash is rebuilt from the index keys. Until the filter is loaded or rebuilt it may contain any key.
+ */
+class KeyBloomFilter<Key> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.KeyBloomFilter");
+  private static final int VERSION = 1;
+  private static final int HASH_FUNCTIONS = 3;
+
+  private final File myFile;
+  private final KeyDescriptor<Key> myKeyDescriptor;
+  private final int myBitsCount;
+  private final AtomicLongArray myBits;
+  private volatile boolean myReady;
+  private volatile boolean myChangedSinceSaved; // changed under this lock
+
+  private final AtomicInteger myRejectedKeys = new AtomicInteger();
+  private final AtomicInteger myAcceptedKeys = new AtomicInteger();
+  private final AtomicInteger myFalsePositives = new AtomicInteger();
+
+  KeyBloomFilter(@NotNull File file, @NotNull KeyDescriptor<Key> keyDescriptor, int bitsCount) {
+    myFile = file;
+    myKeyDescriptor = keyDescriptor;
+    myBitsCount = bitsCount;
+    myBits = new AtomicLongArray((bitsCount + 63) >> 6);
+    myReady = load();
+  }
+
+  private boolean load() {
+    if (!myFile.exists()) return false;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      try {
+        if (in.readInt() != VERSION || in.readInt() != myBitsCount) return false;
+        for (int i = 0; i < myBits.length(); ++i) {
+          myBits.set(i, in.readLong());
+        }
+        return true;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return false;
+    }
+  }
+
+  synchronized void save() {
+    if (!myChangedSinceSaved || !myReady) return;
+    myChangedSinceSaved = false;
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myFile)));
+      try {
+        out.writeInt(VERSION);
+        out.writeInt(myBitsCount);
+        for (int i = 0; i < myBits.length(); ++i) {
+          out.writeLong(myBits.get(i));
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      FileUtil.delete(myFile);
+    }
+  }
+
+  boolean isReady() {
+    return myReady;
+  }
+
+  void setReady() {
+    myReady = true;
+  }
+
+  void add(Key key) {
+    final int hash = myKeyDescriptor.getHashCode(key);
+    final int step = secondHash(hash);
+    for (int i = 0; i < HASH_FUNCTIONS; ++i) {
+      final int bit = bitIndex(hash + i * step);
+      final int word = bit >> 6;
+      final long mask = 1L << (bit & 63);
+      long value;
+      while (((value = myBits.get(word)) & mask) == 0 && !myBits.compareAndSet(word, value, value | mask)) ;
+    }
+    // the bits are set before the check, so the saved filter either has the key or is deleted
+    if (!myChangedSinceSaved) {
+      markChanged();
+    }
+  }
+
+  private synchronized void markChanged() {
+    if (myChangedSinceSaved) return;
+    myChangedSinceSaved = true;
+    FileUtil.delete(myFile);
+  }
+
+  boolean mayContain(Key key) {
+    if (!myReady) return true;
+    final int hash = myKeyDescriptor.getHashCode(key);
+    final int step = secondHash(hash);
+    for (int i = 0; i < HASH_FUNCTIONS; ++i) {
+      final int bit = bitIndex(hash + i * step);
+      if ((myBits.get(bit >> 6) & (1L << (bit & 63))) == 0) {
+        myRejectedKeys.incrementAndGet();
+        return false;
+      }
+    }
+    myAcceptedKeys.incrementAndGet();
+    return true;
+  }
+
+  void falsePositive() {
+    myFalsePositives.incrementAndGet();
+  }
+
+  synchronized void clear() {
+    for (int i = 0; i < myBits.length(); ++i) {
+      myBits.set(i, 0);
+    }
+    myChangedSinceSaved = true;
+    FileUtil.delete(myFile);
+    myReady = true;
+  }
+
+  @NotNull
+  String getStatistics() {
+    return "rejected keys: " + myRejectedKeys.get() + ", accepted keys: " + myAcceptedKeys.get() + ", false positives: " + myFalsePositives.get();
+  }
+
+  private static int secondHash(int hash) {
+    hash *= 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) | 1;
+  }
+
+  private int bitIndex(int hash) {
+    return (hash & Integer.MAX_VALUE) % myBitsCount;
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.util.Computable;
@@ -51,6 +52,7 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
 
   private Factory<PersistentHashMap<Integer, Collection<Key>>> myInputsIndexFactory;
   private boolean myNeedsCompaction = true;
+  @Nullable private volatile KeyBloomFilter<Key> myKeyFilter;
 
   public MapReduceIndex(@Nullable final ID<Key, Value> indexId, DataIndexer<Key, Value, Input> indexer, @NotNull IndexStorage<Key, Value> storage) {
     myIndexId = indexId;
@@ -68,6 +70,8 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     try {
       getWriteLock().lock();
       myStorage.clear();
+      final KeyBloomFilter<Key> keyFilter = myKeyFilter;
+      if (keyFilter != null) keyFilter.clear();
       if (myInputsIndex != null) {
         final File baseFile = myInputsIndex.getBaseFile();
         try {
@@ -103,6 +107,8 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
         inputsIndex.force();
       }
       myStorage.flush();
+      final KeyBloomFilter<Key> keyFilter = myKeyFilter;
+      if (keyFilter != null) keyFilter.save();
     }
     catch (IOException e) {
       throw new StorageException(e);
@@ -127,6 +133,11 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     try {
       lock.lock();
       try {
+        final KeyBloomFilter<Key> keyFilter = myKeyFilter;
+        if (keyFilter != null) {
+          keyFilter.save();
+          LOG.info("Key filter of " + myIndexId + ": " + keyFilter.getStatistics());
+        }
         myStorage.close();
       }
       finally {
@@ -173,16 +184,60 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   @Override
   @NotNull
   public ValueContainer<Value> getData(final Key key) throws StorageException {
+    final KeyBloomFilter<Key> keyFilter = myKeyFilter;
+    if (keyFilter != null && !keyFilter.mayContain(key)) {
+      return new ValueContainerImpl<Value>();
+    }
     final Lock lock = getReadLock();
     try {
       lock.lock();
-      return myStorage.read(key);
+      final ValueContainer<Value> container = myStorage.read(key);
+      if (keyFilter != null && keyFilter.isReady() && container.size() == 0) keyFilter.falsePositive();
+      return container;
     }
     finally {
       lock.unlock();
     }
   }
 
+  /**
+   * @return false if the index has no data for the key for sure, true if it may have
+   */
+  public boolean mayContainKey(final Key key) {
+    final KeyBloomFilter<Key> keyFilter = myKeyFilter;
+    return keyFilter == null || keyFilter.mayContain(key);
+  }
+
+  /**
+   * Sets the filter short-circuiting lookups of absent keys. If the filter was not loaded, it is filled with the index keys
+   * in background and accepts every key until then.
+   */
+  void setKeyFilter(@NotNull final KeyBloomFilter<Key> keyFilter) {
+    myKeyFilter = keyFilter;
+    if (keyFilter.isReady()) return;
+
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        final long started = System.currentTimeMillis();
+        try {
+          processAllKeys(new Processor<Key>() {
+            @Override
+            public boolean process(Key key) {
+              keyFilter.add(key);
+              return true;
+            }
+          });
+          keyFilter.setReady();
+          LOG.info("Key filter of " + myIndexId + " rebuilt in " + (System.currentTimeMillis() - started) + " ms");
+        }
+        catch (Exception e) {
+          LOG.info(e);
+        }
+      }
+    });
+  }
+
   public void setInputIdToDataKeysIndex(Factory<PersistentHashMap<Integer, Collection<Key>>> factory) throws IOException {
     myInputsIndexFactory = factory;
     myInputsIndex = createInputsIndex();
@@ -209,10 +264,25 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   public final Computable<Boolean> update(final int inputId, @Nullable Input content) {
     assert myInputsIndex != null;
 
-    final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+    final Map<Key, Value> data = mapInput(content);
 
     ProgressManager.checkCanceled();
 
+    return prepareUpdate(inputId, data);
+  }
+
+  @NotNull
+  public final Map<Key, Value> mapInput(@Nullable Input content) {
+    return content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+  }
+
+  /**
+   * Same as {@link #update(int, Object)} for the data already mapped from the input, e.g. taken from a pre-built index bundle
+   */
+  @NotNull
+  public final Computable<Boolean> prepareUpdate(final int inputId, @NotNull final Map<Key, Value> data) {
+    assert myInputsIndex != null;
+
     // do not depend on content!
     return new Computable<Boolean>() {
       @Override
@@ -257,6 +327,12 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
       catch (Exception e) {
         throw new StorageException(e);
       }
+      final KeyBloomFilter<Key> keyFilter = myKeyFilter;
+      if (keyFilter != null) {
+        for (Key key : newData.keySet()) {
+          keyFilter.add(key);
+        }
+      }
       // add new values
       if (newData instanceof THashMap) {
         // such map often (from IdIndex) contain 100x (avg ~240) of entries, also THashMap have no Entry inside so we optimize for gc too
@@ -1,5 +1,6 @@
 package com.intellij.util.indexing;
 
+import com.intellij.concurrency.JobScheduler;
 import com.intellij.openapi.application.AccessToken;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ReadAction;
@@ -7,6 +8,7 @@ import com.intellij.openapi.util.Computable;
 
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -20,11 +22,22 @@ class TaskQueue {
   private final int myLimit;
   private final int myStealLimit;
   private final int myTimeStampUpdateSizeLimit;
+  private final long myFlushDelay;
+  private final AtomicBoolean myFlushScheduled = new AtomicBoolean();
 
   public TaskQueue(int limit) {
+    this(limit, 0);
+  }
+
+  /**
+   * @param flushDelay if positive, the updates submitted while no files update is running are performed by a pooled thread
+   *                   at most that many ms later, instead of waiting for the next {@link #ensureUpToDate()}
+   */
+  public TaskQueue(int limit, long flushDelay) {
     myLimit = limit;
     myStealLimit = Math.max(1, (int)(limit * 0.01));
     myTimeStampUpdateSizeLimit = 32;
+    myFlushDelay = flushDelay;
   }
 
   void submit(final Computable<Boolean> update, final Runnable successRunnable) {
@@ -59,6 +72,37 @@ class TaskQueue {
     if (size > myTimeStampUpdateSizeLimit) {
       applyTimeStamps(size);
     }
+
+    if (myFlushDelay > 0 && myDoWorkRequest.get() == 0) {
+      // there is no worker thread to perform the update
+      scheduleFlush();
+    }
+  }
+
+  private void scheduleFlush() {
+    if (!myFlushScheduled.compareAndSet(false, true)) return;
+    JobScheduler.getScheduler().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (ApplicationManager.getApplication().isDisposed()) return;
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+          @Override
+          public void run() {
+            myFlushScheduled.set(false);
+            flush();
+          }
+        });
+      }
+    }, myFlushDelay, TimeUnit.MILLISECONDS);
+  }
+
+  private void flush() {
+    Runnable runnable = myPendingWriteRequestsQueue.poll();
+    while (runnable != null) {
+      runnable.run();
+      runnable = myPendingWriteRequestsQueue.poll();
+    }
+    applyTimeStamps(Integer.MAX_VALUE);
   }
 
   private void applyTimeStamps(int max) {
@@ -23,6 +23,8 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CollectingContentIterator;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.stubs.StubIndex;
+import com.intellij.psi.stubs.StubIndexImpl;
 
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -79,6 +81,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
     if (myFinishedUpdate.compareAndSet(false, true)) {
       myIndex.filesUpdateFinished(myProject);
       LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
+      ((StubIndexImpl)StubIndex.getInstance()).scheduleSnapshotsWriting();
     }
   }
 
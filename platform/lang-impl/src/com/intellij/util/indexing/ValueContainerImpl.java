@@ -37,6 +37,7 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   // there is no volatile as we modify under write lock and read under read lock
   // Most often (80%) we store 0 or one mapping, then we store them in two fields: myInputIdMapping, myInputIdMappingValue
   // when there are several value mapped, myInputIdMapping is THashMap<Value, Data>, myInputIdMappingValue = null
+  // Data is Integer for single input id, IdSet for input ids or IdBitSet for large and dense input id sets
   private Object myInputIdMapping;
   private Object myInputIdMappingValue;
 
@@ -47,6 +48,12 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input == null) {
       attachFileSetForNewValue(value, inputId);
     }
+    else if (input instanceof IdBitSet) {
+      final IdBitSet bitSet = (IdBitSet)input;
+      if (bitSet.add(inputId) && bitSet.isSparse()) {
+        resetFileSetForValue(value, bitSet.toIdSet());
+      }
+    }
     else {
       final TIntHashSet idSet;
       if (input instanceof Integer) {
@@ -109,6 +116,13 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         return reallyRemoved;
       }
     }
+    else if (input instanceof IdBitSet) {
+      final IdBitSet bitSet = (IdBitSet)input;
+      final boolean reallyRemoved = bitSet.remove(inputId);
+      if (bitSet.size() > 0) {
+        return reallyRemoved;
+      }
+    }
     else if (input instanceof Integer) {
       if (((Integer)input).intValue() != inputId) {
         return false;
@@ -198,6 +212,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       return ((TIntHashSet)input).contains(inputId);
     }
+    if (input instanceof IdBitSet) {
+      return ((IdBitSet)input).contains(inputId);
+    }
     if (input instanceof Integer ){
       return inputId == ((Integer)input).intValue();
     }
@@ -217,6 +234,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         }
       };
     }
+    if (input instanceof IdBitSet) {
+      return new IntPredicate() {
+        final IdBitSet myBitSet = (IdBitSet)input;
+        @Override
+        boolean contains(int id) {
+          return myBitSet.contains(id);
+        }
+      };
+    }
     return new IntPredicate() {
       final TIntHashSet mySet = (TIntHashSet)input;
       @Override
@@ -233,6 +259,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       it = new IntSetIterator((TIntHashSet)input);
     }
+    else if (input instanceof IdBitSet) {
+      it = ((IdBitSet)input).iterator();
+    }
     else if (input instanceof Integer ){
       it = new SingleValueIterator(((Integer)input).intValue());
     }
@@ -265,6 +294,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         clone.myInputIdMapping = mapCopy((THashMap<Value, Object>)myInputIdMapping);
       } else if (myInputIdMappingValue instanceof TIntHashSet) {
         clone.myInputIdMappingValue = ((TIntHashSet)myInputIdMappingValue).clone();
+      } else if (myInputIdMappingValue instanceof IdBitSet) {
+        clone.myInputIdMappingValue = ((IdBitSet)myInputIdMappingValue).clone();
       }
       return clone;
     }
@@ -304,6 +335,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
           if (val instanceof TIntHashSet) {
             newMapping.put(key, ((TIntHashSet)val).clone());
           }
+          else if (val instanceof IdBitSet) {
+            newMapping.put(key, ((IdBitSet)val).clone());
+          }
           else {
             newMapping.put(key, val);
           }
@@ -313,7 +347,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     } else {
       container.myInputIdMapping = myInputIdMapping;
       container.myInputIdMappingValue = myInputIdMappingValue instanceof TIntHashSet ?
-                                        ((TIntHashSet)myInputIdMappingValue).clone():myInputIdMappingValue;
+                                        ((TIntHashSet)myInputIdMappingValue).clone():
+                                        myInputIdMappingValue instanceof IdBitSet ?
+                                        ((IdBitSet)myInputIdMappingValue).clone():myInputIdMappingValue;
     }
     return container;
   }
@@ -336,6 +372,27 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     attachFileSetForNewValue(value, new IdSet(count));
   }
 
+  /**
+   * Prepares storage for count input ids from [minId, maxId] range, large enough dense id sets are kept as bit masks.
+   */
+  void ensureFileSetCapacityForValue(Value value, int count, int minId, int maxId) {
+    if (count < IdBitSet.MIN_SIZE || IdBitSet.isSparse(count, minId, maxId)) {
+      ensureFileSetCapacityForValue(value, count);
+      return;
+    }
+    Object input = getInput(value);
+
+    if (input == null) {
+      attachFileSetForNewValue(value, new IdBitSet(minId, maxId));
+    }
+    else if (input instanceof IdBitSet) {
+      ((IdBitSet)input).ensureCapacity(minId, maxId);
+    }
+    else {
+      ensureFileSetCapacityForValue(value, count);
+    }
+  }
+
   private void attachFileSetForNewValue(Value value, Object fileSet) {
     value = value != null ? value:(Value)myNullValue;
     if (myInputIdMapping != null) {
@@ -414,6 +471,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         if (val instanceof TIntHashSet) {
           cloned.put(key, ((TIntHashSet)val).clone());
         }
+        else if (val instanceof IdBitSet) {
+          cloned.put(key, ((IdBitSet)val).clone());
+        }
         return true;
       }
     });
@@ -428,6 +488,130 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   };
 
+  /**
+   * Input ids set kept as bit mask starting from myBase, takes less memory than IdSet for sets with more than one id per 32 ids of range,
+   * e.g. for frequent words of IdIndex.
+   */
+  private static class IdBitSet implements Cloneable {
+    private static final int SHIFT = 6;
+    private static final int MASK = (1 << SHIFT) - 1;
+    private static final int MIN_SIZE = 64;
+    private long[] myBits;
+    private int myBase;
+    private int mySize;
+
+    private IdBitSet(int minId, int maxId) {
+      myBase = minId & ~MASK;
+      myBits = new long[((maxId - myBase) >> SHIFT) + 1];
+    }
+
+    static boolean isSparse(int size, int minId, int maxId) {
+      // long per 64 ids of range vs ~5 bytes per id in IdSet
+      return ((long)maxId - minId) / 32 > size;
+    }
+
+    boolean isSparse() {
+      // leave room between sparse and dense states to avoid converting back and forth
+      return mySize >= MIN_SIZE && (long)myBits.length > mySize;
+    }
+
+    int size() {
+      return mySize;
+    }
+
+    boolean contains(int id) {
+      int offset = id - myBase;
+      if (offset < 0) return false;
+      int word = offset >> SHIFT;
+      return word < myBits.length && (myBits[word] & (1L << offset)) != 0;
+    }
+
+    boolean add(int id) {
+      ensureCapacity(id, id);
+      int offset = id - myBase;
+      int word = offset >> SHIFT;
+      long bit = 1L << offset;
+      if ((myBits[word] & bit) != 0) return false;
+      myBits[word] |= bit;
+      ++mySize;
+      return true;
+    }
+
+    boolean remove(int id) {
+      if (!contains(id)) return false;
+      int offset = id - myBase;
+      myBits[offset >> SHIFT] &= ~(1L << offset);
+      --mySize;
+      return true;
+    }
+
+    void ensureCapacity(int minId, int maxId) {
+      if (minId < myBase) {
+        int newBase = minId & ~MASK;
+        int extraWords = (myBase - newBase) >> SHIFT;
+        long[] bits = new long[myBits.length + extraWords];
+        System.arraycopy(myBits, 0, bits, extraWords, myBits.length);
+        myBits = bits;
+        myBase = newBase;
+      }
+      int words = ((maxId - myBase) >> SHIFT) + 1;
+      if (words > myBits.length) {
+        long[] bits = new long[Math.max(words, myBits.length + (myBits.length >> 1))];
+        System.arraycopy(myBits, 0, bits, 0, myBits.length);
+        myBits = bits;
+      }
+    }
+
+    IdSet toIdSet() {
+      IdSet set = new IdSet(mySize + 1);
+      for (IntIterator iterator = iterator(); iterator.hasNext();) {
+        set.add(iterator.next());
+      }
+      return set;
+    }
+
+    IntIterator iterator() {
+      return new IntIterator() {
+        private int myWord = -1;
+        private long myCurrentBits;
+        private int myLeft = mySize;
+
+        @Override
+        public boolean hasNext() {
+          return myLeft > 0;
+        }
+
+        @Override
+        public int next() {
+          while (myCurrentBits == 0) {
+            myCurrentBits = myBits[++myWord];
+          }
+          int bit = Long.numberOfTrailingZeros(myCurrentBits);
+          myCurrentBits &= myCurrentBits - 1;
+          --myLeft;
+          return myBase + (myWord << SHIFT) + bit;
+        }
+
+        @Override
+        public int size() {
+          return mySize;
+        }
+      };
+    }
+
+    @Override
+    public IdBitSet clone() {
+      try {
+        IdBitSet clone = (IdBitSet)super.clone();
+        clone.myBits = myBits.clone();
+        return clone;
+      }
+      catch (CloneNotSupportedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
   private static class IdSet extends TIntHashSet {
 
     private IdSet(final int initialCapacity) {
@@ -7,6 +7,7 @@ import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -86,7 +87,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
+        if (ids != null && ids.size() > 1) {
+          saveSortedIds(out, ids);
+        }
+        else if (ids != null) {
           DataInputOutputUtil.writeSINT(out, ids.size());
           while (ids.hasNext()) {
             final int id = ids.next();
@@ -99,6 +103,23 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
       }
     }
 
+    // negated id count, then smallest id, ids range and deltas between ascending ids
+    private static void saveSortedIds(final DataOutput out, final ValueContainer.IntIterator ids) throws IOException {
+      final int[] sorted = new int[ids.size()];
+      int count = 0;
+      while (ids.hasNext()) {
+        sorted[count++] = ids.next();
+      }
+      Arrays.sort(sorted, 0, count);
+
+      DataInputOutputUtil.writeSINT(out, -count);
+      DataInputOutputUtil.writeINT(out, sorted[0]);
+      DataInputOutputUtil.writeINT(out, sorted[count - 1] - sorted[0]);
+      for (int i = 1; i < count; ++i) {
+        DataInputOutputUtil.writeINT(out, sorted[i] - sorted[i - 1]);
+      }
+    }
+
     @NotNull
     @Override
     public ValueContainerImpl<T> read(final DataInput in) throws IOException {
@@ -115,10 +136,23 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
-            valueContainer.ensureFileSetCapacityForValue(value, idCount);
-            for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
+            if (idCount < 0) {
+              final int count = -idCount;
+              int id = DataInputOutputUtil.readINT(in);
+              final int range = DataInputOutputUtil.readINT(in);
+              valueContainer.ensureFileSetCapacityForValue(value, count, id, id + range);
               valueContainer.addValue(id, value);
+              for (int i = 1; i < count; i++) {
+                id += DataInputOutputUtil.readINT(in);
+                valueContainer.addValue(id, value);
+              }
+            }
+            else {
+              valueContainer.ensureFileSetCapacityForValue(value, idCount);
+              for (int i = 0; i < idCount; i++) {
+                final int id = DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
             }
           }
         }
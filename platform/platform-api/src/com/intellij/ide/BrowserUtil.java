@@ -35,7 +35,6 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.*;
 import com.intellij.ui.GuiUtils;
-import com.intellij.util.io.ZipUtil;
 import com.intellij.util.ui.OptionsDialog;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -43,22 +42,25 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import static com.intellij.util.containers.ContainerUtil.newSmartList;
 import static com.intellij.util.containers.ContainerUtilRt.newArrayList;
@@ -345,24 +347,18 @@ public class BrowserUtil {
 
         if (!extract.get()) return null;
 
-        @SuppressWarnings("ConstantConditions")
-        final ZipFile zipFile = jarFileSystem.getJarFile(file).getZipFile();
-        if (zipFile == null) return null;
-        ZipEntry entry = zipFile.getEntry(targetFileRelativePath);
+        // the jar may be read directly without a ZipFile, so only the JarFile methods are used
+        final JarFile jarFile = jarFileSystem.getJarFile(file);
+        if (jarFile == null) return null;
+        JarFile.JarEntry entry = jarFile.getEntry(targetFileRelativePath);
         if (entry == null) return null;
-        InputStream is = zipFile.getInputStream(entry);
-        try {
-          ZipUtil.extractEntry(entry, is, outputDir);
-        }
-        finally {
-          is.close();
-        }
+        extractEntry(jarFile, entry, outputDir);
 
         ApplicationManager.getApplication().invokeLater(new Runnable() {
           public void run() {
             new Task.Backgroundable(null, "Extracting files...", true) {
               public void run(@NotNull final ProgressIndicator indicator) {
-                final int size = zipFile.size();
+                final int size = Collections.list(jarFile.entries()).size();
                 final int[] counter = new int[]{0};
 
                 class MyFilter implements FilenameFilter {
@@ -386,8 +382,8 @@ public class BrowserUtil {
                 }
 
                 try {
-                  ZipUtil.extract(zipFile, outputDir, new MyFilter(true));
-                  ZipUtil.extract(zipFile, outputDir, new MyFilter(false));
+                  extract(jarFile, outputDir, new MyFilter(true));
+                  extract(jarFile, outputDir, new MyFilter(false));
                   FileUtil.writeToFile(timestampFile, currentTimestamp.getBytes());
                 }
                 catch (IOException ignore) {
@@ -407,6 +403,40 @@ public class BrowserUtil {
     }
   }
 
+  private static void extract(@NotNull JarFile jarFile, @NotNull File outputDir, @NotNull FilenameFilter filter) throws IOException {
+    Enumeration<? extends JarFile.JarEntry> entries = jarFile.entries();
+    while (entries.hasMoreElements()) {
+      JarFile.JarEntry entry = entries.nextElement();
+      File file = new File(outputDir, entry.getName());
+      if (filter.accept(file.getParentFile(), file.getName())) {
+        extractEntry(jarFile, entry, outputDir);
+      }
+    }
+  }
+
+  private static void extractEntry(@NotNull JarFile jarFile, @NotNull JarFile.JarEntry entry, @NotNull File outputDir) throws IOException {
+    File file = new File(outputDir, entry.getName());
+    FileUtil.createParentDirs(file);
+    if (entry.isDirectory()) {
+      file.mkdir();
+      return;
+    }
+
+    InputStream is = jarFile.getInputStream(entry);
+    try {
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+      try {
+        FileUtil.copy(is, os);
+      }
+      finally {
+        os.close();
+      }
+    }
+    finally {
+      is.close();
+    }
+  }
+
   public static void clearExtractedFiles() {
     FileUtil.delete(getExtractedFilesDir());
   }
@@ -24,6 +24,8 @@ import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.util.ArrayUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.TestOnly;
 
@@ -32,6 +34,8 @@ import java.util.List;
 // all file pointers we store in the tree with nodes corresponding to the file structure on disk
 class FilePointerPartNode {
   private static final FilePointerPartNode[] EMPTY_ARRAY = new FilePointerPartNode[0];
+  // nodes with fewer children match all paths against each child
+  private static final int MIN_CHILDREN_TO_DISPATCH = 8;
   @NotNull private String part; // common prefix of all file pointers beneath
   @NotNull private FilePointerPartNode[] children;
   private FilePointerPartNode parent;
@@ -76,6 +80,109 @@ class FilePointerPartNode {
     return false;
   }
 
+  /**
+   * Same as {@link #getPointersUnder(String, int, List)} for many paths at once: each node is visited only once and
+   * each path is passed only to the children which can match it.
+   * @param starts starts[i] is the index in paths[i] matched by the upper nodes
+   */
+  void getPointersUnder(@NotNull String[] paths, @NotNull int[] starts, int count, @NotNull List<FilePointerPartNode> out) {
+    if (pointersUnder == 0) return;
+    // invariant: upper nodes are matched
+    String[] childPaths = null;
+    int[] childStarts = null;
+    int childCount = 0;
+    for (int i = 0; i < count; i++) {
+      String path = paths[i];
+      int index = indexOfFirstDifferentChar(path, starts[i]);
+      if (index == path.length()) {
+        // query matched entirely, all pointers beneath match
+        addAllPointers(out);
+        return;
+      }
+      if (index - starts[i] == part.length()) {
+        // part matched entirely, check children
+        if (childPaths == null) {
+          childPaths = new String[count - i];
+          childStarts = new int[count - i];
+        }
+        childPaths[childCount] = path;
+        childStarts[childCount++] = index;
+      }
+    }
+    if (childCount == 0) return;
+
+    if (childCount == 1 || children.length < MIN_CHILDREN_TO_DISPATCH) {
+      for (FilePointerPartNode child : children) {
+        child.getPointersUnder(childPaths, childStarts, childCount, out);
+      }
+      return;
+    }
+
+    // siblings differ in their first char, or in the second one if they start with '/' (see findPointerOrCreate),
+    // so each path is passed only to the child with the same key
+    TIntIntHashMap childByKey = new TIntIntHashMap(children.length);
+    boolean[] matchesAll = new boolean[children.length];
+    for (int j = 0; j < children.length; j++) {
+      int key = key(children[j].part, 0);
+      if (key == -1 || childByKey.containsKey(key)) {
+        matchesAll[j] = true;
+      }
+      else {
+        childByKey.put(key, j);
+      }
+    }
+    TIntArrayList[] pathsByChild = new TIntArrayList[children.length];
+    TIntArrayList toAllChildren = new TIntArrayList();
+    for (int i = 0; i < childCount; i++) {
+      int key = key(childPaths[i], childStarts[i]);
+      if (key == -1) {
+        toAllChildren.add(i);
+      }
+      else if (childByKey.containsKey(key)) {
+        int j = childByKey.get(key);
+        if (pathsByChild[j] == null) pathsByChild[j] = new TIntArrayList();
+        pathsByChild[j].add(i);
+      }
+    }
+    for (int j = 0; j < children.length; j++) {
+      if (matchesAll[j]) {
+        children[j].getPointersUnder(childPaths, childStarts, childCount, out);
+        continue;
+      }
+      TIntArrayList indices = pathsByChild[j] == null ? toAllChildren : pathsByChild[j];
+      if (indices != toAllChildren) indices.add(toAllChildren.toNativeArray());
+      if (indices.isEmpty()) continue;
+      String[] subPaths = new String[indices.size()];
+      int[] subStarts = new int[indices.size()];
+      for (int k = 0; k < subPaths.length; k++) {
+        subPaths[k] = childPaths[indices.get(k)];
+        subStarts[k] = childStarts[indices.get(k)];
+      }
+      children[j].getPointersUnder(subPaths, subStarts, subPaths.length, out);
+    }
+  }
+
+  private void addAllPointers(@NotNull List<FilePointerPartNode> out) {
+    if (pointersUnder == 0) return;
+    if (leaf != null) {
+      out.add(this);
+    }
+    for (FilePointerPartNode child : children) {
+      child.addAllPointers(out);
+    }
+  }
+
+  // -1 if the key isn't defined, i.e. the path may match any child
+  private static int key(@NotNull String path, int index) {
+    char c = normalize(path.charAt(index));
+    if (c != '/') return c;
+    return index + 1 < path.length() ? '/' << 16 | normalize(path.charAt(index + 1)) : -1;
+  }
+
+  private static char normalize(char c) {
+    return SystemInfo.isFileSystemCaseSensitive ? c : StringUtil.toLowerCase(StringUtil.toUpperCase(c));
+  }
+
   void checkStructure() {
     if (!DEBUG) return;
     int childSum = 0;
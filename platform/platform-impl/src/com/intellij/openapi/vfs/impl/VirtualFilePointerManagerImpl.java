@@ -30,6 +30,7 @@ import com.intellij.openapi.vfs.pointers.VirtualFilePointer;
 import com.intellij.openapi.vfs.pointers.VirtualFilePointerContainer;
 import com.intellij.openapi.vfs.pointers.VirtualFilePointerListener;
 import com.intellij.openapi.vfs.pointers.VirtualFilePointerManager;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.Function;
 import com.intellij.util.SmartFMap;
 import com.intellij.util.containers.ContainerUtil;
@@ -139,9 +140,14 @@ public class VirtualFilePointerManagerImpl extends VirtualFilePointerManager imp
     return list.toArray(new VirtualFilePointer[list.size()]);
   }
 
-  private void addPointersUnder(@NotNull String path, @NotNull List<FilePointerPartNode> out) {
+  // one pass over the pointer trees for all paths of an events batch
+  private void addPointersUnder(@NotNull List<String> paths, @NotNull List<FilePointerPartNode> out) {
+    if (paths.isEmpty()) return;
+    String[] pathArray = ArrayUtil.toStringArray(paths);
+    int[] starts = new int[pathArray.length];
     for (FilePointerPartNode root : myPointers.values()) {
-      root.getPointersUnder(path, 0, out);
+      root.checkStructure();
+      root.getPointersUnder(pathArray, starts, pathArray.length, out);
     }
   }
 
@@ -403,59 +409,60 @@ public class VirtualFilePointerManagerImpl extends VirtualFilePointerManager imp
 
     synchronized (this) {
       incModificationCounter();
+      List<String> toFirePaths = new ArrayList<String>();
+      List<String> toUpdateUrlPaths = new ArrayList<String>();
       for (VFileEvent event : events) {
         if (event instanceof VFileDeleteEvent) {
           final VFileDeleteEvent deleteEvent = (VFileDeleteEvent)event;
-          String path = deleteEvent.getFile().getPath();
-          addPointersUnder(path, toFireEvents);
+          toFirePaths.add(deleteEvent.getFile().getPath());
         }
         else if (event instanceof VFileCreateEvent) {
           final VFileCreateEvent createEvent = (VFileCreateEvent)event;
-          String url = createEvent.getPath();
-          addPointersUnder(url, toFireEvents);
+          toFirePaths.add(createEvent.getPath());
         }
         else if (event instanceof VFileCopyEvent) {
           final VFileCopyEvent copyEvent = (VFileCopyEvent)event;
-          String url = copyEvent.getNewParent().getPath() + "/" + copyEvent.getFile().getName();
-          addPointersUnder(url, toFireEvents);
+          toFirePaths.add(copyEvent.getNewParent().getPath() + "/" + copyEvent.getFile().getName());
         }
         else if (event instanceof VFileMoveEvent) {
           final VFileMoveEvent moveEvent = (VFileMoveEvent)event;
-          List<FilePointerPartNode> nodes = new ArrayList<FilePointerPartNode>();
-          addPointersUnder(moveEvent.getFile().getPath(), nodes);
-          for (FilePointerPartNode pair : nodes) {
-            VirtualFile file = pair.leaf.getFile();
-            if (file != null) {
-              toUpdateUrl.add(pair);
-            }
-          }
+          toUpdateUrlPaths.add(moveEvent.getFile().getPath());
         }
         else if (event instanceof VFilePropertyChangeEvent) {
           final VFilePropertyChangeEvent change = (VFilePropertyChangeEvent)event;
           if (VirtualFile.PROP_NAME.equals(change.getPropertyName())) {
-            List<FilePointerPartNode> nodes = new ArrayList<FilePointerPartNode>();
-            addPointersUnder(change.getFile().getPath(), nodes);
-            for (FilePointerPartNode pair : nodes) {
-              VirtualFile file = pair.leaf.getFile();
-              if (file != null) {
-                toUpdateUrl.add(pair);
-              }
-            }
+            toUpdateUrlPaths.add(change.getFile().getPath());
           }
         }
       }
 
+      addPointersUnder(toFirePaths, toFireEvents);
+      List<FilePointerPartNode> nodes = new ArrayList<FilePointerPartNode>();
+      addPointersUnder(toUpdateUrlPaths, nodes);
+      for (FilePointerPartNode pair : nodes) {
+        VirtualFile file = pair.leaf.getFile();
+        if (file != null) {
+          toUpdateUrl.add(pair);
+        }
+      }
+
       myEvents = new ArrayList<EventDescriptor>();
       toFirePointers = toPointers(toFireEvents);
-      for (final VirtualFilePointerListener listener : myPointers.keySet()) {
+      Map<VirtualFilePointerListener, List<VirtualFilePointer>> byListener =
+        new IdentityHashMap<VirtualFilePointerListener, List<VirtualFilePointer>>();
+      for (VirtualFilePointer pointer : toFirePointers) {
+        VirtualFilePointerListener listener = ((VirtualFilePointerImpl)pointer).getListener();
         if (listener == null) continue;
-        List<VirtualFilePointer> filtered = ContainerUtil.filter(toFirePointers, new Condition<VirtualFilePointer>() {
-          @Override
-          public boolean value(VirtualFilePointer pointer) {
-            return ((VirtualFilePointerImpl)pointer).getListener() == listener;
-          }
-        });
-        if (!filtered.isEmpty()) {
+        List<VirtualFilePointer> list = byListener.get(listener);
+        if (list == null) {
+          list = new ArrayList<VirtualFilePointer>();
+          byListener.put(listener, list);
+        }
+        list.add(pointer);
+      }
+      for (final VirtualFilePointerListener listener : myPointers.keySet()) {
+        List<VirtualFilePointer> filtered = listener == null ? null : byListener.get(listener);
+        if (filtered != null) {
           EventDescriptor event = new EventDescriptor(listener, filtered.toArray(new VirtualFilePointer[filtered.size()]));
           myEvents.add(event);
         }
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayInputStream;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.JarFile;
+import gnu.trove.TObjectIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads entries of a jar without keeping it open, so the jar doesn't need to be copied to prevent locking it on Windows.
+ * The central directory is read once and kept in a few arrays; content of an entry is read from the jar on request.
+ * <p/>
+ * Jars which need ZIP64 extensions aren't supported, {@link #open(File)} returns null for them.
+ * <p/>
+ * Since the jar is reopened for every entry, the name in the local header and the CRC of the content are checked
+ * against the central directory read before, so a jar modified in the meantime is reported instead of returning wrong content.
+ */
+public class DirectJarFile implements JarFile {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.impl.jar.DirectJarFile");
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_HEADER_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+
+  private final File myFile;
+  private final String[] myNames;
+  private final TObjectIntHashMap<String> myIndices;
+  private final int[] myMethods;
+  private final long[] myTimes;
+  private final long[] myCrcs;
+  private final long[] mySizes;
+  private final long[] myCompressedSizes;
+  private final long[] myOffsets;
+
+  private DirectJarFile(@NotNull File file, int count) {
+    myFile = file;
+    myNames = new String[count];
+    myIndices = new TObjectIntHashMap<String>(count);
+    myMethods = new int[count];
+    myTimes = new long[count];
+    myCrcs = new long[count];
+    mySizes = new long[count];
+    myCompressedSizes = new long[count];
+    myOffsets = new long[count];
+  }
+
+  /**
+   * @return null if the jar uses features which aren't supported, {@link ZipFile} should be used then
+   */
+  @Nullable
+  public static DirectJarFile open(@NotNull File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long length = raf.length();
+      int tailSize = (int)Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+      byte[] tail = new byte[tailSize];
+      raf.seek(length - tailSize);
+      raf.readFully(tail);
+
+      int end = tailSize - END_HEADER_SIZE;
+      while (end >= 0 && (getInt(tail, end) != END_HEADER_SIGNATURE || end + END_HEADER_SIZE + getShort(tail, end + 20) != tailSize)) {
+        end--;
+      }
+      if (end < 0) {
+        throw new IOException("End of central directory not found in " + file);
+      }
+      int count = getShort(tail, end + 10);
+      long directorySize = getUnsignedInt(tail, end + 12);
+      long directoryOffset = getUnsignedInt(tail, end + 16);
+      if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL ||
+          directoryOffset + directorySize > length - tailSize + end) {
+        return null; // ZIP64 or a prefixed archive
+      }
+
+      byte[] directory = new byte[(int)directorySize];
+      raf.seek(directoryOffset);
+      raf.readFully(directory);
+
+      DirectJarFile jar = new DirectJarFile(file, count);
+      int pos = 0;
+      for (int i = 0; i < count; i++) {
+        if (pos + CENTRAL_HEADER_SIZE > directory.length || getInt(directory, pos) != CENTRAL_HEADER_SIGNATURE) {
+          throw new IOException("Invalid central directory in " + file);
+        }
+        int method = getShort(directory, pos + 10);
+        long crc = getUnsignedInt(directory, pos + 16);
+        long compressedSize = getUnsignedInt(directory, pos + 20);
+        long size = getUnsignedInt(directory, pos + 24);
+        int nameLength = getShort(directory, pos + 28);
+        int extraLength = getShort(directory, pos + 30);
+        int commentLength = getShort(directory, pos + 32);
+        long offset = getUnsignedInt(directory, pos + 42);
+        if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL) {
+          return null;
+        }
+
+        String name = new String(directory, pos + CENTRAL_HEADER_SIZE, nameLength, CharsetToolkit.UTF8_CHARSET);
+        jar.myNames[i] = name;
+        jar.myIndices.put(name, i);
+        jar.myMethods[i] = method;
+        // the DOS time like ZipFile reports it, the extended timestamp extra field is ignored
+        jar.myTimes[i] = dosToJavaTime(getUnsignedInt(directory, pos + 12));
+        jar.myCrcs[i] = crc;
+        jar.mySizes[i] = size;
+        jar.myCompressedSizes[i] = compressedSize;
+        jar.myOffsets[i] = offset;
+        pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+      }
+      return jar;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  @Override
+  @Nullable
+  public JarEntry getEntry(String name) {
+    // same as ZipFile: a directory may be requested without the trailing slash
+    int index = myIndices.containsKey(name) ? myIndices.get(name) : myIndices.containsKey(name + "/") ? myIndices.get(name + "/") : -1;
+    return index >= 0 ? new Entry(index) : null;
+  }
+
+  @Override
+  public InputStream getInputStream(JarEntry entry) throws IOException {
+    return new BufferExposingByteArrayInputStream(getContent(((Entry)entry).myIndex));
+  }
+
+  @Override
+  public Enumeration<? extends JarEntry> entries() {
+    return new Enumeration<JarEntry>() {
+      private int myNext = 0;
+
+      @Override
+      public boolean hasMoreElements() {
+        return myNext < myNames.length;
+      }
+
+      @Override
+      public JarEntry nextElement() {
+        if (myNext >= myNames.length) throw new NoSuchElementException();
+        return new Entry(myNext++);
+      }
+    };
+  }
+
+  @Override
+  @Nullable
+  public ZipFile getZipFile() {
+    return null;
+  }
+
+  @NotNull
+  private byte[] getContent(int index) throws IOException {
+    int method = myMethods[index];
+    if (method != STORED && method != DEFLATED) {
+      throw new IOException("Unsupported compression method " + method + " of " + myNames[index] + " in " + myFile);
+    }
+
+    int compressedSize = (int)myCompressedSizes[index];
+    // the inflater in the 'nowrap' mode may need an extra dummy byte after the compressed data
+    byte[] data = new byte[method == DEFLATED ? compressedSize + 1 : compressedSize];
+    RandomAccessFile raf = new RandomAccessFile(myFile, "r");
+    try {
+      byte[] header = new byte[LOCAL_HEADER_SIZE];
+      raf.seek(myOffsets[index]);
+      raf.readFully(header);
+      if (getInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+        throw new IOException("Invalid local header of " + myNames[index] + " in " + myFile + ", the jar was probably modified");
+      }
+      byte[] name = new byte[getShort(header, 26)];
+      raf.readFully(name);
+      if (!myNames[index].equals(new String(name, CharsetToolkit.UTF8_CHARSET))) {
+        throw new IOException("Unexpected entry at the offset of " + myNames[index] + " in " + myFile + ", the jar was probably modified");
+      }
+      raf.seek(myOffsets[index] + LOCAL_HEADER_SIZE + name.length + getShort(header, 28));
+      raf.readFully(data, 0, compressedSize);
+    }
+    finally {
+      raf.close();
+    }
+
+    byte[] content = method == STORED ? data : inflate(index, data);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    if (crc.getValue() != myCrcs[index]) {
+      throw new IOException("CRC mismatch of " + myNames[index] + " in " + myFile + ", the jar was probably modified");
+    }
+    return content;
+  }
+
+  @NotNull
+  private byte[] inflate(int index, @NotNull byte[] data) throws IOException {
+    byte[] content = new byte[(int)mySizes[index]];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data);
+      int inflated = 0;
+      while (inflated < content.length) {
+        int count = inflater.inflate(content, inflated, content.length - inflated);
+        if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      if (inflated != content.length) {
+        throw new IOException("Unexpected end of " + myNames[index] + " in " + myFile);
+      }
+    }
+    catch (DataFormatException e) {
+      LOG.debug(e);
+      throw new IOException("Invalid content of " + myNames[index] + " in " + myFile + ": " + e.getMessage());
+    }
+    finally {
+      inflater.end();
+    }
+    return content;
+  }
+
+  private class Entry implements JarEntry {
+    private final int myIndex;
+
+    private Entry(int index) {
+      myIndex = index;
+    }
+
+    @Override
+    public String getName() {
+      return myNames[myIndex];
+    }
+
+    @Override
+    public long getSize() {
+      return mySizes[myIndex];
+    }
+
+    @Override
+    public long getTime() {
+      return myTimes[myIndex];
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return getName().endsWith("/");
+    }
+  }
+
+  private static int getShort(byte[] b, int off) {
+    return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return getShort(b, off) | (getShort(b, off + 2) << 16);
+  }
+
+  private static long getUnsignedInt(byte[] b, int off) {
+    return getInt(b, off) & 0xFFFFFFFFL;
+  }
+
+  @SuppressWarnings("deprecation")
+  private static long dosToJavaTime(long dosTime) {
+    // the same conversion as in java.util.zip.ZipEntry
+    Date date = new Date((int)(((dosTime >> 25) & 0x7f) + 80),
+                         (int)(((dosTime >> 21) & 0x0f) - 1),
+                         (int)((dosTime >> 16) & 0x1f),
+                         (int)((dosTime >> 11) & 0x1f),
+                         (int)((dosTime >> 5) & 0x3f),
+                         (int)((dosTime << 1) & 0x3e));
+    return date.getTime();
+  }
+}
@@ -29,12 +29,14 @@ import com.intellij.openapi.util.NotNullLazyValue;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileSystemUtil;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.JarFile;
 import com.intellij.openapi.vfs.JarFileSystem;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VfsBundle;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.EnumeratorStringDescriptor;
 import com.intellij.util.io.IOUtil;
@@ -53,6 +55,8 @@ public class JarHandler extends JarHandlerBase {
 
   @NonNls private static final String JARS_FOLDER = "jars";
   private static final int FS_TIME_RESOLUTION = 2000;
+  // read jars with DirectJarFile which doesn't keep them open, so they are never copied to the jars folder
+  private static final boolean DIRECT_ACCESS = SystemProperties.getBooleanProperty("idea.jars.direct.access", false);
 
   private final JarFileSystemImpl myFileSystem;
 
@@ -79,6 +83,26 @@ public class JarHandler extends JarHandlerBase {
     return root;
   }
 
+  @Nullable
+  @Override
+  protected JarFile createJarFile() {
+    if (DIRECT_ACCESS) {
+      final File originalFile = getOriginalFile();
+      try {
+        final JarFile jar = DirectJarFile.open(originalFile);
+        if (jar != null) {
+          return jar;
+        }
+        LOG.info(originalFile.getPath() + " isn't supported by the direct access, it will be opened as a zip file");
+      }
+      catch (IOException e) {
+        // ZipFile is more lenient, e.g. to bytes after the archive comment
+        LOG.info(e.getMessage() + ": " + originalFile.getPath() + ", it will be opened as a zip file");
+      }
+    }
+    return super.createJarFile();
+  }
+
   @Override
   public File getMirrorFile(@NotNull File originalFile) {
     if (!myFileSystem.isMakeCopyOfJar(originalFile)) return originalFile;
@@ -118,6 +118,8 @@ public class RefreshSessionImpl extends RefreshSession {
       FileWatcher watcher = fs.getFileWatcher();
 
       long t = 0;
+      long scanTime = 0;
+      long compareTime = 0;
       if (LOG.isDebugEnabled()) {
         LOG.debug("scanning " + workQueue);
         t = System.currentTimeMillis();
@@ -138,11 +140,14 @@ public class RefreshSessionImpl extends RefreshSession {
         if (myEvents.addAll(events)) {
           haveEventsToFire = true;
         }
+        scanTime += worker.getScanTime();
+        compareTime += worker.getCompareTime();
       }
 
       if (t != 0) {
         t = System.currentTimeMillis() - t;
-        LOG.debug((myCancelled ? "cancelled, " : "done, ") + t + " ms, events " + myEvents);
+        LOG.debug((myCancelled ? "cancelled, " : "done, ") + t + " ms (scan " + scanTime + " ms, compare " + compareTime + " ms), " +
+                  "events " + myEvents);
       }
     }
 
@@ -186,7 +191,12 @@ public class RefreshSessionImpl extends RefreshSession {
     manager.fireBeforeRefreshStart(myIsAsync);
     try {
       while (!myWorkQueue.isEmpty() || !myEvents.isEmpty()) {
-        PersistentFS.getInstance().processEvents(mergeEventsAndReset());
+        List<VFileEvent> events = mergeEventsAndReset();
+        long t = System.currentTimeMillis();
+        PersistentFS.getInstance().processEvents(events);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("dispatched " + events.size() + " events in " + (System.currentTimeMillis() - t) + " ms");
+        }
         scan();
       }
     }
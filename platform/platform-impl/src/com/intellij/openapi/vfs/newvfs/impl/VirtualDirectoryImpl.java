@@ -74,10 +74,12 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
    *  We have to store these unsuccessful find attempts to be able to correctly refresh in the future.
    *  See usages of {@link #getSuspiciousNames()} in the {@link com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker}
    *
-   *  Guarded by this, files in each subarray are sorted according to the compareNameTo() comparator
+   *  Files in each subarray are sorted according to the compareNameTo() comparator.
+   *  The array is never modified in place: it is replaced with a modified copy under the lock of this directory,
+   *  so lookups read it without locking.
    *  TODO: revise the whole adopted scheme
    */
-  private VirtualFileSystemEntry[] myChildren = EMPTY_ARRAY;
+  private volatile VirtualFileSystemEntry[] myChildren = EMPTY_ARRAY;
 
   public VirtualDirectoryImpl(@NonNls @NotNull final String name,
                               @Nullable final VirtualDirectoryImpl parent,
@@ -144,7 +146,7 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
   }
 
   @Nullable // null if there can't be a child with this name, NULL_VIRTUAL_FILE
-  private synchronized VirtualFileSystemEntry doFindChildInArray(@NotNull Comparator comparator) {
+  private VirtualFileSystemEntry doFindChildInArray(@NotNull Comparator comparator) {
     VirtualFileSystemEntry[] array = myChildren;
     long r = findIndexInBoth(array, comparator);
     int indexInReal = (int)(r >> 32);
@@ -223,10 +225,6 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
     };
   }
 
-  private synchronized VirtualFileSystemEntry[] getArraySafely() {
-    return myChildren;
-  }
-
   @NotNull
   public VirtualFileSystemEntry createChild(@NotNull String name, int id, @NotNull NewVirtualFileSystem delegate) {
     VirtualFileSystemEntry child;
@@ -454,7 +452,7 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
 
   @Override
   @Nullable
-  public synchronized NewVirtualFile findChildIfCached(@NotNull String name) {
+  public NewVirtualFile findChildIfCached(@NotNull String name) {
     final boolean ignoreCase = !getFileSystem().isCaseSensitive();
     Comparator comparator = getComparator(name, ignoreCase);
     VirtualFileSystemEntry found = doFindChildInArray(comparator);
@@ -480,12 +478,22 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
 
   @Override
   @NotNull
-  public synchronized VirtualFile[] getChildren() {
+  public VirtualFile[] getChildren() {
+    if (allChildrenLoaded()) {
+      // no adopted children are added after all children are loaded
+      VirtualFileSystemEntry[] children = myChildren;
+      assertConsistency(children, !getFileSystem().isCaseSensitive());
+      return children;
+    }
+    return loadChildren();
+  }
+
+  @NotNull
+  private synchronized VirtualFile[] loadChildren() {
     VirtualFileSystemEntry[] children = myChildren;
     NewVirtualFileSystem delegate = getFileSystem();
     final boolean ignoreCase = !delegate.isCaseSensitive();
     if (allChildrenLoaded()) {
-      assertConsistency(children, ignoreCase);
       return children;
     }
 
@@ -507,7 +515,7 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
       int delegateI = 0;
       int i = 0;
 
-      int cachedEnd = getAdoptedChildrenStart();
+      int cachedEnd = getAdoptedChildrenStart(children);
       // merge (sorted) children[0..cachedEnd) and childrenIds into the result array.
       // file that is already in children array must be copied into the result as is
       // for the file name that is new in childrenIds the file must be created and copied into result
@@ -590,7 +598,7 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
   }
 
   public VirtualFileSystemEntry findChildById(int id, boolean cachedOnly) {
-    VirtualFile[] array = getArraySafely();
+    VirtualFile[] array = myChildren;
     VirtualFileSystemEntry result = null;
     for (VirtualFile file : array) {
       VirtualFileSystemEntry withId = (VirtualFileSystemEntry)file;
@@ -667,8 +675,9 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
   }
 
   @NotNull
-  public synchronized List<String> getSuspiciousNames() {
-    List<VirtualFile> suspicious = new SubList<VirtualFile>(myChildren, getAdoptedChildrenStart(), myChildren.length);
+  public List<String> getSuspiciousNames() {
+    VirtualFileSystemEntry[] children = myChildren;
+    List<VirtualFile> suspicious = new SubList<VirtualFile>(children, getAdoptedChildrenStart(children), children.length);
     return ContainerUtil.map2List(suspicious, new Function<VirtualFile, String>() {
       @Override
       public String fun(VirtualFile file) {
@@ -677,8 +686,8 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
     });
   }
 
-  private int getAdoptedChildrenStart() {
-    int index = binSearch(myChildren, 0, myChildren.length, new Comparator() {
+  private static int getAdoptedChildrenStart(@NotNull VirtualFileSystemEntry[] children) {
+    int index = binSearch(children, 0, children.length, new Comparator() {
       @Override
       public int compareMyKeyTo(@NotNull VirtualFileSystemEntry v) {
         return isAdoptedChild(v) ? -1 : 1;
@@ -726,8 +735,9 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
 
   @Override
   @NotNull
-  public synchronized List<VirtualFile> getCachedChildren() {
-    return new SubList<VirtualFile>(myChildren, 0, getAdoptedChildrenStart());
+  public List<VirtualFile> getCachedChildren() {
+    VirtualFileSystemEntry[] children = myChildren;
+    return new SubList<VirtualFile>(children, 0, getAdoptedChildrenStart(children));
   }
 
   @Override
@@ -749,7 +759,7 @@ public class VirtualDirectoryImpl extends VirtualFileSystemEntry {
 
   // optimisation: do not travel up unnecessary
   private void markDirtyRecursivelyInternal() {
-    for (VirtualFileSystemEntry child : getArraySafely()) {
+    for (VirtualFileSystemEntry child : myChildren) {
       if (isAdoptedChild(child)) break;
       child.markDirtyInternal();
       if (child instanceof VirtualDirectoryImpl) {
@@ -40,6 +40,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * @author max
@@ -65,8 +66,11 @@ public abstract class VirtualFileSystemEntry extends NewVirtualFile {
 
   private volatile int myNameId;
   private volatile VirtualDirectoryImpl myParent;
+  // updated with CAS instead of locking the file: indexing threads mark files concurrently
   private volatile int myFlags;
   private volatile int myId;
+  private static final AtomicIntegerFieldUpdater<VirtualFileSystemEntry> ourFlagsUpdater =
+    AtomicIntegerFieldUpdater.newUpdater(VirtualFileSystemEntry.class, "myFlags");
 
   public VirtualFileSystemEntry(@NotNull String name, VirtualDirectoryImpl parent, int id, @PersistentFS.Attributes int attributes) {
     myParent = parent;
@@ -139,8 +143,12 @@ public abstract class VirtualFileSystemEntry extends NewVirtualFile {
     return myFlags & ~ALL_FLAGS_MASK;
   }
 
-  public synchronized void setModificationStamp(long modificationStamp) {
-    myFlags = (myFlags & ALL_FLAGS_MASK) | ((int)modificationStamp & ~ALL_FLAGS_MASK);
+  public void setModificationStamp(long modificationStamp) {
+    int flags;
+    do {
+      flags = myFlags;
+    }
+    while (!ourFlagsUpdater.compareAndSet(this, flags, (flags & ALL_FLAGS_MASK) | ((int)modificationStamp & ~ALL_FLAGS_MASK)));
   }
 
   boolean getFlagInt(int mask) {
@@ -148,14 +156,13 @@ public abstract class VirtualFileSystemEntry extends NewVirtualFile {
     return (myFlags & mask) != 0;
   }
 
-  synchronized void setFlagInt(int mask, boolean value) {
+  void setFlagInt(int mask, boolean value) {
     assert (mask & ~ALL_FLAGS_MASK) == 0 : "Unexpected flag";
-    if (value) {
-      myFlags |= mask;
-    }
-    else {
-      myFlags &= ~mask;
+    int flags;
+    do {
+      flags = myFlags;
     }
+    while (!ourFlagsUpdater.compareAndSet(this, flags, value ? flags | mask : flags & ~mask));
   }
 
   public boolean isFileIndexed() {
@@ -47,6 +47,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.intellij.util.io.IOUtil.deleteAllFilesStartingWith;
@@ -92,8 +93,14 @@ public class FSRecords implements Forceable {
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
 
+  // The storages are locked independently, nested locks are always taken in the order: attributes, contents, records.
+  // Records lock guards the records table, attributes lock guards attribute reference pages of files,
+  // contents lock guards content records references and content hashes. Names enumerator is locked by itself.
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
+  private static final ReentrantReadWriteLock.ReadLock ourAttributesReadLock;
+  private static final ReentrantReadWriteLock.WriteLock ourAttributesWriteLock;
+  private static final ReentrantLock ourContentsLock = new ReentrantLock();
 
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
@@ -108,6 +115,10 @@ public class FSRecords implements Forceable {
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+
+    ReentrantReadWriteLock attributesLock = new ReentrantReadWriteLock();
+    ourAttributesReadLock = attributesLock.readLock();
+    ourAttributesWriteLock = attributesLock.writeLock();
   }
 
   static class DbConnection {
@@ -121,6 +132,7 @@ public class FSRecords implements Forceable {
     private static ResizeableMappedFile myRecords;
     private static PersistentBTreeEnumerator<byte[]> myContentHashesEnumerator;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
+    private static int[] myFreeRecordsOnConnect = ArrayUtil.EMPTY_INT_ARRAY;
 
     private static boolean myDirty = false;
     private static ScheduledFuture<?> myFlushingFuture;
@@ -153,6 +165,7 @@ public class FSRecords implements Forceable {
           myFreeRecords.add(n);
         }
       }
+      myFreeRecordsOnConnect = myFreeRecords.toNativeArray();
     }
 
     static int getFreeRecord() {
@@ -262,7 +275,7 @@ public class FSRecords implements Forceable {
             return super.getLargestId() / SIGNATURE_LENGTH;
           }
 
-          private boolean myProcessingKeyAtIndex;   // currently protected by w.lock of FSRecords
+          private boolean myProcessingKeyAtIndex;   // currently protected by contents lock of FSRecords
 
           @Override
           protected boolean isKeyAtIndex(byte[] value, int idx) throws IOException {
@@ -400,6 +413,8 @@ public class FSRecords implements Forceable {
 
     public static void force() {
       try {
+        ourAttributesWriteLock.lock();
+        ourContentsLock.lock();
         w.lock();
         if (myRecords != null) {
           markClean();
@@ -414,6 +429,8 @@ public class FSRecords implements Forceable {
       }
       finally {
         w.unlock();
+        ourContentsLock.unlock();
+        ourAttributesWriteLock.unlock();
       }
     }
 
@@ -421,6 +438,8 @@ public class FSRecords implements Forceable {
       if (!isDirty() || HeavyProcessLatch.INSTANCE.isRunning()) return;
 
       try {
+        ourAttributesWriteLock.lock();
+        ourContentsLock.lock();
         w.lock();
         if (myFlushingFuture == null) {
           return; // avoid NPE when close has already taken place
@@ -437,6 +456,8 @@ public class FSRecords implements Forceable {
       }
       finally {
         w.unlock();
+        ourContentsLock.unlock();
+        ourAttributesWriteLock.unlock();
       }
     }
 
@@ -566,6 +587,20 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * @return ids of the records which were free when the storage was opened, they are reused for new files
+   */
+  @NotNull
+  public static int[] getFreeRecordsOnConnect() {
+    try {
+      r.lock();
+      return DbConnection.myFreeRecordsOnConnect;
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
   private static ResizeableMappedFile getRecords() {
     return DbConnection.getRecords();
   }
@@ -615,6 +650,8 @@ public class FSRecords implements Forceable {
 
   static void deleteRecordRecursively(int id) {
     try {
+      ourAttributesWriteLock.lock();
+      ourContentsLock.lock();
       w.lock();
       incModCount(id);
       doDeleteRecursively(id);
@@ -624,6 +661,8 @@ public class FSRecords implements Forceable {
     }
     finally {
       w.unlock();
+      ourContentsLock.unlock();
+      ourAttributesWriteLock.unlock();
     }
   }
 
@@ -635,6 +674,7 @@ public class FSRecords implements Forceable {
     deleteRecord(id);
   }
 
+  // should be called under attributes, contents and records write locks
   private static void deleteRecord(final int id) {
     try {
       w.lock();
@@ -683,7 +723,7 @@ public class FSRecords implements Forceable {
   static int[] listRoots() {
     try {
       try {
-        r.lock();
+        ourAttributesReadLock.lock();
         final DataInputStream input = readAttribute(1, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
 
@@ -701,7 +741,7 @@ public class FSRecords implements Forceable {
         }
       }
       finally {
-        r.unlock();
+        ourAttributesReadLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -722,8 +762,8 @@ public class FSRecords implements Forceable {
   public static int findRootRecord(@NotNull String rootUrl) {
     try {
       try {
-        w.lock();
-        DbConnection.markDirty();
+        ourAttributesWriteLock.lock();
+        markDirty();
         final int root = getNames().enumerate(rootUrl);
 
         final DataInputStream input = readAttribute(1, CHILDREN_ATT);
@@ -770,7 +810,7 @@ public class FSRecords implements Forceable {
         return id;
       }
       finally {
-        w.unlock();
+        ourAttributesWriteLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -781,8 +821,8 @@ public class FSRecords implements Forceable {
   public static void deleteRootRecord(int id) {
     try {
       try {
-        w.lock();
-        DbConnection.markDirty();
+        ourAttributesWriteLock.lock();
+        markDirty();
         final DataInputStream input = readAttribute(1, CHILDREN_ATT);
         assert input != null;
         int count;
@@ -821,7 +861,7 @@ public class FSRecords implements Forceable {
         }
       }
       finally {
-        w.unlock();
+        ourAttributesWriteLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -831,7 +871,7 @@ public class FSRecords implements Forceable {
 
   public static int[] list(int id) {
     try {
-      r.lock();
+      ourAttributesReadLock.lock();
       try {
         final DataInputStream input = readAttribute(id, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
@@ -847,7 +887,7 @@ public class FSRecords implements Forceable {
         return result;
       }
       finally {
-        r.unlock();
+        ourAttributesReadLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -874,7 +914,7 @@ public class FSRecords implements Forceable {
   @NotNull
   public static NameId[] listAll(int parentId) {
     try {
-      r.lock();
+      ourAttributesReadLock.lock();
       try {
         final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
         if (input == null) return NameId.EMPTY_ARRAY;
@@ -890,7 +930,7 @@ public class FSRecords implements Forceable {
         return result;
       }
       finally {
-        r.unlock();
+        ourAttributesReadLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -900,11 +940,11 @@ public class FSRecords implements Forceable {
 
   public static boolean wereChildrenAccessed(int id) {
     try {
-      r.lock();
+      ourAttributesReadLock.lock();
       try {
         return findAttributePage(id, CHILDREN_ATT, false) != 0;
       } finally {
-        r.unlock();
+        ourAttributesReadLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -914,8 +954,8 @@ public class FSRecords implements Forceable {
 
   public static void updateList(int id, @NotNull int[] children) {
     try {
-      w.lock();
-      DbConnection.markDirty();
+      ourAttributesWriteLock.lock();
+      markDirty();
       final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
       DataInputOutputUtil.writeINT(record, children.length);
       for (int child : children) {
@@ -932,11 +972,22 @@ public class FSRecords implements Forceable {
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
+    finally {
+      ourAttributesWriteLock.unlock();
+    }
+  }
+
+  private static void markDirty() {
+    try {
+      w.lock();
+      DbConnection.markDirty();
+    }
     finally {
       w.unlock();
     }
   }
 
+  // should be called under records write lock
   private static void incModCount(int id) {
     DbConnection.markDirty();
     ourLocalModificationCount++;
@@ -960,30 +1011,18 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount() {
-    try {
-      r.lock();
-      return getRecords().getInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
   }
 
   public static int getParent(int id) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      finally {
-        r.unlock();
+      final int parentId = readInt(getOffset(id, PARENT_OFFSET));
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1011,13 +1050,7 @@ public class FSRecords implements Forceable {
 
   public static int getNameId(int id) {
     try {
-      r.lock();
-      try {
-        return getRecordInt(id, NAME_OFFSET);
-      }
-      finally {
-        r.unlock();
-      }
+      return readInt(getOffset(id, NAME_OFFSET));
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1026,13 +1059,7 @@ public class FSRecords implements Forceable {
 
   public static int getNameId(String name) {
     try {
-      r.lock();
-      try {
-        return getNames().enumerate(name);
-      }
-      finally {
-        r.unlock();
-      }
+      return getNames().enumerate(name);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1041,14 +1068,8 @@ public class FSRecords implements Forceable {
 
   public static String getName(int id) {
     try {
-      r.lock();
-      try {
-        final int nameId = getRecordInt(id, NAME_OFFSET);
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
-      }
-      finally {
-        r.unlock();
-      }
+      final int nameId = readInt(getOffset(id, NAME_OFFSET));
+      return nameId != 0 ? getNames().valueOf(nameId) : "";
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1057,13 +1078,7 @@ public class FSRecords implements Forceable {
 
   public static String getNameByNameId(int nameId) {
     try {
-      r.lock();
-      try {
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
-      }
-      finally {
-        r.unlock();
-      }
+      return nameId != 0 ? getNames().valueOf(nameId) : "";
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1072,9 +1087,10 @@ public class FSRecords implements Forceable {
 
   public static void setName(int id, String name) {
     try {
+      final int nameId = getNames().enumerate(name);
       w.lock();
       incModCount(id);
-      putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
+      putRecordInt(id, NAME_OFFSET, nameId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1085,13 +1101,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readInt(getOffset(id, FLAGS_OFFSET));
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
@@ -1111,13 +1121,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readLong(getOffset(id, LENGTH_OFFSET));
   }
 
   public static void setLength(int id, long len) {
@@ -1135,13 +1139,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readLong(getOffset(id, TIMESTAMP_OFFSET));
   }
 
   public static void setTimestamp(int id, long value) {
@@ -1159,12 +1157,16 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount(int id) {
+    return readInt(getOffset(id, MOD_COUNT_OFFSET));
+  }
+
+  private static void markModified(int id) {
     try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
+      w.lock();
+      incModCount(id);
     }
     finally {
-      r.unlock();
+      w.unlock();
     }
   }
 
@@ -1173,19 +1175,55 @@ public class FSRecords implements Forceable {
   }
 
   private static int getContentRecordId(int fileId) {
-    return getRecordInt(fileId, CONTENT_OFFSET);
+    return readInt(getOffset(fileId, CONTENT_OFFSET));
   }
 
   private static void setContentRecordId(int id, int value) {
-    putRecordInt(id, CONTENT_OFFSET, value);
+    try {
+      w.lock();
+      putRecordInt(id, CONTENT_OFFSET, value);
+    }
+    finally {
+      w.unlock();
+    }
   }
 
   private static int getAttributeRecordId(int id) {
-    return getRecordInt(id, ATTR_REF_OFFSET);
+    return readInt(getOffset(id, ATTR_REF_OFFSET));
   }
 
   private static void setAttributeRecordId(int id, int value) {
-    putRecordInt(id, ATTR_REF_OFFSET, value);
+    try {
+      w.lock();
+      putRecordInt(id, ATTR_REF_OFFSET, value);
+    }
+    finally {
+      w.unlock();
+    }
+  }
+
+  /**
+   * Reads the fixed size field of the records table under the records read lock only.
+   * The lock can't be skipped: looking up the page updates the page cache of the storage, which isn't safe against writers.
+   */
+  private static int readInt(int offset) {
+    try {
+      r.lock();
+      return getRecords().getInt(offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long readLong(int offset) {
+    try {
+      r.lock();
+      return getRecords().getLong(offset);
+    }
+    finally {
+      r.unlock();
+    }
   }
 
   private static int getRecordInt(int id, int offset) {
@@ -1203,17 +1241,10 @@ public class FSRecords implements Forceable {
   @Nullable
   public static DataInputStream readContent(int fileId) {
     try {
-      int page;
-      try {
-        r.lock();
-        checkFileIsValid(fileId);
+      checkFileIsValid(fileId);
 
-        page = getContentRecordId(fileId);
-        if (page == 0) return null;
-      }
-      finally {
-        r.unlock();
-      }
+      int page = getContentRecordId(fileId);
+      if (page == 0) return null;
       return getContentStorage().readStream(page);
     }
     catch (Throwable e) {
@@ -1236,11 +1267,11 @@ public class FSRecords implements Forceable {
     try {
       synchronized (attId) {
         try {
-          r.lock();
+          ourAttributesReadLock.lock();
           return readAttribute(fileId, attId);
         }
         finally {
-          r.unlock();
+          ourAttributesReadLock.unlock();
         }
       }
     }
@@ -1249,7 +1280,7 @@ public class FSRecords implements Forceable {
     }
   }
 
-  // should be called under r or w lock
+  // should be called under attributes read or write lock
   @Nullable
   private static DataInputStream readAttribute(int fileId, String attId) throws IOException {
     int page = findAttributePage(fileId, attId, false);
@@ -1257,6 +1288,7 @@ public class FSRecords implements Forceable {
     return getAttributesStorage().readStream(page);
   }
 
+  // should be called under attributes write lock when toWrite is set and under attributes read or write lock otherwise
   private static int findAttributePage(int fileId, @NotNull String attrId, boolean toWrite) throws IOException {
     checkFileIsValid(fileId);
 
@@ -1311,7 +1343,7 @@ public class FSRecords implements Forceable {
 
   public static int acquireFileContent(int fileId) {
     try {
-      w.lock();
+      ourContentsLock.lock();
       int record = getContentRecordId(fileId);
       if (record > 0) getContentStorage().acquireRecord(record);
       return record;
@@ -1320,13 +1352,13 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      ourContentsLock.unlock();
     }
   }
 
   public static void releaseContent(int contentId) {
     try {
-      w.lock();
+      ourContentsLock.lock();
       RefCountingStorage contentStorage = getContentStorage();
       if (weHaveContentHashes) {
         contentStorage.releaseRecord(contentId, false);
@@ -1337,19 +1369,13 @@ public class FSRecords implements Forceable {
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     } finally {
-      w.unlock();
+      ourContentsLock.unlock();
     }
   }
 
   public static int getContentId(int fileId) {
     try {
-      r.lock();
-      try {
-        return getContentRecordId(fileId);
-      }
-      finally {
-        r.unlock();
-      }
+      return getContentRecordId(fileId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1380,7 +1406,7 @@ public class FSRecords implements Forceable {
 
   public static int storeUnlinkedContent(byte[] bytes) {
     try {
-      w.lock();
+      ourContentsLock.lock();
       int recordId;
 
       if (weHaveContentHashes) {
@@ -1398,7 +1424,7 @@ public class FSRecords implements Forceable {
     catch (IOException e) {
       throw DbConnection.handleError(e);
     } finally {
-      w.unlock();
+      ourContentsLock.unlock();
     }
   }
 
@@ -1435,18 +1461,13 @@ public class FSRecords implements Forceable {
       RefCountingStorage contentStorage = getContentStorage();
       final boolean fixedSize;
       try {
-        w.lock();
-        incModCount(myFileId);
-
+        ourContentsLock.lock();
         checkFileIsValid(myFileId);
 
         if (weHaveContentHashes) {
           page = findOrCreateContentRecord(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
 
-          incModCount(myFileId);
-          checkFileIsValid(myFileId);
-
-          setContentRecordId(myFileId, page > 0 ? page : -page);
+          setContentRecordIdAndIncModCount(myFileId, page > 0 ? page : -page);
 
           if (page > 0) return;
           page = -page;
@@ -1455,34 +1476,63 @@ public class FSRecords implements Forceable {
           page = getContentRecordId(myFileId);
           if (page == 0 || contentStorage.getRefCount(page) > 1) {
             page = contentStorage.acquireNewRecord();
-            setContentRecordId(myFileId, page);
           }
+          setContentRecordIdAndIncModCount(myFileId, page);
           fixedSize = myFixedSize;
         }
       }
       finally {
-        w.unlock();
+        ourContentsLock.unlock();
       }
 
       contentStorage.writeBytes(page, bytes, fixedSize);
     }
   }
 
+  private static void setContentRecordIdAndIncModCount(int fileId, int page) {
+    try {
+      w.lock();
+      incModCount(fileId);
+      setContentRecordId(fileId, page);
+    }
+    finally {
+      w.unlock();
+    }
+  }
+
+  private static byte[] calculateHash(MessageDigest digest, byte[] bytes, int offset, int length) {
+    digest.reset();
+    digest.update(String.valueOf(length - offset).getBytes(Charset.defaultCharset()));
+    digest.update("\0".getBytes(Charset.defaultCharset()));
+    digest.update(bytes, offset, length);
+    return digest.digest();
+  }
+
+  /**
+   * @return hash of the given content computed the same way as the hashes of the stored contents
+   */
+  @NotNull
+  public static byte[] calculateHash(@NotNull byte[] bytes, int offset, int length) {
+    try {
+      return calculateHash(MessageDigest.getInstance("SHA1"), bytes, offset, length);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   private static final boolean DO_HARD_CONSISTENCY_CHECK = false;
   private static final boolean DUMP_STATISTICS = weHaveContentHashes;  // TODO: remove once not needed
   private static long totalContents, totalReuses, time;
   private static int contents, reuses;
 
+  // should be called under contents lock
   private static int findOrCreateContentRecord(byte[] bytes, int offset, int length) throws IOException {
     assert weHaveContentHashes;
     byte[] digest;
 
     long started = DUMP_STATISTICS ? System.nanoTime():0;
-    myDigest.reset();
-    myDigest.update(String.valueOf(length - offset).getBytes(Charset.defaultCharset()));
-    myDigest.update("\0".getBytes(Charset.defaultCharset()));
-    myDigest.update(bytes, offset, length);
-    digest = myDigest.digest();
+    digest = calculateHash(myDigest, bytes, offset, length);
     long done = DUMP_STATISTICS ? System.nanoTime() - started : 0;
     time += done;
 
@@ -1554,12 +1604,12 @@ public class FSRecords implements Forceable {
           final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
           final int page;
           try {
-            w.lock();
-            incModCount(myFileId);
+            ourAttributesWriteLock.lock();
+            markModified(myFileId);
             page = findAttributePage(myFileId, myAttributeId, true);
           }
           finally {
-            w.unlock();
+            ourAttributesWriteLock.unlock();
           }
           getAttributesStorage().writeBytes(page, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()), myFixedSize);
         }
@@ -1572,6 +1622,8 @@ public class FSRecords implements Forceable {
 
   public static void dispose() {
     try {
+      ourAttributesWriteLock.lock();
+      ourContentsLock.lock();
       w.lock();
       DbConnection.force();
       DbConnection.closeFiles();
@@ -1582,6 +1634,8 @@ public class FSRecords implements Forceable {
     finally {
       ourIsDisposed = true;
       w.unlock();
+      ourContentsLock.unlock();
+      ourAttributesWriteLock.unlock();
     }
   }
 
@@ -1593,6 +1647,8 @@ public class FSRecords implements Forceable {
     long t = System.currentTimeMillis();
 
     try {
+      ourAttributesReadLock.lock();
+      ourContentsLock.lock();
       r.lock();
       final int fileLength = (int)getRecords().length();
       assert fileLength % RECORD_SIZE == 0;
@@ -1614,6 +1670,8 @@ public class FSRecords implements Forceable {
     }
     finally {
       r.unlock();
+      ourContentsLock.unlock();
+      ourAttributesReadLock.unlock();
     }
 
     t = System.currentTimeMillis() - t;
@@ -15,6 +15,7 @@
  */
 package com.intellij.openapi.vfs.newvfs.persistent;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Pair;
@@ -29,6 +30,8 @@ import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
+import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.Queue;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -37,20 +40,33 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.intellij.openapi.diagnostic.LogUtil.debug;
 import static com.intellij.util.containers.ContainerUtil.newHashSet;
 
 /**
+ * Compares dirty files with the file system and collects the events describing the differences.
+ * <p/>
+ * With -Didea.vfs.parallel.refresh=true dirty files are processed level by level and the files of each level are refreshed
+ * concurrently. Events of each file are collected separately and merged in the order of the sequential (breadth-first) refresh,
+ * so both modes produce the same list of events.
+ *
  * @author max
  */
 public class RefreshWorker {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker");
+  private static final String PARALLEL_REFRESH_PROPERTY = "idea.vfs.parallel.refresh";
+  // smaller levels are refreshed in the calling thread since scheduling them costs more than it saves
+  private static final int MIN_PARALLEL_LEVEL_SIZE = 8;
 
   private final boolean myIsRecursive;
   private final Queue<Pair<NewVirtualFile, FileAttributes>> myRefreshQueue = new Queue<Pair<NewVirtualFile, FileAttributes>>(100);
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled = false;
+  private final AtomicLong myScanTime = new AtomicLong();
+  private final AtomicLong myCompareTime = new AtomicLong();
 
   public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
     myIsRecursive = isRecursive;
@@ -66,6 +82,20 @@ public class RefreshWorker {
     myCancelled = true;
   }
 
+  /**
+   * @return milliseconds spent in listing directories and reading attributes, summed over all refreshing threads
+   */
+  public long getScanTime() {
+    return TimeUnit.NANOSECONDS.toMillis(myScanTime.get());
+  }
+
+  /**
+   * @return milliseconds spent in comparing files with the persistent state, summed over all refreshing threads
+   */
+  public long getCompareTime() {
+    return TimeUnit.NANOSECONDS.toMillis(myCompareTime.get());
+  }
+
   public void scan() {
     NewVirtualFile root = myRefreshQueue.pullFirst().first;
     boolean rootDirty = root.isDirty();
@@ -75,7 +105,9 @@ public class RefreshWorker {
     NewVirtualFileSystem fs = root.getFileSystem();
     FileAttributes rootAttributes = fs.getAttributes(root);
     if (rootAttributes == null) {
-      scheduleDeletion(root);
+      FileRefresher refresher = new FileRefresher(root, null, fs);
+      refresher.scheduleDeletion(root);
+      myEvents.addAll(refresher.myEvents);
       root.markClean();
       return;
     }
@@ -83,27 +115,116 @@ public class RefreshWorker {
       fs = PersistentFS.replaceWithNativeFS(fs);
     }
     myRefreshQueue.addLast(Pair.create(root, rootAttributes));
-    PersistentFS persistence = PersistentFS.getInstance();
 
-    main:
-    while (!myRefreshQueue.isEmpty() && !myCancelled) {
+    // the property is checked on every refresh so that both modes can be compared in the same process
+    if (SystemProperties.getBooleanProperty(PARALLEL_REFRESH_PROPERTY, false)) {
+      scanByLevels(fs);
+    }
+    else {
+      while (!myRefreshQueue.isEmpty() && !myCancelled) {
+        Pair<NewVirtualFile, FileAttributes> pair = myRefreshQueue.pullFirst();
+        FileRefresher refresher = new FileRefresher(pair.first, pair.second, fs);
+        boolean completed = refresher.refresh();
+        myEvents.addAll(refresher.myEvents);
+        if (!completed) break;
+        for (Pair<NewVirtualFile, FileAttributes> child : refresher.myChildren) {
+          myRefreshQueue.addLast(child);
+        }
+      }
+    }
+    debug(LOG, "root=%s scan=%dms compare=%dms", root, getScanTime(), getCompareTime());
+  }
+
+  private void scanByLevels(@NotNull NewVirtualFileSystem fs) {
+    List<FileRefresher> level = new ArrayList<FileRefresher>();
+    while (!myRefreshQueue.isEmpty()) {
       Pair<NewVirtualFile, FileAttributes> pair = myRefreshQueue.pullFirst();
-      NewVirtualFile file = pair.first;
+      level.add(new FileRefresher(pair.first, pair.second, fs));
+    }
+
+    while (!level.isEmpty() && !myCancelled) {
+      boolean completed;
+      if (level.size() < MIN_PARALLEL_LEVEL_SIZE) {
+        completed = true;
+        for (FileRefresher refresher : level) {
+          if (!refresher.refresh()) {
+            completed = false;
+            break;
+          }
+        }
+      }
+      else {
+        completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(level, null, false, false, new Processor<FileRefresher>() {
+          @Override
+          public boolean process(FileRefresher refresher) {
+            return refresher.refresh();
+          }
+        });
+      }
+
+      List<FileRefresher> nextLevel = new ArrayList<FileRefresher>();
+      for (FileRefresher refresher : level) {
+        myEvents.addAll(refresher.myEvents);
+        for (Pair<NewVirtualFile, FileAttributes> child : refresher.myChildren) {
+          nextLevel.add(new FileRefresher(child.first, child.second, fs));
+        }
+      }
+      if (!completed) break;
+      level = nextLevel;
+    }
+  }
+
+  /**
+   * Refreshes a single file; collects the events and the children to be refreshed next, so instances for different files
+   * may run concurrently.
+   */
+  private class FileRefresher {
+    private final NewVirtualFile myFile;
+    @Nullable private final FileAttributes myAttributes;
+    private final NewVirtualFileSystem myFs;
+    private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
+    private final List<Pair<NewVirtualFile, FileAttributes>> myChildren = new ArrayList<Pair<NewVirtualFile, FileAttributes>>();
+    private long myScanNanos;
+
+    private FileRefresher(@NotNull NewVirtualFile file, @Nullable FileAttributes attributes, @NotNull NewVirtualFileSystem fs) {
+      myFile = file;
+      myAttributes = attributes;
+      myFs = fs;
+    }
+
+    /**
+     * @return false if the refresh was cancelled
+     */
+    private boolean refresh() {
+      long start = System.nanoTime();
+      try {
+        return doRefresh();
+      }
+      finally {
+        myScanTime.addAndGet(myScanNanos);
+        myCompareTime.addAndGet(System.nanoTime() - start - myScanNanos);
+      }
+    }
+
+    private boolean doRefresh() {
+      NewVirtualFile file = myFile;
+      NewVirtualFileSystem fs = myFs;
+      PersistentFS persistence = PersistentFS.getInstance();
       boolean fileDirty = file.isDirty();
       debug(LOG, "file=%s dirty=%b", file, fileDirty);
-      if (!fileDirty) continue;
+      if (!fileDirty) return true;
 
-      FileAttributes attributes = pair.second != null ? pair.second : fs.getAttributes(file);
+      FileAttributes attributes = myAttributes != null ? myAttributes : getAttributes(file);
       if (attributes == null) {
         scheduleDeletion(file);
-        continue;
+        return true;
       }
 
       boolean checkFurther = true;
       NewVirtualFile parent = file.getParent();
       if (parent != null &&
           (checkAndScheduleAttributesChange(parent, file, attributes) ||
-           checkAndScheduleSymLinkTargetChange(parent, file, attributes, fs))) {
+           checkAndScheduleSymLinkTargetChange(parent, file, attributes))) {
         // ignore everything else
         checkFurther = false;
       }
@@ -112,7 +233,7 @@ public class RefreshWorker {
         boolean fullSync = dir.allChildrenLoaded();
         if (fullSync) {
           Set<String> currentNames = newHashSet(persistence.list(file));
-          Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
+          Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(list(file)));
           Set<String> newNames = newHashSet(upToDateNames);
           newNames.removeAll(currentNames);
           Set<String> deletedNames = newHashSet(currentNames);
@@ -124,8 +245,8 @@ public class RefreshWorker {
           }
 
           for (String name : newNames) {
-            if (myCancelled) break main;
-            FileAttributes childAttributes = fs.getAttributes(new FakeVirtualFile(file, name));
+            if (myCancelled) return false;
+            FileAttributes childAttributes = getAttributes(new FakeVirtualFile(file, name));
             if (childAttributes != null) {
               scheduleCreation(file, name, childAttributes.isDirectory());
             }
@@ -135,9 +256,9 @@ public class RefreshWorker {
           }
 
           for (VirtualFile child : file.getChildren()) {
-            if (myCancelled) break main;
+            if (myCancelled) return false;
             if (!deletedNames.contains(child.getName())) {
-              FileAttributes childAttributes = fs.getAttributes(child);
+              FileAttributes childAttributes = getAttributes(child);
               if (childAttributes != null) {
                 checkAndScheduleChildRefresh(file, child, childAttributes);
               }
@@ -152,8 +273,8 @@ public class RefreshWorker {
           Collection<VirtualFile> cachedChildren = file.getCachedChildren();
           debug(LOG, "cached=%s", cachedChildren);
           for (VirtualFile child : cachedChildren) {
-            if (myCancelled) break main;
-            FileAttributes childAttributes = fs.getAttributes(child);
+            if (myCancelled) return false;
+            FileAttributes childAttributes = getAttributes(child);
             if (childAttributes != null) {
               checkAndScheduleChildRefresh(file, child, childAttributes);
             }
@@ -165,11 +286,11 @@ public class RefreshWorker {
           List<String> names = dir.getSuspiciousNames();
           debug(LOG, "suspicious=%s", names);
           for (String name : names) {
-            if (myCancelled) break main;
+            if (myCancelled) return false;
             if (name.isEmpty()) continue;
 
             VirtualFile fake = new FakeVirtualFile(file, name);
-            FileAttributes childAttributes = fs.getAttributes(fake);
+            FileAttributes childAttributes = getAttributes(fake);
             if (childAttributes != null) {
               scheduleCreation(file, name, childAttributes.isDirectory());
             }
@@ -204,81 +325,103 @@ public class RefreshWorker {
       }
 
       file.markClean();
+      return true;
     }
-  }
 
-  private void checkAndScheduleChildRefresh(@NotNull VirtualFile parent,
-                                            @NotNull VirtualFile child,
-                                            @NotNull FileAttributes childAttributes) {
-    if (!checkAndScheduleAttributesChange(parent, child, childAttributes)) {
-      boolean upToDateIsDirectory = childAttributes.isDirectory();
-      if (myIsRecursive || !upToDateIsDirectory) {
-        myRefreshQueue.addLast(Pair.create((NewVirtualFile)child, childAttributes));
+    @Nullable
+    private FileAttributes getAttributes(@NotNull VirtualFile file) {
+      long start = System.nanoTime();
+      try {
+        return myFs.getAttributes(file);
+      }
+      finally {
+        myScanNanos += System.nanoTime() - start;
       }
     }
-  }
 
-  private boolean checkAndScheduleAttributesChange(@NotNull VirtualFile parent,
-                                                   @NotNull VirtualFile child,
-                                                   @NotNull FileAttributes childAttributes) {
-    boolean currentIsDirectory = child.isDirectory();
-    boolean currentIsSymlink = child.is(VFileProperty.SYMLINK);
-    boolean currentIsSpecial = child.is(VFileProperty.SPECIAL);
-    boolean upToDateIsDirectory = childAttributes.isDirectory();
-    boolean upToDateIsSymlink = childAttributes.isSymLink();
-    boolean upToDateIsSpecial = childAttributes.isSpecial();
-
-    if (currentIsDirectory != upToDateIsDirectory || currentIsSymlink != upToDateIsSymlink || currentIsSpecial != upToDateIsSpecial) {
-      scheduleDeletion(child);
-      scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
-      return true;
+    @NotNull
+    private String[] list(@NotNull VirtualFile file) {
+      long start = System.nanoTime();
+      try {
+        return myFs.list(file);
+      }
+      finally {
+        myScanNanos += System.nanoTime() - start;
+      }
     }
 
-    return false;
-  }
+    private void checkAndScheduleChildRefresh(@NotNull VirtualFile parent,
+                                              @NotNull VirtualFile child,
+                                              @NotNull FileAttributes childAttributes) {
+      if (!checkAndScheduleAttributesChange(parent, child, childAttributes)) {
+        boolean upToDateIsDirectory = childAttributes.isDirectory();
+        if (myIsRecursive || !upToDateIsDirectory) {
+          myChildren.add(Pair.create((NewVirtualFile)child, childAttributes));
+        }
+      }
+    }
 
-  private boolean checkAndScheduleSymLinkTargetChange(@NotNull VirtualFile parent,
-                                                      @NotNull VirtualFile child,
-                                                      @NotNull FileAttributes childAttributes,
-                                                      @NotNull NewVirtualFileSystem fs) {
-    if (childAttributes.isSymLink()) {
-      String currentTarget = child.getCanonicalPath();
-      String upToDateTarget = fs.resolveSymLink(child);
-      String upToDateVfsTarget = upToDateTarget != null ? FileUtil.toSystemIndependentName(upToDateTarget) : null;
+    private boolean checkAndScheduleAttributesChange(@NotNull VirtualFile parent,
+                                                     @NotNull VirtualFile child,
+                                                     @NotNull FileAttributes childAttributes) {
+      boolean currentIsDirectory = child.isDirectory();
+      boolean currentIsSymlink = child.is(VFileProperty.SYMLINK);
+      boolean currentIsSpecial = child.is(VFileProperty.SPECIAL);
+      boolean upToDateIsDirectory = childAttributes.isDirectory();
+      boolean upToDateIsSymlink = childAttributes.isSymLink();
+      boolean upToDateIsSpecial = childAttributes.isSpecial();
 
-      if (!Comparing.equal(currentTarget, upToDateVfsTarget)) {
+      if (currentIsDirectory != upToDateIsDirectory || currentIsSymlink != upToDateIsSymlink || currentIsSpecial != upToDateIsSpecial) {
         scheduleDeletion(child);
-        scheduleReCreation(parent, child.getName(), childAttributes.isDirectory());
+        scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
         return true;
       }
+
+      return false;
     }
 
-    return false;
-  }
+    private boolean checkAndScheduleSymLinkTargetChange(@NotNull VirtualFile parent,
+                                                        @NotNull VirtualFile child,
+                                                        @NotNull FileAttributes childAttributes) {
+      if (childAttributes.isSymLink()) {
+        String currentTarget = child.getCanonicalPath();
+        String upToDateTarget = myFs.resolveSymLink(child);
+        String upToDateVfsTarget = upToDateTarget != null ? FileUtil.toSystemIndependentName(upToDateTarget) : null;
+
+        if (!Comparing.equal(currentTarget, upToDateVfsTarget)) {
+          scheduleDeletion(child);
+          scheduleReCreation(parent, child.getName(), childAttributes.isDirectory());
+          return true;
+        }
+      }
 
-  private void scheduleAttributeChange(@NotNull VirtualFile file, String property, boolean current, boolean upToDate) {
-    debug(LOG, "update '%s' file=%s", property, file);
-    myEvents.add(new VFilePropertyChangeEvent(null, file, property, current, upToDate, true));
-  }
+      return false;
+    }
 
-  private void scheduleUpdateContent(@NotNull VirtualFile file) {
-    debug(LOG, "update file=%s", file);
-    myEvents.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
-  }
+    private void scheduleAttributeChange(@NotNull VirtualFile file, String property, boolean current, boolean upToDate) {
+      debug(LOG, "update '%s' file=%s", property, file);
+      myEvents.add(new VFilePropertyChangeEvent(null, file, property, current, upToDate, true));
+    }
 
-  private void scheduleCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
-    debug(LOG, "create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
-  }
+    private void scheduleUpdateContent(@NotNull VirtualFile file) {
+      debug(LOG, "update file=%s", file);
+      myEvents.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
+    }
 
-  private void scheduleReCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
-    debug(LOG, "re-create parent=%s name=%s dir=%b", parent, childName, isDirectory);
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
-  }
+    private void scheduleCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
+      debug(LOG, "create parent=%s name=%s dir=%b", parent, childName, isDirectory);
+      myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
+    }
 
-  private void scheduleDeletion(@Nullable VirtualFile file) {
-    if (file == null) return;
-    debug(LOG, "delete file=%s", file);
-    myEvents.add(new VFileDeleteEvent(null, file, true));
+    private void scheduleReCreation(@NotNull VirtualFile parent, @NotNull String childName, boolean isDirectory) {
+      debug(LOG, "re-create parent=%s name=%s dir=%b", parent, childName, isDirectory);
+      myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
+    }
+
+    private void scheduleDeletion(@Nullable VirtualFile file) {
+      if (file == null) return;
+      debug(LOG, "delete file=%s", file);
+      myEvents.add(new VFileDeleteEvent(null, file, true));
+    }
   }
 }
@@ -22,6 +22,7 @@ import com.intellij.openapi.application.ex.PathManagerEx;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.ex.temp.TempFileSystem;
@@ -42,9 +43,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 /**
  *  @author dsl
@@ -559,6 +558,98 @@ public class VirtualFilePointerTest extends PlatformLangTestCase {
       }
     }).assertTiming();
   }
+
+  public void testManyPointersAffectedByManyEventsPerformance() throws IOException {
+    FilePointerPartNode.pushDebug(false, disposable);
+    LoggingListener listener = new LoggingListener();
+    final List<VFileEvent> events = new ArrayList<VFileEvent>();
+    final File ioTempDir = createTempDirectory();
+    final VirtualFile temp = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(ioTempDir);
+    for (int i=0; i<100000; i++) {
+      myVirtualFilePointerManager.create(temp.getUrl() + "/" + i, disposable, listener);
+      events.add(new VFileCreateEvent(this, temp, String.valueOf(i), false, true));
+    }
+    PlatformTestUtil.startPerformanceTest("vfp update affected", 10000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int i=0; i<10; i++) {
+          myVirtualFilePointerManager.before(events);
+          myVirtualFilePointerManager.after(events);
+        }
+      }
+    }).assertTiming();
+    // every pointer is reported once per batch
+    assertEquals(100000 + 1, listener.getLog().get(0).split(":").length);
+  }
+
+  public void testBatchLookupSameAsPerPathLookup() {
+    long seed = System.currentTimeMillis();
+    Random random = new Random(seed);
+    for (int iteration = 0; iteration < 300; iteration++) {
+      // few chars make shared prefixes likely, enough of them make nodes with many children
+      List<String> pointerPaths = new ArrayList<String>();
+      FilePointerPartNode root = null;
+      int pointerCount = 1 + random.nextInt(iteration < 100 ? 10 : 200);
+      for (int i = 0; i < pointerCount; i++) {
+        String path = randomPath(random);
+        pointerPaths.add(path);
+        Pair<VirtualFile, String> fileAndUrl = Pair.<VirtualFile, String>create(null, VfsUtilCore.pathToUrl(path));
+        FilePointerPartNode node;
+        if (root == null) {
+          node = root = new FilePointerPartNode(path, null, fileAndUrl);
+        }
+        else {
+          node = root.findPointerOrCreate(path, 0, fileAndUrl);
+        }
+        if (node.leaf == null) {
+          node.associate(new VirtualFilePointerImpl(null, disposable, fileAndUrl), fileAndUrl);
+        }
+        node.incrementUsageCount(1);
+      }
+      assertNotNull(root);
+      root.checkStructure();
+
+      // paths of the pointers, their parents and children, partial names and unrelated paths
+      String[] paths = new String[1 + random.nextInt(50)];
+      for (int i = 0; i < paths.length; i++) {
+        String pointerPath = pointerPaths.get(random.nextInt(pointerPaths.size()));
+        switch (random.nextInt(4)) {
+          case 0: paths[i] = pointerPath; break;
+          case 1: paths[i] = pointerPath.substring(0, 1 + random.nextInt(pointerPath.length())); break;
+          case 2: paths[i] = pointerPath + randomPath(random); break;
+          default: paths[i] = randomPath(random);
+        }
+      }
+
+      Set<FilePointerPartNode> expected = new HashSet<FilePointerPartNode>();
+      for (String path : paths) {
+        List<FilePointerPartNode> out = new ArrayList<FilePointerPartNode>();
+        root.getPointersUnder(path, 0, out);
+        expected.addAll(out);
+      }
+      List<FilePointerPartNode> actual = new ArrayList<FilePointerPartNode>();
+      root.getPointersUnder(paths, new int[paths.length], paths.length, actual);
+      String message = "seed " + seed + ", iteration " + iteration + ", pointers " + pointerPaths + ", paths " + Arrays.asList(paths);
+      assertEquals(message, expected, new HashSet<FilePointerPartNode>(actual));
+      // every pointer is found once
+      assertEquals(message, expected.size(), actual.size());
+    }
+  }
+
+  @NotNull
+  private static String randomPath(@NotNull Random random) {
+    StringBuilder path = new StringBuilder();
+    int depth = 1 + random.nextInt(4);
+    for (int i = 0; i < depth; i++) {
+      path.append('/');
+      int length = 1 + random.nextInt(3);
+      for (int j = 0; j < length; j++) {
+        path.append("abcdefghijAB.".charAt(random.nextInt(13)));
+      }
+    }
+    return path.toString();
+  }
+
   public void testMultipleCreationOfTheSamePointerPerformance() throws IOException {
     FilePointerPartNode.pushDebug(false, disposable);
     final LoggingListener listener = new LoggingListener();
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.JarFile;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class DirectJarFileTest extends TestCase {
+  private File myJar;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myJar = FileUtil.createTempFile("direct", ".jar");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myJar);
+    super.tearDown();
+  }
+
+  public void testSameAsZipFile() throws IOException {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(myJar));
+    try {
+      out.setComment("comment");
+      out.putNextEntry(new ZipEntry("pkg/"));
+      out.closeEntry();
+      for (int i = 0; i < 100; i++) {
+        byte[] content = new byte[i * 97];
+        for (int j = 0; j < content.length; j++) {
+          content[j] = (byte)(j % (i + 1));
+        }
+        ZipEntry entry = new ZipEntry("pkg/Class" + i + ".class");
+        entry.setTime(System.currentTimeMillis() - i * 100000L);
+        if (i % 3 == 0) {
+          CRC32 crc = new CRC32();
+          crc.update(content);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(content.length);
+          entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+      }
+      out.putNextEntry(new ZipEntry("\u043f\u0430\u043a\u0435\u0442/\u0444\u0430\u0439\u043b.txt"));
+      out.write("text".getBytes("UTF-8"));
+      out.closeEntry();
+    }
+    finally {
+      out.close();
+    }
+
+    DirectJarFile jar = DirectJarFile.open(myJar);
+    assertNotNull(jar);
+    ZipFile zip = new ZipFile(myJar);
+    try {
+      List<String> names = new ArrayList<String>();
+      for (Enumeration<? extends JarFile.JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+        JarFile.JarEntry entry = entries.nextElement();
+        names.add(entry.getName());
+        ZipEntry zipEntry = zip.getEntry(entry.getName());
+        assertNotNull(entry.getName(), zipEntry);
+        assertEquals(zipEntry.isDirectory(), entry.isDirectory());
+        assertEquals(zipEntry.getSize(), entry.getSize());
+        assertEquals(zipEntry.getTime(), entry.getTime());
+        assertTrue(Arrays.equals(load(zip.getInputStream(zipEntry)), load(jar.getInputStream(entry))));
+      }
+      assertEquals(zip.size(), names.size());
+      assertNotNull(jar.getEntry("pkg"));
+      assertNull(jar.getEntry("pkg/Missing.class"));
+    }
+    finally {
+      zip.close();
+    }
+    // the jar isn't kept open
+    assertTrue(myJar.delete());
+  }
+
+  public void testDosTimeUsed() throws IOException {
+    long time = new GregorianCalendar(2010, Calendar.JANUARY, 2, 3, 4, 6).getTimeInMillis();
+    long extendedTime = time / 1000 + 24 * 60 * 60;
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(myJar));
+    try {
+      ZipEntry entry = new ZipEntry("a.txt");
+      entry.setTime(time);
+      // an extended timestamp field with another modification time
+      entry.setExtra(new byte[]{0x55, 0x54, 5, 0, 1,
+        (byte)extendedTime, (byte)(extendedTime >> 8), (byte)(extendedTime >> 16), (byte)(extendedTime >> 24)});
+      out.putNextEntry(entry);
+      out.write("content".getBytes("UTF-8"));
+      out.closeEntry();
+    }
+    finally {
+      out.close();
+    }
+
+    DirectJarFile jar = DirectJarFile.open(myJar);
+    assertNotNull(jar);
+    JarFile.JarEntry entry = jar.getEntry("a.txt");
+    assertNotNull(entry);
+    assertEquals(time, entry.getTime());
+  }
+
+  public void testModifiedContentReported() throws IOException {
+    createJar("a.txt", "b.txt");
+    DirectJarFile jar = DirectJarFile.open(myJar);
+    assertNotNull(jar);
+
+    // the stored content of b.txt is changed without changing its length
+    byte[] bytes = FileUtil.loadFileBytes(myJar);
+    int offset = indexOf(bytes, "content of b.txt".getBytes("UTF-8"));
+    assertTrue(offset > 0);
+    bytes[offset] = 'C';
+    FileUtil.writeToFile(myJar, bytes);
+
+    assertEquals("content of a.txt", new String(load(jar.getInputStream(jar.getEntry("a.txt"))), "UTF-8"));
+    assertReadFails(jar, "b.txt", "CRC mismatch");
+  }
+
+  public void testOtherEntryAtOffsetReported() throws IOException {
+    createJar("a.txt", "b.txt");
+    DirectJarFile jar = DirectJarFile.open(myJar);
+    assertNotNull(jar);
+
+    // the jar is rebuilt with the same layout but other names
+    createJar("c.txt", "b.txt");
+    assertReadFails(jar, "a.txt", "Unexpected entry");
+  }
+
+  public void testBytesAfterCommentNotSupported() throws IOException {
+    createJar("a.txt");
+    FileOutputStream out = new FileOutputStream(myJar, true);
+    try {
+      out.write(new byte[]{1, 2, 3});
+    }
+    finally {
+      out.close();
+    }
+
+    // JarHandler opens such jars with ZipFile then
+    try {
+      DirectJarFile.open(myJar);
+      fail("the end of the central directory must not be found");
+    }
+    catch (IOException ignored) {
+    }
+    ZipFile zip = new ZipFile(myJar);
+    try {
+      assertEquals("content of a.txt", new String(load(zip.getInputStream(zip.getEntry("a.txt"))), "UTF-8"));
+    }
+    finally {
+      zip.close();
+    }
+  }
+
+  private void createJar(String... names) throws IOException {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(myJar));
+    try {
+      for (String name : names) {
+        byte[] content = ("content of " + name).getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static void assertReadFails(DirectJarFile jar, String name, String message) {
+    JarFile.JarEntry entry = jar.getEntry(name);
+    assertNotNull(name, entry);
+    try {
+      load(jar.getInputStream(entry));
+      fail("reading of " + name + " must fail");
+    }
+    catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+    }
+  }
+
+  private static int indexOf(byte[] bytes, byte[] pattern) {
+    for (int i = 0; i + pattern.length <= bytes.length; i++) {
+      int j = 0;
+      while (j < pattern.length && bytes[i + j] == pattern[j]) j++;
+      if (j == pattern.length) return i;
+    }
+    return -1;
+  }
+
+  private static byte[] load(InputStream stream) throws IOException {
+    try {
+      return FileUtil.loadBytes(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -31,6 +31,7 @@ import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFSImpl;
+import com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker;
 import com.intellij.testFramework.PlatformLangTestCase;
 import com.intellij.testFramework.PlatformTestUtil;
 
@@ -376,6 +377,59 @@ public class LocalFileSystemTest extends PlatformLangTestCase {
     assertNull(attributes);
   }
 
+  public void testParallelRefreshProducesSameEvents() throws Exception {
+    File top = createTempDirectory(false);
+    for (int i = 0; i < 10; i++) {
+      File dir = IoTestUtil.createTestDir(top, "dir" + i);
+      for (int j = 0; j < 10; j++) {
+        IoTestUtil.createTestFile(dir, "file" + j + ".txt", "content");
+      }
+      IoTestUtil.createTestFile(IoTestUtil.createTestDir(dir, "sub"), "file.txt", "content");
+    }
+
+    VirtualFile topDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(top);
+    assertNotNull(topDir);
+    VfsUtilCore.visitChildrenRecursively(topDir, new VirtualFileVisitor() { });
+    topDir.refresh(false, true);
+
+    // changes on every level: created, deleted and modified files and directories
+    for (int i = 0; i < 10; i++) {
+      File dir = new File(top, "dir" + i);
+      IoTestUtil.createTestFile(dir, "new" + i + ".txt", "new");
+      FileUtil.delete(new File(dir, "file" + i + ".txt"));
+      FileUtil.writeToFile(new File(dir, "file" + (9 - i) + ".txt"), "changed content " + i);
+      FileUtil.writeToFile(new File(dir, "sub/file.txt"), "changed " + i);
+    }
+    FileUtil.delete(new File(top, "dir3"));
+    IoTestUtil.createTestDir(top, "newDir");
+
+    String sequential = scan(topDir, false);
+    String parallel = scan(topDir, true);
+    assertFalse(sequential, "[]".equals(sequential));
+    assertEquals(sequential, parallel);
+  }
+
+  private static String scan(VirtualFile root, boolean parallel) {
+    String property = "idea.vfs.parallel.refresh";
+    String oldValue = System.getProperty(property);
+    System.setProperty(property, String.valueOf(parallel));
+    try {
+      // the scan doesn't apply the events, so the same changes are found again
+      ((VirtualFileSystemEntry)root).markDirtyRecursively();
+      RefreshWorker worker = new RefreshWorker((NewVirtualFile)root, true);
+      worker.scan();
+      return worker.getEvents().toString();
+    }
+    finally {
+      if (oldValue != null) {
+        System.setProperty(property, oldValue);
+      }
+      else {
+        System.clearProperty(property);
+      }
+    }
+  }
+
   public void testCopyToPointDir() throws Exception {
     File top = createTempDirectory(false);
     File sub = IoTestUtil.createTestDir(top, "sub");
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.local;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
+import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
+import com.intellij.testFramework.PlatformLangTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Children of a directory are looked up without locking while other threads add and remove them
+ */
+public class VirtualDirectoryConcurrencyTest extends PlatformLangTestCase {
+  private static final int FILES_COUNT = 100;
+  private static final int WRITERS_COUNT = 2;
+  private static final int READERS_COUNT = 4;
+  private static final int ITERATIONS = 20000;
+
+  public void testConcurrentLookupAddRemove() throws Exception {
+    File dir = createTempDirectory();
+    for (int i = 0; i < FILES_COUNT; i++) {
+      assertTrue(new File(dir, "stable" + i).createNewFile());
+      assertTrue(new File(dir, "volatile" + i).createNewFile());
+    }
+    final VirtualDirectoryImpl vDir =
+      (VirtualDirectoryImpl)LocalFileSystem.getInstance().refreshAndFindFileByPath(dir.getPath().replace(File.separatorChar, '/'));
+    assertNotNull(vDir);
+    assertEquals(2 * FILES_COUNT, vDir.getChildren().length);
+
+    final VirtualFileSystemEntry[] stable = new VirtualFileSystemEntry[FILES_COUNT];
+    final VirtualFileSystemEntry[] removable = new VirtualFileSystemEntry[FILES_COUNT];
+    for (int i = 0; i < FILES_COUNT; i++) {
+      stable[i] = vDir.findChild("stable" + i);
+      removable[i] = vDir.findChild("volatile" + i);
+      assertNotNull(stable[i]);
+      assertNotNull(removable[i]);
+    }
+
+    final AtomicBoolean writersDone = new AtomicBoolean();
+    List<Future<?>> writers = new ArrayList<Future<?>>();
+    for (int w = 0; w < WRITERS_COUNT; w++) {
+      final int writer = w;
+      writers.add(ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(writer);
+          for (int n = 0; n < ITERATIONS; n++) {
+            // each writer owns its part of the files, so a file is always added back after it is removed
+            int i = random.nextInt(FILES_COUNT / WRITERS_COUNT) * WRITERS_COUNT + writer;
+            vDir.removeChild(removable[i]);
+            vDir.addChild(removable[i]);
+          }
+        }
+      }));
+    }
+
+    List<Future<?>> readers = new ArrayList<Future<?>>();
+    for (int r = 0; r < READERS_COUNT; r++) {
+      final int reader = r;
+      readers.add(ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(WRITERS_COUNT + reader);
+          while (!writersDone.get()) {
+            int i = random.nextInt(FILES_COUNT);
+            assertSame(stable[i], vDir.findChild("stable" + i));
+            assertSame(stable[i], vDir.findChildIfCached("stable" + i));
+            assertSame(stable[i], vDir.findChildById(stable[i].getId(), true));
+
+            VirtualFile found = vDir.findChildIfCached("volatile" + i);
+            assertTrue(found == null || found == removable[i]);
+
+            VirtualFile[] children = vDir.getChildren();
+            assertTrue(children.length >= FILES_COUNT);
+            assertTrue(vDir.getCachedChildren().size() >= FILES_COUNT);
+          }
+        }
+      }));
+    }
+
+    try {
+      for (Future<?> writer : writers) {
+        writer.get();
+      }
+    }
+    finally {
+      writersDone.set(true);
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+    }
+
+    assertEquals(2 * FILES_COUNT, vDir.getChildren().length);
+    for (int i = 0; i < FILES_COUNT; i++) {
+      assertSame(removable[i], vDir.findChild("volatile" + i));
+    }
+  }
+
+  public void testConcurrentFlagUpdates() throws Exception {
+    File dir = createTempDirectory();
+    File ioFile = new File(dir, "file");
+    assertTrue(ioFile.createNewFile());
+    final VirtualFileSystemEntry file =
+      (VirtualFileSystemEntry)LocalFileSystem.getInstance().refreshAndFindFileByPath(ioFile.getPath().replace(File.separatorChar, '/'));
+    assertNotNull(file);
+
+    // every thread updates its own part of the packed flags, none of the updates may be lost
+    Future<?> indexer = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        for (int n = 0; n < ITERATIONS; n++) {
+          file.setFileIndexed(n % 2 == 0);
+        }
+        file.setFileIndexed(true);
+      }
+    });
+    Future<?> marker = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        for (int n = 0; n < ITERATIONS; n++) {
+          file.markDirty();
+          file.markClean();
+        }
+      }
+    });
+    Future<?> stamper = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        for (int n = 0; n <= ITERATIONS; n++) {
+          file.setModificationStamp(n);
+        }
+      }
+    });
+    indexer.get();
+    marker.get();
+    stamper.get();
+
+    assertTrue(file.isFileIndexed());
+    assertFalse(file.isDirty());
+    assertEquals(ITERATIONS, file.getModificationStamp());
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.indexing.MapIndexStorage;
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StubIndexSnapshotTest extends TestCase {
+  private File myDir;
+  private MapIndexStorage<String, StubIdList> myStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("snapshot", null);
+    myStorage = new MapIndexStorage<String, StubIdList>(new File(myDir, "storage"), new CollidingKeyDescriptor(), new IdListExternalizer(), 16);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myStorage.close();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testEmpty() throws Exception {
+    StubIndexSnapshot<String> snapshot = writeSnapshot();
+    assertEquals(Collections.<Integer, StubIdList>emptyMap(), read(snapshot, "a"));
+    assertTrue(getKeys(snapshot).isEmpty());
+  }
+
+  public void testSameDataAsStorage() throws Exception {
+    Random random = new Random(17);
+    Set<String> keys = new HashSet<String>();
+    for (int i = 0; i < 500; i++) {
+      // keys of the same length have the same hash, so there are long runs of equal hashes in the directory
+      String key = Integer.toString(random.nextInt(100000), 36);
+      keys.add(key);
+      int files = 1 + random.nextInt(5);
+      for (int j = 0; j < files; j++) {
+        int size = random.nextInt(4);
+        int[] stubIds = new int[size];
+        for (int k = 0; k < size; k++) {
+          stubIds[k] = k * 10 + random.nextInt(10);
+        }
+        myStorage.addValue(key, random.nextInt(1000), size == 1 ? new StubIdList(stubIds[0]) : size == 0 ? new StubIdList() : new StubIdList(stubIds, size));
+      }
+    }
+    // keys without files are not written
+    myStorage.addValue("removed", 5, new StubIdList(1));
+    myStorage.removeAllValues("removed", 5);
+
+    StubIndexSnapshot<String> snapshot = writeSnapshot();
+    assertEquals(keys, getKeys(snapshot));
+    for (String key : keys) {
+      assertEquals(key, read(myStorage.read(key)), read(snapshot, key));
+    }
+    for (String absent : new String[]{"removed", "", "absent", "zzzzzzzzzz"}) {
+      assertTrue(absent, read(snapshot, absent).isEmpty());
+    }
+  }
+
+  public void testStopProcessing() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      myStorage.addValue("key", i, new StubIdList(i));
+    }
+    StubIndexSnapshot<String> snapshot = writeSnapshot();
+    final List<Integer> ids = new ArrayList<Integer>();
+    assertFalse(snapshot.forEach("key", new ValueContainer.ContainerAction<StubIdList>() {
+      @Override
+      public boolean perform(int id, StubIdList value) {
+        ids.add(id);
+        return ids.size() < 3;
+      }
+    }));
+    assertEquals(3, ids.size());
+  }
+
+  private StubIndexSnapshot<String> writeSnapshot() throws Exception {
+    return StubIndexSnapshot.write(new File(myDir, "snapshot"), myStorage, new ReentrantLock(), new CollidingKeyDescriptor(),
+                                   new IdListExternalizer());
+  }
+
+  private static Set<String> getKeys(StubIndexSnapshot<String> snapshot) throws IOException {
+    CommonProcessors.CollectProcessor<String> processor = new CommonProcessors.CollectProcessor<String>();
+    assertTrue(snapshot.processKeys(processor));
+    Set<String> keys = new HashSet<String>(processor.getResults());
+    assertEquals(processor.getResults().size(), keys.size());
+    return keys;
+  }
+
+  private static Map<Integer, StubIdList> read(StubIndexSnapshot<String> snapshot, String key) throws IOException {
+    final Map<Integer, StubIdList> result = new HashMap<Integer, StubIdList>();
+    assertTrue(snapshot.forEach(key, new ValueContainer.ContainerAction<StubIdList>() {
+      @Override
+      public boolean perform(int id, StubIdList value) {
+        assertNull(result.put(id, value));
+        return true;
+      }
+    }));
+    return result;
+  }
+
+  private static Map<Integer, StubIdList> read(ValueContainer<StubIdList> container) {
+    final Map<Integer, StubIdList> result = new HashMap<Integer, StubIdList>();
+    container.forEach(new ValueContainer.ContainerAction<StubIdList>() {
+      @Override
+      public boolean perform(int id, StubIdList value) {
+        result.put(id, value);
+        return true;
+      }
+    });
+    return result;
+  }
+
+  private static class CollidingKeyDescriptor extends EnumeratorStringDescriptor {
+    @Override
+    public int getHashCode(String value) {
+      return value.length();
+    }
+  }
+
+  private static class IdListExternalizer implements DataExternalizer<StubIdList> {
+    @Override
+    public void save(DataOutput out, @NotNull StubIdList value) throws IOException {
+      out.writeInt(value.size());
+      for (int i = 0; i < value.size(); i++) {
+        out.writeInt(value.get(i));
+      }
+    }
+
+    @NotNull
+    @Override
+    public StubIdList read(DataInput in) throws IOException {
+      int size = in.readInt();
+      if (size == 0) return new StubIdList();
+      if (size == 1) return new StubIdList(in.readInt());
+      int[] ids = new int[size];
+      for (int i = 0; i < size; i++) {
+        ids[i] = in.readInt();
+      }
+      return new StubIdList(ids, size);
+    }
+  }
+}
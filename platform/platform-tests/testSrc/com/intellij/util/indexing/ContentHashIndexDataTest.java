@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.NotNullComputable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class ContentHashIndexDataTest extends TestCase {
+  private File myDir;
+  private File myFile;
+  private int myMapped;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("contents", null);
+    myFile = new File(myDir, "index.contents");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testIdenticalContentsMappedOnce() throws IOException {
+    ContentHashIndexData<String, Integer> data = createData(10);
+    try {
+      byte[] hash = hash("text");
+      assertEquals(Collections.singletonMap("text", 4), data.map(hash, mapper("text")));
+      assertEquals(Collections.singletonMap("text", 4), data.map(hash("text"), mapper("text")));
+      assertEquals(1, myMapped);
+      assertEquals(1, data.size());
+
+      data.map(hash("other"), mapper("other"));
+      assertEquals(2, myMapped);
+      assertEquals(2, data.size());
+    }
+    finally {
+      data.dispose();
+    }
+  }
+
+  public void testContentsKeptAfterReopening() throws IOException {
+    ContentHashIndexData<String, Integer> data = createData(10);
+    data.map(hash("a"), mapper("a"));
+    data.map(hash("b"), mapper("b"));
+    data.dispose();
+
+    data = createData(10);
+    try {
+      assertEquals(2, data.size());
+      assertEquals(Collections.singletonMap("a", 1), data.map(hash("a"), mapper("a")));
+      assertEquals(2, myMapped);
+    }
+    finally {
+      data.dispose();
+    }
+  }
+
+  public void testDroppedWhenLimitExceeded() throws IOException {
+    ContentHashIndexData<String, Integer> data = createData(3);
+    try {
+      data.map(hash("a"), mapper("a"));
+      data.map(hash("b"), mapper("b"));
+      data.map(hash("c"), mapper("c"));
+      assertEquals(3, data.size());
+
+      data.map(hash("d"), mapper("d"));
+      assertEquals(1, data.size());
+      assertEquals(4, myMapped);
+
+      // the dropped content is mapped again, the kept one is not
+      data.map(hash("a"), mapper("a"));
+      data.map(hash("d"), mapper("d"));
+      assertEquals(5, myMapped);
+      assertEquals(2, data.size());
+    }
+    finally {
+      data.dispose();
+    }
+  }
+
+  public void testClear() throws IOException {
+    ContentHashIndexData<String, Integer> data = createData(10);
+    try {
+      data.map(hash("a"), mapper("a"));
+      data.clear();
+      assertEquals(0, data.size());
+      data.map(hash("a"), mapper("a"));
+      assertEquals(2, myMapped);
+    }
+    finally {
+      data.dispose();
+    }
+  }
+
+  public void testCharsetAndFileTypeArePartOfHash() throws IOException {
+    byte[] content = "\u0442\u0435\u043a\u0441\u0442".getBytes("UTF-8");
+    byte[] utf8 = ContentHashIndexData.getHash("PLAIN_TEXT", CharsetToolkit.UTF8_CHARSET, content);
+    assertTrue(Arrays.equals(utf8, ContentHashIndexData.getHash("PLAIN_TEXT", CharsetToolkit.UTF8_CHARSET, content.clone())));
+    assertFalse(Arrays.equals(utf8, ContentHashIndexData.getHash("PLAIN_TEXT", Charset.forName("windows-1251"), content)));
+    assertFalse(Arrays.equals(utf8, ContentHashIndexData.getHash("PLAIN_TEXT", null, content)));
+    assertFalse(Arrays.equals(utf8, ContentHashIndexData.getHash("XML", CharsetToolkit.UTF8_CHARSET, content)));
+  }
+
+  @NotNull
+  private ContentHashIndexData<String, Integer> createData(int limit) throws IOException {
+    return new ContentHashIndexData<String, Integer>(myFile, new EnumeratorStringDescriptor(), EnumeratorIntegerDescriptor.INSTANCE, limit);
+  }
+
+  @NotNull
+  private static byte[] hash(@NotNull String text) {
+    return ContentHashIndexData.getHash("PLAIN_TEXT", CharsetToolkit.UTF8_CHARSET, text.getBytes(CharsetToolkit.UTF8_CHARSET));
+  }
+
+  @NotNull
+  private NotNullComputable<Map<String, Integer>> mapper(@NotNull final String text) {
+    return new NotNullComputable<Map<String, Integer>>() {
+      @NotNull
+      @Override
+      public Map<String, Integer> compute() {
+        myMapped++;
+        return Collections.singletonMap(text, text.length());
+      }
+    };
+  }
+}
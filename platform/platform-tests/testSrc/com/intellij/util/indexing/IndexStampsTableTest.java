@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TObjectLongHashMap;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+public class IndexStampsTableTest extends TestCase {
+  private static final ID<String, String> FIRST = ID.create("IndexStampsTableTest.first");
+  private static final ID<String, String> SECOND = ID.create("IndexStampsTableTest.second");
+  private static final long VFS_TIMESTAMP = 1000;
+
+  private File myDir;
+  private long myIndexStamp = 42;
+  private TestTable myTable;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("stamps", null);
+    myTable = new TestTable(VFS_TIMESTAMP, ArrayUtil.EMPTY_INT_ARRAY);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myTable.close();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testStamps() throws IOException {
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(1, FIRST));
+    assertEquals(0, myTable.getStamp(1, FIRST));
+
+    myTable.setStamp(1, FIRST, myIndexStamp);
+    myTable.setStamp(2, FIRST, myIndexStamp - 1);
+    myTable.setStamp(3, FIRST, IndexInfrastructure.INVALID_STAMP);
+    assertEquals(IndexStampsTable.INDEXED, myTable.getSlot(1, FIRST));
+    assertEquals(myIndexStamp, myTable.getStamp(1, FIRST));
+    assertEquals(IndexStampsTable.NOT_INDEXED, myTable.getSlot(2, FIRST));
+    assertEquals(0, myTable.getStamp(2, FIRST));
+    assertEquals(IndexStampsTable.NOT_INDEXED, myTable.getSlot(3, FIRST));
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(1, SECOND));
+  }
+
+  public void testSaveAndLoad() throws IOException {
+    assertTrue(myTable.isMigrating());
+    // file ids far beyond the initial size of the table
+    int[] fileIds = {0, 1, 100, 16383, 16384, 1000000};
+    for (int fileId : fileIds) {
+      myTable.setStamp(fileId, FIRST, myIndexStamp);
+      myTable.setStamp(fileId + 1, SECOND, myIndexStamp);
+    }
+    reopen(VFS_TIMESTAMP);
+
+    assertTrue(myTable.isMigrating());
+    for (int fileId : fileIds) {
+      assertEquals(myIndexStamp, myTable.getStamp(fileId, FIRST));
+      assertEquals(myIndexStamp, myTable.getStamp(fileId + 1, SECOND));
+    }
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(2, FIRST));
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(2000000, FIRST));
+  }
+
+  public void testTablesOfOtherFileSystemStorageAreDropped() throws IOException {
+    myTable.setStamp(1, FIRST, myIndexStamp);
+    reopen(VFS_TIMESTAMP + 1);
+    // the tables existed, so there are no stamps in file attributes to migrate
+    assertFalse(myTable.isMigrating());
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(1, FIRST));
+  }
+
+  public void testColumnIsClearedWhenIndexIsRebuilt() throws IOException {
+    myTable.setStamp(1, FIRST, myIndexStamp);
+    myTable.setStamp(1, SECOND, myIndexStamp);
+    reopen(VFS_TIMESTAMP);
+
+    myIndexStamp++;
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(1, FIRST));
+    myTable.setStamp(1, FIRST, myIndexStamp);
+    assertEquals(myIndexStamp, myTable.getStamp(1, FIRST));
+
+    // the column opened before the index was rebuilt is cleared as well
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(1, SECOND));
+  }
+
+  public void testMigrate() throws IOException {
+    myTable.setStamp(1, FIRST, myIndexStamp - 1);
+
+    TObjectLongHashMap<ID<?, ?>> stamps = new TObjectLongHashMap<ID<?, ?>>();
+    stamps.put(FIRST, myIndexStamp);
+    stamps.put(SECOND, myIndexStamp);
+    myTable.migrate(1, stamps);
+    myTable.migrate(2, null);
+
+    // known slots are kept
+    assertEquals(IndexStampsTable.NOT_INDEXED, myTable.getSlot(1, FIRST));
+    assertEquals(IndexStampsTable.INDEXED, myTable.getSlot(1, SECOND));
+    assertEquals(IndexStampsTable.NOT_INDEXED, myTable.getSlot(2, FIRST));
+    assertEquals(IndexStampsTable.NOT_INDEXED, myTable.getSlot(2, SECOND));
+  }
+
+  public void testReusedFileIdIsNotIndexed() throws IOException {
+    // the file 2 is deleted, but the IDE exits before its stamps are reset
+    myTable.setStamp(1, FIRST, myIndexStamp);
+    myTable.setStamp(2, FIRST, myIndexStamp);
+    myTable.setStamp(2, SECOND, myIndexStamp);
+    myTable.setStamp(3, SECOND, myIndexStamp);
+
+    // after restart the id of the deleted file is free and is given to a new file
+    reopen(VFS_TIMESTAMP, 2, 5, 1000000);
+    assertEquals(IndexStampsTable.INDEXED, myTable.getSlot(1, FIRST));
+    assertEquals(IndexStampsTable.NOT_INDEXED, myTable.getSlot(2, FIRST));
+    assertEquals(IndexStampsTable.NOT_INDEXED, myTable.getSlot(2, SECOND));
+    assertEquals(IndexStampsTable.INDEXED, myTable.getSlot(3, SECOND));
+    assertEquals(IndexStampsTable.UNKNOWN, myTable.getSlot(5, FIRST));
+
+    // once the new file is indexed, it stays indexed
+    myTable.setStamp(2, FIRST, myIndexStamp);
+    assertEquals(IndexStampsTable.INDEXED, myTable.getSlot(2, FIRST));
+    reopen(VFS_TIMESTAMP);
+    assertEquals(IndexStampsTable.INDEXED, myTable.getSlot(2, FIRST));
+  }
+
+  private void reopen(long vfsTimestamp, int... freeFileIds) throws IOException {
+    myTable.force();
+    myTable.close();
+    myTable = new TestTable(vfsTimestamp, freeFileIds);
+  }
+
+  private class TestTable extends IndexStampsTable {
+    private TestTable(long vfsTimestamp, int[] freeFileIds) throws IOException {
+      super(myDir, vfsTimestamp, freeFileIds);
+    }
+
+    @Override
+    long getIndexCreationStamp(@NotNull ID<?, ?> id) {
+      return myIndexStamp;
+    }
+  }
+}
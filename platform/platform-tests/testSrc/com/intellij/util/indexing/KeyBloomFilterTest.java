@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class KeyBloomFilterTest extends TestCase {
+  private static final int BITS = 1 << 20;
+  private File myDir;
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("bloom", null);
+    myFile = new File(myDir, "filter");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testNotReadyFilterMayContainAnyKey() {
+    KeyBloomFilter<String> filter = createFilter();
+    assertFalse(filter.isReady());
+    assertTrue(filter.mayContain("anything"));
+  }
+
+  public void testNoFalseNegatives() {
+    KeyBloomFilter<String> filter = createFilter();
+    filter.setReady();
+    for (int i = 0; i < 100000; i++) {
+      filter.add("key" + i);
+    }
+    for (int i = 0; i < 100000; i++) {
+      assertTrue(filter.mayContain("key" + i));
+    }
+    assertFalsePositivesRare(filter);
+  }
+
+  public void testNoFalseNegativesWithConcurrentAdds() throws InterruptedException {
+    final KeyBloomFilter<String> filter = createFilter();
+    filter.setReady();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = thread; i < 100000; i += 4) {
+            filter.add("key" + i);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    for (int i = 0; i < 100000; i++) {
+      assertTrue(filter.mayContain("key" + i));
+    }
+  }
+
+  public void testSaveAndLoad() {
+    KeyBloomFilter<String> filter = createFilter();
+    filter.setReady();
+    for (int i = 0; i < 10000; i++) {
+      filter.add("key" + i);
+    }
+    filter.save();
+    assertTrue(myFile.exists());
+
+    KeyBloomFilter<String> loaded = createFilter();
+    assertTrue(loaded.isReady());
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(loaded.mayContain("key" + i));
+    }
+    assertFalsePositivesRare(loaded);
+  }
+
+  public void testChangedFilterIsNotLoaded() {
+    KeyBloomFilter<String> filter = createFilter();
+    filter.setReady();
+    filter.add("saved");
+    filter.save();
+
+    // the file is deleted on the first change, so a filter not saved after it is rebuilt instead of missing the key
+    filter.add("not saved");
+    assertFalse(myFile.exists());
+    assertFalse(createFilter().isReady());
+
+    filter.save();
+    KeyBloomFilter<String> loaded = createFilter();
+    assertTrue(loaded.isReady());
+    assertTrue(loaded.mayContain("saved"));
+    assertTrue(loaded.mayContain("not saved"));
+  }
+
+  public void testFilterOfOtherSizeIsNotLoaded() {
+    KeyBloomFilter<String> filter = createFilter();
+    filter.setReady();
+    filter.add("key");
+    filter.save();
+    assertFalse(new KeyBloomFilter<String>(myFile, new EnumeratorStringDescriptor(), BITS * 2).isReady());
+  }
+
+  public void testNotReadyFilterIsNotSaved() {
+    KeyBloomFilter<String> filter = createFilter();
+    filter.add("key");
+    filter.save();
+    assertFalse(myFile.exists());
+  }
+
+  public void testClear() {
+    KeyBloomFilter<String> filter = createFilter();
+    filter.setReady();
+    filter.add("key");
+    filter.save();
+    filter.clear();
+    assertFalse(myFile.exists());
+    assertTrue(filter.isReady());
+    assertFalse(filter.mayContain("key"));
+    filter.save();
+    assertTrue(createFilter().isReady());
+  }
+
+  private KeyBloomFilter<String> createFilter() {
+    return new KeyBloomFilter<String>(myFile, new EnumeratorStringDescriptor(), BITS);
+  }
+
+  private static void assertFalsePositivesRare(KeyBloomFilter<String> filter) {
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mayContain("absent" + i)) falsePositives++;
+    }
+    // 100000 keys in 2^20 bits with 3 hash functions give about 2% of false positives
+    assertTrue(String.valueOf(falsePositives), falsePositives < 1000);
+  }
+}
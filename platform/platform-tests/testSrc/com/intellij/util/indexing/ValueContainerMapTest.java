@@ -0,0 +1,206 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+public class ValueContainerMapTest extends TestCase {
+  private File myDir;
+  private ValueContainerMap<Integer, String> myMap;
+  private int myNextKey;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("values", null);
+    myMap = new ValueContainerMap<Integer, String>(new File(myDir, "map"), EnumeratorIntegerDescriptor.INSTANCE,
+                                                   new EnumeratorStringDescriptor());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myMap.close();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testSingleId() throws IOException {
+    assertRoundTrip(ids(100, 1, 1));
+  }
+
+  public void testTwoIds() throws IOException {
+    assertRoundTrip(ids(100, 2, 1000));
+  }
+
+  public void testDenseBelowBitSetSize() throws IOException {
+    assertRoundTrip(ids(1, 63, 2));
+  }
+
+  public void testDenseAtBitSetSize() throws IOException {
+    assertRoundTrip(ids(1, 64, 2));
+  }
+
+  public void testAtSparseBoundary() throws IOException {
+    // range / 32 == count is still dense, range / 32 == count + 1 is sparse
+    TIntHashSet dense = ids(1000, 63, 32);
+    dense.add(1000 + 64 * 32);
+    assertRoundTrip(dense);
+    TIntHashSet sparse = ids(1000, 63, 32);
+    sparse.add(1000 + 65 * 32);
+    assertRoundTrip(sparse);
+  }
+
+  public void testLargeIds() throws IOException {
+    assertRoundTrip(ids(Integer.MAX_VALUE - 100000, 1000, 100));
+  }
+
+  public void testRandomSets() throws IOException {
+    Random random = new Random(42);
+    for (int i = 0; i < 50; i++) {
+      TIntHashSet set = new TIntHashSet();
+      int count = 1 + random.nextInt(300);
+      int range = 1 + random.nextInt(count * 64);
+      int base = 1 + random.nextInt(100000);
+      for (int j = 0; j < count; j++) {
+        set.add(base + random.nextInt(range));
+      }
+      assertRoundTrip(set);
+    }
+  }
+
+  public void testAppendedDeltasAndInvalidation() throws IOException {
+    TIntHashSet expected = ids(1, 200, 1);
+    put(1, expected);
+    TIntHashSet added = ids(5000, 100, 3);
+    put(1, added);
+    expected.addAll(added.toArray());
+
+    ChangeTrackingValueContainer<String> container = createContainer();
+    container.removeAssociatedValue(10);
+    container.removeAssociatedValue(5003);
+    myMap.put(1, container);
+    expected.remove(10);
+    expected.remove(5003);
+
+    assertContains(expected, myMap.get(1));
+  }
+
+  public void testOldFormatIsRead() throws IOException {
+    final int[] ids = {7, 3, 100, 42};
+    myMap.appendData(1, new PersistentHashMap.ValueDataAppender() {
+      @Override
+      public void append(@NotNull DataOutput out) throws IOException {
+        DataInputOutputUtil.writeSINT(out, 1);
+        new EnumeratorStringDescriptor().save(out, "value");
+        DataInputOutputUtil.writeSINT(out, ids.length);
+        for (int id : ids) {
+          DataInputOutputUtil.writeSINT(out, id);
+        }
+      }
+    });
+    assertContains(new TIntHashSet(ids), myMap.get(1));
+  }
+
+  public void testDenseSetStaysCorrectWhenBecomingSparse() throws IOException {
+    TIntHashSet expected = ids(1, 1000, 1);
+    put(1, expected);
+    ValueContainerImpl<String> container = (ValueContainerImpl<String>)myMap.get(1);
+    for (int i = 0; i < 100; i++) {
+      int id = 1000000 + i * 100000;
+      container.addValue(id, "value");
+      expected.add(id);
+    }
+    container.removeAssociatedValue(500);
+    expected.remove(500);
+    assertContains(expected, container);
+  }
+
+  private void assertRoundTrip(TIntHashSet ids) throws IOException {
+    int key = ++myNextKey;
+    put(key, ids);
+    assertContains(ids, myMap.get(key));
+    myMap.close();
+    myMap = new ValueContainerMap<Integer, String>(new File(myDir, "map"), EnumeratorIntegerDescriptor.INSTANCE,
+                                                   new EnumeratorStringDescriptor());
+    assertContains(ids, myMap.get(key));
+  }
+
+  private void put(int key, TIntHashSet ids) throws IOException {
+    ChangeTrackingValueContainer<String> container = createContainer();
+    for (int id : ids.toArray()) {
+      container.addValue(id, "value");
+    }
+    myMap.put(key, container);
+  }
+
+  private static ChangeTrackingValueContainer<String> createContainer() {
+    return new ChangeTrackingValueContainer<String>(new ChangeTrackingValueContainer.Initializer<String>() {
+      @Override
+      public Object getLock() {
+        return this;
+      }
+
+      @Override
+      public ValueContainer<String> compute() {
+        return new ValueContainerImpl<String>();
+      }
+    });
+  }
+
+  private static void assertContains(TIntHashSet expected, ValueContainer<String> container) {
+    assertNotNull(container);
+    assertEquals(1, container.size());
+    TIntHashSet actual = new TIntHashSet();
+    for (ValueContainer.IntIterator iterator = container.getInputIdsIterator("value"); iterator.hasNext(); ) {
+      assertTrue(actual.add(iterator.next()));
+    }
+    assertEquals(expected, actual);
+    assertEquals(expected.size(), container.getInputIdsIterator("value").size());
+    ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate("value");
+    for (int id : expected.toArray()) {
+      assertTrue(container.isAssociated("value", id));
+      assertTrue(predicate.contains(id));
+      if (!expected.contains(id + 1)) {
+        assertFalse(container.isAssociated("value", id + 1));
+        assertFalse(predicate.contains(id + 1));
+      }
+    }
+  }
+
+  private static TIntHashSet ids(int base, int count, int step) {
+    TIntHashSet set = new TIntHashSet();
+    for (int i = 0; i < count; i++) {
+      set.add(base + i * step);
+    }
+    return set;
+  }
+}
@@ -24,12 +24,15 @@ import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileWithId;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.testFramework.PlatformTestCase;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PersistentFSTest extends PlatformTestCase {
   @Override
@@ -123,4 +126,54 @@ public class PersistentFSTest extends PlatformTestCase {
       assertEmpty(prefix);
     }
   }
+
+  public void testConcurrentRecordReadsAndWrites() throws Exception {
+    final int[] ids = new int[2000];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = FSRecords.createRecord();
+      FSRecords.setLength(ids[i], ids[i] * 1000000L);
+    }
+
+    final long deadline = System.currentTimeMillis() + 3000;
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[6];
+    for (int t = 0; t < threads.length; t++) {
+      final int threadNo = t;
+      threads[t] = new Thread("FSRecords stress " + t) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random(threadNo);
+            int created = 0;
+            while (System.currentTimeMillis() < deadline && error.get() == null) {
+              int id = ids[random.nextInt(ids.length)];
+              if (threadNo == 0) {
+                if (created++ < 20000) FSRecords.createRecord(); // grows the records file while others read it
+              }
+              else if (threadNo == 1) {
+                new FSRecords().force();
+              }
+              else if (threadNo % 2 == 0) {
+                FSRecords.setLength(id, id * 1000000L + random.nextInt(1000000));
+              }
+              else {
+                long length = FSRecords.getLength(id);
+                assertEquals("length of " + id + " read from another record: " + length, id, length / 1000000L);
+              }
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+  }
 }
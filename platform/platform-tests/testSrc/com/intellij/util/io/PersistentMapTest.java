@@ -210,6 +210,42 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testIncrementalCompact() throws Exception {
+    final int stringsCount = 1000;
+    Map<String, String> expected = new HashMap<String, String>(stringsCount);
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = createRandomString();
+      myMap.put(key, key + "_old");
+      if (i % 2 == 0) {
+        myMap.put(key, key + "_value");
+        expected.put(key, key + "_value");
+      }
+      else {
+        myMap.remove(key);
+      }
+    }
+    myMap.force();
+    long sizeBefore = myDataFile.length();
+
+    myMap.compactInBackground().get();
+    assertFalse(myMap.isBackgroundCompactionInProgress());
+    assertEquals(1.0, myMap.getBackgroundCompactionProgress());
+    assertEquals(0, myMap.getGarbageSize());
+    assertTrue(myMap.getReclaimedBytes() > 0);
+    assertEquals(sizeBefore - myMap.getReclaimedBytes(), myDataFile.length());
+
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(expected.keySet(), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
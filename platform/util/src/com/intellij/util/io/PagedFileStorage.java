@@ -35,6 +35,8 @@ import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author max
@@ -83,14 +85,34 @@ public class PagedFileStorage implements Forceable {
   private static final int MAX_PAGES_COUNT = 0xFFFF;
   private static final int MAX_LIVE_STORAGES_COUNT = 0xFFFF;
 
+  private volatile long myLockWaitTime; // nanoseconds
+  private volatile int myContendedLockCount;
+
   public void lock() {
-    myStorageLockContext.myLock.lock();
+    SequenceLock lock = myStorageLockContext.myLock;
+    if (lock.tryLock()) return;
+    long started = System.nanoTime();
+    lock.lock();
+    // counters are updated under the lock
+    myLockWaitTime += System.nanoTime() - started;
+    ++myContendedLockCount;
   }
 
   public void unlock() {
     myStorageLockContext.myLock.unlock();
   }
 
+  /**
+   * @return total time in nanoseconds threads spent waiting in {@link #lock()} of this storage
+   */
+  public long getLockWaitTime() {
+    return myLockWaitTime;
+  }
+
+  public int getContendedLockCount() {
+    return myContendedLockCount;
+  }
+
   public StorageLockContext getStorageLockContext() {
     return myStorageLockContext;
   }
@@ -277,6 +299,9 @@ public class PagedFileStorage implements Forceable {
   public void close() {
     try {
       force();
+      if (IOStatistics.DEBUG && myContendedLockCount > 0) {
+        IOStatistics.dump("Lock of " + myFile + " was contended " + myContendedLockCount + " times, waited for " + myLockWaitTime / 1000000 + " ms");
+      }
     }
     finally {
       unmapAll();
@@ -358,19 +383,19 @@ public class PagedFileStorage implements Forceable {
   private ByteBuffer getBuffer(int page, boolean modify) {
     if (myLastPage == page) {
       ByteBuffer buf = myLastBuffer.getCachedBuffer();
-      if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+      if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount.get()) {
         if (modify) markDirty(myLastBuffer);
         return buf;
       }
     } else if (myLastPage2 == page) {
       ByteBuffer buf = myLastBuffer2.getCachedBuffer();
-      if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+      if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount.get()) {
         if (modify) markDirty(myLastBuffer2);
         return buf;
       }
     } else if (myLastPage3 == page) {
       ByteBuffer buf = myLastBuffer3.getCachedBuffer();
-      if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
+      if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount.get()) {
         if (modify) markDirty(myLastBuffer3);
         return buf;
       }
@@ -382,6 +407,8 @@ public class PagedFileStorage implements Forceable {
       if (myStorageIndex == -1) {
         myStorageIndex = myStorageLockContext.myStorageLock.registerPagedFileStorage(this);
       }
+      // read change count before the lookup so concurrent eviction of the segment is never missed
+      int mappingChangeCount = myStorageLockContext.myStorageLock.myMappingChangeCount.get();
       ByteBufferWrapper byteBufferWrapper = myStorageLockContext.myStorageLock.get(myStorageIndex | page);
       if (modify) markDirty(byteBufferWrapper);
       ByteBuffer buf = byteBufferWrapper.getBuffer();
@@ -401,7 +428,7 @@ public class PagedFileStorage implements Forceable {
         myLastBuffer = byteBufferWrapper;
       }
 
-      myLastChangeCount = myStorageLockContext.myStorageLock.myMappingChangeCount;
+      myLastChangeCount = mappingChangeCount;
 
       return buf;
     }
@@ -437,46 +464,33 @@ public class PagedFileStorage implements Forceable {
   public static class StorageLock {
     private static final int FILE_INDEX_MASK = 0xFFFF0000;
     private static final int FILE_INDEX_SHIFT = 16;
+    // number of independently locked page cache stripes, the default of 1 keeps single LRU cache for all storages
+    private static final int SEGMENT_STRIPES = Math.max(1, SystemProperties.getIntProperty("idea.paged.storage.cache.stripes", 1));
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentIntObjectMap<PagedFileStorage> myIndex2Storage = new StripedLockIntObjectConcurrentHashMap<PagedFileStorage>();
 
-    private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
-    private final SequenceLock mySegmentsAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
-
-    private final SequenceLock mySegmentsAllocationLock = new SequenceLock();
-    private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
-    private volatile long mySize;
+    private final SegmentStripe[] myStripes;
+    private final AtomicLong mySize = new AtomicLong(); // total length of mapped segments in all stripes
     private volatile long mySizeLimit;
-    private volatile int myMappingChangeCount;
+    private final AtomicInteger myMappingChangeCount = new AtomicInteger();
+    private int myNextEvictionStripe; // racy round robin position, only used as eviction hint
 
     public StorageLock() {
       this(true);
     }
 
     public StorageLock(boolean checkThreadAccess) {
+      this(checkThreadAccess, SEGMENT_STRIPES);
+    }
+
+    public StorageLock(boolean checkThreadAccess, int stripes) {
       myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
       mySizeLimit = UPPER_LIMIT;
-      mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-          return mySize > mySizeLimit;
-        }
-
-        @Nullable
-        @Override
-        public ByteBufferWrapper remove(Object key) {
-          // this method can be called after removeEldestEntry
-          ByteBufferWrapper wrapper = super.remove(key);
-          if (wrapper != null) {
-            ++myMappingChangeCount;
-            mySegmentsToRemove.offer(wrapper);
-            mySize -= wrapper.myLength;
-          }
-          return wrapper;
-        }
-      };
+      myStripes = new SegmentStripe[Math.max(1, stripes)];
+      for (int i = 0; i < myStripes.length; ++i) {
+        myStripes[i] = new SegmentStripe();
+      }
     }
 
     public void lock() {
@@ -487,6 +501,10 @@ public class PagedFileStorage implements Forceable {
       myDefaultStorageLockContext.myLock.unlock();
     }
 
+    public int getStripesCount() {
+      return myStripes.length;
+    }
+
     private int registerPagedFileStorage(@NotNull PagedFileStorage storage) {
       int registered = myIndex2Storage.size();
       assert registered <= MAX_LIVE_STORAGES_COUNT;
@@ -503,30 +521,38 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
+    private SegmentStripe getStripe(int key) {
+      if (myStripes.length == 1) return myStripes[0];
+      // spread pages of one storage as well as same pages of different storages
+      int hash = (key ^ (key >>> FILE_INDEX_SHIFT)) * 0x9E3779B9;
+      return myStripes[(hash >>> 1) % myStripes.length];
+    }
+
     private ByteBufferWrapper get(Integer key) {
+      SegmentStripe stripe = getStripe(key);
       ByteBufferWrapper wrapper;
       try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
+        stripe.myAccessLock.lock();
+        wrapper = stripe.mySegments.get(key);
         if (wrapper != null) return wrapper;
       }
       finally {
-        mySegmentsAccessLock.unlock();
+        stripe.myAccessLock.unlock();
       }
 
-      mySegmentsAllocationLock.lock();
+      stripe.myAllocationLock.lock();
       try {
         // check if anybody cared about our segment
-        mySegmentsAccessLock.lock();
+        stripe.myAccessLock.lock();
         try {
-          wrapper = mySegments.get(key);
+          wrapper = stripe.mySegments.get(key);
           if (wrapper != null) return wrapper;
         } finally {
-          mySegmentsAccessLock.unlock();
+          stripe.myAccessLock.unlock();
         }
 
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
-        wrapper = createValue(key);
+        wrapper = createValue(key, stripe);
 
         if (IOStatistics.DEBUG) {
           long finished = System.currentTimeMillis();
@@ -536,53 +562,61 @@ public class PagedFileStorage implements Forceable {
           }
         }
 
-        mySegmentsAccessLock.lock();
+        stripe.myAccessLock.lock();
         try {
-          mySegments.put(key, wrapper);
-          mySize += wrapper.myLength;
+          stripe.mySegments.put(key, wrapper);
+          mySize.addAndGet(wrapper.myLength);
         }
         finally {
-          mySegmentsAccessLock.unlock();
+          stripe.myAccessLock.unlock();
         }
 
-        ensureSize(mySizeLimit);
+        ensureSize(mySizeLimit, stripe, true);
 
         return wrapper;
       }
       finally {
-        mySegmentsAllocationLock.unlock();
+        stripe.myAllocationLock.unlock();
       }
     }
 
-    private void disposeRemovedSegments() {
-      if (mySegmentsToRemove.isEmpty()) return;
+    /**
+     * Evicts least recently used segments until the total mapped size fits into sizeLimit. Segments of the current stripe are dropped first,
+     * then other stripes are visited round robin, so with several stripes LRU order is kept within a stripe only.
+     */
+    private void ensureSize(long sizeLimit, SegmentStripe current, boolean keepLastMapped) {
+      assert current.myAllocationLock.isHeldByCurrentThread();
 
-      assert mySegmentsAllocationLock.isHeldByCurrentThread();
-      Iterator<ByteBufferWrapper> iterator = mySegmentsToRemove.iterator();
-      while(iterator.hasNext()) {
-        iterator.next().dispose();
-        iterator.remove();
+      while (mySize.get() > sizeLimit && current.removeEldest(keepLastMapped ? 1 : 0)) {
+        // we still have to drop something
       }
-    }
+      current.disposeRemovedSegments();
 
-    private void ensureSize(long sizeLimit) {
-      assert mySegmentsAllocationLock.isHeldByCurrentThread();
+      if (myStripes.length == 1) return;
 
-      try {
-        mySegmentsAccessLock.lock();
-        while (mySize > sizeLimit) {
-          // we still have to drop something
-          mySegments.doRemoveEldestEntry();
+      int idle = 0;
+      while (mySize.get() > sizeLimit && idle < myStripes.length) {
+        int position = myNextEvictionStripe++ % myStripes.length;
+        SegmentStripe stripe = myStripes[position < 0 ? -position : position];
+        if (stripe == current || !stripe.removeEldest(0)) {
+          ++idle;
+          continue;
+        }
+        idle = 0;
+        // segments of busy stripe will be disposed by its allocating thread
+        if (stripe.myAllocationLock.tryLock()) {
+          try {
+            stripe.disposeRemovedSegments();
+          }
+          finally {
+            stripe.myAllocationLock.unlock();
+          }
         }
-      } finally {
-        mySegmentsAccessLock.unlock();
       }
-
-      disposeRemovedSegments();
     }
 
     @NotNull
-    private ByteBufferWrapper createValue(Integer key) {
+    private ByteBufferWrapper createValue(Integer key, SegmentStripe stripe) {
       final int storageIndex = key & FILE_INDEX_MASK;
       PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(storageIndex);
       assert owner != null: "No storage for index " + storageIndex;
@@ -613,10 +647,10 @@ public class PagedFileStorage implements Forceable {
           if (mySizeLimit > LOWER_LIMIT) {
             mySizeLimit -= owner.myPageSize;
           }
-          long newSize = mySize - owner.myPageSize;
+          long newSize = mySize.get() - owner.myPageSize;
           if (newSize < 0) {
             LOG.info("Currently allocated:"+mySize);
-            LOG.info("Mapping failed due to OOME. Current buffers: " + mySegments);
+            LOG.info("Mapping failed due to OOME. Current buffers: " + stripe.mySegments);
             LOG.info(oome);
             try {
               Class<?> aClass = Class.forName("java.nio.Bits");
@@ -634,7 +668,7 @@ public class PagedFileStorage implements Forceable {
               "new size limit: " + mySizeLimit / MB + "MB " +
               "trying to allocate " + wrapper.myLength + " block", e);
           }
-          ensureSize(newSize); // next try
+          ensureSize(newSize, stripe, false); // next try
         }
       }
     }
@@ -645,12 +679,13 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
-    private @Nullable Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext) {
-      mySegmentsAccessLock.lock();
+    private @Nullable Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index, StorageLockContext storageLockContext,
+                                                                               SegmentStripe stripe) {
+      stripe.myAccessLock.lock();
       try {
         checkThreadAccess(storageLockContext);
         Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : mySegments.entrySet()) {
+        for (Map.Entry<Integer, ByteBufferWrapper> entry : stripe.mySegments.entrySet()) {
           if ((entry.getKey() & FILE_INDEX_MASK) == index) {
             if (mineBuffers == null) {
               mineBuffers = new TreeMap<Integer, ByteBufferWrapper>(new Comparator<Integer>() {
@@ -666,62 +701,117 @@ public class PagedFileStorage implements Forceable {
         return mineBuffers;
       }
       finally {
-        mySegmentsAccessLock.unlock();
+        stripe.myAccessLock.unlock();
       }
     }
 
     private void unmapBuffersForOwner(int index, StorageLockContext storageLockContext) {
-      final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
-
-      if (buffers != null) {
-        mySegmentsAccessLock.lock();
-        try {
-          for (Integer key : buffers.keySet()) {
-            mySegments.remove(key);
+      for (SegmentStripe stripe : myStripes) {
+        final Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext, stripe);
+
+        if (buffers != null) {
+          stripe.myAccessLock.lock();
+          try {
+            for (Integer key : buffers.keySet()) {
+              stripe.mySegments.remove(key);
+            }
+          }
+          finally {
+            stripe.myAccessLock.unlock();
           }
-        }
-        finally {
-          mySegmentsAccessLock.unlock();
-        }
 
-        mySegmentsAllocationLock.lock();
-        try {
-          disposeRemovedSegments();
-        } finally {
-          mySegmentsAllocationLock.unlock();
+          stripe.myAllocationLock.lock();
+          try {
+            stripe.disposeRemovedSegments();
+          } finally {
+            stripe.myAllocationLock.unlock();
+          }
         }
       }
     }
 
     private void flushBuffersForOwner(int index, StorageLockContext storageLockContext) {
-      Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext);
-
-      if (buffers != null) {
-        mySegmentsAllocationLock.lock();
-        try {
-          for(ByteBufferWrapper buffer:buffers.values()) {
-            buffer.flush();
+      for (SegmentStripe stripe : myStripes) {
+        Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index, storageLockContext, stripe);
+
+        if (buffers != null) {
+          stripe.myAllocationLock.lock();
+          try {
+            for(ByteBufferWrapper buffer:buffers.values()) {
+              buffer.flush();
+            }
+          }
+          finally {
+            stripe.myAllocationLock.unlock();
           }
-        }
-        finally {
-          mySegmentsAllocationLock.unlock();
         }
       }
     }
 
     public void invalidateBuffer(int page) {
-      mySegmentsAccessLock.lock();
+      SegmentStripe stripe = getStripe(page);
+      stripe.myAccessLock.lock();
       try {
-        mySegments.remove(page);
+        stripe.mySegments.remove(page);
       } finally {
-        mySegmentsAccessLock.unlock();
+        stripe.myAccessLock.unlock();
       }
-      mySegmentsAllocationLock.lock();
+      stripe.myAllocationLock.lock();
       try {
-        disposeRemovedSegments();
+        stripe.disposeRemovedSegments();
       }
       finally {
-        mySegmentsAllocationLock.unlock();
+        stripe.myAllocationLock.unlock();
+      }
+    }
+
+    private class SegmentStripe {
+      private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
+      private final SequenceLock myAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order
+      // todo avoid locking for access
+
+      private final SequenceLock myAllocationLock = new SequenceLock(); // guards mapping, flushing and disposal of the stripe segments
+      private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
+
+      private SegmentStripe() {
+        // segments aren't evicted on put: ensureSize() does it after accounting the new segment and never drops the just added one,
+        // which can be the only one in the stripe while the budget is taken by other stripes
+        mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
+          @Nullable
+          @Override
+          public ByteBufferWrapper remove(Object key) {
+            // this method can be called after removeEldestEntry
+            ByteBufferWrapper wrapper = super.remove(key);
+            if (wrapper != null) {
+              myMappingChangeCount.incrementAndGet();
+              mySegmentsToRemove.offer(wrapper);
+              mySize.addAndGet(-wrapper.myLength);
+            }
+            return wrapper;
+          }
+        };
+      }
+
+      private boolean removeEldest(int segmentsToKeep) {
+        myAccessLock.lock();
+        try {
+          if (mySegments.size() <= segmentsToKeep) return false;
+          mySegments.doRemoveEldestEntry();
+          return true;
+        }
+        finally {
+          myAccessLock.unlock();
+        }
+      }
+
+      private void disposeRemovedSegments() {
+        if (mySegmentsToRemove.isEmpty()) return;
+
+        assert myAllocationLock.isHeldByCurrentThread();
+        ByteBufferWrapper wrapper;
+        while ((wrapper = mySegmentsToRemove.poll()) != null) {
+          wrapper.dispose();
+        }
       }
     }
   }
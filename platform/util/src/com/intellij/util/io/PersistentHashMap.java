@@ -20,19 +20,22 @@ import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.containers.hash.EqualityPolicy;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * @author Eugene Zhuravlev
@@ -66,6 +69,15 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = true;
 
+  private static final boolean BACKGROUND_COMPACTION = System.getProperty("idea.persistent.hash.map.background.compact") != null;
+  private static final int BACKGROUND_COMPACTION_CHUNK_SIZE = 4096; // keys copied between cancellation / progress checks
+  private static final ExecutorService ourCompactionExecutor = ConcurrencyUtil.newSingleThreadExecutor("PersistentHashMap Compaction",
+                                                                                                     Thread.MIN_PRIORITY);
+  private volatile boolean myBackgroundCompactionInProgress;
+  private volatile int myCompactedKeys;
+  private volatile int myKeysToCompact;
+  private volatile long myReclaimedBytes;
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(null);
@@ -155,7 +167,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
-        compact();
+        if (BACKGROUND_COMPACTION) {
+          compactInBackground();
+        }
+        else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -563,6 +580,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      if (myBackgroundCompactionInProgress) {
+        LOG.info("Background compaction of " + myEnumerator.myFile.getPath() + " is in progress");
+        return;
+      }
       LOG.info("Compacting "+myEnumerator.myFile.getPath());
       LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
                ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
@@ -612,6 +633,182 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  @NotNull
+  public Future<?> compactInBackground() {
+    return ourCompactionExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compactIncrementally();
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Compacts values without blocking the map for the whole operation: live records are copied into a new storage file
+   * in chunks while the map is available for reads and writes, records modified meanwhile are copied again when the
+   * storage files are swapped under the map lock. Does nothing if the map is closed or being compacted.
+   */
+  public void compactIncrementally() throws IOException {
+    final long started = System.currentTimeMillis();
+    final File newFile = new File(getDataFile(myEnumerator.myFile).getPath() + ".compacting");
+    final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
+    final PersistentHashMapValueStorage.SnapshotReader reader;
+
+    synchronized (myEnumerator) {
+      if (myBackgroundCompactionInProgress || isClosed()) return;
+      myBackgroundCompactionInProgress = true;
+      myEnumerator.lockStorage();
+      try {
+        myAppendCache.clear();
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            final long record = readValueId(keyId);
+            if (record != NULL_ADDR) {
+              infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+            }
+            return true;
+          }
+        });
+        reader = myValueStorage.createSnapshotReader();
+      }
+      catch (IOException e) {
+        myBackgroundCompactionInProgress = false;
+        throw e;
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+    }
+
+    boolean swapped = false;
+    PersistentHashMapValueStorage newStorage = null;
+    try {
+      FileUtil.delete(newFile);
+      newStorage = PersistentHashMapValueStorage.create(newFile.getPath());
+      myKeysToCompact = infos.size();
+      myCompactedKeys = 0;
+
+      // copy values in file order, neither storage nor snapshot reader require the map lock
+      Collections.sort(infos, new Comparator<CompactionRecordInfo>() {
+        @Override
+        public int compare(CompactionRecordInfo o1, CompactionRecordInfo o2) {
+          return o1.valueAddress < o2.valueAddress ? -1 : o1.valueAddress > o2.valueAddress ? 1 : 0;
+        }
+      });
+      for (int i = 0; i < infos.size(); ++i) {
+        if (i % BACKGROUND_COMPACTION_CHUNK_SIZE == 0) {
+          if (isClosed()) return;
+          myCompactedKeys = i;
+        }
+        CompactionRecordInfo info = infos.get(i);
+        byte[] bytes = reader.readBytes(info.valueAddress);
+        info.newValueAddress = newStorage.appendBytes(bytes, 0, bytes.length, 0);
+      }
+      myCompactedKeys = infos.size();
+
+      synchronized (myEnumerator) {
+        if (isClosed()) return;
+        swapCompactedStorage(infos, reader, newStorage, newFile, started);
+        swapped = true;
+      }
+    }
+    finally {
+      reader.dispose();
+      if (!swapped) {
+        if (newStorage != null) newStorage.dispose();
+        FileUtil.delete(newFile);
+      }
+      myBackgroundCompactionInProgress = false;
+    }
+  }
+
+  private void swapCompactedStorage(List<CompactionRecordInfo> infos,
+                                    final PersistentHashMapValueStorage.SnapshotReader reader,
+                                    final PersistentHashMapValueStorage newStorage,
+                                    File newFile,
+                                    long started) throws IOException {
+    final TIntObjectHashMap<CompactionRecordInfo> keyToInfo = new TIntObjectHashMap<CompactionRecordInfo>(infos.size());
+    for (CompactionRecordInfo info : infos) {
+      keyToInfo.put(info.address, info);
+    }
+
+    myEnumerator.lockStorage();
+    try {
+      myAppendCache.clear();
+      reader.refresh();
+      final long sizeBefore = myValueStorage.getSize();
+      final int[] recopied = new int[1];
+      final TIntHashSet reenumerated = new TIntHashSet();
+
+      myLiveAndGarbageKeysCounter = 0;
+      myReadCompactionGarbageSize = 0;
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) throws IOException {
+          final long record = readValueId(keyId);
+          if (record != NULL_ADDR && !reenumerated.contains(keyId)) {
+            CompactionRecordInfo info = keyToInfo.get(keyId);
+            long newValueAddress;
+            if (info != null && info.valueAddress == record) {
+              newValueAddress = info.newValueAddress;
+            }
+            else {
+              // value was modified after the snapshot was taken
+              byte[] bytes = reader.readBytes(record);
+              newValueAddress = newStorage.appendBytes(bytes, 0, bytes.length, 0);
+              ++recopied[0];
+            }
+            int newKeyId = updateValueId(keyId, newValueAddress, record, null, getCurrentKey());
+            if (newKeyId != keyId) reenumerated.add(newKeyId);
+            myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+          }
+          return true;
+        }
+      });
+
+      newStorage.dispose();
+      myValueStorage.dispose();
+      final long newSize = newStorage.getSize();
+
+      FileUtil.rename(newFile, getDataFile(myEnumerator.myFile));
+
+      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+      myReclaimedBytes += sizeBefore - newSize;
+      LOG.info("Compacted in background " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " +
+               (System.currentTimeMillis() - started) + "ms, keys:" + infos.size() + ", copied again:" + recopied[0]);
+      myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+      myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+  }
+
+  public boolean isBackgroundCompactionInProgress() {
+    return myBackgroundCompactionInProgress;
+  }
+
+  /**
+   * @return fraction of live values copied by the running background compaction
+   */
+  public double getBackgroundCompactionProgress() {
+    int total = myKeysToCompact;
+    return total == 0 ? 1 : (double)myCompactedKeys / total;
+  }
+
+  /**
+   * @return number of bytes freed in the value storage by background compactions since the map was opened
+   */
+  public long getReclaimedBytes() {
+    return myReclaimedBytes;
+  }
+
   private void newCompact(PersistentHashMapValueStorage newStorage) throws IOException {
     long started = System.currentTimeMillis();
     final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
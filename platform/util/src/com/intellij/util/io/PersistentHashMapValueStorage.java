@@ -21,6 +21,7 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.containers.SLRUCache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -309,10 +310,6 @@ public class PersistentHashMapValueStorage {
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
     force();
 
-    long chunk = tailChunkAddress;
-    int chunkCount = 0;
-
-    byte[] result = null;
     RAReader reader = myCompactionModeReader;
     CacheValue<RAReader> readerHandle = null;
     if (reader == null) {
@@ -320,63 +317,110 @@ public class PersistentHashMapValueStorage {
       reader = readerHandle.get();
     }
 
+    final byte[] result;
+    final int[] chunkCount = new int[1];
+    try {
+      result = readChunks(reader, myBuffer, tailChunkAddress, mySize, myFile, chunkCount);
+    }
+    finally {
+      if (readerHandle != null) {
+        readerHandle.release();
+      }
+    }
+
+    if (chunkCount[0] > 1 && !myCompactionMode) {
+      long l = appendBytes(new ByteSequence(result), 0);
+      return new ReadResult(l, result);
+    }
+
+    return new ReadResult(tailChunkAddress, result);
+  }
+
+  private static byte[] readChunks(RAReader reader, byte[] buffer, long tailChunkAddress, long size, File file, int[] chunkCount)
+    throws IOException {
+    long chunk = tailChunkAddress;
+    byte[] result = null;
+
     try {
       while (chunk != 0) {
-        if (chunk < 0 || chunk > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
-        int len = (int)Math.min(myBuffer.length, mySize - chunk);
-        reader.get(chunk, myBuffer, 0, len);
+        if (chunk < 0 || chunk > size) throw new PersistentEnumeratorBase.CorruptedException(file);
+        int len = (int)Math.min(buffer.length, size - chunk);
+        reader.get(chunk, buffer, 0, len);
 
-        final int sizePart = myBuffer[0];
+        final int sizePart = buffer[0];
         final long prevChunkAddress;
         final int chunkSize;
 
         if (sizePart < 0) {
           chunkSize = -sizePart - POSITIVE_VALUE_SHIFT;
-          prevChunkAddress = Bits.getInt(myBuffer, 1);
+          prevChunkAddress = Bits.getInt(buffer, 1);
           byte[] b = new byte[(result != null ? result.length:0) + chunkSize];
           if (result != null) System.arraycopy(result, 0, b, b.length - result.length, result.length);
           result = b;
 
           checkPreconditions(result, chunkSize, 0);
-          System.arraycopy(myBuffer, BYTE_LENGTH_INT_ADDRESS, result, 0, chunkSize);
+          System.arraycopy(buffer, BYTE_LENGTH_INT_ADDRESS, result, 0, chunkSize);
         } else {
-          chunkSize = Bits.getInt(myBuffer, 0);
-          prevChunkAddress = Bits.getLong(myBuffer, 4);
+          chunkSize = Bits.getInt(buffer, 0);
+          prevChunkAddress = Bits.getLong(buffer, 4);
           byte[] b = new byte[(result != null ? result.length:0) + chunkSize];
           if (result != null) System.arraycopy(result, 0, b, b.length - result.length, result.length);
           result = b;
 
-          if (chunkSize < myBuffer.length - INT_LENGTH_LONG_ADDRESS) {
-            System.arraycopy(myBuffer, INT_LENGTH_LONG_ADDRESS, result, 0, chunkSize);
+          if (chunkSize < buffer.length - INT_LENGTH_LONG_ADDRESS) {
+            System.arraycopy(buffer, INT_LENGTH_LONG_ADDRESS, result, 0, chunkSize);
           } else {
             reader.get(chunk + INT_LENGTH_LONG_ADDRESS, result, 0, chunkSize);
           }
         }
 
-        if (prevChunkAddress >= chunk) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+        if (prevChunkAddress >= chunk) throw new PersistentEnumeratorBase.CorruptedException(file);
 
         chunk = prevChunkAddress;
-        chunkCount++;
-        if (result.length > mySize) {
-          throw new PersistentEnumeratorBase.CorruptedException(myFile);
+        chunkCount[0]++;
+        if (result.length > size) {
+          throw new PersistentEnumeratorBase.CorruptedException(file);
         }
       }
     } catch (OutOfMemoryError error) {
-      result = null;
-      throw new PersistentEnumeratorBase.CorruptedException(myFile);
+      throw new PersistentEnumeratorBase.CorruptedException(file);
     }
-    finally {
-      if (readerHandle != null) {
-        readerHandle.release();
-      }
+    return result;
+  }
+
+  /**
+   * Creates reader of the records written so far. The reader does not share file handles and buffers with the storage, so it can be used
+   * without holding the map lock, while new records are appended to the storage.
+   */
+  @NotNull
+  public SnapshotReader createSnapshotReader() {
+    force();
+    return new SnapshotReader();
+  }
+
+  public class SnapshotReader {
+    private final RAReader myReader = new FileReader(myFile);
+    private final byte[] myReadBuffer = new byte[1024];
+    private final int[] myChunkCount = new int[1];
+    private long myLimit = mySize;
+
+    /**
+     * Makes records appended after creation of the reader visible, should be called under the same lock as appends to the storage.
+     */
+    public void refresh() {
+      force();
+      myLimit = mySize;
     }
 
-    if (chunkCount > 1 && !myCompactionMode) {
-      long l = appendBytes(new ByteSequence(result), 0);
-      return new ReadResult(l, result);
+    @NotNull
+    public byte[] readBytes(long tailChunkAddress) throws IOException {
+      byte[] bytes = readChunks(myReader, myReadBuffer, tailChunkAddress, myLimit, myFile, myChunkCount);
+      return bytes != null ? bytes : ArrayUtil.EMPTY_BYTE_ARRAY;
     }
 
-    return new ReadResult(tailChunkAddress, result);
+    public void dispose() {
+      myReader.dispose();
+    }
   }
 
   public long getSize() {
@@ -461,6 +461,30 @@ public class JBZipEntry implements Cloneable {
     }
   }
 
+  /**
+   * Returns the entry data as it is stored in the archive, i.e. compressed for deflated entries.
+   */
+  public byte[] getRawData() throws IOException {
+    if (size == -1) throw new IOException("no data");
+
+    final InputStream stream = new BoundedInputStream(calcDataOffset(), getCompressedSize());
+    try {
+      return FileUtil.loadBytes(stream, (int)getCompressedSize());
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Writes data which is already compressed with the entry's method, e.g. obtained via {@link #getRawData()} from another archive.
+   * The method, the size and the CRC of the uncompressed data must be set before.
+   */
+  public void setRawData(byte[] rawBytes) throws IOException {
+    JBZipOutputStream stream = myFile.getOutputStream();
+    stream.putNextEntryRawBytes(this, rawBytes);
+  }
+
   private long calcDataOffset() throws IOException {
     long offset = getHeaderOffset();
     myFile.archive.seek(offset + JBZipFile.LFH_OFFSET_FOR_FILENAME_LENGTH);
@@ -383,6 +383,16 @@ class JBZipOutputStream {
     myBuffer.reset();
   }
 
+  void putNextEntryRawBytes(JBZipEntry entry, byte[] rawBytes) throws IOException {
+    if (entry.getTime() == -1) {
+      entry.setTime(System.currentTimeMillis());
+    }
+
+    entry.setCompressedSize(rawBytes.length);
+    writeLocalFileHeader(entry);
+    writeOut(rawBytes, 0, rawBytes.length);
+  }
+
   public void putNextEntryBytes(JBZipEntry entry, byte[] bytes) throws IOException {
     entry.setSize(bytes.length);
 
@@ -118,6 +118,41 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testStripedPageCache() throws IOException {
+    PagedFileStorage.StorageLock stripedLock = new PagedFileStorage.StorageLock(true, 4);
+    assertEquals(4, stripedLock.getStripesCount());
+    File f2 = FileUtil.createTempFile("storage", ".tmp");
+    stripedLock.lock();
+    try {
+      int pageSize = Page.PAGE_SIZE;
+      PagedFileStorage s1 = new PagedFileStorage(f, stripedLock, pageSize, true);
+      PagedFileStorage s2 = new PagedFileStorage(f2, stripedLock, pageSize, true);
+      int size = pageSize * 64;
+      s1.resize(size);
+      s2.resize(size);
+      for (int addr = 0; addr < size; addr += 4) {
+        s1.putInt(addr, addr);
+        s2.putInt(addr, -addr);
+      }
+      for (int addr = size - 4; addr >= 0; addr -= 4) {
+        assertEquals(addr, s1.getInt(addr));
+        assertEquals(-addr, s2.getInt(addr));
+      }
+      s1.close();
+      s2.close();
+
+      s2 = new PagedFileStorage(f2, stripedLock, pageSize, true);
+      for (int addr = 0; addr < size; addr += 4) {
+        assertEquals(-addr, s2.getInt(addr));
+      }
+      s2.close();
+    }
+    finally {
+      stripedLock.unlock();
+      assert f2.delete() : f2.getPath();
+    }
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {